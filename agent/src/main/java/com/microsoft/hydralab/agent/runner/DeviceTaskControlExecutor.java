@@ -16,6 +16,7 @@ import java.util.Collection;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
 
 @Service
 public class DeviceTaskControlExecutor {
@@ -52,7 +53,7 @@ public class DeviceTaskControlExecutor {
                     }
                 }
             };
-            ThreadPoolUtil.TEST_EXECUTOR.execute(run);
+            execute(run, count, taskCompletion);
 
             return new DeviceTaskControl(count, Set.of(fakeDevice));
         }
@@ -110,11 +111,26 @@ public class DeviceTaskControlExecutor {
                     }
                 }
             };
-            ThreadPoolUtil.TEST_EXECUTOR.execute(run);
+            execute(run, count, taskCompletion);
         }
         return new DeviceTaskControl(count, devices);
     }
 
+    /**
+     * A run rejected by the full executor is counted as done, so the task still completes with the other devices.
+     */
+    private static void execute(Runnable run, CountDownLatch count, TaskCompletion taskCompletion) {
+        try {
+            ThreadPoolUtil.TEST_EXECUTOR.execute(run);
+        } catch (RejectedExecutionException e) {
+            log.error("Test executor is full, the task is not run on the device", e);
+            count.countDown();
+            if (count.getCount() <= 0 && taskCompletion != null) {
+                taskCompletion.onComplete();
+            }
+        }
+    }
+
     public interface DeviceTask {
         boolean doTask(TestRunDevice testRunDevice) throws Exception;
     }
@@ -15,9 +15,11 @@ import com.microsoft.hydralab.common.management.device.impl.DeviceDriverManager;
 import com.microsoft.hydralab.common.network.NetworkMonitor;
 import com.microsoft.hydralab.common.screen.FFmpegConcatUtil;
 import com.microsoft.hydralab.common.screen.ScreenRecorder;
+import com.microsoft.hydralab.common.util.HydraLabRuntimeException;
 import com.microsoft.hydralab.common.util.ImageUtil;
 import com.microsoft.hydralab.common.util.ThreadPoolUtil;
 import com.microsoft.hydralab.common.util.ThreadUtils;
+import com.microsoft.hydralab.performance.PerformanceTestManagementService;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
@@ -30,14 +32,28 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 @Service
 public class TestRunDeviceOrchestrator {
+    private static final long INSTALL_TIMEOUT_SECONDS = TimeUnit.MINUTES.toSeconds(5);
+    private static final long DEVICE_COMMAND_TIMEOUT_SECONDS = TimeUnit.MINUTES.toSeconds(1);
+    private static final long SCREENSHOT_TIMEOUT_SECONDS = 30;
+    private static final long STOP_RECORDER_TIMEOUT_SECONDS = TimeUnit.MINUTES.toSeconds(5);
+    private static final long ACTIONS_TIMEOUT_SECONDS = TimeUnit.MINUTES.toSeconds(10);
+    // frames are added every few seconds, the ones over it are skipped while the device is slow to take screenshots
+    private static final int MAX_GIF_FRAME_TASKS_PER_DEVICE = 3;
     @Resource
     DeviceDriverManager deviceDriverManager;
     @Resource
     ActionExecutor actionExecutor;
+    @Resource
+    PerformanceTestManagementService performanceTestManagementService;
 
     public AppiumServerManager getAppiumServerManager() {
         return deviceDriverManager.getAppiumServerManager();
@@ -45,8 +61,8 @@ public class TestRunDeviceOrchestrator {
 
     public File getScreenShot(@NotNull TestRunDevice testRunDevice, @NotNull File screenshotDir, @Nullable Logger logger) {
         if (testRunDevice instanceof TestRunDeviceCombo) {
-            List<File> screenShots = new ArrayList<>();
-            ((TestRunDeviceCombo) testRunDevice).getDevices().forEach(testRunDevice1 -> screenShots.add(deviceDriverManager.getScreenShot(testRunDevice1.getDeviceInfo(), logger)));
+            List<File> screenShots = runOnComboDevices((TestRunDeviceCombo) testRunDevice, "getScreenShot", SCREENSHOT_TIMEOUT_SECONDS,
+                    testRunDevice1 -> deviceDriverManager.getScreenShot(testRunDevice1.getDeviceInfo(), logger));
             return ImageUtil.joinImages(screenshotDir, testRunDevice.getDeviceInfo().getSerialNum() + "-merged.jpg", screenShots);
         } else {
             return deviceDriverManager.getScreenShot(testRunDevice.getDeviceInfo(), logger);
@@ -55,7 +71,8 @@ public class TestRunDeviceOrchestrator {
 
     public void wakeUpDevice(@NotNull TestRunDevice testRunDevice, @Nullable Logger logger) {
         if (testRunDevice instanceof TestRunDeviceCombo) {
-            ((TestRunDeviceCombo) testRunDevice).getDevices().forEach(testRunDevice1 -> deviceDriverManager.wakeUpDevice(testRunDevice1.getDeviceInfo(), logger));
+            forEachComboDevice((TestRunDeviceCombo) testRunDevice, "wakeUpDevice", DEVICE_COMMAND_TIMEOUT_SECONDS,
+                    testRunDevice1 -> deviceDriverManager.wakeUpDevice(testRunDevice1.getDeviceInfo(), logger));
         } else {
             deviceDriverManager.wakeUpDevice(testRunDevice.getDeviceInfo(), logger);
         }
@@ -63,7 +80,8 @@ public class TestRunDeviceOrchestrator {
 
     public void unlockDevice(@NotNull TestRunDevice testRunDevice, @Nullable Logger logger) {
         if (testRunDevice instanceof TestRunDeviceCombo) {
-            ((TestRunDeviceCombo) testRunDevice).getDevices().forEach(testRunDevice1 -> deviceDriverManager.unlockDevice(testRunDevice1.getDeviceInfo(), logger));
+            forEachComboDevice((TestRunDeviceCombo) testRunDevice, "unlockDevice", DEVICE_COMMAND_TIMEOUT_SECONDS,
+                    testRunDevice1 -> deviceDriverManager.unlockDevice(testRunDevice1.getDeviceInfo(), logger));
         } else {
             deviceDriverManager.unlockDevice(testRunDevice.getDeviceInfo(), logger);
         }
@@ -71,11 +89,9 @@ public class TestRunDeviceOrchestrator {
 
     public boolean installApp(@NotNull TestRunDevice testRunDevice, @NotNull String packagePath, String extraArgs, @Nullable Logger logger) {
         if (testRunDevice instanceof TestRunDeviceCombo) {
-            boolean isInstalled = true;
-            for (TestRunDevice testRunDevice1 : ((TestRunDeviceCombo) testRunDevice).getDevices()) {
-                isInstalled = isInstalled && deviceDriverManager.installApp(testRunDevice1.getDeviceInfo(), packagePath, extraArgs, logger);
-            }
-            return isInstalled;
+            return runOnComboDevices((TestRunDeviceCombo) testRunDevice, "installApp", INSTALL_TIMEOUT_SECONDS,
+                    testRunDevice1 -> deviceDriverManager.installApp(testRunDevice1.getDeviceInfo(), packagePath, extraArgs, logger))
+                    .stream().allMatch(Boolean::booleanValue);
         } else {
             return deviceDriverManager.installApp(testRunDevice.getDeviceInfo(), packagePath, extraArgs, logger);
         }
@@ -83,11 +99,9 @@ public class TestRunDeviceOrchestrator {
 
     public boolean installApp(@NotNull TestRunDevice testRunDevice, @NotNull String packagePath, @Nullable Logger logger) {
         if (testRunDevice instanceof TestRunDeviceCombo) {
-            boolean isInstalled = true;
-            for (TestRunDevice testRunDevice1 : ((TestRunDeviceCombo) testRunDevice).getDevices()) {
-                isInstalled = isInstalled && deviceDriverManager.installApp(testRunDevice1.getDeviceInfo(), packagePath, logger);
-            }
-            return isInstalled;
+            return runOnComboDevices((TestRunDeviceCombo) testRunDevice, "installApp", INSTALL_TIMEOUT_SECONDS,
+                    testRunDevice1 -> deviceDriverManager.installApp(testRunDevice1.getDeviceInfo(), packagePath, logger))
+                    .stream().allMatch(Boolean::booleanValue);
         } else {
             return deviceDriverManager.installApp(testRunDevice.getDeviceInfo(), packagePath, logger);
         }
@@ -95,7 +109,8 @@ public class TestRunDeviceOrchestrator {
 
     public void uninstallApp(@NotNull TestRunDevice testRunDevice, @NotNull String packageName, @Nullable Logger logger) {
         if (testRunDevice instanceof TestRunDeviceCombo) {
-            ((TestRunDeviceCombo) testRunDevice).getDevices().forEach(testRunDevice1 -> deviceDriverManager.uninstallApp(testRunDevice1.getDeviceInfo(), packageName, logger));
+            forEachComboDevice((TestRunDeviceCombo) testRunDevice, "uninstallApp", DEVICE_COMMAND_TIMEOUT_SECONDS,
+                    testRunDevice1 -> deviceDriverManager.uninstallApp(testRunDevice1.getDeviceInfo(), packageName, logger));
         } else {
             deviceDriverManager.uninstallApp(testRunDevice.getDeviceInfo(), packageName, logger);
         }
@@ -111,7 +126,7 @@ public class TestRunDeviceOrchestrator {
 
     public void startScreenRecorder(@NotNull TestRunDevice testRunDevice, @NotNull File folder, int maxTimeInSecond, @Nullable Logger logger) {
         if (testRunDevice instanceof TestRunDeviceCombo) {
-            ((TestRunDeviceCombo) testRunDevice).getDevices().forEach(testRunDevice1 -> {
+            forEachComboDevice((TestRunDeviceCombo) testRunDevice, "startScreenRecorder", DEVICE_COMMAND_TIMEOUT_SECONDS, testRunDevice1 -> {
                 File childFolder = new File(folder, testRunDevice1.getDeviceInfo().getSerialNum());
                 childFolder.mkdirs();
                 ScreenRecorder screenRecorder = deviceDriverManager.getScreenRecorder(testRunDevice1.getDeviceInfo(), childFolder, logger);
@@ -129,14 +144,17 @@ public class TestRunDeviceOrchestrator {
 
     public String stopScreenRecorder(@NotNull TestRunDevice testRunDevice, @NotNull File folder, @Nullable Logger logger) {
         if (testRunDevice instanceof TestRunDeviceCombo) {
-            List<String> videoFilePaths = new ArrayList<>();
-            ((TestRunDeviceCombo) testRunDevice).getDevices().forEach(testRunDevice1 -> {
-                String path = testRunDevice1.getScreenRecorder().finishRecording();
-                if (path != null && !path.isEmpty()) {
-                    videoFilePaths.add(path);
+            List<String> videoFilePaths = runOnComboDevices((TestRunDeviceCombo) testRunDevice, "stopScreenRecorder", STOP_RECORDER_TIMEOUT_SECONDS,
+                    testRunDevice1 -> testRunDevice1.getScreenRecorder().finishRecording());
+            videoFilePaths.removeIf(path -> path == null || path.isEmpty());
+            File mergedVideo = FFmpegConcatUtil.mergeVideosSideBySide(videoFilePaths, folder, logger);
+            if (mergedVideo == null) {
+                if (logger != null && !videoFilePaths.isEmpty()) {
+                    logger.warn("The videos of the devices are not merged, keep them separately: {}", videoFilePaths);
                 }
-            });
-            return FFmpegConcatUtil.mergeVideosSideBySide(videoFilePaths, folder, logger).getAbsolutePath();
+                return null;
+            }
+            return mergedVideo.getAbsolutePath();
         } else {
             return testRunDevice.getScreenRecorder().finishRecording();
         }
@@ -191,18 +209,22 @@ public class TestRunDeviceOrchestrator {
 
     public void startLogCollector(@NotNull TestRunDevice testRunDevice, @NotNull String pkgName, @NotNull TestRun testRun, @NotNull Logger logger) {
         if (testRunDevice instanceof TestRunDeviceCombo) {
-            ((TestRunDeviceCombo) testRunDevice).getDevices().forEach(testRunDevice1 -> {
-                LogCollector logCollector = deviceDriverManager.getLogCollector(testRunDevice1.getDeviceInfo(), pkgName, testRun, logger);
-                testRunDevice1.setLogCollector(logCollector);
-                testRunDevice1.setLogPath(logCollector.start());
-            });
+            ((TestRunDeviceCombo) testRunDevice).getDevices().forEach(testRunDevice1 -> startDeviceLogCollector(testRunDevice1, pkgName, testRun, logger));
         } else {
-            LogCollector logCollector = deviceDriverManager.getLogCollector(testRunDevice.getDeviceInfo(), pkgName, testRun, logger);
-            testRunDevice.setLogCollector(logCollector);
-            testRunDevice.setLogPath(logCollector.start());
+            startDeviceLogCollector(testRunDevice, pkgName, testRun, logger);
         }
     }
 
+    private void startDeviceLogCollector(TestRunDevice testRunDevice, String pkgName, TestRun testRun, Logger logger) {
+        LogCollector logCollector = deviceDriverManager.getLogCollector(testRunDevice.getDeviceInfo(), pkgName, testRun, logger);
+        logCollector.setCrashListener((crashType, crashStack) -> {
+            logger.warn("{} on device {} during the test run", crashType, testRunDevice.getDeviceInfo().getSerialNum());
+            performanceTestManagementService.testCrashed(testRun, crashType);
+        });
+        testRunDevice.setLogCollector(logCollector);
+        testRunDevice.setLogPath(logCollector.start());
+    }
+
     public void stopLogCollector(@NotNull TestRunDevice testRunDevice) {
         if (testRunDevice instanceof TestRunDeviceCombo) {
             ((TestRunDeviceCombo) testRunDevice).getDevices().forEach(testRunDevice1 -> testRunDevice1.getLogCollector().stopAndAnalyse());
@@ -300,7 +322,7 @@ public class TestRunDeviceOrchestrator {
     }
 
     public void addGifFrameAsyncDelay(@NotNull TestRunDevice testRunDevice, @NotNull File screenshotDir, int delaySeconds, @NotNull Logger logger) {
-        ThreadPoolUtil.SCREENSHOT_EXECUTOR.execute(() -> {
+        ThreadPoolUtil.executeForDevice(ThreadPoolUtil.SCREENSHOT_EXECUTOR, testRunDevice.getDeviceInfo().getSerialNum(), MAX_GIF_FRAME_TASKS_PER_DEVICE, () -> {
             ThreadUtils.safeSleep(TimeUnit.SECONDS.toMillis(delaySeconds));
             File imageFile = getScreenShot(testRunDevice, screenshotDir, logger);
             if (imageFile == null || !testRunDevice.getGifEncoder().isStarted()) {
@@ -396,9 +418,9 @@ public class TestRunDeviceOrchestrator {
         List<Exception> exceptions = actionExecutor.doActions(deviceDriverManager, testRunDevice, logger, deviceActions, when, true);
 
         if (testRunDevice instanceof TestRunDeviceCombo) {
-            for (TestRunDevice subTestRunDevice : ((TestRunDeviceCombo) testRunDevice).getDevices()) {
-                exceptions.addAll(actionExecutor.doActions(deviceDriverManager, subTestRunDevice, logger, deviceActions, when, false));
-            }
+            runOnComboDevices((TestRunDeviceCombo) testRunDevice, "doActions " + when, ACTIONS_TIMEOUT_SECONDS,
+                    subTestRunDevice -> actionExecutor.doActions(deviceDriverManager, subTestRunDevice, logger, deviceActions, when, false))
+                    .forEach(exceptions::addAll);
         } else {
             exceptions.addAll(actionExecutor.doActions(deviceDriverManager, testRunDevice, logger, deviceActions, when, false));
         }
@@ -413,4 +435,56 @@ public class TestRunDeviceOrchestrator {
             deviceDriverManager.rebootDeviceIfNeeded(testRunDevice.getDeviceInfo(), logger);
         }
     }
+
+    /**
+     * Run the operation on all the devices of the combo at the same time, so a slow device doesn't hold up the others.
+     * Waits for every device, then throws if the operation failed or timed out on any of them.
+     *
+     * @return the results in the order of {@link TestRunDeviceCombo#getDevices()}
+     */
+    private <T> List<T> runOnComboDevices(@NotNull TestRunDeviceCombo testRunDeviceCombo, String operation, long timeoutSeconds,
+                                         Function<TestRunDevice, T> deviceOperation) {
+        List<TestRunDevice> devices = testRunDeviceCombo.getDevices();
+        List<Future<T>> futures = new ArrayList<>(devices.size());
+        for (TestRunDevice device : devices) {
+            futures.add(ThreadPoolUtil.COMBO_DEVICE_EXECUTOR.submit(() -> deviceOperation.apply(device)));
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        List<T> results = new ArrayList<>(devices.size());
+        List<String> failedSerialNums = new ArrayList<>();
+        List<Throwable> failures = new ArrayList<>();
+        for (int i = 0; i < futures.size(); i++) {
+            String serialNum = devices.get(i).getDeviceInfo().getSerialNum();
+            try {
+                results.add(futures.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+            } catch (ExecutionException e) {
+                results.add(null);
+                failedSerialNums.add(serialNum);
+                failures.add(e.getCause());
+            } catch (TimeoutException e) {
+                futures.get(i).cancel(true);
+                results.add(null);
+                failedSerialNums.add(serialNum);
+                failures.add(new TimeoutException(operation + " timed out after " + timeoutSeconds + "s on " + serialNum));
+            } catch (InterruptedException e) {
+                futures.forEach(future -> future.cancel(true));
+                Thread.currentThread().interrupt();
+                throw new HydraLabRuntimeException("Interrupted while running " + operation + " on " + getSerialNum(testRunDeviceCombo), e);
+            }
+        }
+        if (!failures.isEmpty()) {
+            HydraLabRuntimeException exception = new HydraLabRuntimeException(operation + " failed on " + failedSerialNums);
+            failures.forEach(exception::addSuppressed);
+            throw exception;
+        }
+        return results;
+    }
+
+    private void forEachComboDevice(@NotNull TestRunDeviceCombo testRunDeviceCombo, String operation, long timeoutSeconds,
+                                    Consumer<TestRunDevice> deviceOperation) {
+        runOnComboDevices(testRunDeviceCombo, operation, timeoutSeconds, testRunDevice -> {
+            deviceOperation.accept(testRunDevice);
+            return null;
+        });
+    }
 }
\ No newline at end of file
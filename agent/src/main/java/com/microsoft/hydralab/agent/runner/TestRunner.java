@@ -33,6 +33,7 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
@@ -185,15 +186,22 @@ public abstract class TestRunner implements TestRunEngine, TaskRunLifecycle<Test
                 testRun.getLogger().error("Error in buildTestResultXml", e);
             }
         }
+        CompletableFuture<Void> resultUpload = null;
         if (testTaskRunCallback != null) {
             try {
-                testTaskRunCallback.onOneDeviceComplete(testTask, testRunDevice, testRun.getLogger(), testRun);
+                resultUpload = testTaskRunCallback.onOneDeviceComplete(testTask, testRunDevice, testRun.getLogger(), testRun);
             } catch (Exception e) {
                 testRun.getLogger().error("Error in onOneDeviceComplete", e);
             }
         }
-        testRun.getLogger().info("Start Close/finish resource");
-        LogUtils.releaseLogger(testRun.getLogger());
+        if (resultUpload == null) {
+            resultUpload = CompletableFuture.completedFuture(null);
+        }
+        // the results are uploaded after the device is released, and log to the test run until they are done
+        resultUpload.whenComplete((v, e) -> {
+            testRun.getLogger().info("Start Close/finish resource");
+            LogUtils.releaseLogger(testRun.getLogger());
+        });
     }
 
     @Override
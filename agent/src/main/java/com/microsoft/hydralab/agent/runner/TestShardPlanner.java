@@ -0,0 +1,125 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.agent.runner;
+
+import com.microsoft.hydralab.common.entity.common.TestShard;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Splits a test suite into shards of about the same duration, by the historical duration of each test class.
+ * The plan only depends on its input, so the agents sharing a group come to the same plan and each picks its own shards.
+ */
+public final class TestShardPlanner {
+    private TestShardPlanner() {
+    }
+
+    /**
+     * @param testClassDurations historical duration in millis <testClass, duration>, the test runner shards the suite by itself if there is not enough history
+     */
+    public static List<TestShard> plan(int shardCount, Map<String, Long> testClassDurations) {
+        List<TestShard> shards = new ArrayList<>(shardCount);
+        if (testClassDurations == null || testClassDurations.size() < shardCount) {
+            for (int i = 0; i < shardCount; i++) {
+                shards.add(new TestShard(shardCount, i));
+            }
+            return shards;
+        }
+
+        // longest processing time first: the longest class goes to the least loaded shard
+        List<Map.Entry<String, Long>> classDurations = new ArrayList<>(testClassDurations.entrySet());
+        classDurations.sort(Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder()).thenComparing(Map.Entry.comparingByKey()));
+        long[] loads = new long[shardCount];
+        List<List<String>> shardClasses = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            shardClasses.add(new ArrayList<>());
+        }
+        for (Map.Entry<String, Long> classDuration : classDurations) {
+            int shardIndex = indexOfLeastLoaded(loads, shardClasses);
+            shardClasses.get(shardIndex).add(classDuration.getKey());
+            loads[shardIndex] += Math.max(0, classDuration.getValue());
+        }
+
+        // the classes added since the last run are not known yet, the least loaded shard runs them by excluding the classes of the others
+        int restShardIndex = indexOfLeastLoaded(loads, shardClasses);
+        List<String> excludedClasses = new ArrayList<>();
+        for (int i = 0; i < shardCount; i++) {
+            if (i != restShardIndex) {
+                excludedClasses.addAll(shardClasses.get(i));
+            }
+        }
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(new TestShard(shardCount, i, shardClasses.get(i), i == restShardIndex ? excludedClasses : null, loads[i]));
+        }
+        return shards;
+    }
+
+    /**
+     * Merge the shards into fewer ones of about the same expected duration, for a share of the suite planned for more devices than are available.
+     * Only the shards balanced by their classes can be merged, the ones split by the test runner can't.
+     */
+    public static List<TestShard> merge(List<TestShard> shards, int mergedShardCount) {
+        List<TestShard> sortedShards = new ArrayList<>(shards);
+        sortedShards.sort(Comparator.comparingLong(TestShard::getExpectedDurationMillis).reversed().thenComparingInt(TestShard::getShardIndex));
+        long[] loads = new long[mergedShardCount];
+        List<List<TestShard>> shardGroups = new ArrayList<>(mergedShardCount);
+        for (int i = 0; i < mergedShardCount; i++) {
+            shardGroups.add(new ArrayList<>());
+        }
+        for (TestShard shard : sortedShards) {
+            int groupIndex = indexOfLeastLoaded(loads, shardGroups);
+            shardGroups.get(groupIndex).add(shard);
+            loads[groupIndex] += shard.getExpectedDurationMillis();
+        }
+
+        List<TestShard> mergedShards = new ArrayList<>(mergedShardCount);
+        for (int i = 0; i < mergedShardCount; i++) {
+            List<TestShard> shardGroup = shardGroups.get(i);
+            if (shardGroup.isEmpty()) {
+                continue;
+            }
+            int shardIndex = Integer.MAX_VALUE;
+            List<String> testClasses = new ArrayList<>();
+            List<String> restExcludedClasses = null;
+            for (TestShard shard : shardGroup) {
+                shardIndex = Math.min(shardIndex, shard.getShardIndex());
+                testClasses.addAll(shard.getTestClasses());
+                if (shard.getExcludedTestClasses() != null) {
+                    restExcludedClasses = shard.getExcludedTestClasses();
+                }
+            }
+            List<String> excludedClasses = null;
+            if (restExcludedClasses != null) {
+                // the shard running the classes without history now also runs the classes of the shards merged into it
+                Set<String> mergedClasses = new HashSet<>(testClasses);
+                excludedClasses = new ArrayList<>();
+                for (String excludedClass : restExcludedClasses) {
+                    if (!mergedClasses.contains(excludedClass)) {
+                        excludedClasses.add(excludedClass);
+                    }
+                }
+            }
+            mergedShards.add(new TestShard(shardGroup.get(0).getShardCount(), shardIndex, testClasses, excludedClasses, loads[i]));
+        }
+        return mergedShards;
+    }
+
+    /**
+     * The shard with fewer classes wins a tie, so every shard gets a class even if some classes have no duration.
+     */
+    private static int indexOfLeastLoaded(long[] loads, List<? extends List<?>> shardClasses) {
+        int index = 0;
+        for (int i = 1; i < loads.length; i++) {
+            if (loads[i] < loads[index] || loads[i] == loads[index] && shardClasses.get(i).size() < shardClasses.get(index).size()) {
+                index = i;
+            }
+        }
+        return index;
+    }
+}
@@ -3,17 +3,34 @@
 
 package com.microsoft.hydralab.agent.runner;
 
+import com.microsoft.hydralab.common.entity.common.AndroidTestUnit;
 import com.microsoft.hydralab.common.entity.common.Task;
 import com.microsoft.hydralab.common.entity.common.TestRun;
 import com.microsoft.hydralab.common.entity.common.TestRunDevice;
 import org.slf4j.Logger;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 public interface TestTaskRunCallback {
     void onTaskStart(Task task);
 
+    void onTaskStartFailed(Task task, Exception e);
+
     void onTaskComplete(Task task);
 
-    void onOneDeviceComplete(Task task, TestRunDevice testRunDevice, Logger logger, TestRun result);
+    /**
+     * The result files of the devices are uploaded after the task is complete, so the devices are free for the next task in the meantime.
+     */
+    default void onTaskResultUploaded(Task task) {
+    }
+
+    /**
+     * @return the upload of the results of the device, which still logs to the logger of the test run
+     */
+    CompletableFuture<Void> onOneDeviceComplete(Task task, TestRunDevice testRunDevice, Logger logger, TestRun result);
+
+    void onTestUnitsEnded(Task task, TestRun testRun, List<AndroidTestUnit> testUnits);
 
     void onDeviceOffline(Task task);
 }
\ No newline at end of file
@@ -0,0 +1,52 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.agent.runner;
+
+import com.microsoft.hydralab.common.entity.common.AndroidTestUnit;
+import com.microsoft.hydralab.common.entity.common.Task;
+import com.microsoft.hydralab.common.entity.common.TestRun;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the ended test units of a run and reports them through {@link TestTaskRunCallback#onTestUnitsEnded} in batches,
+ * once enough units are collected or enough time has passed since the last report.
+ */
+public class TestUnitUpdateBatcher {
+    static final int BATCH_SIZE = 50;
+    static final long BATCH_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    private final Task task;
+    private final TestRun testRun;
+    private final TestTaskRunCallback testTaskRunCallback;
+    private final List<AndroidTestUnit> pendingTestUnits = new ArrayList<>();
+    private long lastReportTimeMillis = System.currentTimeMillis();
+
+    public TestUnitUpdateBatcher(Task task, TestRun testRun, TestTaskRunCallback testTaskRunCallback) {
+        this.task = task;
+        this.testRun = testRun;
+        this.testTaskRunCallback = testTaskRunCallback;
+    }
+
+    public synchronized void add(AndroidTestUnit testUnit) {
+        pendingTestUnits.add(testUnit);
+        if (pendingTestUnits.size() >= BATCH_SIZE || System.currentTimeMillis() - lastReportTimeMillis >= BATCH_INTERVAL_MILLIS) {
+            flush();
+        }
+    }
+
+    /**
+     * Report the collected units at once, called when the run ends.
+     */
+    public synchronized void flush() {
+        lastReportTimeMillis = System.currentTimeMillis();
+        if (pendingTestUnits.isEmpty() || testTaskRunCallback == null) {
+            return;
+        }
+        List<AndroidTestUnit> testUnits = new ArrayList<>(pendingTestUnits);
+        pendingTestUnits.clear();
+        testTaskRunCallback.onTestUnitsEnded(task, testRun, testUnits);
+    }
+}
@@ -8,6 +8,7 @@ import com.alibaba.fastjson.serializer.SerializerFeature;
 import com.microsoft.hydralab.agent.runner.analysis.scanner.apk.ApkAnalyzeExecutor;
 import com.microsoft.hydralab.agent.runner.analysis.scanner.apk.ApkCanaryExecutor;
 import com.microsoft.hydralab.agent.runner.analysis.scanner.apk.ApkLeaksExecutor;
+import com.microsoft.hydralab.agent.runner.analysis.scanner.apk.ApkZipScanExecutor;
 import com.microsoft.hydralab.agent.service.TestTaskEngineService;
 import com.microsoft.hydralab.common.entity.agent.EnvCapability;
 import com.microsoft.hydralab.common.entity.agent.EnvCapabilityRequirement;
@@ -43,6 +44,34 @@ public class APKScanner extends Scanner<ApkReport> {
         return new ApkReport(task.getPkgName());
     }
 
+    /**
+     * Analyze the size and scan the leaks in one pass over the apk when both are done by apkzipscan,
+     * the configs then take their results from the cache.
+     */
+    @Override
+    void prepareAnalysis(AnalysisTask task, File outputFolder, Logger logger) {
+        AnalysisTask.AnalysisConfig leakConfig = null;
+        boolean analyzeSize = false;
+        for (AnalysisTask.AnalysisConfig config : task.getAnalysisConfigs()) {
+            if (!ApkZipScanExecutor.EXECUTOR_TYPE.equals(config.getExecutor())) {
+                continue;
+            }
+            if (AnalysisTask.AnalysisType.LEAK_INFO.name().equals(config.getAnalysisType())) {
+                leakConfig = config;
+            } else if (AnalysisTask.AnalysisType.FILE_SIZE.name().equals(config.getAnalysisType())) {
+                analyzeSize = true;
+            }
+        }
+        if (leakConfig == null || !analyzeSize || task.getAppFile() == null) {
+            return;
+        }
+        try {
+            new ApkZipScanExecutor(outputFolder).scan(task.getAppFile(), leakConfig.getAnalysisConfig(), logger);
+        } catch (Exception e) {
+            logger.warn("Failed to scan apk in one pass, the configs will scan it separately", e);
+        }
+    }
+
     @Override
     public ApkReport analysisPackage(ApkReport report, File file, File outputFolder, AnalysisTask.AnalysisConfig config, Logger logger) {
         Assertions.assertTrue(file.exists(), "apk file not exist: " + file.getAbsolutePath());
@@ -54,6 +83,9 @@ public class APKScanner extends Scanner<ApkReport> {
         } else if (ApkAnalyzeExecutor.EXECUTOR_TYPE.equals(config.getExecutor())) {
             ApkAnalyzeExecutor apkAnalyzeExecutor = new ApkAnalyzeExecutor(outputFolder, agentManagementService.getEnvFilePath(EnvCapability.CapabilityKeyword.apkanalyzer));
             apkAnalyzeExecutor.analyzeApk(report, file.getAbsolutePath(), logger);
+        } else if (ApkZipScanExecutor.EXECUTOR_TYPE.equals(config.getExecutor())) {
+            ApkZipScanExecutor apkZipScanExecutor = new ApkZipScanExecutor(outputFolder);
+            apkZipScanExecutor.analyzeApk(report, file.getAbsolutePath(), logger);
         }
         return report;
     }
@@ -63,6 +95,9 @@ public class APKScanner extends Scanner<ApkReport> {
         if (ApkLeaksExecutor.EXECUTOR_TYPE.equals(config.getExecutor())) {
             ApkLeaksExecutor apkLeaksExecutor = new ApkLeaksExecutor(outputFolder);
             apkLeaksExecutor.analyzeLeaks(report, file.getAbsolutePath(), config.getAnalysisConfig(), logger);
+        } else if (ApkZipScanExecutor.EXECUTOR_TYPE.equals(config.getExecutor())) {
+            ApkZipScanExecutor apkZipScanExecutor = new ApkZipScanExecutor(outputFolder);
+            apkZipScanExecutor.analyzeLeaks(report, file.getAbsolutePath(), config.getAnalysisConfig(), logger);
         }
         return report;
     }
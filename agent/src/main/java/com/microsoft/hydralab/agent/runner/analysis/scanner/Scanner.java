@@ -31,6 +31,7 @@ public abstract class Scanner<T extends TaskResult> extends AnalysisRunner {
         report.setTaskRunId(testRun.getId());
 
         testRun.setTotalCount(analysisTask.getAnalysisConfigs().size());
+        prepareAnalysis(analysisTask, testRun.getResultFolder(), testRun.getLogger());
         for (AnalysisTask.AnalysisConfig config : analysisTask.getAnalysisConfigs()) {
             String analysisType = config.getAnalysisType();
             try {
@@ -53,6 +54,12 @@ public abstract class Scanner<T extends TaskResult> extends AnalysisRunner {
 
     abstract T initReport(AnalysisTask task);
 
+    /**
+     * Called once before the configs of the task are run, e.g. to run the checks of several configs together.
+     */
+    void prepareAnalysis(AnalysisTask task, File outputFolder, Logger logger) {
+    }
+
     abstract T analysisPackage(T result, File file, File outputFolder, AnalysisTask.AnalysisConfig config, Logger logger);
 
     abstract T scanSensitiveWords(T result, File file, File outputFolder, AnalysisTask.AnalysisConfig config, Logger logger);
@@ -0,0 +1,281 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.agent.runner.analysis.scanner.apk;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.alibaba.fastjson.parser.Feature;
+import com.alibaba.fastjson.serializer.SerializerFeature;
+import com.microsoft.hydralab.common.entity.common.scanner.ApkReport;
+import com.microsoft.hydralab.common.entity.common.scanner.ApkSizeReport;
+import com.microsoft.hydralab.common.entity.common.scanner.LeakInfo;
+import com.microsoft.hydralab.common.util.FileUtil;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.springframework.util.DigestUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Analyzes the size of the APK and scans it for leaks in the agent process, reading each zip entry once for all the checks
+ * instead of running a tool which unzips or decompiles the whole package.
+ * The results are cached by the MD5 of the APK, so scanning the same build again costs a checksum.
+ */
+public class ApkZipScanExecutor {
+    public static final String EXECUTOR_TYPE = "apkzipscan";
+    static final Charset CHARSET = StandardCharsets.UTF_8;
+    private static final String LEAK_CONFIG_FILE_PATH = "apk_leaks/apk_leaks_config.json";
+    private static final int CACHE_MAX_COUNT = 32;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long BIG_FILE_MIN_SIZE = 10 * 1024;
+    private static final Set<String> BIG_FILE_SUFFIXES = Set.of(".png", ".jpg", ".jpeg", ".webp", ".gif");
+    // media and native libraries, the leak patterns are not scanned in them
+    private static final Set<String> BINARY_SUFFIXES = Set.of(".png", ".jpg", ".jpeg", ".webp", ".gif", ".so", ".ogg", ".mp3", ".mp4", ".wav", ".ttf", ".otf");
+    // scan results <md5 of the apk and the leak patterns, result> in access order, guarded by itself
+    private static final LinkedHashMap<String, ScanResult> RESULT_CACHE = new LinkedHashMap<>(16, 0.75f, true);
+    private final File workingDir;
+
+    public ApkZipScanExecutor(File folder) {
+        workingDir = folder;
+        if (!workingDir.exists()) {
+            if (!workingDir.mkdirs()) {
+                throw new RuntimeException("mkdir fail!");
+            }
+        }
+    }
+
+    public ApkReport analyzeApk(ApkReport report, String apkPath, Logger logger) {
+        logger.info("Start analyze Apk by apkzipscan: {}", apkPath);
+        File apk = new File(apkPath);
+        ScanResult result = scan(apk, null, logger);
+        result.applySize(report.getApkSizeReport());
+        File reportFile = new File(workingDir, apk.getName().replace(".apk", "") + "zipscan_size_report.json");
+        FileUtil.writeStringToFile(JSON.toJSONString(result.sizeReport, SerializerFeature.PrettyFormat), reportFile);
+        report.addReportFile(reportFile.getName());
+        return report;
+    }
+
+    public ApkReport analyzeLeaks(ApkReport report, String apkPath, Map<String, String> sensitiveWords, Logger logger) {
+        logger.info("Start to analyze apk leaks by apkzipscan: {}", apkPath);
+        File apk = new File(apkPath);
+        ScanResult result = scan(apk, sensitiveWords == null ? Map.of() : sensitiveWords, logger);
+        result.applyLeaks(report);
+        File reportFile = new File(workingDir, apk.getName().replace(".apk", "") + "zipscan_leak_report.json");
+        FileUtil.writeStringToFile(JSON.toJSONString(result.leaks, SerializerFeature.PrettyFormat), reportFile);
+        report.addReportFile(reportFile.getName());
+        return report;
+    }
+
+    /**
+     * @param sensitiveWords leak patterns added to the default ones, null to only analyze the size
+     */
+    public ScanResult scan(File apk, Map<String, String> sensitiveWords, Logger logger) {
+        if (!apk.exists()) {
+            throw new RuntimeException("apk not exist");
+        }
+        try {
+            String apkMd5;
+            try (InputStream inputStream = new FileInputStream(apk)) {
+                apkMd5 = DigestUtils.md5DigestAsHex(inputStream);
+            }
+            String sizeKey = apkMd5 + ":size";
+            String cacheKey = sensitiveWords == null ? sizeKey
+                    : apkMd5 + ":" + DigestUtils.md5DigestAsHex(JSON.toJSONString(new TreeMap<>(sensitiveWords)).getBytes(CHARSET));
+            synchronized (RESULT_CACHE) {
+                ScanResult cachedResult = RESULT_CACHE.get(cacheKey);
+                if (cachedResult != null) {
+                    logger.info("Use the cached scan result of apk {}", apkMd5);
+                    return cachedResult;
+                }
+            }
+            long startTime = System.currentTimeMillis();
+            ScanResult result = scanEntries(apk, sensitiveWords == null ? null : new LeakPatternMatcher(loadLeakPatterns(sensitiveWords), logger));
+            logger.info("Scanned apk {} in {} ms", apkMd5, System.currentTimeMillis() - startTime);
+            synchronized (RESULT_CACHE) {
+                RESULT_CACHE.put(cacheKey, result);
+                RESULT_CACHE.putIfAbsent(sizeKey, result);
+                while (RESULT_CACHE.size() > CACHE_MAX_COUNT) {
+                    RESULT_CACHE.remove(RESULT_CACHE.keySet().iterator().next());
+                }
+            }
+            return result;
+        } catch (IOException e) {
+            logger.error("error in apkzipscan", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static ScanResult scanEntries(File apk, LeakPatternMatcher leakPatternMatcher) throws IOException {
+        PrintableStringExtractor stringExtractor = leakPatternMatcher == null ? null : new PrintableStringExtractor(leakPatternMatcher::match);
+        MessageDigest digest = newMd5Digest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        Map<String, Long> suffixSizes = new HashMap<>();
+        Map<String, ApkSizeReport.DuplicatedFile> filesByMd5 = new HashMap<>();
+        List<ApkSizeReport.FileItem> bigFiles = new ArrayList<>();
+        try (ZipFile zipFile = new ZipFile(apk)) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                String suffix = getSuffix(entry.getName());
+                long size = entry.getCompressedSize();
+                suffixSizes.merge(suffix, size, Long::sum);
+                if (BIG_FILE_SUFFIXES.contains(suffix) && size >= BIG_FILE_MIN_SIZE) {
+                    bigFiles.add(newFileItem(entry.getName(), size));
+                }
+
+                boolean extractStrings = stringExtractor != null && !BINARY_SUFFIXES.contains(suffix);
+                digest.reset();
+                try (InputStream inputStream = zipFile.getInputStream(entry)) {
+                    int length;
+                    while ((length = inputStream.read(buffer)) > 0) {
+                        digest.update(buffer, 0, length);
+                        if (extractStrings) {
+                            stringExtractor.write(buffer, length);
+                        }
+                    }
+                }
+                if (extractStrings) {
+                    stringExtractor.finish();
+                }
+                String md5 = String.format("%032x", new BigInteger(1, digest.digest()));
+                ApkSizeReport.DuplicatedFile sameFiles = filesByMd5.computeIfAbsent(md5, k -> {
+                    ApkSizeReport.DuplicatedFile duplicatedFile = new ApkSizeReport.DuplicatedFile();
+                    duplicatedFile.md5 = k;
+                    duplicatedFile.size = size;
+                    duplicatedFile.fileList = new ArrayList<>();
+                    return duplicatedFile;
+                });
+                sameFiles.fileList.add(entry.getName());
+            }
+        }
+
+        ApkSizeReport sizeReport = new ApkSizeReport();
+        long total = apk.length();
+        sizeReport.setTotalSize(total);
+        sizeReport.setTotalSizeInMB(total * 1f / 1024 / 1024);
+        sizeReport.setArscSize(suffixSizes.getOrDefault(".arsc", 0L));
+        sizeReport.setDexSize(suffixSizes.getOrDefault(".dex", 0L));
+        sizeReport.setPngSize(suffixSizes.getOrDefault(".png", 0L));
+        sizeReport.setXmlSize(suffixSizes.getOrDefault(".xml", 0L));
+        sizeReport.setSoSize(suffixSizes.getOrDefault(".so", 0L));
+        sizeReport.setWebpSize(suffixSizes.getOrDefault(".webp", 0L));
+        sizeReport.setOtherSize(total - sizeReport.getArscSize() - sizeReport.getDexSize() - sizeReport.getPngSize() - sizeReport.getXmlSize()
+                - sizeReport.getSoSize() - sizeReport.getWebpSize());
+        bigFiles.sort(Comparator.comparingLong((ApkSizeReport.FileItem fileItem) -> fileItem.size).reversed());
+        sizeReport.bigSizeFileList = bigFiles;
+        sizeReport.duplicatedFileList = filesByMd5.values().stream()
+                .filter(duplicatedFile -> duplicatedFile.fileList.size() > 1)
+                .sorted(Comparator.comparingLong((ApkSizeReport.DuplicatedFile duplicatedFile) -> duplicatedFile.size).reversed())
+                .limit(ApkCanaryExecutor.DUP_FILE_MAX_COUNT)
+                .collect(Collectors.toList());
+
+        Map<String, List<String>> leaks = null;
+        if (leakPatternMatcher != null) {
+            leaks = new LinkedHashMap<>();
+            for (Map.Entry<String, Set<String>> entry : leakPatternMatcher.getMatches().entrySet()) {
+                leaks.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+            }
+        }
+        return new ScanResult(sizeReport, leaks);
+    }
+
+    /**
+     * The patterns of apkleaks, with the sensitive words of the task added or replacing them.
+     */
+    private static Map<String, Object> loadLeakPatterns(Map<String, String> sensitiveWords) throws IOException {
+        Map<String, Object> leakPatterns = new LinkedHashMap<>();
+        try (InputStream resourceAsStream = ApkZipScanExecutor.class.getClassLoader().getResourceAsStream(LEAK_CONFIG_FILE_PATH)) {
+            JSONObject defaultPatterns = JSON.parseObject(IOUtils.toString(Objects.requireNonNull(resourceAsStream), CHARSET), Feature.OrderedField);
+            leakPatterns.putAll(defaultPatterns);
+        }
+        leakPatterns.putAll(sensitiveWords);
+        return leakPatterns;
+    }
+
+    private static MessageDigest newMd5Digest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String getSuffix(String entryName) {
+        int nameIndex = entryName.lastIndexOf('/') + 1;
+        int suffixIndex = entryName.lastIndexOf('.');
+        return suffixIndex > nameIndex ? entryName.substring(suffixIndex).toLowerCase() : "";
+    }
+
+    private static ApkSizeReport.FileItem newFileItem(String fileName, long size) {
+        ApkSizeReport.FileItem fileItem = new ApkSizeReport.FileItem();
+        fileItem.fileName = fileName;
+        fileItem.size = size;
+        return fileItem;
+    }
+
+    /**
+     * The result shared by the reports of the same APK, copied into each of them.
+     */
+    public static final class ScanResult {
+        private final ApkSizeReport sizeReport;
+        private final Map<String, List<String>> leaks;
+
+        private ScanResult(ApkSizeReport sizeReport, Map<String, List<String>> leaks) {
+            this.sizeReport = sizeReport;
+            this.leaks = leaks;
+        }
+
+        void applySize(ApkSizeReport apkSizeReport) {
+            apkSizeReport.setTotalSize(sizeReport.getTotalSize());
+            apkSizeReport.setTotalSizeInMB(sizeReport.getTotalSizeInMB());
+            apkSizeReport.setArscSize(sizeReport.getArscSize());
+            apkSizeReport.setDexSize(sizeReport.getDexSize());
+            apkSizeReport.setPngSize(sizeReport.getPngSize());
+            apkSizeReport.setXmlSize(sizeReport.getXmlSize());
+            apkSizeReport.setSoSize(sizeReport.getSoSize());
+            apkSizeReport.setWebpSize(sizeReport.getWebpSize());
+            apkSizeReport.setOtherSize(sizeReport.getOtherSize());
+            apkSizeReport.bigSizeFileList.addAll(sizeReport.bigSizeFileList);
+            apkSizeReport.duplicatedFileList.addAll(sizeReport.duplicatedFileList);
+        }
+
+        void applyLeaks(ApkReport report) {
+            for (Map.Entry<String, List<String>> leak : leaks.entrySet()) {
+                report.addLeakInfo(new LeakInfo(leak.getKey(), new ArrayList<>(leak.getValue())));
+            }
+        }
+
+        public ApkSizeReport getSizeReport() {
+            return sizeReport;
+        }
+
+        public Map<String, List<String>> getLeaks() {
+            return leaks;
+        }
+    }
+}
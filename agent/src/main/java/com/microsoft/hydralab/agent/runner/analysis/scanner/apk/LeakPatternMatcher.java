@@ -0,0 +1,267 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.agent.runner.analysis.scanner.apk;
+
+import org.slf4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Matches the strings of a package against all the leak patterns at once.
+ * The literal each pattern requires, e.g. "AKIA" of an AWS key, is searched with one Aho-Corasick automaton,
+ * and a pattern is only run on the strings containing its literal. The patterns without such a literal run on every string.
+ */
+public class LeakPatternMatcher {
+    private static final int MIN_ANCHOR_LENGTH = 3;
+    private static final Pattern INLINE_FLAGS_PATTERN = Pattern.compile("\\(\\?[idmsuxU-]+[):]");
+    private static final String NON_LITERAL_ESCAPES = "dDwWsSbBAzZGQEpPnrtfae0123456789uxckhHvVXR";
+    private final List<String> names = new ArrayList<>();
+    private final List<Pattern> patterns = new ArrayList<>();
+    private final List<Integer> unanchoredPatterns = new ArrayList<>();
+    private final List<Node> nodes = new ArrayList<>();
+    private final Map<String, Set<String>> matches = new LinkedHashMap<>();
+
+    /**
+     * @param leakPatterns name of the leak to its pattern, or to a list of patterns, as in the apkleaks config
+     */
+    public LeakPatternMatcher(Map<String, ?> leakPatterns, Logger logger) {
+        nodes.add(new Node());
+        for (Map.Entry<String, ?> entry : leakPatterns.entrySet()) {
+            List<String> regexList = new ArrayList<>();
+            if (entry.getValue() instanceof List) {
+                for (Object regex : (List<?>) entry.getValue()) {
+                    regexList.add(String.valueOf(regex));
+                }
+            } else if (entry.getValue() != null) {
+                regexList.add(String.valueOf(entry.getValue()));
+            }
+            for (String regex : regexList) {
+                addPattern(entry.getKey(), regex, logger);
+            }
+        }
+        buildFailureLinks();
+    }
+
+    private void addPattern(String name, String regex, Logger logger) {
+        Pattern pattern;
+        try {
+            pattern = Pattern.compile(regex);
+        } catch (PatternSyntaxException e) {
+            logger.warn("Invalid leak pattern {}: {}", name, e.getMessage());
+            return;
+        }
+        int patternIndex = patterns.size();
+        names.add(name);
+        patterns.add(pattern);
+        String anchor = extractAnchor(regex);
+        if (anchor == null) {
+            unanchoredPatterns.add(patternIndex);
+            return;
+        }
+        int state = 0;
+        for (int i = 0; i < anchor.length(); i++) {
+            char c = anchor.charAt(i);
+            Integer next = nodes.get(state).next.get(c);
+            if (next == null) {
+                next = nodes.size();
+                nodes.add(new Node());
+                nodes.get(state).next.put(c, next);
+            }
+            state = next;
+        }
+        nodes.get(state).patternIndexes.set(patternIndex);
+    }
+
+    private void buildFailureLinks() {
+        Queue<Integer> queue = new ArrayDeque<>();
+        for (int child : nodes.get(0).next.values()) {
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            Node node = nodes.get(state);
+            for (Map.Entry<Character, Integer> transition : node.next.entrySet()) {
+                int child = transition.getValue();
+                int fail = node.fail;
+                while (fail != 0 && !nodes.get(fail).next.containsKey(transition.getKey())) {
+                    fail = nodes.get(fail).fail;
+                }
+                Integer failTarget = nodes.get(fail).next.get(transition.getKey());
+                Node childNode = nodes.get(child);
+                childNode.fail = failTarget != null && failTarget != child ? failTarget : 0;
+                childNode.patternIndexes.or(nodes.get(childNode.fail).patternIndexes);
+                queue.add(child);
+            }
+        }
+    }
+
+    /**
+     * Collect the matches of all the patterns in the string.
+     */
+    public void match(String content) {
+        BitSet candidates = new BitSet(patterns.size());
+        int state = 0;
+        for (int i = 0; i < content.length(); i++) {
+            char c = content.charAt(i);
+            while (state != 0 && !nodes.get(state).next.containsKey(c)) {
+                state = nodes.get(state).fail;
+            }
+            state = nodes.get(state).next.getOrDefault(c, 0);
+            candidates.or(nodes.get(state).patternIndexes);
+        }
+        for (int patternIndex : unanchoredPatterns) {
+            candidates.set(patternIndex);
+        }
+        for (int patternIndex = candidates.nextSetBit(0); patternIndex >= 0; patternIndex = candidates.nextSetBit(patternIndex + 1)) {
+            Matcher matcher = patterns.get(patternIndex).matcher(content);
+            while (matcher.find()) {
+                if (matcher.end() == matcher.start()) {
+                    continue;
+                }
+                matches.computeIfAbsent(names.get(patternIndex), k -> new LinkedHashSet<>()).add(matcher.group());
+            }
+        }
+    }
+
+    /**
+     * @return name of the leak to its distinct matches, in the order they were found
+     */
+    public Map<String, Set<String>> getMatches() {
+        return matches;
+    }
+
+    /**
+     * @return the longest literal every match of the pattern contains, null if there is none long enough to filter the strings,
+     * e.g. the pattern has a top level alternation or case-insensitive flags
+     */
+    static String extractAnchor(String regex) {
+        if (INLINE_FLAGS_PATTERN.matcher(regex).find() || hasTopLevelAlternation(regex)) {
+            return null;
+        }
+        String longest = "";
+        StringBuilder run = new StringBuilder();
+        boolean lastAtomLiteral = false;
+        int i = 0;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            if (c == '\\' && i + 1 < regex.length()) {
+                char escaped = regex.charAt(i + 1);
+                i += 2;
+                if (NON_LITERAL_ESCAPES.indexOf(escaped) >= 0) {
+                    longest = longer(longest, run);
+                    run.setLength(0);
+                    lastAtomLiteral = false;
+                } else {
+                    run.append(escaped);
+                    lastAtomLiteral = true;
+                }
+            } else if (c == '[' || c == '(') {
+                i = skipGroup(regex, i);
+                longest = longer(longest, run);
+                run.setLength(0);
+                lastAtomLiteral = false;
+            } else if (c == '*' || c == '+' || c == '?' || c == '{') {
+                // the quantified literal may repeat or be absent, keep the run before it
+                if (lastAtomLiteral && run.length() > 0) {
+                    run.setLength(run.length() - 1);
+                }
+                longest = longer(longest, run);
+                run.setLength(0);
+                lastAtomLiteral = false;
+                if (c == '{') {
+                    int end = regex.indexOf('}', i);
+                    i = end < 0 ? regex.length() : end + 1;
+                } else {
+                    i++;
+                }
+            } else if (c == '.' || c == '^' || c == '$' || c == ')' || c == '|') {
+                longest = longer(longest, run);
+                run.setLength(0);
+                lastAtomLiteral = false;
+                i++;
+            } else {
+                run.append(c);
+                lastAtomLiteral = true;
+                i++;
+            }
+        }
+        longest = longer(longest, run);
+        return longest.length() >= MIN_ANCHOR_LENGTH ? longest : null;
+    }
+
+    private static String longer(String longest, StringBuilder run) {
+        return run.length() > longest.length() ? run.toString() : longest;
+    }
+
+    private static boolean hasTopLevelAlternation(String regex) {
+        int depth = 0;
+        boolean inClass = false;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (inClass) {
+                inClass = c != ']';
+            } else if (c == '[') {
+                inClass = true;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == '|' && depth == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the index after the character class or group starting at the index
+     */
+    private static int skipGroup(String regex, int start) {
+        int depth = 0;
+        boolean inClass = false;
+        for (int i = start; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (inClass) {
+                if (c == ']') {
+                    inClass = false;
+                    if (depth == 0) {
+                        return i + 1;
+                    }
+                }
+            } else if (c == '[') {
+                inClass = true;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+                if (depth == 0) {
+                    return i + 1;
+                }
+            }
+        }
+        return regex.length();
+    }
+
+    private static final class Node {
+        private final Map<Character, Integer> next = new HashMap<>();
+        private final BitSet patternIndexes = new BitSet();
+        private int fail;
+    }
+}
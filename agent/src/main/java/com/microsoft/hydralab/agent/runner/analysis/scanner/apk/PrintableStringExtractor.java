@@ -0,0 +1,77 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.agent.runner.analysis.scanner.apk;
+
+import java.util.function.Consumer;
+
+/**
+ * Extracts the printable strings from the bytes of a binary file as they are streamed, like the strings command:
+ * runs of ASCII characters, which is how dex and most string pools store them, and runs of UTF-16LE ASCII characters for binary XML.
+ */
+class PrintableStringExtractor {
+    private static final int MIN_LENGTH = 4;
+    private static final int MAX_LENGTH = 4096;
+    private final Consumer<String> consumer;
+    private final StringBuilder asciiRun = new StringBuilder();
+    private final StringBuilder utf16Run = new StringBuilder();
+    // the low byte of the UTF-16LE character being read, -1 if it's at an even offset
+    private int pendingLowByte = -1;
+    private long offset;
+
+    PrintableStringExtractor(Consumer<String> consumer) {
+        this.consumer = consumer;
+    }
+
+    void write(byte[] buffer, int length) {
+        for (int i = 0; i < length; i++) {
+            int b = buffer[i] & 0xFF;
+            if (isPrintable(b)) {
+                asciiRun.append((char) b);
+                if (asciiRun.length() == MAX_LENGTH) {
+                    flush(asciiRun);
+                }
+            } else {
+                flush(asciiRun);
+            }
+            writeUtf16(b);
+            offset++;
+        }
+    }
+
+    private void writeUtf16(int b) {
+        if (offset % 2 == 0) {
+            pendingLowByte = b;
+            return;
+        }
+        if (b == 0 && isPrintable(pendingLowByte)) {
+            utf16Run.append((char) pendingLowByte);
+            if (utf16Run.length() == MAX_LENGTH) {
+                flush(utf16Run);
+            }
+        } else {
+            flush(utf16Run);
+        }
+    }
+
+    /**
+     * Flush the strings at the end of an entry, so they don't run into the next one.
+     */
+    void finish() {
+        flush(asciiRun);
+        flush(utf16Run);
+        offset = 0;
+        pendingLowByte = -1;
+    }
+
+    private void flush(StringBuilder run) {
+        if (run.length() >= MIN_LENGTH) {
+            consumer.accept(run.toString());
+        }
+        run.setLength(0);
+    }
+
+    private static boolean isPrintable(int b) {
+        return b >= 0x20 && b < 0x7F || b == '\t';
+    }
+}
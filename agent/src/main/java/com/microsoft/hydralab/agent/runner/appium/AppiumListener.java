@@ -4,6 +4,8 @@
 package com.microsoft.hydralab.agent.runner.appium;
 
 import com.microsoft.hydralab.agent.runner.TestRunDeviceOrchestrator;
+import com.microsoft.hydralab.agent.runner.TestTaskRunCallback;
+import com.microsoft.hydralab.agent.runner.TestUnitUpdateBatcher;
 import com.microsoft.hydralab.common.entity.common.AndroidTestUnit;
 import com.microsoft.hydralab.common.entity.common.TestRun;
 import com.microsoft.hydralab.common.entity.common.TestRunDevice;
@@ -27,6 +29,7 @@ public class AppiumListener extends RunListener {
     private final String pkgName;
     AgentManagementService agentManagementService;
     private final PerformanceTestListener performanceTestListener;
+    private final TestUnitUpdateBatcher testUnitUpdateBatcher;
     private long recordingStartTimeMillis;
     private boolean alreadyEnd = false;
     private AndroidTestUnit ongoingTestUnit;
@@ -36,7 +39,7 @@ public class AppiumListener extends RunListener {
 
     public AppiumListener(AgentManagementService agentManagementService, TestRunDevice testRunDevice, TestRun testRun,
                           TestTask testTask, TestRunDeviceOrchestrator testRunDeviceOrchestrator,
-                          PerformanceTestListener performanceTestListener, Logger logger) {
+                          PerformanceTestListener performanceTestListener, TestTaskRunCallback testTaskRunCallback, Logger logger) {
         this.agentManagementService = agentManagementService;
         this.testRunDevice = testRunDevice;
         this.testRun = testRun;
@@ -45,6 +48,7 @@ public class AppiumListener extends RunListener {
         this.pkgName = testTask.getPkgName();
         this.performanceTestListener = performanceTestListener;
         this.testRunDeviceOrchestrator = testRunDeviceOrchestrator;
+        this.testUnitUpdateBatcher = new TestUnitUpdateBatcher(testTask, testRun, testTaskRunCallback);
     }
 
     public File getGifFile() {
@@ -175,6 +179,7 @@ public class AppiumListener extends RunListener {
         }
         ongoingTestUnit.setEndTimeMillis(System.currentTimeMillis());
         ongoingTestUnit.setRelEndTimeInVideo(ongoingTestUnit.getEndTimeMillis() - recordingStartTimeMillis);
+        testUnitUpdateBatcher.add(ongoingTestUnit);
     }
 
     @Override
@@ -205,6 +210,7 @@ public class AppiumListener extends RunListener {
             performanceTestListener.testRunFinished();
             testRun.addNewTimeTag("testRunEnded", System.currentTimeMillis() - recordingStartTimeMillis);
             testRun.onTestEnded();
+            testUnitUpdateBatcher.flush();
             testRunDeviceOrchestrator.setRunningTestName(testRunDevice, null);
             testRunDeviceOrchestrator.stopGitEncoder(testRunDevice, agentManagementService.getScreenshotDir(), logger);
             if (!testTask.isDisableRecording()) {
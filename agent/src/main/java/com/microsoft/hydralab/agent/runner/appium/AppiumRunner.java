@@ -116,7 +116,7 @@ public class AppiumRunner extends TestRunner {
             reportLogger.info("Start init listener");
             AppiumListener listener =
                     new AppiumListener(agentManagementService, testRunDevice, testRun, testTask,
-                            testRunDeviceOrchestrator, performanceTestManagementService, reportLogger);
+                            testRunDeviceOrchestrator, performanceTestManagementService, testTaskRunCallback, reportLogger);
 
             /** run the test */
             reportLogger.info("Start appium test with junit4");
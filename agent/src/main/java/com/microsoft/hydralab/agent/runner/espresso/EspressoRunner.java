@@ -4,21 +4,26 @@
 package com.microsoft.hydralab.agent.runner.espresso;
 
 import com.android.ddmlib.IShellOutputReceiver;
+import com.android.ddmlib.testrunner.ITestRunListener;
 import com.android.ddmlib.testrunner.InstrumentationResultParser;
+import com.android.ddmlib.testrunner.TestIdentifier;
 import com.microsoft.hydralab.agent.runner.TestRunDeviceOrchestrator;
 import com.microsoft.hydralab.agent.runner.TestRunner;
 import com.microsoft.hydralab.agent.runner.TestTaskRunCallback;
 import com.microsoft.hydralab.common.entity.agent.EnvCapability;
 import com.microsoft.hydralab.common.entity.agent.EnvCapabilityRequirement;
 import com.microsoft.hydralab.common.entity.common.DeviceInfo;
+import com.microsoft.hydralab.common.entity.common.TestClassQueue;
 import com.microsoft.hydralab.common.entity.common.TestRun;
 import com.microsoft.hydralab.common.entity.common.TestRunDevice;
+import com.microsoft.hydralab.common.entity.common.TestShard;
 import com.microsoft.hydralab.common.entity.common.TestTask;
 import com.microsoft.hydralab.common.logger.MultiLineNoCancelReceiver;
 import com.microsoft.hydralab.common.management.AgentManagementService;
 import com.microsoft.hydralab.common.util.ADBOperateUtil;
 import com.microsoft.hydralab.common.util.Const;
 import com.microsoft.hydralab.common.util.FlowUtil;
+import com.microsoft.hydralab.common.util.HydraLabRuntimeException;
 import com.microsoft.hydralab.common.util.LogUtils;
 import com.microsoft.hydralab.common.util.ThreadUtils;
 import com.microsoft.hydralab.performance.PerformanceTestManagementService;
@@ -27,9 +32,16 @@ import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import static com.microsoft.hydralab.common.util.AgentConstant.ESPRESSO_TEST_ORCHESTRATOR_APK;
 import static com.microsoft.hydralab.common.util.AgentConstant.ESPRESSO_TEST_SERVICES_APK;
@@ -37,6 +49,10 @@ import static com.microsoft.hydralab.common.util.AgentConstant.ESPRESSO_TEST_SER
 public class EspressoRunner extends TestRunner {
     private static final int MAJOR_ADB_VERSION = 1;
     private static final int MINOR_ADB_VERSION = -1;
+    // the longest wait for a class running on another device to be given back, for a task without timeout
+    private static final long DEFAULT_TEST_CLASS_WAIT_MILLIS = TimeUnit.MINUTES.toMillis(30);
+    // readable by the instrumentation, one class per line
+    private static final String SHARD_TEST_FILE_ON_DEVICE = "/data/local/tmp/hydra_lab_shard_classes.txt";
     final ADBOperateUtil adbOperateUtil;
 
     public EspressoRunner(AgentManagementService agentManagementService, TestTaskRunCallback testTaskRunCallback,
@@ -70,14 +86,7 @@ public class EspressoRunner extends TestRunner {
             EspressoTestInfoProcessorListener listener =
                     new EspressoTestInfoProcessorListener(agentManagementService,
                             adbOperateUtil, testRunDevice, testRun, testTask,
-                            testRunDeviceOrchestrator, performanceTestManagementService);
-            instrumentationResultParser =
-                    new InstrumentationResultParser(testTask.getTestSuite(), Collections.singletonList(listener)) {
-                        @Override
-                        public boolean isCancelled() {
-                            return testTask.isCanceled();
-                        }
-                    };
+                            testRunDeviceOrchestrator, performanceTestManagementService, testTaskRunCallback);
 
             /** run the test */
             reportLogger.info("Start instrumenting the test");
@@ -96,13 +105,24 @@ public class EspressoRunner extends TestRunner {
                 }, testTask.getTimeOutSecond(), -1);
             }
 
-            String command = buildCommand(testTask.getTestSuite(), testTask.getTestPkgName(), testTask.getTestRunnerName(),
-                    testTask.getTestScope(), testTask.getTaskRunArgs(), testTask.isEnableTestOrchestrator(), pathToTestServicePack.toString());
-            String result = startInstrument(testRunDevice.getDeviceInfo(), reportLogger,
-                    instrumentationResultParser, testTask.getTimeOutSecond(), command);
-            if (Const.TaskResult.ERROR_DEVICE_OFFLINE.equals(result)) {
-                testTaskRunCallback.onDeviceOffline(testTask);
-                return;
+            if (testTask.getTestClassQueue() != null) {
+                if (!runQueuedTestClasses(testRunDevice, testTask, reportLogger, listener, pathToTestServicePack.toString())) {
+                    return;
+                }
+            } else {
+                if (testRunDevice.getTestShard() != null) {
+                    reportLogger.info("Run {} of the suite", testRunDevice.getTestShard());
+                }
+                String command = buildCommand(testTask.getTestSuite(), testTask.getTestPkgName(), testTask.getTestRunnerName(),
+                        testTask.getTestScope(), testTask.getTaskRunArgs(), testTask.isEnableTestOrchestrator(), pathToTestServicePack.toString(),
+                        buildShardArgs(testRunDevice, reportLogger));
+                instrumentationResultParser = createResultParser(testTask.getTestSuite(), testTask, listener);
+                String result = startInstrument(testRunDevice.getDeviceInfo(), reportLogger,
+                        instrumentationResultParser, testTask.getTimeOutSecond(), command);
+                if (Const.TaskResult.ERROR_DEVICE_OFFLINE.equals(result)) {
+                    testTaskRunCallback.onDeviceOffline(testTask);
+                    return;
+                }
             }
             checkTestTaskCancel(testTask);
 
@@ -122,6 +142,91 @@ public class EspressoRunner extends TestRunner {
         }
     }
 
+    /**
+     * Take the classes one by one from the queue shared by the devices of the task, until all of them are done.
+     *
+     * @return false if the device went offline, or the classes left were requeued with the task
+     */
+    private boolean runQueuedTestClasses(TestRunDevice testRunDevice, TestTask testTask, Logger reportLogger, EspressoTestInfoProcessorListener listener,
+                                         String pathToTestServicePack) throws InterruptedException {
+        TestClassQueue testClassQueue = testTask.getTestClassQueue();
+        synchronized (testClassQueue) {
+            // the first device lists the classes for all, the others wait for it
+            if (!testClassQueue.isLoaded()) {
+                testClassQueue.load(listTestClasses(testRunDevice.getDeviceInfo(), testTask, reportLogger));
+                reportLogger.info("{} test classes are queued for the devices of the agent", testClassQueue.getPendingCount());
+            }
+        }
+        if (!testClassQueue.join()) {
+            reportLogger.warn("The test classes left are requeued with the task, skip running them");
+            return false;
+        }
+        listener.startContinuousRun();
+        long startTimeMillis = System.currentTimeMillis();
+        String testClass;
+        long classWaitMillis = testTask.getTimeOutSecond() > 0 ? TimeUnit.SECONDS.toMillis(testTask.getTimeOutSecond()) : DEFAULT_TEST_CLASS_WAIT_MILLIS;
+        while ((testClass = testClassQueue.poll(classWaitMillis)) != null) {
+            if (testTask.isCanceled()) {
+                testClassQueue.giveBack(testClass);
+                break;
+            }
+            reportLogger.info("Run test class {}, {} classes left in the queue", testClass, testClassQueue.getPendingCount());
+            InstrumentationResultParser instrumentationResultParser = createResultParser(testClass, testTask, listener);
+            String command = buildCommand(testClass, testTask.getTestPkgName(), testTask.getTestRunnerName(), TestTask.TestScope.CLASS,
+                    testTask.getTaskRunArgs(), testTask.isEnableTestOrchestrator(), pathToTestServicePack, "");
+            String result;
+            try {
+                result = startInstrument(testRunDevice.getDeviceInfo(), reportLogger, instrumentationResultParser, testTask.getTimeOutSecond(), command);
+            } finally {
+                instrumentationResultParser.flush();
+            }
+            if (Const.TaskResult.ERROR_DEVICE_OFFLINE.equals(result)) {
+                testClassQueue.giveBack(testClass);
+                if (testClassQueue.leaveOffline() && !testTask.isCanceled()) {
+                    // no other device left to run the rest of the classes
+                    testTaskRunCallback.onDeviceOffline(testTask);
+                } else {
+                    reportLogger.warn("Device is offline, test class {} is given back to the queue for the other devices", testClass);
+                }
+                return false;
+            }
+            testClassQueue.complete(testClass);
+        }
+        testClassQueue.leave();
+        listener.endContinuousRun(System.currentTimeMillis() - startTimeMillis);
+        return true;
+    }
+
+    /**
+     * List the classes of the suite with a log only run of the instrumentation, which reports the tests without running them.
+     */
+    private List<String> listTestClasses(DeviceInfo deviceInfo, TestTask testTask, Logger reportLogger) {
+        Set<String> testClasses = new LinkedHashSet<>();
+        InstrumentationResultParser instrumentationResultParser = new InstrumentationResultParser(testTask.getTestSuite(),
+                Collections.singletonList(new TestClassCollector(testClasses)));
+        String command = buildCommand(testTask.getTestSuite(), testTask.getTestPkgName(), testTask.getTestRunnerName(), testTask.getTestScope(),
+                testTask.getTaskRunArgs(), false, "", " -e log true");
+        String result;
+        try {
+            result = startInstrument(deviceInfo, reportLogger, instrumentationResultParser, testTask.getTimeOutSecond(), command);
+        } finally {
+            instrumentationResultParser.flush();
+        }
+        if (!Const.TaskResult.SUCCESS.equals(result)) {
+            throw new HydraLabRuntimeException("Failed to list the test classes: " + result);
+        }
+        return new ArrayList<>(testClasses);
+    }
+
+    private static InstrumentationResultParser createResultParser(String runName, TestTask testTask, EspressoTestInfoProcessorListener listener) {
+        return new InstrumentationResultParser(runName, Collections.singletonList(listener)) {
+            @Override
+            public boolean isCancelled() {
+                return testTask.isCanceled();
+            }
+        };
+    }
+
     @Override
     protected boolean shouldInstallTestPackageAsApp() {
         return true;
@@ -154,8 +259,8 @@ public class EspressoRunner extends TestRunner {
     }
 
     @NotNull
-    private String buildCommand(String suiteName, String testPkgName,
-                                String testRunnerName, String scope, Map<String, String> instrumentationArgs, boolean enableTestOrchestrator, String pathToTestServicePack) {
+    private String buildCommand(String suiteName, String testPkgName, String testRunnerName, String scope, Map<String, String> instrumentationArgs,
+                                boolean enableTestOrchestrator, String pathToTestServicePack, String extraArgs) {
         StringBuilder argString = new StringBuilder();
         if (instrumentationArgs != null && !instrumentationArgs.isEmpty()) {
             instrumentationArgs.forEach(
@@ -181,6 +286,7 @@ public class EspressoRunner extends TestRunner {
             default:
                 break;
         }
+        commFormat += extraArgs;
         if (enableTestOrchestrator) {
             commFormat = "CLASSPATH='" + pathToTestServicePack + "' app_process / androidx.test.services.shellexecutor.ShellMain " + commFormat +
                     " -e targetInstrumentation %s/%s androidx.test.orchestrator/.AndroidTestOrchestrator";
@@ -192,6 +298,88 @@ public class EspressoRunner extends TestRunner {
         return command;
     }
 
+    /**
+     * The classes of the shard are listed in a file pushed to the device, as the classes of a suite may not fit in the command line of adb shell.
+     */
+    private String buildShardArgs(TestRunDevice testRunDevice, Logger logger) throws IOException, InterruptedException {
+        TestShard testShard = testRunDevice.getTestShard();
+        if (testShard == null) {
+            return "";
+        }
+        String testFileArg;
+        List<String> testClasses;
+        if (testShard.getExcludedTestClasses() != null) {
+            testFileArg = "notTestFile";
+            testClasses = testShard.getExcludedTestClasses();
+        } else if (testShard.getTestClasses() != null) {
+            testFileArg = "testFile";
+            testClasses = testShard.getTestClasses();
+        } else {
+            return " -e numShards " + testShard.getShardCount() + " -e shardIndex " + testShard.getShardIndex();
+        }
+        if (testClasses.isEmpty()) {
+            return "";
+        }
+
+        File testClassFile = File.createTempFile("shard_classes", ".txt");
+        try {
+            Files.write(testClassFile.toPath(), testClasses, StandardCharsets.UTF_8);
+            adbOperateUtil.pushFileToDevice(testRunDevice.getDeviceInfo(), testClassFile.getAbsolutePath(), SHARD_TEST_FILE_ON_DEVICE, logger);
+        } finally {
+            Files.deleteIfExists(testClassFile.toPath());
+        }
+        return " -e " + testFileArg + " " + SHARD_TEST_FILE_ON_DEVICE;
+    }
+
+    /**
+     * Collect the classes reported by a log only run.
+     */
+    private static final class TestClassCollector implements ITestRunListener {
+        private final Set<String> testClasses;
+
+        private TestClassCollector(Set<String> testClasses) {
+            this.testClasses = testClasses;
+        }
+
+        @Override
+        public void testRunStarted(String runName, int testCount) {
+        }
+
+        @Override
+        public void testStarted(TestIdentifier test) {
+            testClasses.add(test.getClassName());
+        }
+
+        @Override
+        public void testFailed(TestIdentifier test, String trace) {
+        }
+
+        @Override
+        public void testAssumptionFailure(TestIdentifier test, String trace) {
+        }
+
+        @Override
+        public void testIgnored(TestIdentifier test) {
+        }
+
+        @Override
+        public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+        }
+
+        @Override
+        public void testRunFailed(String errorMessage) {
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public void testRunStopped(long elapsedTime) {
+        }
+
+        @Override
+        public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+        }
+    }
+
     protected void reinstallOrchestratorDependency(TestRunDevice testRunDevice, TestTask testTask, Logger reportLogger) throws Exception {
         checkTestTaskCancel(testTask);
 
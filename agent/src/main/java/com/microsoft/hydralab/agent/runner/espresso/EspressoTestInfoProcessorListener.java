@@ -6,6 +6,8 @@ package com.microsoft.hydralab.agent.runner.espresso;
 import cn.hutool.core.lang.Assert;
 import com.android.ddmlib.testrunner.TestIdentifier;
 import com.microsoft.hydralab.agent.runner.TestRunDeviceOrchestrator;
+import com.microsoft.hydralab.agent.runner.TestTaskRunCallback;
+import com.microsoft.hydralab.agent.runner.TestUnitUpdateBatcher;
 import com.microsoft.hydralab.common.entity.common.AndroidTestUnit;
 import com.microsoft.hydralab.common.entity.common.TestRun;
 import com.microsoft.hydralab.common.entity.common.TestRunDevice;
@@ -19,6 +21,7 @@ import org.slf4j.Logger;
 import java.io.File;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.Collections;
 import java.util.Locale;
 import java.util.Map;
 
@@ -30,11 +33,15 @@ public class EspressoTestInfoProcessorListener extends XmlTestRunListener {
     private final String pkgName;
     private final AgentManagementService agentManagementService;
     private final PerformanceTestListener performanceTestListener;
+    private final TestUnitUpdateBatcher testUnitUpdateBatcher;
     private TestRunDeviceOrchestrator testRunDeviceOrchestrator;
     ADBOperateUtil adbOperateUtil;
     private long recordingStartTimeMillis;
     private int index;
     private boolean alreadyEnd = false;
+    // the run is made of several instrumentations, one for each class taken from the queue of the task
+    private boolean continuousRun = false;
+    private boolean runStarted = false;
     private AndroidTestUnit ongoingTestUnit;
     private int numTests;
     private int pid;
@@ -42,7 +49,7 @@ public class EspressoTestInfoProcessorListener extends XmlTestRunListener {
     public EspressoTestInfoProcessorListener(AgentManagementService agentManagementService, ADBOperateUtil adbOperateUtil,
                                              TestRunDevice testRunDevice, TestRun testRun, TestTask testTask,
                                              TestRunDeviceOrchestrator testRunDeviceOrchestrator,
-                                             PerformanceTestListener performanceTestListener) {
+                                             PerformanceTestListener performanceTestListener, TestTaskRunCallback testTaskRunCallback) {
         this.testRunDevice = testRunDevice;
         this.testRunDeviceOrchestrator = testRunDeviceOrchestrator;
         this.agentManagementService = agentManagementService;
@@ -52,6 +59,7 @@ public class EspressoTestInfoProcessorListener extends XmlTestRunListener {
         this.logger = testRun.getLogger();
         this.pkgName = testTask.getPkgName();
         this.performanceTestListener = performanceTestListener;
+        this.testUnitUpdateBatcher = new TestUnitUpdateBatcher(testTask, testRun, testTaskRunCallback);
         setReportDir(testRun.getResultFolder());
         try {
             setHostName(InetAddress.getLocalHost().getHostName());
@@ -81,9 +89,32 @@ public class EspressoTestInfoProcessorListener extends XmlTestRunListener {
         }
     }
 
+    public void startContinuousRun() {
+        continuousRun = true;
+    }
+
+    /**
+     * End the run made of the classes taken from the queue, each of them is reported as a separate run by the instrumentation.
+     */
+    public void endContinuousRun(long elapsedTime) {
+        continuousRun = false;
+        if (!runStarted) {
+            testRunStarted(testTask.getTestSuite(), 0);
+        }
+        testRunEnded(elapsedTime, Collections.emptyMap());
+    }
+
     @Override
     public void testRunStarted(String runName, int numTests) {
         infoLogEnter("testRunStarted", runName, numTests);
+        if (continuousRun && runStarted) {
+            // the next class, its tests are added to the same timeline
+            this.numTests += numTests;
+            testRun.setTotalCount(this.numTests);
+            testRun.addNewTimeTag(runName.substring(runName.lastIndexOf('.') + 1) + ".testRunStarted", System.currentTimeMillis() - recordingStartTimeMillis);
+            return;
+        }
+        runStarted = true;
         this.numTests = numTests;
         testRun.setTotalCount(numTests);
         testRun.setTestStartTimeMillis(System.currentTimeMillis());
@@ -196,6 +227,7 @@ public class EspressoTestInfoProcessorListener extends XmlTestRunListener {
         }
         ongoingTestUnit.setEndTimeMillis(System.currentTimeMillis());
         ongoingTestUnit.setRelEndTimeInVideo(ongoingTestUnit.getEndTimeMillis() - recordingStartTimeMillis);
+        testUnitUpdateBatcher.add(ongoingTestUnit);
     }
 
     @Override
@@ -224,6 +256,9 @@ public class EspressoTestInfoProcessorListener extends XmlTestRunListener {
     @Override
     public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
         infoLogEnter("testRunEnded", elapsedTime, runMetrics, Thread.currentThread().getName());
+        if (continuousRun) {
+            return;
+        }
         synchronized (this) {
             if (alreadyEnd) {
                 return;
@@ -232,6 +267,7 @@ public class EspressoTestInfoProcessorListener extends XmlTestRunListener {
             testRun.addNewTimeTag("testRunEnded", System.currentTimeMillis() - recordingStartTimeMillis);
             super.testRunEnded(elapsedTime, runMetrics);
             testRun.onTestEnded();
+            testUnitUpdateBatcher.flush();
             testRunDeviceOrchestrator.setRunningTestName(testRunDevice, null);
             releaseResource();
             alreadyEnd = true;
@@ -40,7 +40,7 @@ public class AgentManageService {
             restartAgent(updateTask.getPackageInfo().getFileName(), path);
         };
 
-        ThreadPoolUtil.SCREENSHOT_EXECUTOR.execute(run);
+        ThreadPoolUtil.AGENT_UPDATE_EXECUTOR.execute(run);
     }
 
     private void sendMessageToCenter(Boolean isProceed, String message, String errorDesc, String path) {
@@ -3,20 +3,26 @@
 
 package com.microsoft.hydralab.agent.service;
 
+import cn.hutool.core.bean.BeanUtil;
 import com.alibaba.fastjson.JSONObject;
 import com.microsoft.hydralab.agent.config.AppOptions;
 import com.microsoft.hydralab.agent.runner.TestRunnerManager;
 import com.microsoft.hydralab.agent.runner.TestTaskRunCallback;
 import com.microsoft.hydralab.agent.socket.AgentWebSocketClient;
+import com.microsoft.hydralab.agent.util.AttachmentCache;
+import com.microsoft.hydralab.agent.util.FileLoadUtil;
 import com.microsoft.hydralab.common.entity.common.AgentMetadata;
 import com.microsoft.hydralab.common.entity.common.AgentUpdateTask;
 import com.microsoft.hydralab.common.entity.common.AgentUser;
+import com.microsoft.hydralab.common.entity.common.AndroidTestUnit;
 import com.microsoft.hydralab.common.entity.common.DeviceInfo;
 import com.microsoft.hydralab.common.entity.common.Message;
 import com.microsoft.hydralab.common.entity.common.Task;
+import com.microsoft.hydralab.common.entity.common.TestFileSet;
 import com.microsoft.hydralab.common.entity.common.TestRun;
 import com.microsoft.hydralab.common.entity.common.TestRunDevice;
 import com.microsoft.hydralab.common.entity.common.TestTaskSpec;
+import com.microsoft.hydralab.common.entity.common.TestUnitUpdate;
 import com.microsoft.hydralab.common.exception.reporter.AppCenterReporter;
 import com.microsoft.hydralab.common.exception.reporter.ExceptionReporterManager;
 import com.microsoft.hydralab.common.file.StorageServiceClientProxy;
@@ -25,6 +31,8 @@ import com.microsoft.hydralab.common.monitor.MetricPushGateway;
 import com.microsoft.hydralab.common.util.Const;
 import com.microsoft.hydralab.common.util.GlobalConstant;
 import com.microsoft.hydralab.common.util.HydraLabRuntimeException;
+import com.microsoft.hydralab.common.util.SerializeUtil;
+import com.microsoft.hydralab.common.util.ThreadPoolUtil;
 import com.microsoft.hydralab.common.util.ThreadUtils;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.Tags;
@@ -42,6 +50,10 @@ import javax.annotation.Resource;
 import java.io.File;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 @Service("WebSocketClient")
 @Slf4j
@@ -80,10 +92,20 @@ public class AgentWebSocketClientService implements TestTaskRunCallback {
     @Resource
     private AgentManagementService agentManagementService;
     boolean isAgentInit = false;
+    // center advertises the delta support in AGENT_INIT and HEARTBEAT, full lists are sent until then
+    private volatile boolean isDeviceListDeltaSupported = false;
+    // the test units are streamed by TEST_UNIT_UPDATE once center advertises the support, and left out of the final task update
+    private volatile boolean isTestUnitUpdateSupported = false;
+    // the devices of a task are released by TEST_TASK_DEVICE_RELEASE before its result files are uploaded, once center advertises the support
+    private volatile boolean isTestTaskDeviceReleaseSupported = false;
     @Resource
     private AppCenterReporter appCenterReporter;
     @Resource
     private TestRunnerManager testRunnerManager;
+    @Resource
+    private FileLoadUtil fileLoadUtil;
+    @Resource
+    private AttachmentCache attachmentCache;
 
     public void onMessage(Message message) {
         log.info("onMessage Receive bytes message {}", message);
@@ -108,14 +130,14 @@ public class AgentWebSocketClientService implements TestTaskRunCallback {
                     deviceControlService.deviceDriverInit();
                     isAgentInit = true;
                 }
-                deviceControlService.provideDeviceList(agentUser.getBatteryStrategy());
+                provideDeviceList(true);
                 return;
             case Const.Path.HEARTBEAT:
                 if (!(message.getBody() instanceof AgentMetadata)) {
                     break;
                 }
                 heartbeatResponse(message);
-                deviceControlService.provideDeviceList(agentUser.getBatteryStrategy());
+                provideDeviceList(false);
                 return;
             case Const.Path.DEVICE_UPDATE:
                 if (!(message.getBody() instanceof JSONObject)) {
@@ -142,12 +164,15 @@ public class AgentWebSocketClientService implements TestTaskRunCallback {
                 agentManageService.restartAgent(null, path);
                 break;
             case Const.Path.DEVICE_LIST:
+                if (message.getParams() != null && Boolean.TRUE.equals(message.getParams().get(Const.Param.DEVICE_LIST_VIEWED))) {
+                    agentManagementService.markDeviceListViewed();
+                }
                 if (agentUser.getBatteryStrategy() == null) {
                     response = new Message();
                     response.setPath(Const.Path.HEARTBEAT);
                     response.setSessionId(message.getSessionId());
                 } else {
-                    deviceControlService.provideDeviceList(agentUser.getBatteryStrategy());
+                    provideDeviceList(true);
                 }
                 break;
             case Const.Path.TEST_TASK_CANCEL:
@@ -157,6 +182,12 @@ public class AgentWebSocketClientService implements TestTaskRunCallback {
                 JSONObject data = (JSONObject) message.getBody();
                 testTaskEngineService.cancelTestTaskById(data.getString(Const.AgentConfig.TASK_ID_PARAM));
                 break;
+            case Const.Path.TEST_TASK_PREFETCH:
+                if (!(message.getBody() instanceof TestFileSet)) {
+                    break;
+                }
+                fileLoadUtil.prefetchAttachments(((TestFileSet) message.getBody()).getAttachments());
+                break;
             case Const.Path.TEST_TASK_RUN:
                 if (!(message.getBody() instanceof TestTaskSpec)) {
                     response = Message.error(message, 400, "Invalid request body");
@@ -203,6 +234,14 @@ public class AgentWebSocketClientService implements TestTaskRunCallback {
         return response;
     }
 
+    private void provideDeviceList(boolean snapshot) {
+        if (isDeviceListDeltaSupported) {
+            deviceControlService.provideDeviceListDelta(agentUser.getBatteryStrategy(), snapshot);
+        } else {
+            deviceControlService.provideDeviceList(agentUser.getBatteryStrategy());
+        }
+    }
+
     private void heartbeatResponse(Message message) {
         AgentMetadata agentMetadata = (AgentMetadata) message.getBody();
 
@@ -211,6 +250,9 @@ public class AgentWebSocketClientService implements TestTaskRunCallback {
             isStorageClientInit = true;
         }
         storageServiceClientProxy.updateAccessToken(agentMetadata.getAccessToken());
+        isDeviceListDeltaSupported = message.getParams() != null && Boolean.TRUE.equals(message.getParams().get(Const.Param.DEVICE_LIST_DELTA));
+        isTestUnitUpdateSupported = message.getParams() != null && Boolean.TRUE.equals(message.getParams().get(Const.Param.TEST_UNIT_UPDATE));
+        isTestTaskDeviceReleaseSupported = message.getParams() != null && Boolean.TRUE.equals(message.getParams().get(Const.Param.TEST_TASK_DEVICE_RELEASE));
         syncAgentStatus(agentMetadata.getAgentUser());
         prometheusPushgatewayInit(agentMetadata);
         appCenterReporterInit(agentMetadata);
@@ -254,12 +296,16 @@ public class AgentWebSocketClientService implements TestTaskRunCallback {
         agentUser.setFunctionAvailabilities(agentManagementService.getFunctionAvailabilities());
         responseAuth.setBody(agentUser);
         responseAuth.setPath(message.getPath());
+        SerializeUtil.advertiseCodecVersion(responseAuth, SerializeUtil.LATEST_CODEC_VERSION);
         send(responseAuth);
     }
 
-    public void send(Message message) {
+    /**
+     * @return whether the message was handed over to the connection, false if it failed after the retries
+     */
+    public boolean send(Message message) {
         Assert.notNull(sendMessageCallback, "no send callback set");
-        sendMessageCallback.send(message);
+        return sendMessageCallback.send(message);
     }
 
     public void setSendMessageCallback(SendMessageCallback sendMessageCallback) {
@@ -268,18 +314,77 @@ public class AgentWebSocketClientService implements TestTaskRunCallback {
 
     @Override
     public void onTaskStart(Task task) {
+        log.info("test task {} started on {} devices, send message", task.getId(), task.getDeviceCount());
+        send(Message.ok(Const.Path.TEST_TASK_UPDATE, task));
+    }
 
+    @Override
+    public void onTaskStartFailed(Task task, Exception e) {
+        log.info("test task {} failed to start, send message", task.getId());
+        send(Message.ok(Const.Path.TEST_TASK_RETRY, task));
     }
 
     @Override
     public void onTaskComplete(Task task) {
-        log.info("test task {} onAllComplete in webclient, send message", task.getId());
-        send(Message.ok(Const.Path.TEST_TASK_UPDATE, task));
+        if (!isTestTaskDeviceReleaseSupported) {
+            // center only frees the devices with the final update, which waits for the uploads
+            return;
+        }
+        log.info("test task {} onAllComplete in webclient, release its devices", task.getId());
+        JSONObject data = new JSONObject();
+        data.put(Const.AgentConfig.TASK_ID_PARAM, task.getId());
+        data.put(Const.AgentConfig.RUNNER_TYPE_PARAM, task.getRunnerType());
+        send(Message.ok(Const.Path.TEST_TASK_DEVICE_RELEASE, data));
     }
 
     @Override
-    public void onOneDeviceComplete(Task task, TestRunDevice testRunDevice, Logger logger, TestRun result) {
+    public void onTaskResultUploaded(Task task) {
+        log.info("test task {} result uploaded in webclient, send message", task.getId());
+        Message message = Message.ok(Const.Path.TEST_TASK_UPDATE, withoutStreamedTestUnits(task));
+        if (isTestTaskDeviceReleaseSupported) {
+            // the task is only reported finished with its attachments, its devices are already released
+            message.setParams(new HashMap<>());
+            message.getParams().put(Const.Param.TEST_TASK_DEVICE_RELEASE, true);
+        }
+        send(message);
+    }
 
+    /**
+     * The runs whose units were all streamed are sent without them, center loads them from the saved updates.
+     */
+    private Task withoutStreamedTestUnits(Task task) {
+        List<TestRun> summaryRuns = new ArrayList<>();
+        boolean streamed = false;
+        for (TestRun testRun : task.getTaskRunList()) {
+            if (testRun.getStreamedTestUnitCount() == 0 || testRun.getStreamedTestUnitCount() != testRun.getTestUnitList().size()) {
+                summaryRuns.add(testRun);
+                continue;
+            }
+            summaryRuns.add(BeanUtil.copyProperties(testRun, TestRun.class, "testUnitList"));
+            streamed = true;
+        }
+        if (!streamed) {
+            return task;
+        }
+        Task summaryTask = BeanUtil.copyProperties(task, task.getClass(), "taskRunList");
+        summaryTask.getTaskRunList().addAll(summaryRuns);
+        return summaryTask;
+    }
+
+    @Override
+    public CompletableFuture<Void> onOneDeviceComplete(Task task, TestRunDevice testRunDevice, Logger logger, TestRun result) {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public void onTestUnitsEnded(Task task, TestRun testRun, List<AndroidTestUnit> testUnits) {
+        if (!isTestUnitUpdateSupported) {
+            return;
+        }
+        // a lost update leaves the count short of the units of the run, so the final update carries all of them
+        if (send(Message.ok(Const.Path.TEST_UNIT_UPDATE, new TestUnitUpdate(testRun, testUnits)))) {
+            testRun.setStreamedTestUnitCount(testRun.getStreamedTestUnitCount() + testUnits.size());
+        }
     }
 
     @Override
@@ -298,6 +403,8 @@ public class AgentWebSocketClientService implements TestTaskRunCallback {
         registerAgentDiskUsageRatio();
         registerAgentReconnectRetryTimes();
         registerAgentRunningTestTaskNum();
+        registerAttachmentCacheMetrics();
+        registerExecutorMetrics();
     }
 
     private void appCenterReporterInit(AgentMetadata agentMetadata) {
@@ -332,6 +439,23 @@ public class AgentWebSocketClientService implements TestTaskRunCallback {
         log.info("Metric of agent running test task number has been registered.");
     }
 
+    public void registerAttachmentCacheMetrics() {
+        meterRegistry.gauge(GlobalConstant.PROMETHEUS_METRIC_ATTACHMENT_CACHE_HIT_RATIO,
+                Tags.empty(),
+                attachmentCache,
+                AttachmentCache::getHitRatio);
+        meterRegistry.gauge(GlobalConstant.PROMETHEUS_METRIC_ATTACHMENT_CACHE_SAVED_BYTES,
+                Tags.empty(),
+                attachmentCache,
+                AttachmentCache::getSavedBytes);
+        log.info("Metric of attachment cache hit ratio and saved bytes has been registered.");
+    }
+
+    public void registerExecutorMetrics() {
+        ThreadPoolUtil.bindMetrics(meterRegistry);
+        log.info("Metric of executors has been registered.");
+    }
+
     private double getPCDiskUsageRatio(String appLocation) {
         File[] roots = File.listRoots();
         double diskUsageRatio = 0;
@@ -355,6 +479,6 @@ public class AgentWebSocketClientService implements TestTaskRunCallback {
     }
 
     public interface SendMessageCallback {
-        void send(Message message);
+        boolean send(Message message);
     }
 }
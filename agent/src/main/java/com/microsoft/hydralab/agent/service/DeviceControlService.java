@@ -8,6 +8,7 @@ import com.microsoft.hydralab.agent.repository.MobileDeviceRepository;
 import com.microsoft.hydralab.common.entity.agent.MobileDevice;
 import com.microsoft.hydralab.common.entity.common.AgentUser;
 import com.microsoft.hydralab.common.entity.common.DeviceInfo;
+import com.microsoft.hydralab.common.entity.common.DeviceListDelta;
 import com.microsoft.hydralab.common.entity.common.Message;
 import com.microsoft.hydralab.common.management.AgentManagementService;
 import com.microsoft.hydralab.common.management.device.DeviceType;
@@ -25,9 +26,14 @@ import org.springframework.util.Assert;
 
 import javax.annotation.Resource;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 @Service
@@ -35,6 +41,8 @@ public class DeviceControlService {
 
     @SuppressWarnings("constantname")
     static final Logger log = LoggerFactory.getLogger(DeviceControlService.class);
+    // a snapshot is sent on the heartbeat after this interval anyway, even if no device changed, in case the center state drifted unnoticed
+    private static final long DEVICE_LIST_SNAPSHOT_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(5);
     @Resource
     AgentManagementService agentManagementService;
     @Resource
@@ -47,6 +55,10 @@ public class DeviceControlService {
     DeviceStabilityMonitor deviceStabilityMonitor;
     @Resource
     DeviceStatusListenerManager deviceStatusListenerManager;
+    // device state last reported to center <deviceSerial, reportedState>, also guards the sequence
+    private final Map<String, List<Object>> reportedDeviceStates = new HashMap<>();
+    private long deviceListSequence = 0;
+    private long lastDeviceListSnapshotTime = 0;
 
     public Set<DeviceInfo> getAllConnectedDevice() {
         updateAllDeviceScope();
@@ -66,11 +78,69 @@ public class DeviceControlService {
                 deviceInfos.stream().map(MobileDevice::getSerialNum).collect(Collectors.joining(",")));
     }
 
+    /**
+     * Send only the devices added, changed or removed since the last report, or the whole list as a snapshot.
+     * Nothing is sent if no device changed.
+     */
+    public void provideDeviceListDelta(AgentUser.BatteryStrategy batteryStrategy, boolean snapshot) {
+        captureAllScreen(batteryStrategy);
+        Set<DeviceInfo> allConnectedDevices = getAllConnectedDevice();
+        DeviceListDelta delta = new DeviceListDelta();
+        synchronized (reportedDeviceStates) {
+            long now = System.currentTimeMillis();
+            if (snapshot || now - lastDeviceListSnapshotTime >= DEVICE_LIST_SNAPSHOT_INTERVAL_MILLIS) {
+                snapshot = true;
+                reportedDeviceStates.clear();
+                deviceListSequence = 0;
+                lastDeviceListSnapshotTime = now;
+            }
+            Set<String> removedSerials = new HashSet<>(reportedDeviceStates.keySet());
+            for (DeviceInfo deviceInfo : allConnectedDevices) {
+                removedSerials.remove(deviceInfo.getSerialNum());
+                List<Object> reportedState = getReportedState(deviceInfo);
+                if (!reportedState.equals(reportedDeviceStates.put(deviceInfo.getSerialNum(), reportedState))) {
+                    delta.getChangedDevices().add(deviceInfo);
+                }
+            }
+            for (String removedSerial : removedSerials) {
+                reportedDeviceStates.remove(removedSerial);
+                delta.getRemovedSerials().add(removedSerial);
+            }
+            if (!snapshot && delta.getChangedDevices().isEmpty() && removedSerials.isEmpty()) {
+                return;
+            }
+            delta.setSnapshot(snapshot);
+            delta.setSequence(snapshot ? deviceListSequence : ++deviceListSequence);
+            delta.getChangedDevices().sort(Comparator.comparing(d -> d.getName() + d.getSerialNum()));
+
+            Message message = new Message();
+            message.setPath(Const.Path.DEVICE_LIST_DELTA);
+            message.setBody(delta);
+            // sent under the lock to keep the sequence order on the wire
+            agentWebSocketClientService.send(message);
+        }
+        log.info("/api/device/list/delta sequence: {}, snapshot: {}, changed device SN: {}, removed device SN: {}", delta.getSequence(), snapshot,
+                delta.getChangedDevices().stream().map(MobileDevice::getSerialNum).collect(Collectors.joining(",")),
+                String.join(",", delta.getRemovedSerials()));
+    }
+
+    /**
+     * Fields center keeps for a device, the screenshot time is left out as it changes on every capture and is only used by agent.
+     */
+    private static List<Object> getReportedState(DeviceInfo deviceInfo) {
+        return Arrays.asList(deviceInfo.getStatus(), deviceInfo.getRunningTaskId(), deviceInfo.getRunningTestName(), deviceInfo.getRunningTaskPackageName(),
+                deviceInfo.getIsPrivate(), deviceInfo.getName(), deviceInfo.getManufacturer(), deviceInfo.getModel(), deviceInfo.getBrand(),
+                deviceInfo.getOsVersion(), deviceInfo.getOsSDKInt(), deviceInfo.getBuildNumber(), deviceInfo.getScreenSize(), deviceInfo.getScreenDensity(),
+                deviceInfo.getAbiList(), deviceInfo.getDeviceId(), deviceInfo.getType(), deviceInfo.getImageRelPath(), deviceInfo.getPcImageRelPath(),
+                deviceInfo.getScreenshotImageUrl(), deviceInfo.getPcScreenshotImageUrl(), deviceInfo.getRecordVideoPath(), deviceInfo.isSupportScreenRecording());
+    }
+
     public void captureAllScreen(AgentUser.BatteryStrategy batteryStrategy) {
         Set<DeviceInfo> allConnectedDevices = agentManagementService.getActiveDeviceList(log);
         // we need to do this in an async way, otherwise the process will be blocked if one device is not responding
+        // a device which is still taking the screenshot of the last round is skipped, so it can't pile up the threads
         allConnectedDevices.forEach(deviceInfo -> {
-            ThreadPoolUtil.SCREENSHOT_EXECUTOR.execute(() -> {
+            ThreadPoolUtil.executeForDevice(ThreadPoolUtil.SCREENSHOT_EXECUTOR, deviceInfo.getSerialNum(), 1, () -> {
                 try {
                     deviceDriverManager.getScreenShotWithStrategy(deviceInfo, log, batteryStrategy);
                 } catch (Exception e) {
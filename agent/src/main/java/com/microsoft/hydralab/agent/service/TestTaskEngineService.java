@@ -3,18 +3,22 @@ package com.microsoft.hydralab.agent.service;
 import com.microsoft.hydralab.agent.command.DeviceScriptCommandLoader;
 import com.microsoft.hydralab.agent.runner.DeviceTaskControlExecutor;
 import com.microsoft.hydralab.agent.runner.TestRunDeviceOrchestrator;
+import com.microsoft.hydralab.agent.runner.TestShardPlanner;
 import com.microsoft.hydralab.agent.runner.TestRunnerManager;
 import com.microsoft.hydralab.agent.runner.TestTaskRunCallback;
 import com.microsoft.hydralab.agent.util.FileLoadUtil;
 import com.microsoft.hydralab.common.entity.agent.DeviceTaskControl;
 import com.microsoft.hydralab.common.entity.common.AnalysisTask;
+import com.microsoft.hydralab.common.entity.common.AndroidTestUnit;
 import com.microsoft.hydralab.common.entity.common.DeviceInfo;
 import com.microsoft.hydralab.common.entity.common.EntityType;
 import com.microsoft.hydralab.common.entity.common.StorageFileInfo;
 import com.microsoft.hydralab.common.entity.common.Task;
+import com.microsoft.hydralab.common.entity.common.TestClassQueue;
 import com.microsoft.hydralab.common.entity.common.TestRun;
 import com.microsoft.hydralab.common.entity.common.TestRunDevice;
 import com.microsoft.hydralab.common.entity.common.TestRunDeviceCombo;
+import com.microsoft.hydralab.common.entity.common.TestShard;
 import com.microsoft.hydralab.common.entity.common.TestTask;
 import com.microsoft.hydralab.common.management.AgentManagementService;
 import com.microsoft.hydralab.common.management.device.DeviceType;
@@ -22,6 +26,9 @@ import com.microsoft.hydralab.common.util.AttachmentService;
 import com.microsoft.hydralab.common.util.Const;
 import com.microsoft.hydralab.common.util.DateUtil;
 import com.microsoft.hydralab.common.util.FileUtil;
+import com.microsoft.hydralab.common.util.FlowUtil;
+import com.microsoft.hydralab.common.util.HydraLabRuntimeException;
+import com.microsoft.hydralab.common.util.ThreadPoolUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.ApplicationContext;
@@ -32,17 +39,27 @@ import javax.annotation.Resource;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 @Service("TestTaskEngineService")
 public class TestTaskEngineService implements TestTaskRunCallback {
+    private static final int UPLOAD_RETRY_COUNT = 3;
+    private static final long UPLOAD_RETRY_INITIAL_SLEEP_MILLIS = TimeUnit.SECONDS.toMillis(2);
+    private static final long RESULT_UPLOAD_TIMEOUT_MINUTES = 60;
+    // a device failing to set up the test never joins the test class queue
+    private static final long TEST_CLASS_QUEUE_JOIN_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
     @Resource
     FileLoadUtil fileLoadUtil;
     @Resource
@@ -65,19 +82,69 @@ public class TestTaskEngineService implements TestTaskRunCallback {
     TestRunDeviceOrchestrator testRunDeviceOrchestrator;
     @Resource
     private TestRunnerManager testRunnerManager;
-    private final Map<String, Task> runningTestTask = new HashMap<>();
+    private final Map<String, Task> runningTestTask = new ConcurrentHashMap<>();
+    // the result uploads of the devices done with a running task <taskId, uploads>
+    private final Map<String, List<CompletableFuture<Void>>> resultUploadMap = new ConcurrentHashMap<>();
 
     public TestTaskEngineService() {
     }
 
+    /**
+     * Choose the devices and return at once, the attachments are loaded and the test is started asynchronously.
+     * The progress is reported through {@link TestTaskRunCallback#onTaskStart} or {@link TestTaskRunCallback#onTaskStartFailed}.
+     */
     public Task runTestTask(Task task) {
         Set<TestRunDevice> chosenDevices = chooseDevices(task);
         if (chosenDevices.size() == 0) {
             handleNoAvailableDevice(task);
             return task;
         }
+        if (!(task instanceof AnalysisTask)) {
+            chosenDevices.removeIf(testRunDevice -> !testRunDeviceOrchestrator.isAlive(testRunDevice));
+            if (chosenDevices.isEmpty()) {
+                handleNoAvailableDevice(task);
+                return task;
+            }
+        }
+
+        if (task instanceof TestTask && ((TestTask) task).isEnableTestSharding()) {
+            assignTestShards((TestTask) task, chosenDevices);
+            if (chosenDevices.isEmpty()) {
+                handleNoAvailableDevice(task);
+                return task;
+            }
+        }
+
+        task.setDeviceCount(chosenDevices.size());
+        // registered before the attachments are loaded, so that the task can be canceled in the meantime
+        runningTestTask.put(task.getId(), task);
+        try {
+            ThreadPoolUtil.TEST_EXECUTOR.execute(() -> startTestTask(task, chosenDevices));
+        } catch (RejectedExecutionException e) {
+            // center retries the task, on this agent once it has threads again or on another one
+            log.error("Test executor is full, failed to start test task {}", task.getId(), e);
+            runningTestTask.remove(task.getId());
+            onTaskStartFailed(task, e);
+        }
+        return task;
+    }
+
+    private void startTestTask(Task task, Set<TestRunDevice> chosenDevices) {
+        try {
+            onTaskStart(task);
+        } catch (Exception e) {
+            log.error("Failed to start test task {}", task.getId(), e);
+            runningTestTask.remove(task.getId());
+            onTaskStartFailed(task, e);
+            return;
+        }
+        if (Task.TaskStatus.CANCELED.equals(task.getStatus())) {
+            log.warn("test task {} is canceled before it starts", task.getId());
+            runningTestTask.remove(task.getId());
+            fileLoadUtil.clearAttachments(task);
+            return;
+        }
 
-        onTaskStart(task);
         DeviceTaskControl deviceTaskControl = deviceTaskControlExecutor.runForAllDeviceAsync(chosenDevices,
                 testRunDevice -> {
                     testRunnerManager.runTestTask(task, testRunDevice);
@@ -93,11 +160,71 @@ public class TestTaskEngineService implements TestTaskRunCallback {
                 }, task instanceof AnalysisTask);
 
         if (deviceTaskControl == null) {
-            handleNoAvailableDevice(task);
-        } else {
-            task.setDeviceCount(deviceTaskControl.devices.size());
+            runningTestTask.remove(task.getId());
+            fileLoadUtil.clearAttachments(task);
+            onTaskStartFailed(task, new HydraLabRuntimeException("No available device found for " + task.getDeviceIdentifier()));
+            return;
+        }
+        task.setDeviceCount(deviceTaskControl.devices.size());
+        if (webSocketCallback != null) {
+            webSocketCallback.onTaskStart(task);
+        }
+    }
+
+    /**
+     * Give each device its part of the suite, instead of running the whole suite on every device of the group.
+     */
+    void assignTestShards(TestTask testTask, Set<TestRunDevice> chosenDevices) {
+        if (!Task.RunnerType.INSTRUMENTATION.name().equals(testTask.getRunnerType())) {
+            log.warn("Test sharding is not supported by runner {}, task {} runs the whole suite on each device", testTask.getRunnerType(), testTask.getId());
+            return;
+        }
+        List<TestRunDevice> devices = new ArrayList<>(chosenDevices);
+        devices.sort(Comparator.comparing(testRunDevice -> testRunDevice.getDeviceInfo().getSerialNum()));
+        int shardCount = testTask.getShardCount();
+        int assignedDeviceCount = testTask.getGroupDevices() == null ? devices.size() : testTask.getGroupDevices().split(",").length;
+        boolean isDynamic = testTask.isDynamicTestSharding() && !TestTask.TestScope.CLASS.equals(testTask.getTestScope());
+        if (shardCount <= 0 || testTask.getShardIndexOffset() == 0 && shardCount == assignedDeviceCount) {
+            // all the shards are on this agent, so they can be planned for the devices still available
+            shardCount = devices.size();
+            assignedDeviceCount = devices.size();
+        }
+        if (shardCount <= 1) {
+            return;
+        }
+        if (isDynamic) {
+            // the share of the agent is kept whole however many of its devices are available
+            testTask.setTestClassQueue(new TestClassQueue(shardCount, testTask.getShardIndexOffset(), assignedDeviceCount, devices.size(),
+                    TEST_CLASS_QUEUE_JOIN_TIMEOUT_MILLIS));
+            log.info("Task {} runs {} of {} shares of the suite from a queue on {} devices", testTask.getId(), assignedDeviceCount, shardCount, devices.size());
+            return;
+        }
+        // a single class is split by the test runner, the classes of a larger scope are balanced by their history
+        Map<String, Long> testClassDurations = TestTask.TestScope.CLASS.equals(testTask.getTestScope()) ? null : testTask.getTestClassDurations();
+        List<TestShard> shards = TestShardPlanner.plan(shardCount, testClassDurations);
+        int shardIndexOffset = Math.min(testTask.getShardIndexOffset(), shardCount);
+        List<TestShard> agentShards = shards.subList(shardIndexOffset, Math.min(shardCount, shardIndexOffset + assignedDeviceCount));
+        if (devices.size() < agentShards.size()) {
+            if (agentShards.get(0).getTestClasses() == null) {
+                // the other agents run the other shards of the same split, so the task is given back to center to run on all the devices
+                log.warn("Only {} of the {} devices assigned to task {} are available and its shards are split by the test runner, the task is not run on this agent",
+                        devices.size(), agentShards.size(), testTask.getId());
+                chosenDevices.clear();
+                return;
+            }
+            log.warn("Only {} of the {} devices assigned to task {} are available, its {} shards are merged for them",
+                    devices.size(), agentShards.size(), testTask.getId(), agentShards.size());
+            agentShards = TestShardPlanner.merge(agentShards, devices.size());
+        }
+        for (int i = 0; i < devices.size(); i++) {
+            if (i >= agentShards.size()) {
+                // not expected from center, but a device without a shard would run the whole suite
+                chosenDevices.remove(devices.get(i));
+                continue;
+            }
+            devices.get(i).setTestShard(agentShards.get(i));
+            log.info("Task {} runs {} on device {}", testTask.getId(), agentShards.get(i), devices.get(i).getDeviceInfo().getSerialNum());
         }
-        return task;
     }
 
     private static void handleNoAvailableDevice(Task task) {
@@ -189,9 +316,20 @@ public class TestTaskEngineService implements TestTaskRunCallback {
         setupTestDir(task);
         fileLoadUtil.loadAttachments(task);
         deviceScriptCommandLoader.loadCommandAction(task);
-        runningTestTask.put(task.getId(), task);
     }
 
+    @Override
+    public void onTaskStartFailed(Task task, Exception e) {
+        task.setStatus(Task.TaskStatus.EXCEPTION);
+        task.setErrorMsg(e.getMessage());
+        if (webSocketCallback != null) {
+            webSocketCallback.onTaskStartFailed(task, e);
+        }
+    }
+
+    /**
+     * Release the devices of the task as soon as they are all done, and report the task with its results once their files are uploaded.
+     */
     @Override
     public void onTaskComplete(Task task) {
         try {
@@ -200,23 +338,34 @@ public class TestTaskEngineService implements TestTaskRunCallback {
             log.error("clear attachments error", e);
         }
 
+        List<CompletableFuture<Void>> resultUploads = resultUploadMap.remove(task.getId());
         if (task.isCanceled()) {
             log.warn("test task {} is canceled, no data will be saved", task.getId());
             return;
         }
 
+        runningTestTask.remove(task.getId());
         if (webSocketCallback != null) {
             webSocketCallback.onTaskComplete(task);
         }
 
-        log.info("test task {} is completed, start to save info", task.getId());
+        CompletableFuture<Void> allUploads = resultUploads == null ? CompletableFuture.completedFuture(null)
+                : CompletableFuture.allOf(resultUploads.toArray(new CompletableFuture[0]));
+        allUploads.orTimeout(RESULT_UPLOAD_TIMEOUT_MINUTES, TimeUnit.MINUTES).whenCompleteAsync((v, e) -> {
+            if (e != null) {
+                log.error("Result uploads of test task {} are not done", task.getId(), e);
+            }
+            if (webSocketCallback != null) {
+                webSocketCallback.onTaskResultUploaded(task);
+            }
 
-        testDataService.saveTestTaskData(task);
-        runningTestTask.remove(task.getId());
+            log.info("test task {} is completed, start to save info", task.getId());
+            testDataService.saveTestTaskData(task);
+        }, ThreadPoolUtil.RESULT_UPLOAD_EXECUTOR);
     }
 
     @Override
-    public void onOneDeviceComplete(Task task, TestRunDevice testRunDevice, Logger logger, TestRun result) {
+    public CompletableFuture<Void> onOneDeviceComplete(Task task, TestRunDevice testRunDevice, Logger logger, TestRun result) {
         log.info("onOneDeviceComplete: {}", testRunDevice.getDeviceInfo().getSerialNum());
         testRunDeviceOrchestrator.finishTask(testRunDevice);
         //check if the device is needed to reboot
@@ -224,19 +373,56 @@ public class TestTaskEngineService implements TestTaskRunCallback {
         File deviceTestResultFolder = result.getResultFolder();
 
         File[] files = deviceTestResultFolder.listFiles();
-        List<StorageFileInfo> attachments = new ArrayList<>();
         Assert.notNull(files, "should have result file to upload");
+        // the device is free for the next task while its results are uploaded
+        List<CompletableFuture<StorageFileInfo>> fileUploads = new ArrayList<>();
         for (File file : files) {
             if (!file.isDirectory()) {
-                attachments.add(saveFileToBlob(file, deviceTestResultFolder, logger));
+                fileUploads.add(CompletableFuture.supplyAsync(() -> uploadResultFile(file, deviceTestResultFolder, logger),
+                        ThreadPoolUtil.RESULT_UPLOAD_EXECUTOR));
             } else if (file.listFiles().length > 0) {
-                File zipFile = FileUtil.zipFile(file.getAbsolutePath(),
-                        deviceTestResultFolder + "/" + file.getName() + ".zip");
-                attachments.add(saveFileToBlob(zipFile, deviceTestResultFolder, logger));
+                fileUploads.add(CompletableFuture.supplyAsync(() -> {
+                    File zipFile = FileUtil.zipFile(file.getAbsolutePath(),
+                            deviceTestResultFolder + "/" + file.getName() + ".zip");
+                    return uploadResultFile(zipFile, deviceTestResultFolder, logger);
+                }, ThreadPoolUtil.RESULT_UPLOAD_EXECUTOR));
+            }
+        }
+        CompletableFuture<Void> deviceUpload = CompletableFuture.allOf(fileUploads.toArray(new CompletableFuture[0])).thenRun(() -> {
+            List<StorageFileInfo> attachments = new ArrayList<>();
+            for (CompletableFuture<StorageFileInfo> fileUpload : fileUploads) {
+                StorageFileInfo attachment = fileUpload.join();
+                if (attachment != null) {
+                    attachments.add(attachment);
+                }
+            }
+            result.setAttachments(attachments);
+            if (!attachments.isEmpty()) {
+                result.processAndSaveDeviceTestResultBlobUrl();
             }
+        });
+        resultUploadMap.computeIfAbsent(task.getId(), k -> new CopyOnWriteArrayList<>()).add(deviceUpload);
+        return deviceUpload;
+    }
+
+    /**
+     * @return null if the file is still not uploaded after the retries
+     */
+    private StorageFileInfo uploadResultFile(File file, File folder, Logger logger) {
+        try {
+            return FlowUtil.retryWithBackoffWhenException(UPLOAD_RETRY_COUNT, UPLOAD_RETRY_INITIAL_SLEEP_MILLIS,
+                    () -> saveFileToBlob(file, folder, logger));
+        } catch (Exception e) {
+            logger.error("Failed to upload result file " + file.getAbsolutePath(), e);
+            return null;
+        }
+    }
+
+    @Override
+    public void onTestUnitsEnded(Task task, TestRun testRun, List<AndroidTestUnit> testUnits) {
+        if (webSocketCallback != null) {
+            webSocketCallback.onTestUnitsEnded(task, testRun, testUnits);
         }
-        result.setAttachments(attachments);
-        result.processAndSaveDeviceTestResultBlobUrl();
     }
 
     @Override
@@ -0,0 +1,131 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.agent.socket;
+
+import com.alibaba.fastjson.JSONObject;
+import com.microsoft.hydralab.common.entity.common.Message;
+import com.microsoft.hydralab.common.entity.common.TestTaskSpec;
+import com.microsoft.hydralab.common.exception.handler.ThreadExceptionHandler;
+import com.microsoft.hydralab.common.util.Const;
+import com.microsoft.hydralab.common.util.ThreadPoolUtil;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Hands the messages received from center over to per path lanes, so that the socket read thread is not held up by message handling.
+ * Each lane is a single thread with a bounded queue, which keeps the order of the messages on the same path.
+ * Only the test task run, which registers the task and chooses its devices, gets its own lane.
+ * All the other messages share the control lane, so their handlers, which update the same agent and device state, still run one at a time
+ * and are not queued behind a test task run.
+ * When a lane is full, the read thread waits for it to drain, to slow down the reading instead of dropping messages.
+ * A test task cancel may be handled on the control lane before the run of the task leaves its lane, so the run is skipped,
+ * or the cancel handled again once the run has registered the task.
+ */
+@Slf4j
+public class AgentMessagePipeline {
+    static final Set<String> OWN_LANE_PATHS = Set.of(Const.Path.TEST_TASK_RUN);
+    private static final String CONTROL_LANE = "Control";
+    private static final int LANE_CAPACITY = 64;
+    private static final long LANE_KEEP_ALIVE_SECONDS = 60L;
+    // save message lane <path, laneExecutor>
+    private final ConcurrentHashMap<String, ThreadPoolExecutor> lanes = new ConcurrentHashMap<>();
+    // task id of the queued run messages to the cancel message received for it
+    private final ConcurrentHashMap<String, AtomicReference<Message>> queuedTaskRuns = new ConcurrentHashMap<>();
+    private final Consumer<Message> messageHandler;
+
+    public AgentMessagePipeline(Consumer<Message> messageHandler) {
+        this.messageHandler = messageHandler;
+    }
+
+    public void submit(Message message) {
+        String laneName = message.getPath() != null && OWN_LANE_PATHS.contains(message.getPath()) ? message.getPath() : CONTROL_LANE;
+        String runTaskId = getRunTaskId(message);
+        if (runTaskId != null) {
+            queuedTaskRuns.put(runTaskId, new AtomicReference<>());
+            lanes.computeIfAbsent(laneName, this::createLane).execute(() -> handleRun(runTaskId, message));
+            return;
+        }
+        String cancelTaskId = getCancelTaskId(message);
+        AtomicReference<Message> cancel = cancelTaskId == null ? null : queuedTaskRuns.get(cancelTaskId);
+        if (cancel != null) {
+            cancel.set(message);
+        }
+        lanes.computeIfAbsent(laneName, this::createLane).execute(() -> handle(message));
+    }
+
+    /**
+     * Release the lanes of a closed connection, the messages already queued are still handled.
+     * The lanes are created again by the messages of the next connection.
+     */
+    public void shutdown() {
+        lanes.values().forEach(ThreadPoolExecutor::shutdown);
+        lanes.clear();
+    }
+
+    private void handleRun(String taskId, Message message) {
+        AtomicReference<Message> cancel = queuedTaskRuns.get(taskId);
+        if (cancel != null && cancel.get() != null) {
+            queuedTaskRuns.remove(taskId);
+            log.warn("Test task {} is canceled before it runs, skip it", taskId);
+            return;
+        }
+        try {
+            handle(message);
+        } finally {
+            queuedTaskRuns.remove(taskId);
+        }
+        // the cancel came while the task was being registered, and may have found nothing to cancel
+        if (cancel != null && cancel.get() != null) {
+            handle(cancel.get());
+        }
+    }
+
+    private static String getRunTaskId(Message message) {
+        if (Const.Path.TEST_TASK_RUN.equals(message.getPath()) && message.getBody() instanceof TestTaskSpec) {
+            return ((TestTaskSpec) message.getBody()).testTaskId;
+        }
+        return null;
+    }
+
+    private static String getCancelTaskId(Message message) {
+        if (Const.Path.TEST_TASK_CANCEL.equals(message.getPath()) && message.getBody() instanceof JSONObject) {
+            return ((JSONObject) message.getBody()).getString(Const.AgentConfig.TASK_ID_PARAM);
+        }
+        return null;
+    }
+
+    private void handle(Message message) {
+        try {
+            messageHandler.accept(message);
+        } catch (Exception e) {
+            log.error("Failed to handle message, path: {}", message.getPath(), e);
+        }
+    }
+
+    private ThreadPoolExecutor createLane(String laneName) {
+        ThreadPoolExecutor lane = new ThreadPoolExecutor(1, 1, LANE_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new ArrayBlockingQueue<>(LANE_CAPACITY),
+                new ThreadPoolUtil.HydraThreadFactory(new ThreadExceptionHandler(), "AgentMessage" + laneName.replace('/', '-')),
+                (run, executor) -> {
+                    if (executor.isShutdown()) {
+                        return;
+                    }
+                    log.warn("Message lane {} is full, wait for the lane to drain", laneName);
+                    try {
+                        executor.getQueue().put(run);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        log.error("Interrupted while waiting for message lane {}, the message is dropped", laneName);
+                    }
+                });
+        lane.allowCoreThreadTimeOut(true);
+        return lane;
+    }
+}
@@ -4,6 +4,7 @@
 package com.microsoft.hydralab.agent.socket;
 
 import com.microsoft.hydralab.agent.service.AgentWebSocketClientService;
+import com.microsoft.hydralab.common.codec.MessageCodec;
 import com.microsoft.hydralab.common.entity.common.Message;
 import com.microsoft.hydralab.common.util.Const;
 import com.microsoft.hydralab.common.util.FlowUtil;
@@ -19,23 +20,28 @@ import java.nio.ByteBuffer;
 @Slf4j
 public class AgentWebSocketClient extends WebSocketClient {
     private final AgentWebSocketClientService agentWebSocketClientService;
+    private final AgentMessagePipeline messagePipeline;
 
     private boolean connectionActive = false;
     private int reconnectTime = 0;
+    // codec version agreed with center, legacy format until center advertises a newer one
+    private volatile int codecVersion = MessageCodec.VERSION_JSON_GZIP;
 
     public AgentWebSocketClient(URI serverUri, AgentWebSocketClientService agentWebSocketClientService) {
         super(serverUri);
         this.agentWebSocketClientService = agentWebSocketClientService;
+        this.messagePipeline = new AgentMessagePipeline(agentWebSocketClientService::onMessage);
         agentWebSocketClientService.setSendMessageCallback(message -> {
-            byte[] data = SerializeUtil.messageToByteArr(message);
+            byte[] data = SerializeUtil.messageToByteArr(message, codecVersion);
             log.info("send, path: {}, message data len: {}", message.getPath(), data.length);
             try {
-                FlowUtil.retryAndSleepWhenException(3, 10, () -> {
+                return FlowUtil.retryAndSleepWhenException(3, 10, () -> {
                     AgentWebSocketClient.this.send(data);
                     return true;
                 });
             } catch (Exception e) {
                 log.error("send message to center error, message path is {}", message.getPath(), e);
+                return false;
             }
         });
     }
@@ -43,6 +49,7 @@ public class AgentWebSocketClient extends WebSocketClient {
     @Override
     public void onOpen(ServerHandshake handShakeData) {
         connectionActive = true;
+        codecVersion = MessageCodec.VERSION_JSON_GZIP;
         log.info("onOpen message {}, {}", handShakeData.getHttpStatus(), handShakeData.getHttpStatusMessage());
     }
 
@@ -51,10 +58,14 @@ public class AgentWebSocketClient extends WebSocketClient {
         super.onMessage(bytes);
         connectionActive = true;
         Message message = SerializeUtil.byteArrToMessage(bytes.array());
-        agentWebSocketClientService.onMessage(message);
+        int advertisedCodecVersion = SerializeUtil.getAdvertisedCodecVersion(message);
+        if (advertisedCodecVersion >= 0) {
+            codecVersion = Math.min(advertisedCodecVersion, SerializeUtil.LATEST_CODEC_VERSION);
+        }
         if (Const.Path.DEVICE_LIST.equals(message.getPath())) {
             reconnectTime = 0;
         }
+        messagePipeline.submit(message);
     }
 
     @Override
@@ -68,6 +79,7 @@ public class AgentWebSocketClient extends WebSocketClient {
         log.error("onClose {}, {}, {}", code, reason, remote);
         reconnectTime++;
         connectionActive = false;
+        messagePipeline.shutdown();
         // if the connection is closed by server with 1008,1003, exit the agent
         if (code == CloseReason.CloseCodes.CANNOT_ACCEPT.getCode() || code == CloseReason.CloseCodes.VIOLATED_POLICY.getCode()) {
             System.exit(code);
@@ -0,0 +1,279 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.agent.util;
+
+import com.microsoft.hydralab.agent.config.AppOptions;
+import com.microsoft.hydralab.common.entity.common.StorageFileInfo;
+import com.microsoft.hydralab.common.file.StorageServiceClientProxy;
+import com.microsoft.hydralab.common.util.FlowUtil;
+import com.microsoft.hydralab.common.util.HydraLabRuntimeException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.DigestUtils;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Size bounded LRU cache of the downloaded attachments, keyed by the MD5 of their content.
+ * Concurrent requests for the same content share a single download.
+ */
+@Service
+public class AttachmentCache {
+    @SuppressWarnings("constantname")
+    static final Logger log = LoggerFactory.getLogger(AttachmentCache.class);
+    private static final Pattern MD5_PATTERN = Pattern.compile("[0-9a-f]{32}");
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    @Resource
+    AppOptions appOptions;
+    @Resource
+    StorageServiceClientProxy storageServiceClientProxy;
+    @Value("${app.attachment-cache.max-size-mb:10240}")
+    long maxSizeMb;
+
+    // save cached blob <md5, size> in access order, guarded by itself
+    private final LinkedHashMap<String, Long> cachedBlobs = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedSize = 0;
+    // save download in progress <md5, blob>
+    private final ConcurrentHashMap<String, CompletableFuture<File>> downloads = new ConcurrentHashMap<>();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong savedBytes = new AtomicLong();
+    private File cacheDir;
+
+    @PostConstruct
+    public void init() {
+        cacheDir = new File(appOptions.getAttachmentCacheLocation());
+        if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+            throw new HydraLabRuntimeException("mkdirs fail for: " + cacheDir);
+        }
+        File[] files = cacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        // restore the blobs kept from the last run, least recently modified first
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        synchronized (cachedBlobs) {
+            for (File file : files) {
+                if (!file.isFile() || !MD5_PATTERN.matcher(file.getName()).matches()) {
+                    // partial download
+                    if (!file.delete()) {
+                        log.warn("Failed to delete {} in attachment cache", file.getName());
+                    }
+                    continue;
+                }
+                cachedBlobs.put(file.getName(), file.length());
+                cachedSize += file.length();
+            }
+            evict();
+        }
+        log.info("Attachment cache loaded {} blobs, {} bytes", cachedBlobs.size(), cachedSize);
+    }
+
+    /**
+     * Copy the attachment content to the target file, downloading it only if it's not cached.
+     */
+    public File load(StorageFileInfo attachment, File targetFile) throws IOException {
+        if (!isCacheable(attachment)) {
+            download(attachment, targetFile);
+            return targetFile;
+        }
+        File parent = targetFile.getAbsoluteFile().getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            throw new HydraLabRuntimeException("mkdirs fail for: " + parent);
+        }
+        // copy beside the target and move it over, so a reader of the previous file is not affected
+        File tempFile = new File(parent, targetFile.getName() + "." + UUID.randomUUID() + TEMP_FILE_SUFFIX);
+        for (int attempt = 0; ; attempt++) {
+            File blob = getBlob(attachment, true);
+            try {
+                Files.copy(blob.toPath(), tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                moveReplacing(tempFile, targetFile);
+                return targetFile;
+            } catch (NoSuchFileException e) {
+                // the blob was evicted before being copied, fetch it again once
+                if (attempt > 0) {
+                    throw e;
+                }
+            } finally {
+                Files.deleteIfExists(tempFile.toPath());
+            }
+        }
+    }
+
+    /**
+     * Download the attachment into the cache only, for a task still queued on center.
+     */
+    public void prefetch(StorageFileInfo attachment) {
+        if (isCacheable(attachment)) {
+            getBlob(attachment, false);
+        }
+    }
+
+    public double getHitRatio() {
+        long hits = hitCount.get();
+        long total = hits + missCount.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public long getSavedBytes() {
+        return savedBytes.get();
+    }
+
+    /**
+     * @param isRequested whether the attachment is loaded for a task, only these are counted in the hit ratio and saved bytes, prefetches are not
+     */
+    private File getBlob(StorageFileInfo attachment, boolean isRequested) {
+        String md5 = attachment.getMd5().toLowerCase(Locale.ROOT);
+        File blob = lookup(md5);
+        if (blob != null) {
+            if (isRequested) {
+                recordHit(blob);
+            }
+            return blob;
+        }
+        if (isRequested) {
+            // waiting for a download in progress doesn't save the download time, count it as a miss too
+            missCount.incrementAndGet();
+        }
+        CompletableFuture<File> download = new CompletableFuture<>();
+        CompletableFuture<File> existingDownload = downloads.putIfAbsent(md5, download);
+        if (existingDownload != null) {
+            // the same content is being downloaded for another task or a prefetch, wait for it
+            return awaitDownload(existingDownload);
+        }
+        try {
+            // the blob may have been added after the lookup
+            blob = lookup(md5);
+            if (blob == null) {
+                blob = fetch(attachment, md5);
+            }
+            download.complete(blob);
+            return blob;
+        } catch (Exception e) {
+            download.completeExceptionally(e);
+            throw e;
+        } finally {
+            // no-op if completed, otherwise releases the waiting threads
+            download.completeExceptionally(new HydraLabRuntimeException("Download file failed"));
+            downloads.remove(md5, download);
+        }
+    }
+
+    private File lookup(String md5) {
+        synchronized (cachedBlobs) {
+            if (cachedBlobs.get(md5) == null) {
+                return null;
+            }
+            File blob = new File(cacheDir, md5);
+            if (!blob.exists()) {
+                cachedSize -= cachedBlobs.remove(md5);
+                return null;
+            }
+            return blob;
+        }
+    }
+
+    private File fetch(StorageFileInfo attachment, String md5) {
+        File tempFile = new File(cacheDir, md5 + "." + UUID.randomUUID() + TEMP_FILE_SUFFIX);
+        File blob = new File(cacheDir, md5);
+        try {
+            download(attachment, tempFile);
+            String downloadedMd5;
+            try (InputStream inputStream = new FileInputStream(tempFile)) {
+                downloadedMd5 = DigestUtils.md5DigestAsHex(inputStream);
+            }
+            if (!md5.equals(downloadedMd5)) {
+                throw new HydraLabRuntimeException("MD5 of the downloaded file " + attachment.getFileName() + " is " + downloadedMd5 + ", expected " + md5);
+            }
+            moveReplacing(tempFile, blob);
+        } catch (IOException e) {
+            throw new HydraLabRuntimeException("Download file failed", e);
+        } finally {
+            if (tempFile.exists() && !tempFile.delete()) {
+                log.warn("Failed to delete {} in attachment cache", tempFile.getName());
+            }
+        }
+        synchronized (cachedBlobs) {
+            Long previousSize = cachedBlobs.put(md5, blob.length());
+            cachedSize += blob.length() - (previousSize == null ? 0 : previousSize);
+            evict();
+        }
+        log.info("Attachment {} is cached as {}, {} bytes", attachment.getFileName(), md5, blob.length());
+        return blob;
+    }
+
+    private void download(StorageFileInfo attachment, File file) {
+        log.debug("download file from {} to {}", attachment.getBlobUrl(), file.getAbsolutePath());
+        try {
+            FlowUtil.retryAndSleepWhenException(3, 10, () -> storageServiceClientProxy.download(file, attachment));
+        } catch (Exception e) {
+            throw new HydraLabRuntimeException("Download file failed", e);
+        }
+    }
+
+    private void evict() {
+        long maxSize = maxSizeMb * 1024 * 1024;
+        Iterator<Map.Entry<String, Long>> iterator = cachedBlobs.entrySet().iterator();
+        // the most recent blob is always kept, even if it's larger than the limit by itself
+        while (cachedSize > maxSize && cachedBlobs.size() > 1 && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            cachedSize -= eldest.getValue();
+            if (!new File(cacheDir, eldest.getKey()).delete()) {
+                log.warn("Failed to delete evicted attachment blob {}", eldest.getKey());
+            }
+        }
+    }
+
+    private void recordHit(File blob) {
+        hitCount.incrementAndGet();
+        savedBytes.addAndGet(blob.length());
+    }
+
+    private static boolean isCacheable(StorageFileInfo attachment) {
+        return attachment.getMd5() != null && MD5_PATTERN.matcher(attachment.getMd5().toLowerCase(Locale.ROOT)).matches();
+    }
+
+    private static File awaitDownload(CompletableFuture<File> download) {
+        try {
+            return download.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof HydraLabRuntimeException) {
+                throw (HydraLabRuntimeException) e.getCause();
+            }
+            throw new HydraLabRuntimeException("Download file failed", e);
+        }
+    }
+
+    private static void moveReplacing(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
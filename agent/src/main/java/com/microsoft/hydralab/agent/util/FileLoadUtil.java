@@ -7,11 +7,10 @@ import com.microsoft.hydralab.agent.config.AppOptions;
 import com.microsoft.hydralab.common.entity.common.StorageFileInfo;
 import com.microsoft.hydralab.common.entity.common.Task;
 import com.microsoft.hydralab.common.entity.common.TestTask;
-import com.microsoft.hydralab.common.file.StorageServiceClientProxy;
 import com.microsoft.hydralab.common.util.CommandOutputReceiver;
 import com.microsoft.hydralab.common.util.FileUtil;
-import com.microsoft.hydralab.common.util.FlowUtil;
 import com.microsoft.hydralab.common.util.HydraLabRuntimeException;
+import com.microsoft.hydralab.common.util.ThreadPoolUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
@@ -19,8 +18,11 @@ import org.springframework.util.Assert;
 
 import javax.annotation.Resource;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.TimeUnit;
 
 @Service
@@ -30,7 +32,7 @@ public class FileLoadUtil {
     @Resource
     AppOptions appOptions;
     @Resource
-    StorageServiceClientProxy storageServiceClientProxy;
+    AttachmentCache attachmentCache;
 
     public void clearAttachments(Task task) {
         List<StorageFileInfo> attachments = task.getTestFileSet().getAttachments();
@@ -51,7 +53,14 @@ public class FileLoadUtil {
         if (attachments == null) {
             return;
         }
+        // download the package files in parallel, then set them to the task in the attachment order
+        List<CompletableFuture<File>> packageFiles = new ArrayList<>(attachments.size());
         for (StorageFileInfo attachment : attachments) {
+            packageFiles.add(isPackageFile(attachment, task)
+                    ? CompletableFuture.supplyAsync(() -> downloadFile(attachment), ThreadPoolUtil.FILE_LOAD_EXECUTOR) : null);
+        }
+        for (int i = 0; i < attachments.size(); i++) {
+            StorageFileInfo attachment = attachments.get(i);
             switch (attachment.getFileType()) {
                 case StorageFileInfo.FileType.WINDOWS_APP:
                     installWinApp(attachment);
@@ -60,23 +69,23 @@ public class FileLoadUtil {
                     loadCommonFile(attachment, task);
                     break;
                 case StorageFileInfo.FileType.APP_FILE:
-                    File appFile = downloadFile(attachment);
+                    File appFile = awaitFile(packageFiles.get(i));
                     Assert.isTrue(appFile != null && appFile.exists(), "Download app file failed!");
                     task.setAppFile(appFile);
                     break;
                 case StorageFileInfo.FileType.TEST_APP_FILE:
                     if (!(task instanceof TestTask)) {
-                        return;
+                        break;
                     }
-                    File testAppFile = downloadFile(attachment);
+                    File testAppFile = awaitFile(packageFiles.get(i));
                     Assert.isTrue(testAppFile != null && testAppFile.exists(), "Download test app file failed!");
                     ((TestTask) task).setTestAppFile(testAppFile);
                     break;
                 case StorageFileInfo.FileType.T2C_JSON_FILE:
                     if (!(task instanceof TestTask)) {
-                        return;
+                        break;
                     }
-                    File testJsonFile = downloadFile(attachment);
+                    File testJsonFile = awaitFile(packageFiles.get(i));
                     Assert.isTrue(testJsonFile != null && testJsonFile.exists(), "Download test json file failed!");
                     ((TestTask) task).addTestJsonFile(testJsonFile);
                     break;
@@ -86,6 +95,44 @@ public class FileLoadUtil {
         }
     }
 
+    /**
+     * Download the attachments of a task queued on center into the attachment cache, so that they are not downloaded when the task starts.
+     */
+    public void prefetchAttachments(List<StorageFileInfo> attachments) {
+        for (StorageFileInfo attachment : attachments) {
+            ThreadPoolUtil.FILE_LOAD_EXECUTOR.execute(() -> {
+                try {
+                    attachmentCache.prefetch(attachment);
+                } catch (Exception e) {
+                    log.warn("Prefetch attachment {} failed", attachment.getFileName(), e);
+                }
+            });
+        }
+    }
+
+    private static boolean isPackageFile(StorageFileInfo attachment, Task task) {
+        switch (attachment.getFileType()) {
+            case StorageFileInfo.FileType.APP_FILE:
+                return true;
+            case StorageFileInfo.FileType.TEST_APP_FILE:
+            case StorageFileInfo.FileType.T2C_JSON_FILE:
+                return task instanceof TestTask;
+            default:
+                return false;
+        }
+    }
+
+    private static File awaitFile(CompletableFuture<File> file) {
+        try {
+            return file.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof HydraLabRuntimeException) {
+                throw (HydraLabRuntimeException) e.getCause();
+            }
+            throw new HydraLabRuntimeException("Download file failed", e);
+        }
+    }
+
     public void installWinApp(StorageFileInfo attachment) {
         try {
             Runtime runtime = Runtime.getRuntime();
@@ -123,10 +170,7 @@ public class FileLoadUtil {
     }
 
     private File downloadFile(StorageFileInfo attachment, String location, String targetFilePath) throws Exception {
-        File file = new File(location, targetFilePath);
-        log.debug("download file from {} to {}", attachment.getBlobUrl(), file.getAbsolutePath());
-        FlowUtil.retryAndSleepWhenException(3, 10, () -> storageServiceClientProxy.download(file, attachment));
-        return file;
+        return attachmentCache.load(attachment, new File(location, targetFilePath));
     }
 
     private File downloadFile(StorageFileInfo attachment) {
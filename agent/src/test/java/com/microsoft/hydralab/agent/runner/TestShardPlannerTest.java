@@ -0,0 +1,102 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.agent.runner;
+
+import com.microsoft.hydralab.common.entity.common.TestShard;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class TestShardPlannerTest {
+
+    @Test
+    public void balanceByHistoricalDuration() {
+        // a 40 minutes suite of classes from 10s to 5min
+        Map<String, Long> testClassDurations = new HashMap<>();
+        long total = 0;
+        for (int i = 0; i < 30; i++) {
+            long duration = (10 + i * 10) * 1000L;
+            testClassDurations.put("com.microsoft.test.Class" + i, duration);
+            total += duration;
+        }
+        List<TestShard> shards = TestShardPlanner.plan(8, testClassDurations);
+
+        Assertions.assertEquals(8, shards.size());
+        Set<String> plannedClasses = new HashSet<>();
+        long maxLoad = 0;
+        int restShardCount = 0;
+        for (TestShard shard : shards) {
+            Assertions.assertFalse(shard.getTestClasses().isEmpty());
+            plannedClasses.addAll(shard.getTestClasses());
+            maxLoad = Math.max(maxLoad, shard.getExpectedDurationMillis());
+            if (shard.getExcludedTestClasses() != null) {
+                restShardCount++;
+                Assertions.assertEquals(testClassDurations.size() - shard.getTestClasses().size(), shard.getExcludedTestClasses().size());
+            }
+        }
+        Assertions.assertEquals(testClassDurations.keySet(), plannedClasses);
+        Assertions.assertEquals(1, restShardCount, "Only one shard should run the classes without history");
+        Assertions.assertTrue(maxLoad < total / 8 * 1.1, "The longest shard should be close to the even split");
+    }
+
+    @Test
+    public void sameInputSamePlan() {
+        Map<String, Long> testClassDurations = new HashMap<>();
+        for (int i = 0; i < 10; i++) {
+            testClassDurations.put("com.microsoft.test.Class" + i, 1000L);
+        }
+        List<TestShard> shards = TestShardPlanner.plan(3, testClassDurations);
+        List<TestShard> otherShards = TestShardPlanner.plan(3, new HashMap<>(testClassDurations));
+        for (int i = 0; i < shards.size(); i++) {
+            Assertions.assertEquals(shards.get(i).getTestClasses(), otherShards.get(i).getTestClasses());
+        }
+    }
+
+    @Test
+    public void shardByRunnerWithoutHistory() {
+        Map<String, Long> testClassDurations = Map.of("com.microsoft.test.Class0", 1000L);
+        List<TestShard> shards = TestShardPlanner.plan(4, testClassDurations);
+
+        Assertions.assertEquals(4, shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            Assertions.assertNull(shards.get(i).getTestClasses());
+            Assertions.assertEquals(4, shards.get(i).getShardCount());
+            Assertions.assertEquals(i, shards.get(i).getShardIndex());
+        }
+    }
+
+    @Test
+    public void mergeShardsForFewerDevices() {
+        Map<String, Long> testClassDurations = new HashMap<>();
+        for (int i = 0; i < 30; i++) {
+            testClassDurations.put("com.microsoft.test.Class" + i, (10 + i * 10) * 1000L);
+        }
+        List<TestShard> shards = TestShardPlanner.plan(8, testClassDurations);
+        List<TestShard> mergedShards = TestShardPlanner.merge(shards, 3);
+
+        Assertions.assertEquals(3, mergedShards.size());
+        Set<String> plannedClasses = new HashSet<>();
+        long totalLoad = 0;
+        long maxLoad = 0;
+        for (TestShard shard : mergedShards) {
+            plannedClasses.addAll(shard.getTestClasses());
+            totalLoad += shard.getExpectedDurationMillis();
+            maxLoad = Math.max(maxLoad, shard.getExpectedDurationMillis());
+            if (shard.getExcludedTestClasses() != null) {
+                Set<String> excludedClasses = new HashSet<>(shard.getExcludedTestClasses());
+                Assertions.assertEquals(testClassDurations.size() - shard.getTestClasses().size(), excludedClasses.size());
+                for (String testClass : shard.getTestClasses()) {
+                    Assertions.assertFalse(excludedClasses.contains(testClass));
+                }
+            }
+        }
+        Assertions.assertEquals(testClassDurations.keySet(), plannedClasses);
+        Assertions.assertTrue(maxLoad < totalLoad / 3 * 1.2, "The longest merged shard should be close to the even split");
+    }
+}
@@ -0,0 +1,37 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.agent.runner;
+
+import com.microsoft.hydralab.common.entity.common.AndroidTestUnit;
+import com.microsoft.hydralab.common.entity.common.TestRun;
+import com.microsoft.hydralab.common.entity.common.TestTask;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+import java.util.List;
+
+public class TestUnitUpdateBatcherTest {
+
+    @Test
+    public void reportByBatchSizeAndAtRunEnd() {
+        TestTaskRunCallback callback = Mockito.mock(TestTaskRunCallback.class);
+        TestTask testTask = new TestTask();
+        TestRun testRun = new TestRun();
+        TestUnitUpdateBatcher batcher = new TestUnitUpdateBatcher(testTask, testRun, callback);
+
+        for (int i = 0; i < TestUnitUpdateBatcher.BATCH_SIZE + 3; i++) {
+            batcher.add(new AndroidTestUnit());
+        }
+        Mockito.verify(callback, Mockito.times(1)).onTestUnitsEnded(ArgumentMatchers.eq(testTask), ArgumentMatchers.eq(testRun),
+                ArgumentMatchers.<List<AndroidTestUnit>>argThat(units -> units.size() == TestUnitUpdateBatcher.BATCH_SIZE));
+
+        batcher.flush();
+        Mockito.verify(callback, Mockito.times(1)).onTestUnitsEnded(ArgumentMatchers.eq(testTask), ArgumentMatchers.eq(testRun),
+                ArgumentMatchers.<List<AndroidTestUnit>>argThat(units -> units.size() == 3));
+
+        batcher.flush();
+        Mockito.verifyNoMoreInteractions(callback);
+    }
+}
@@ -0,0 +1,171 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.agent.socket;
+
+import com.alibaba.fastjson.JSONObject;
+import com.microsoft.hydralab.common.entity.common.Message;
+import com.microsoft.hydralab.common.entity.common.TestTaskSpec;
+import com.microsoft.hydralab.common.util.Const;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AgentMessagePipelineTest {
+
+    private static Message message(String path, Object body) {
+        Message message = new Message();
+        message.setPath(path);
+        message.setBody(body);
+        return message;
+    }
+
+    private static TestTaskSpec taskSpec(String taskId) {
+        TestTaskSpec testTaskSpec = new TestTaskSpec();
+        testTaskSpec.testTaskId = taskId;
+        return testTaskSpec;
+    }
+
+    private static JSONObject cancelBody(String taskId) {
+        JSONObject data = new JSONObject();
+        data.put(Const.AgentConfig.TASK_ID_PARAM, taskId);
+        return data;
+    }
+
+    @Test
+    public void controlMessageNotBlockedByTaskRun() throws InterruptedException {
+        CountDownLatch taskRunBlocked = new CountDownLatch(1);
+        CountDownLatch cancelHandled = new CountDownLatch(1);
+        AgentMessagePipeline pipeline = new AgentMessagePipeline(message -> {
+            if (Const.Path.TEST_TASK_RUN.equals(message.getPath())) {
+                try {
+                    taskRunBlocked.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } else if (Const.Path.TEST_TASK_CANCEL.equals(message.getPath())) {
+                cancelHandled.countDown();
+            }
+        });
+        try {
+            pipeline.submit(message(Const.Path.TEST_TASK_RUN, null));
+            pipeline.submit(message(Const.Path.TEST_TASK_CANCEL, null));
+            Assertions.assertTrue(cancelHandled.await(5, TimeUnit.SECONDS), "Cancel should be handled while the task run is still in progress");
+        } finally {
+            taskRunBlocked.countDown();
+            pipeline.shutdown();
+        }
+    }
+
+    @Test
+    public void keepOrderInLane() throws InterruptedException {
+        List<Object> handled = new CopyOnWriteArrayList<>();
+        CountDownLatch allHandled = new CountDownLatch(50);
+        AgentMessagePipeline pipeline = new AgentMessagePipeline(message -> {
+            handled.add(message.getBody());
+            allHandled.countDown();
+        });
+        try {
+            for (int i = 0; i < 50; i++) {
+                pipeline.submit(message(Const.Path.HEARTBEAT, i));
+            }
+            Assertions.assertTrue(allHandled.await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < 50; i++) {
+                Assertions.assertEquals(i, handled.get(i), "Messages on the same lane should be handled in order");
+            }
+        } finally {
+            pipeline.shutdown();
+        }
+    }
+
+    @Test
+    public void otherMessagesNotHandledConcurrently() throws InterruptedException {
+        AtomicInteger handling = new AtomicInteger();
+        AtomicInteger maxHandling = new AtomicInteger();
+        CountDownLatch allHandled = new CountDownLatch(60);
+        AgentMessagePipeline pipeline = new AgentMessagePipeline(message -> {
+            maxHandling.accumulateAndGet(handling.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            handling.decrementAndGet();
+            allHandled.countDown();
+        });
+        try {
+            for (int i = 0; i < 20; i++) {
+                pipeline.submit(message(Const.Path.HEARTBEAT, i));
+                pipeline.submit(message(Const.Path.DEVICE_UPDATE, i));
+                pipeline.submit(message(Const.Path.TEST_TASK_PREFETCH, i));
+            }
+            Assertions.assertTrue(allHandled.await(5, TimeUnit.SECONDS));
+            Assertions.assertEquals(1, maxHandling.get(), "Messages sharing the agent and device state should be handled one at a time");
+        } finally {
+            pipeline.shutdown();
+        }
+    }
+
+    @Test
+    public void queuedTaskRunSkippedWhenCanceled() throws InterruptedException {
+        CountDownLatch firstRunBlocked = new CountDownLatch(1);
+        CountDownLatch cancelHandled = new CountDownLatch(1);
+        CountDownLatch heartbeatHandled = new CountDownLatch(1);
+        List<String> runTaskIds = new CopyOnWriteArrayList<>();
+        AgentMessagePipeline pipeline = new AgentMessagePipeline(message -> {
+            if (Const.Path.TEST_TASK_RUN.equals(message.getPath())) {
+                String taskId = ((TestTaskSpec) message.getBody()).testTaskId;
+                runTaskIds.add(taskId);
+                if ("first".equals(taskId)) {
+                    try {
+                        firstRunBlocked.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            } else if (Const.Path.TEST_TASK_CANCEL.equals(message.getPath())) {
+                cancelHandled.countDown();
+            } else if (Const.Path.HEARTBEAT.equals(message.getPath())) {
+                heartbeatHandled.countDown();
+            }
+        });
+        try {
+            pipeline.submit(message(Const.Path.TEST_TASK_RUN, taskSpec("first")));
+            pipeline.submit(message(Const.Path.TEST_TASK_RUN, taskSpec("canceled")));
+            pipeline.submit(message(Const.Path.TEST_TASK_CANCEL, cancelBody("canceled")));
+            pipeline.submit(message(Const.Path.TEST_TASK_RUN, taskSpec("last")));
+            Assertions.assertTrue(cancelHandled.await(5, TimeUnit.SECONDS));
+            firstRunBlocked.countDown();
+            pipeline.submit(message(Const.Path.HEARTBEAT, null));
+            Assertions.assertTrue(heartbeatHandled.await(5, TimeUnit.SECONDS));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (runTaskIds.size() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assertions.assertEquals(List.of("first", "last"), runTaskIds, "The canceled task run should be skipped");
+        } finally {
+            firstRunBlocked.countDown();
+            pipeline.shutdown();
+        }
+    }
+
+    @Test
+    public void handleMessagesAfterShutdown() throws InterruptedException {
+        CountDownLatch handled = new CountDownLatch(2);
+        AgentMessagePipeline pipeline = new AgentMessagePipeline(message -> handled.countDown());
+        pipeline.submit(message(Const.Path.HEARTBEAT, null));
+        // the connection is closed and opened again
+        pipeline.shutdown();
+        try {
+            pipeline.submit(message(Const.Path.HEARTBEAT, null));
+            Assertions.assertTrue(handled.await(5, TimeUnit.SECONDS), "Messages of the next connection should be handled on new lanes");
+        } finally {
+            pipeline.shutdown();
+        }
+    }
+}
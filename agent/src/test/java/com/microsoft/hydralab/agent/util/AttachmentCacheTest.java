@@ -0,0 +1,97 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.agent.util;
+
+import com.microsoft.hydralab.agent.config.AppOptions;
+import com.microsoft.hydralab.common.entity.common.StorageFileInfo;
+import com.microsoft.hydralab.common.file.StorageServiceClientProxy;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.springframework.util.DigestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+class AttachmentCacheTest {
+    @TempDir
+    File tempDir;
+
+    private AttachmentCache createCache(StorageServiceClientProxy storageServiceClientProxy, long maxSizeMb) {
+        AppOptions appOptions = new AppOptions();
+        appOptions.setLocation(tempDir.getAbsolutePath());
+        AttachmentCache attachmentCache = new AttachmentCache();
+        attachmentCache.appOptions = appOptions;
+        attachmentCache.storageServiceClientProxy = storageServiceClientProxy;
+        attachmentCache.maxSizeMb = maxSizeMb;
+        attachmentCache.init();
+        return attachmentCache;
+    }
+
+    private static StorageServiceClientProxy mockStorage(byte[] content) {
+        StorageServiceClientProxy storageServiceClientProxy = Mockito.mock(StorageServiceClientProxy.class);
+        Mockito.when(storageServiceClientProxy.download(any(File.class), any(StorageFileInfo.class))).thenAnswer(invocation -> {
+            File file = invocation.getArgument(0);
+            Files.write(file.toPath(), content);
+            return invocation.getArgument(1);
+        });
+        return storageServiceClientProxy;
+    }
+
+    private static StorageFileInfo attachment(byte[] content) {
+        StorageFileInfo storageFileInfo = new StorageFileInfo();
+        storageFileInfo.setFileName("app.apk");
+        storageFileInfo.setMd5(DigestUtils.md5DigestAsHex(content));
+        return storageFileInfo;
+    }
+
+    @Test
+    void loadFromCache() throws IOException {
+        byte[] content = "test apk content".getBytes(StandardCharsets.UTF_8);
+        StorageServiceClientProxy storageServiceClientProxy = mockStorage(content);
+        AttachmentCache attachmentCache = createCache(storageServiceClientProxy, 1);
+
+        File first = attachmentCache.load(attachment(content), new File(tempDir, "task1/app.apk"));
+        File second = attachmentCache.load(attachment(content), new File(tempDir, "task2/app.apk"));
+
+        verify(storageServiceClientProxy, times(1)).download(any(File.class), any(StorageFileInfo.class));
+        Assertions.assertArrayEquals(content, Files.readAllBytes(first.toPath()));
+        Assertions.assertArrayEquals(content, Files.readAllBytes(second.toPath()));
+        Assertions.assertEquals(0.5, attachmentCache.getHitRatio());
+        Assertions.assertEquals(content.length, attachmentCache.getSavedBytes());
+    }
+
+    @Test
+    void prefetchNotCounted() throws IOException {
+        byte[] content = "test apk content".getBytes(StandardCharsets.UTF_8);
+        StorageServiceClientProxy storageServiceClientProxy = mockStorage(content);
+        AttachmentCache attachmentCache = createCache(storageServiceClientProxy, 1);
+
+        attachmentCache.prefetch(attachment(content));
+        attachmentCache.prefetch(attachment(content));
+        Assertions.assertEquals(0, attachmentCache.getHitRatio());
+        Assertions.assertEquals(0, attachmentCache.getSavedBytes());
+
+        attachmentCache.load(attachment(content), new File(tempDir, "task1/app.apk"));
+        verify(storageServiceClientProxy, times(1)).download(any(File.class), any(StorageFileInfo.class));
+        Assertions.assertEquals(1, attachmentCache.getHitRatio());
+        Assertions.assertEquals(content.length, attachmentCache.getSavedBytes());
+    }
+
+    @Test
+    void rejectCorruptedDownload() {
+        byte[] content = "test apk content".getBytes(StandardCharsets.UTF_8);
+        AttachmentCache attachmentCache = createCache(mockStorage("corrupted".getBytes(StandardCharsets.UTF_8)), 1);
+
+        Assertions.assertThrows(RuntimeException.class, () -> attachmentCache.load(attachment(content), new File(tempDir, "task1/app.apk")));
+        Assertions.assertFalse(new File(tempDir, "task1/app.apk").exists(), "Corrupted download should not be copied to the target");
+    }
+}
@@ -18,6 +18,7 @@ import org.springframework.security.core.annotation.CurrentSecurityContext;
 import org.springframework.util.AntPathMatcher;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
@@ -49,17 +50,9 @@ public class StorageController {
     public Result uploadFile(HttpServletRequest request,
                              @RequestParam("file") MultipartFile uploadedFile,
                              @RequestParam("fileUri") String fileUri) {
-        String storageToken = request.getHeader("Authorization");
-        if (storageToken != null) {
-            storageToken = storageToken.replaceAll("Bearer ", "");
-        } else {
-            return Result.error(HttpStatus.UNAUTHORIZED.value(), "Invalid visit with no auth code");
-        }
-        if (!storageTokenManageService.validateAccessToken(storageToken)) {
-            return Result.error(HttpStatus.UNAUTHORIZED.value(), "Unauthorized, error access token for storage actions.");
-        }
-        if (!LogUtils.isLegalStr(fileUri, Const.RegexString.STORAGE_FILE_REL_PATH, false)) {
-            return Result.error(HttpStatus.BAD_REQUEST.value(), "Invalid file path, file name should not include ';'!");
+        Result<Object> invalidResult = validateStorageRequest(request, fileUri);
+        if (invalidResult != null) {
+            return invalidResult;
         }
 
         try {
@@ -77,22 +70,80 @@ public class StorageController {
     }
 
 
-    // used by center/agent
-    @PostMapping(Const.LocalStorageURL.CENTER_LOCAL_STORAGE_DOWNLOAD)
-    public void postDownloadFile(HttpServletRequest request,
-                                 HttpServletResponse response,
-                                 @RequestParam("fileUri") String fileUri) {
+    /**
+     * Write the request body straight to the file, without buffering it as a multipart file first.
+     */
+    @PutMapping(Const.LocalStorageURL.CENTER_LOCAL_STORAGE_STREAM_UPLOAD)
+    public Result streamUploadFile(HttpServletRequest request,
+                                   @RequestParam("fileUri") String fileUri,
+                                   @RequestParam(value = "md5", required = false) String md5) {
+        Result<Object> invalidResult = validateStorageRequest(request, fileUri);
+        if (invalidResult != null) {
+            return invalidResult;
+        }
+
+        try {
+            LocalStorageIOUtil.copyUploadedStreamToFile(request.getInputStream(), fileUri, md5);
+        } catch (HydraLabRuntimeException e) {
+            logger.error(e.getMessage(), e);
+            return Result.error(e.getCode(), e.getMessage());
+        } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+            return Result.error(HttpStatus.INTERNAL_SERVER_ERROR.value(), e.getMessage());
+        }
+
+        return Result.ok(fileUri);
+    }
+
+    /**
+     * Whether the file is already stored with the given MD5, for the uploader to skip sending the same content again.
+     */
+    @GetMapping(Const.LocalStorageURL.CENTER_LOCAL_STORAGE_UPLOAD_CHECK)
+    public Result checkUploadedFile(HttpServletRequest request,
+                                    @RequestParam("fileUri") String fileUri,
+                                    @RequestParam("md5") String md5) {
+        Result<Object> invalidResult = validateStorageRequest(request, fileUri);
+        if (invalidResult != null) {
+            return invalidResult;
+        }
+
+        try {
+            return Result.ok(LocalStorageIOUtil.isFileStored(fileUri, md5));
+        } catch (HydraLabRuntimeException e) {
+            logger.error(e.getMessage(), e);
+            return Result.error(e.getCode(), e.getMessage());
+        }
+    }
+
+    /**
+     * Check the storage access token and the file path of the request of center/agent.
+     *
+     * @return the error result of the invalid request, or null if it's valid
+     */
+    private Result<Object> validateStorageRequest(HttpServletRequest request, String fileUri) {
         String storageToken = request.getHeader("Authorization");
         if (storageToken != null) {
             storageToken = storageToken.replaceAll("Bearer ", "");
         } else {
-            throw new HydraLabRuntimeException(HttpStatus.UNAUTHORIZED.value(), "Invalid visit with no auth code");
+            return Result.error(HttpStatus.UNAUTHORIZED.value(), "Invalid visit with no auth code");
         }
         if (!storageTokenManageService.validateAccessToken(storageToken)) {
-            throw new HydraLabRuntimeException(HttpStatus.UNAUTHORIZED.value(), "Unauthorized, error access token for storage actions.");
+            return Result.error(HttpStatus.UNAUTHORIZED.value(), "Unauthorized, error access token for storage actions.");
         }
         if (!LogUtils.isLegalStr(fileUri, Const.RegexString.STORAGE_FILE_REL_PATH, false)) {
-            throw new HydraLabRuntimeException(HttpStatus.BAD_REQUEST.value(), "Invalid file path, file name should not include ';'!");
+            return Result.error(HttpStatus.BAD_REQUEST.value(), "Invalid file path, file name should not include ';'!");
+        }
+        return null;
+    }
+
+    // used by center/agent
+    @PostMapping(Const.LocalStorageURL.CENTER_LOCAL_STORAGE_DOWNLOAD)
+    public void postDownloadFile(HttpServletRequest request,
+                                 HttpServletResponse response,
+                                 @RequestParam("fileUri") String fileUri) {
+        Result<Object> invalidResult = validateStorageRequest(request, fileUri);
+        if (invalidResult != null) {
+            throw new HydraLabRuntimeException(invalidResult.getCode(), invalidResult.getMessage());
         }
 
         Path publicFolder = Paths.get(Const.LocalStorageURL.CENTER_LOCAL_STORAGE_ROOT).normalize().toAbsolutePath();
@@ -106,15 +157,9 @@ public class StorageController {
             throw new HydraLabRuntimeException(HttpStatus.BAD_REQUEST.value(), String.format("File %s not exist!", fileUri));
         }
 
-        response.reset();
-        response.setContentType("application/octet-stream");
-        response.setCharacterEncoding("utf-8");
-        response.setContentLength((int) file.length());
-        response.setHeader("Content-Disposition", "attachment;filename=" + file.getName());
-
-        int resLen;
+        long resLen;
         try {
-            resLen = LocalStorageIOUtil.copyDownloadedStreamToResponse(file, response.getOutputStream());
+            resLen = LocalStorageIOUtil.writeFileToResponse(request, response, file);
         } catch (IOException e) {
             throw new HydraLabRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR.value(), e.getMessage());
         }
@@ -144,15 +189,9 @@ public class StorageController {
             throw new HydraLabRuntimeException(HttpStatus.BAD_REQUEST.value(), String.format("File %s not exist!", fileUri));
         }
 
-        response.reset();
-        response.setContentType("application/octet-stream");
-        response.setCharacterEncoding("utf-8");
-        response.setContentLength((int) file.length());
-        response.setHeader("Content-Disposition", "attachment;filename=" + file.getName());
-
-        int resLen;
+        long resLen;
         try {
-            resLen = LocalStorageIOUtil.copyDownloadedStreamToResponse(file, response.getOutputStream());
+            resLen = LocalStorageIOUtil.writeFileToResponse(request, response, file);
         } catch (IOException e) {
             throw new HydraLabRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR.value(), e.getMessage());
         }
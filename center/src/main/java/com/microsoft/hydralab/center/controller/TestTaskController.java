@@ -342,9 +342,8 @@ public class TestTaskController {
                     return Result.error(HttpStatus.UNAUTHORIZED.value(), "Unauthorized, the TestTask doesn't belong to user's Teams");
                 }
 
+                // the queued tasks waiting on the released devices will be dispatched
                 deviceAgentManagementService.cancelTestTaskById(testId, reason);
-                //run the task saved in queue
-                testTaskService.runTask();
             }
             if (!LogUtils.isLegalStr(testId, Const.RegexString.UUID, false)) {
                 logger.warn("test {} is canceled", testId);// CodeQL [java/log-injection] False Positive: Has verified the string by regular expression
@@ -9,6 +9,7 @@ import com.android.ddmlib.IDevice;
 import com.microsoft.hydralab.center.openai.SuggestionService;
 import com.microsoft.hydralab.center.repository.AgentUserRepository;
 import com.microsoft.hydralab.center.util.MetricUtil;
+import com.microsoft.hydralab.common.codec.MessageCodec;
 import com.microsoft.hydralab.common.entity.agent.AgentFunctionAvailability;
 import com.microsoft.hydralab.common.entity.agent.EnvCapabilityRequirement;
 import com.microsoft.hydralab.common.entity.agent.MobileDevice;
@@ -22,6 +23,7 @@ import com.microsoft.hydralab.common.entity.common.AgentUpdateTask;
 import com.microsoft.hydralab.common.entity.common.AgentUser;
 import com.microsoft.hydralab.common.entity.common.AnalysisTask;
 import com.microsoft.hydralab.common.entity.common.DeviceInfo;
+import com.microsoft.hydralab.common.entity.common.DeviceListDelta;
 import com.microsoft.hydralab.common.entity.common.Message;
 import com.microsoft.hydralab.common.entity.common.StatisticData;
 import com.microsoft.hydralab.common.entity.common.StorageFileInfo;
@@ -29,6 +31,7 @@ import com.microsoft.hydralab.common.entity.common.Task;
 import com.microsoft.hydralab.common.entity.common.TestRun;
 import com.microsoft.hydralab.common.entity.common.TestTask;
 import com.microsoft.hydralab.common.entity.common.TestTaskSpec;
+import com.microsoft.hydralab.common.entity.common.TestUnitUpdate;
 import com.microsoft.hydralab.common.file.StorageServiceClientProxy;
 import com.microsoft.hydralab.common.management.device.DeviceType;
 import com.microsoft.hydralab.common.repository.StatisticDataRepository;
@@ -42,6 +45,7 @@ import com.microsoft.hydralab.t2c.runner.DriverInfo;
 import com.microsoft.hydralab.t2c.runner.T2CJsonParser;
 import com.microsoft.hydralab.t2c.runner.TestInfo;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
@@ -59,10 +63,13 @@ import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -151,7 +158,7 @@ public class DeviceAgentManagementService {
         }
 
         for (AgentSessionInfo value : agentSessionMap.values()) {
-            requestList(value.session);
+            requestList(value.session, true);
         }
     }
 
@@ -163,6 +170,7 @@ public class DeviceAgentManagementService {
     }
 
     private void sendAgentMetadata(Session session, AgentUser agentUser, String signalName) {
+        AgentSessionInfo agentSessionInfo = agentSessionMap.get(session.getId());
         agentUser.setBatteryStrategy(AgentUser.BatteryStrategy.valueOf(batteryStrategy));
         AgentMetadata data = new AgentMetadata();
         data.setStorageType(storageType);
@@ -177,6 +185,16 @@ public class DeviceAgentManagementService {
         Message message = new Message();
         message.setPath(signalName);
         message.setBody(data);
+        if (agentSessionInfo != null) {
+            SerializeUtil.advertiseCodecVersion(message, agentSessionInfo.codecVersion);
+        }
+        // agents knowing the delta protocol switch to it once center advertises the support
+        if (message.getParams() == null) {
+            message.setParams(new HashMap<>());
+        }
+        message.getParams().put(Const.Param.DEVICE_LIST_DELTA, true);
+        message.getParams().put(Const.Param.TEST_UNIT_UPDATE, true);
+        message.getParams().put(Const.Param.TEST_TASK_DEVICE_RELEASE, true);
         sendMessageToSession(session, message);
     }
 
@@ -204,7 +222,11 @@ public class DeviceAgentManagementService {
             return;
         }
 
-        agentSessionMap.put(session.getId(), new AgentSessionInfo(session, agentUser));
+        AgentSessionInfo agentSessionInfo = new AgentSessionInfo(session, agentUser);
+        // agents advertising no codec version only understand the legacy format
+        agentSessionInfo.codecVersion = Math.min(Math.max(SerializeUtil.getAdvertisedCodecVersion(message), MessageCodec.VERSION_JSON_GZIP),
+                SerializeUtil.LATEST_CODEC_VERSION);
+        agentSessionMap.put(session.getId(), agentSessionInfo);
         metricUtil.registerAgentAliveStatusMetric(agentUser);
 
         log.info("Session {} is saved to map as registered agent, associated agent {}", session.getId(), message.getBody());
@@ -251,6 +273,11 @@ public class DeviceAgentManagementService {
                     updateAgentDeviceGroup(savedSession, latestDeviceInfos);
                 }
                 break;
+            case Const.Path.DEVICE_LIST_DELTA:
+                if (message.getBody() instanceof DeviceListDelta) {
+                    applyDeviceListDelta(savedSession, (DeviceListDelta) message.getBody());
+                }
+                break;
             case Const.Path.DEVICE_UPDATE:
                 if (message.getBody() instanceof DeviceInfo) {
                     DeviceInfo device = (DeviceInfo) message.getBody();
@@ -289,28 +316,21 @@ public class DeviceAgentManagementService {
                 break;
             case Const.Path.TEST_TASK_UPDATE:
                 if (message.getBody() instanceof Task) {
-                    Task task = (Task) message.getBody();
-                    boolean isFinished = task.getStatus().equals(Task.TaskStatus.FINISHED);
-                    //after the task finishing, update the status of device used
-                    if (isFinished) {
-                        List<TestRun> deviceTestResults = task.getTaskRunList();
-                        for (TestRun deviceTestResult : deviceTestResults) {
-                            if (task instanceof TestTask && ((TestTask) task).isEnablePerformanceSuggestion()) {
-                                suggestionService.performanceAnalyze(deviceTestResult);
-                            }
-                            String[] identifiers = deviceTestResult.getDeviceSerialNumber().split(",");
-                            for (String identifier : identifiers) {
-                                if (Task.RunnerType.APK_SCANNER.name().equals(task.getRunnerType())) {
-                                    agentDeviceGroups.get(identifier).finishAnalysisTask(task.getRunnerType());
-                                } else {
-                                    updateDeviceStatus(identifier, DeviceInfo.ONLINE, null);
-                                }
-                            }
-                        }
-                        //run the task saved in queue
-                        testTaskService.runTask();
-                    }
-                    testDataService.saveTaskDataFromAgent(task, isFinished, savedSession.agentUser.getId());
+                    boolean isDeviceReleased = message.getParams() != null && Boolean.TRUE.equals(message.getParams().get(Const.Param.TEST_TASK_DEVICE_RELEASE));
+                    updateTestTask((Task) message.getBody(), savedSession.agentUser.getId(), isDeviceReleased);
+                }
+                break;
+            case Const.Path.TEST_TASK_DEVICE_RELEASE:
+                if (message.getBody() instanceof JSONObject) {
+                    // the task is still uploading its results, it's reported finished by a later TEST_TASK_UPDATE
+                    JSONObject data = (JSONObject) message.getBody();
+                    releaseTaskDevices(data.getString(Const.AgentConfig.TASK_ID_PARAM), data.getString(Const.AgentConfig.RUNNER_TYPE_PARAM),
+                            savedSession.agentUser.getId());
+                }
+                break;
+            case Const.Path.TEST_UNIT_UPDATE:
+                if (message.getBody() instanceof TestUnitUpdate) {
+                    testDataService.saveTestUnitUpdate((TestUnitUpdate) message.getBody());
                 }
                 break;
             case Const.Path.TEST_TASK_RUN:
@@ -321,14 +341,14 @@ public class DeviceAgentManagementService {
                     Task task = (Task) message.getBody();
                     if (task.getRetryTime() == Const.AgentConfig.RETRY_TIME) {
                         testDataService.saveTaskData(task);
+                        // the task won't be retried, free its devices as a completed task does
+                        releaseTaskDevices(task.getId(), task.getRunnerType(), savedSession.agentUser.getId());
                     } else {
                         TestTaskSpec taskSpec = task.convertToTaskSpec();
                         taskSpec.retryTime++;
                         testTaskService.addTask(taskSpec);
                         log.info("Retry task {} for {} time", task.getId(), taskSpec.retryTime);
                         cancelTestTaskById(task.getId(), "Error happened:" + task.getErrorMsg() + ". Will cancel the task and retry.");
-                        //run the task saved in queue
-                        testTaskService.runTask();
                     }
                 }
                 break;
@@ -340,6 +360,36 @@ public class DeviceAgentManagementService {
         }
     }
 
+    /**
+     * @param isDeviceReleased whether the devices of the task were already released by TEST_TASK_DEVICE_RELEASE
+     */
+    private void updateTestTask(Task task, String agentId, boolean isDeviceReleased) {
+        boolean isFinished = task.getStatus().equals(Task.TaskStatus.FINISHED);
+        //after the task finishing, update the status of device used
+        if (isFinished) {
+            List<TestRun> deviceTestResults = task.getTaskRunList();
+            for (TestRun deviceTestResult : deviceTestResults) {
+                if (task instanceof TestTask && ((TestTask) task).isEnablePerformanceSuggestion()) {
+                    suggestionService.performanceAnalyze(deviceTestResult);
+                }
+                if (isDeviceReleased) {
+                    continue;
+                }
+                String[] identifiers = deviceTestResult.getDeviceSerialNumber().split(",");
+                for (String identifier : identifiers) {
+                    if (Task.RunnerType.APK_SCANNER.name().equals(task.getRunnerType())) {
+                        agentDeviceGroups.get(identifier).finishAnalysisTask(task.getRunnerType());
+                        testTaskService.requestAnalysisDispatch();
+                    } else {
+                        // the queued tasks waiting on this device will be dispatched
+                        updateDeviceStatus(identifier, DeviceInfo.ONLINE, null);
+                    }
+                }
+            }
+        }
+        testDataService.saveTaskDataFromAgent(task, isFinished, agentId);
+    }
+
     public void updateAccessInfo(AccessInfo accessInfo) {
         if (accessInfo != null) {
             accessInfoMap.put(accessInfo.getName(), accessInfo);
@@ -357,6 +407,7 @@ public class DeviceAgentManagementService {
         for (String agentId : agentIds) {
             if (Task.RunnerType.APK_SCANNER.name().equals(task.getRunnerType())) {
                 agentDeviceGroups.get(agentId).finishAnalysisTask(task.getRunnerType());
+                testTaskService.requestAnalysisDispatch();
             }
 
             AgentSessionInfo agentSession = getAgentSessionInfoByAgentId(agentId);
@@ -364,15 +415,34 @@ public class DeviceAgentManagementService {
                 continue;
             }
             sendMessageToSession(agentSession.session, message);
-            for (DeviceInfo deviceInfo : agentDeviceGroups.get(agentId).getDevices()) {
-                if (taskId.equals(deviceInfo.getRunningTaskId())) {
-                    deviceInfo.setStatus(DeviceInfo.ONLINE);
-                    deviceInfo.setRunningTaskId(null);
+            releaseTaskDevices(taskId, null, agentId);
+        }
+    }
 
-                    DeviceInfo device = deviceListMap.get(deviceInfo.getSerialNum());
+    /**
+     * Set the devices of the agent occupied by the task ONLINE again, or finish the analysis task on the agent, and dispatch the queued tasks waiting on them.
+     */
+    private void releaseTaskDevices(String taskId, String runnerType, String agentId) {
+        AgentDeviceGroup agentDeviceGroup = agentDeviceGroups.get(agentId);
+        if (agentDeviceGroup == null) {
+            return;
+        }
+        if (Task.RunnerType.APK_SCANNER.name().equals(runnerType)) {
+            agentDeviceGroup.finishAnalysisTask(runnerType);
+            testTaskService.requestAnalysisDispatch();
+            return;
+        }
+        for (DeviceInfo deviceInfo : agentDeviceGroup.getDevices()) {
+            if (taskId.equals(deviceInfo.getRunningTaskId())) {
+                deviceInfo.setStatus(DeviceInfo.ONLINE);
+                deviceInfo.setRunningTaskId(null);
+
+                DeviceInfo device = deviceListMap.get(deviceInfo.getSerialNum());
+                if (device != null) {
                     device.setStatus(DeviceInfo.ONLINE);
-                    deviceInfo.setRunningTaskId(null);
+                    device.setRunningTaskId(null);
                 }
+                testTaskService.requestDispatch(deviceInfo.getSerialNum());
             }
         }
     }
@@ -408,11 +478,71 @@ public class DeviceAgentManagementService {
             agentDeviceGroups.put(savedSession.agentUser.getId(), agentDeviceGroup);
             log.info("Adding info of new agent: {}, device SN: {}", agentDeviceGroup.getAgentName(),
                     latestDeviceInfos.stream().map(MobileDevice::getSerialNum).collect(Collectors.joining(",")));
+            testTaskService.requestAnalysisDispatch();
         }
         agentDeviceGroup.setDevices(new ArrayList<>(latestDeviceInfos));
     }
 
+    private void applyDeviceListDelta(AgentSessionInfo savedSession, DeviceListDelta delta) {
+        String agentId = savedSession.agentUser.getId();
+        if (delta.isSnapshot()) {
+            AgentDeviceGroup previousDeviceGroup = agentDeviceGroups.get(agentId);
+            if (previousDeviceGroup != null && previousDeviceGroup.getDevices() != null) {
+                Set<String> removedSerials = previousDeviceGroup.getDevices().stream().map(DeviceInfo::getSerialNum).collect(Collectors.toSet());
+                delta.getChangedDevices().forEach(device -> removedSerials.remove(device.getSerialNum()));
+                removeAgentDevices(removedSerials, agentId);
+            }
+            updateAgentDeviceGroup(savedSession, delta.getChangedDevices());
+            savedSession.deviceListSequence = delta.getSequence();
+            savedSession.deviceListResyncRequested = false;
+            return;
+        }
+        AgentDeviceGroup agentDeviceGroup = agentDeviceGroups.get(agentId);
+        if (agentDeviceGroup == null || savedSession.deviceListSequence < 0 || delta.getSequence() != savedSession.deviceListSequence + 1) {
+            // a delta is lost or arrives before any snapshot, the device list of this agent can only be rebuilt by a snapshot
+            savedSession.deviceListSequence = -1;
+            if (!savedSession.deviceListResyncRequested) {
+                log.warn("Device list delta {} of agent {} is out of sequence, request a snapshot", delta.getSequence(), agentId);
+                savedSession.deviceListResyncRequested = true;
+                requestList(savedSession.session, false);
+            }
+            return;
+        }
+        savedSession.deviceListSequence = delta.getSequence();
+
+        updateDeviceGroup(delta.getChangedDevices(), agentId);
+        Map<String, DeviceInfo> agentDevices = new LinkedHashMap<>();
+        for (DeviceInfo deviceInfo : agentDeviceGroup.getDevices()) {
+            agentDevices.put(deviceInfo.getSerialNum(), deviceInfo);
+        }
+        for (String removedSerial : delta.getRemovedSerials()) {
+            agentDevices.remove(removedSerial);
+        }
+        for (DeviceInfo changedDevice : delta.getChangedDevices()) {
+            agentDevices.put(changedDevice.getSerialNum(), changedDevice);
+        }
+        List<DeviceInfo> latestDeviceInfos = new ArrayList<>(agentDevices.values());
+        latestDeviceInfos.sort(Comparator.comparing(d -> d.getName() + d.getSerialNum()));
+        agentDeviceGroup.setDevices(latestDeviceInfos);
+        removeAgentDevices(delta.getRemovedSerials(), agentId);
+    }
+
+    /**
+     * Remove the devices disconnected from the agent from the device and group maps, unless they are reconnected to another agent meanwhile.
+     */
+    private void removeAgentDevices(Collection<String> serials, String agentId) {
+        List<DeviceInfo> removedDevices = new ArrayList<>();
+        for (String serial : serials) {
+            DeviceInfo device = deviceListMap.get(serial);
+            if (device != null && agentId.equals(device.getAgentId())) {
+                removedDevices.add(device);
+            }
+        }
+        removeDevices(removedDevices);
+    }
+
     public void updateDeviceGroup(List<DeviceInfo> agentDeviceInfos, String agentId) {
+        Set<String> becomeOnlineSerials = new HashSet<>();
         for (DeviceInfo agentDeviceInfo : agentDeviceInfos) {
             //init agent info
             agentDeviceInfo.setAgentId(agentId);
@@ -425,6 +555,9 @@ public class DeviceAgentManagementService {
                 log.warn("Test on the device is canceled, status of device in AGENT should be reset to ONLINE, otherwise TESTING would never be covered by agent");
                 agentDeviceInfo.setStatus(DeviceInfo.ONLINE);
             }
+            if (agentDeviceInfo.isOnline() && (centerDevice == null || !centerDevice.isOnline())) {
+                becomeOnlineSerials.add(agentDeviceInfo.getSerialNum());
+            }
 
             deviceListMap.put(agentDeviceInfo.getSerialNum(), agentDeviceInfo);
 
@@ -434,6 +567,7 @@ public class DeviceAgentManagementService {
                 addDeviceToGroup(group.getGroupName(), group.getDeviceSerial());
             }
         }
+        testTaskService.requestDispatch(becomeOnlineSerials);
     }
 
     //update Device Status : start task,complete task,device offline,device online
@@ -451,7 +585,9 @@ public class DeviceAgentManagementService {
                 break;
             }
         }
-
+        if (DeviceInfo.ONLINE.equals(status)) {
+            testTaskService.requestDispatch(serialNum);
+        }
     }
 
     //query devices by groupName
@@ -572,9 +708,49 @@ public class DeviceAgentManagementService {
         sendMessageToSession(agentSession.session, message);
     }
 
-    private void requestList(Session session) {
+    /**
+     * Ask the agents of the targeted devices to cache the attachments of a queued task.
+     */
+    public void requestAttachmentPrefetch(TestTaskSpec testTaskSpec) {
+        if (Task.RunnerType.APK_SCANNER.name().equals(testTaskSpec.runningType) || testTaskSpec.deviceIdentifier == null
+                || testTaskSpec.testFileSet == null || testTaskSpec.testFileSet.getAttachments().isEmpty()) {
+            return;
+        }
+        Set<String> agentIds = new HashSet<>();
+        for (String identifier : testTaskSpec.deviceIdentifier.split(",")) {
+            Set<String> serials = identifier.startsWith(Const.DeviceGroup.GROUP_NAME_PREFIX) ? queryDeviceByGroup(identifier) : Collections.singleton(identifier);
+            for (String serial : serials) {
+                DeviceInfo deviceInfo = deviceListMap.get(serial);
+                if (deviceInfo != null && deviceInfo.getAgentId() != null) {
+                    agentIds.add(deviceInfo.getAgentId());
+                }
+            }
+        }
+
+        Message message = new Message();
+        message.setPath(Const.Path.TEST_TASK_PREFETCH);
+        message.setBody(testTaskSpec.testFileSet);
+        for (String agentId : agentIds) {
+            AgentSessionInfo agentSession = getAgentSessionInfoByAgentId(agentId);
+            if (agentSession == null || agentSession.session == null) {
+                continue;
+            }
+            try {
+                sendMessageToSession(agentSession.session, message);
+            } catch (Exception e) {
+                log.warn("Failed to request attachment prefetch of test task {} on agent {}", testTaskSpec.testTaskId, agentId, e);
+            }
+        }
+    }
+
+    private void requestList(Session session, boolean viewed) {
         Message message = new Message();
         message.setPath(Const.Path.DEVICE_LIST);
+        if (viewed) {
+            // a user is looking at the devices, agents refresh the screenshots more often for a while
+            message.setParams(new HashMap<>());
+            message.getParams().put(Const.Param.DEVICE_LIST_VIEWED, true);
+        }
         sendMessageToSession(session, message);
     }
 
@@ -636,7 +812,9 @@ public class DeviceAgentManagementService {
 
     private void sendMessageToSession(Session toSession, Message message) {
         try {
-            byte[] array = SerializeUtil.messageToByteArr(message);
+            AgentSessionInfo agentSessionInfo = agentSessionMap.get(toSession.getId());
+            int codecVersion = agentSessionInfo == null ? MessageCodec.VERSION_JSON_GZIP : agentSessionInfo.codecVersion;
+            byte[] array = SerializeUtil.messageToByteArr(message, codecVersion);
             log.info("sendMessageToSession[{}], path: {}, message data len: {}", toSession.getId(), message.getPath(), array.length);
             toSession.getBasicRemote().sendBinary(ByteBuffer.wrap(array));
         } catch (IOException e) {
@@ -727,7 +905,7 @@ public class DeviceAgentManagementService {
                 List<EnvCapabilityRequirement> requirements = function.getEnvCapabilityRequirements();
                 boolean isMatch = true;
                 for (AnalysisTask.AnalysisConfig config : configs) {
-                    if ("apkcanary".equals(config.getExecutor())) {
+                    if (AnalysisTask.IN_PROCESS_EXECUTORS.contains(config.getExecutor())) {
                         continue;
                     }
                     isMatch = requirements.stream().anyMatch(requirement -> requirement.getName().equals(config.getExecutor()) && requirement.isReady()) && isMatch;
@@ -935,6 +1113,9 @@ public class DeviceAgentManagementService {
             }
         }
         Assert.isTrue(!isAllOffline, "All Device/Agent Offline!");
+        if (testTaskSpec.enableTestSharding) {
+            prepareTestSharding(testTaskSpec, testAgentDevicesMap);
+        }
         for (String agentId : testAgentDevicesMap.keySet()) {
             AgentSessionInfo agentSessionInfoByAgentId = getAgentSessionInfoByAgentId(agentId);
             List<String> testDeviceSerials = testAgentDevicesMap.get(agentId);
@@ -951,11 +1132,25 @@ public class DeviceAgentManagementService {
             testTaskSpec.groupDevices = groupDevices;
             message.setBody(testTaskSpec);
             sendMessageToSession(agentSessionInfoByAgentId.session, message);
+            testTaskSpec.shardIndexOffset += testDeviceSerials.size();
         }
 
         return result;
     }
 
+    private void prepareTestSharding(TestTaskSpec testTaskSpec, Map<String, List<String>> testAgentDevicesMap) {
+        testTaskSpec.shardCount = testAgentDevicesMap.values().stream().mapToInt(List::size).sum();
+        testTaskSpec.shardIndexOffset = 0;
+        // the classes are not planned upfront when they are taken from a queue
+        if (testTaskSpec.shardCount <= 1 || TestTask.TestScope.CLASS.equals(testTaskSpec.testScope) || testTaskSpec.dynamicTestSharding) {
+            return;
+        }
+        String taskAlias = StringUtils.isBlank(testTaskSpec.testSuiteClass) ? testTaskSpec.pkgName : testTaskSpec.testSuiteClass;
+        testTaskSpec.testClassDurations = testDataService.getTestClassDurations(testTaskSpec.pkgName, taskAlias);
+        log.info("Shard test task {} on {} devices, {} test classes with history", testTaskSpec.testTaskId, testTaskSpec.shardCount,
+                testTaskSpec.testClassDurations.size());
+    }
+
     private JSONObject runTestTaskByDevice(TestTaskSpec testTaskSpec) {
         JSONObject result = new JSONObject();
 
@@ -1122,6 +1317,10 @@ public class DeviceAgentManagementService {
     static class AgentSessionInfo {
         Session session;
         AgentUser agentUser;
+        int codecVersion = MessageCodec.VERSION_JSON_GZIP;
+        // sequence of the last applied device list delta, -1 until a snapshot is received
+        long deviceListSequence = -1;
+        boolean deviceListResyncRequested = false;
 
         public AgentSessionInfo(Session session, AgentUser agentUser) {
             this.session = session;
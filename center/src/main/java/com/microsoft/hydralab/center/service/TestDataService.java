@@ -15,6 +15,7 @@ import com.microsoft.hydralab.common.entity.common.Task;
 import com.microsoft.hydralab.common.entity.common.TaskResult;
 import com.microsoft.hydralab.common.entity.common.TestRun;
 import com.microsoft.hydralab.common.entity.common.TestTask;
+import com.microsoft.hydralab.common.entity.common.TestUnitUpdate;
 import com.microsoft.hydralab.common.repository.AndroidTestUnitRepository;
 import com.microsoft.hydralab.common.repository.KeyValueRepository;
 import com.microsoft.hydralab.common.repository.PerformanceTestResultRepository;
@@ -45,9 +46,12 @@ import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.Root;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 @Service
 @CacheConfig(cacheNames = "taskCache")
@@ -177,7 +181,12 @@ public class TestDataService {
             return;
         }
 
-        oldTestTask.getTaskRunList().addAll(task.getTaskRunList());
+        synchronized (oldTestTask) {
+            // the runs created by the streamed test units are replaced by the reported ones
+            Set<String> reportedRunIds = task.getTaskRunList().stream().map(TestRun::getId).collect(Collectors.toSet());
+            oldTestTask.getTaskRunList().removeIf(testRun -> reportedRunIds.contains(testRun.getId()));
+            oldTestTask.getTaskRunList().addAll(task.getTaskRunList());
+        }
         if (oldTestTask instanceof TestTask) {
             ((TestTask) oldTestTask).setTotalTestCount(((TestTask) oldTestTask).getTotalTestCount() + ((TestTask) task).getTotalTestCount());
             ((TestTask) oldTestTask).setTotalFailCount(((TestTask) oldTestTask).getTotalFailCount() + ((TestTask) task).getTotalFailCount());
@@ -246,10 +255,52 @@ public class TestDataService {
             keyValueRepository.saveCrashStack(deviceTestResult.getCrashStackId(), deviceTestResult.getCrashStack());
         }
         androidTestUnitRepository.saveAll(list);
+        // the units streamed during the run are saved already and left out of the final update
+        for (TestRun deviceTestResult : deviceTestResults) {
+            if (deviceTestResult.getTestUnitList().isEmpty() && deviceTestResult.getTotalCount() > 0) {
+                deviceTestResult.getTestUnitList().addAll(androidTestUnitRepository.findByDeviceTestResultId(deviceTestResult.getId()));
+            }
+        }
         LOGGER.info("All saved {}", task.getId());
         return task;
     }
 
+    /**
+     * Save the test units ended on the agent since its last update, and add them to the cached task to show the progress of the run.
+     */
+    public void saveTestUnitUpdate(TestUnitUpdate testUnitUpdate) {
+        Task task = testDataServiceCache.getTaskDetail(testUnitUpdate.getTestTaskId());
+        if (task == null) {
+            LOGGER.warn("Test task {} of the test unit update is not found", testUnitUpdate.getTestTaskId());
+            return;
+        }
+        List<AndroidTestUnit> testUnits = testUnitUpdate.getTestUnits();
+        TestRun testRun;
+        synchronized (task) {
+            testRun = task.getTaskRunList().stream().filter(run -> run.getId().equals(testUnitUpdate.getTestRunId())).findFirst().orElse(null);
+            if (testRun == null) {
+                testRun = new TestRun();
+                testRun.setId(testUnitUpdate.getTestRunId());
+                testRun.setTestTaskId(testUnitUpdate.getTestTaskId());
+                testRun.setDeviceSerialNumber(testUnitUpdate.getDeviceSerialNumber());
+                testRun.setDeviceName(testUnitUpdate.getDeviceName());
+                task.getTaskRunList().add(testRun);
+            }
+            testRun.setTotalCount(testUnitUpdate.getTotalCount());
+            testRun.setFailCount(testUnitUpdate.getFailCount());
+            testRun.setTestStartTimeMillis(testUnitUpdate.getTestStartTimeMillis());
+            testRun.getTestUnitList().addAll(testUnits);
+        }
+        testRunRepository.save(testRun);
+        androidTestUnitRepository.saveAll(testUnits);
+        // only save failed cases
+        for (AndroidTestUnit androidTestUnit : testUnits) {
+            if (!androidTestUnit.isSuccess()) {
+                keyValueRepository.saveAndroidTestUnit(androidTestUnit);
+            }
+        }
+    }
+
     public TestRun getTestRunWithVideoInfo(String dttId) {
         TestRun testRun = testRunRepository.getOne(dttId);
         JSONArray deviceTestResInfo = keyValueRepository.getDeviceTestResInfo(dttId);
@@ -259,6 +310,31 @@ public class TestDataService {
         return testRun;
     }
 
+    /**
+     * Duration of each test class in the last finished run of the same suite, averaged over the devices which ran the class.
+     *
+     * @return historical duration in millis <testClass, duration>, empty if the suite has not finished before
+     */
+    public Map<String, Long> getTestClassDurations(String pkgName, String taskAlias) {
+        Optional<Task> lastTask = taskRepository.findFirstByPkgNameAndTaskAliasAndStatusOrderByStartDateDesc(pkgName, taskAlias, Task.TaskStatus.FINISHED);
+        if (lastTask.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        // save duration of the class on each device <testClass, <testRunId, duration>>
+        Map<String, Map<String, Long>> classRunDurations = new HashMap<>();
+        for (AndroidTestUnit testUnit : androidTestUnitRepository.findByTestTaskId(lastTask.get().getId())) {
+            if (testUnit.getTestedClass() == null || testUnit.getEndTimeMillis() < testUnit.getStartTimeMillis()) {
+                continue;
+            }
+            classRunDurations.computeIfAbsent(testUnit.getTestedClass(), testClass -> new HashMap<>())
+                    .merge(testUnit.getDeviceTestResultId(), testUnit.getEndTimeMillis() - testUnit.getStartTimeMillis(), Long::sum);
+        }
+        Map<String, Long> classDurations = new HashMap<>();
+        classRunDurations.forEach((testClass, runDurations) ->
+                classDurations.put(testClass, runDurations.values().stream().mapToLong(Long::longValue).sum() / runDurations.size()));
+        return classDurations;
+    }
+
     public TestRun getTestRunByCrashId(String crashId) {
         return testRunRepository.findByCrashStackId(crashId).orElse(null);
     }
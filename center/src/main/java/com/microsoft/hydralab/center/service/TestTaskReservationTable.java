@@ -0,0 +1,194 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.center.service;
+
+import com.microsoft.hydralab.common.entity.common.Task;
+import com.microsoft.hydralab.common.entity.common.TestTaskSpec;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Index of the queued test tasks by the device serials / group names they will occupy.
+ * Keeps the queue order, so that queue position, reservation and cancel lookups don't need to scan or copy the queue.
+ * Not thread safe, callers should hold the queue lock.
+ */
+class TestTaskReservationTable {
+    static final String ANALYSIS_RESERVATION_KEY = Task.RunnerType.APK_SCANNER.name();
+    private static final int INITIAL_CAPACITY = 256;
+    // save queued task in queue order <testTaskId, queuedTask>
+    private final LinkedHashMap<String, QueuedTask> queuedTaskMap = new LinkedHashMap<>();
+    // save reservation <deviceSerial/groupName, queuedTasks in queue order>
+    private final Map<String, TreeSet<QueuedTask>> reservationMap = new HashMap<>();
+    // Fenwick tree over queue sequence numbers, to count the tasks queued before a given one
+    private int[] positionTree = new int[INITIAL_CAPACITY + 1];
+    private int nextSequence = 0;
+
+    QueuedTask add(TestTaskSpec testTaskSpec) {
+        // a task queued again moves to the end of the queue, the map would keep its old position otherwise
+        QueuedTask previous = queuedTaskMap.remove(testTaskSpec.testTaskId);
+        if (previous != null) {
+            removeReservation(previous);
+        }
+        if (nextSequence >= positionTree.length - 1) {
+            compact();
+        }
+        QueuedTask queuedTask = new QueuedTask(testTaskSpec, nextSequence++, System.currentTimeMillis());
+        queuedTaskMap.put(testTaskSpec.testTaskId, queuedTask);
+        updatePosition(queuedTask.sequence, 1);
+        for (String key : queuedTask.reservationKeys) {
+            reservationMap.computeIfAbsent(key, k -> new TreeSet<>()).add(queuedTask);
+        }
+        return queuedTask;
+    }
+
+    QueuedTask remove(String testTaskId) {
+        QueuedTask queuedTask = queuedTaskMap.remove(testTaskId);
+        if (queuedTask == null) {
+            return null;
+        }
+        removeReservation(queuedTask);
+        if (queuedTaskMap.isEmpty()) {
+            // rebase the sequence numbers as soon as the queue is drained
+            Arrays.fill(positionTree, 0);
+            nextSequence = 0;
+        }
+        return queuedTask;
+    }
+
+    QueuedTask get(String testTaskId) {
+        return queuedTaskMap.get(testTaskId);
+    }
+
+    /**
+     * @return 1-based position of the task in the queue, -1 if the task is not queued
+     */
+    int getPosition(String testTaskId) {
+        QueuedTask queuedTask = queuedTaskMap.get(testTaskId);
+        if (queuedTask == null) {
+            return -1;
+        }
+        int position = 0;
+        for (int i = queuedTask.sequence + 1; i > 0; i -= i & -i) {
+            position += positionTree[i];
+        }
+        return position;
+    }
+
+    /**
+     * @return the first queued task in queue order which reserves any of the identifiers, null if all of them are free
+     */
+    QueuedTask findFirstReservation(Collection<String> identifiers) {
+        QueuedTask first = null;
+        for (String identifier : identifiers) {
+            TreeSet<QueuedTask> queuedTasks = reservationMap.get(identifier);
+            if (queuedTasks != null && (first == null || queuedTasks.first().compareTo(first) < 0)) {
+                first = queuedTasks.first();
+            }
+        }
+        return first;
+    }
+
+    TreeSet<QueuedTask> getReservations(Collection<String> identifiers) {
+        TreeSet<QueuedTask> queuedTasks = new TreeSet<>();
+        for (String identifier : identifiers) {
+            TreeSet<QueuedTask> reservations = reservationMap.get(identifier);
+            if (reservations != null) {
+                queuedTasks.addAll(reservations);
+            }
+        }
+        return queuedTasks;
+    }
+
+    List<QueuedTask> getQueuedTasks() {
+        return new ArrayList<>(queuedTaskMap.values());
+    }
+
+    List<TestTaskSpec> getQueuedTaskSpecs() {
+        List<TestTaskSpec> testTaskSpecs = new ArrayList<>(queuedTaskMap.size());
+        for (QueuedTask queuedTask : queuedTaskMap.values()) {
+            testTaskSpecs.add(queuedTask.testTaskSpec);
+        }
+        return testTaskSpecs;
+    }
+
+    int size() {
+        return queuedTaskMap.size();
+    }
+
+    boolean isEmpty() {
+        return queuedTaskMap.isEmpty();
+    }
+
+    private void removeReservation(QueuedTask queuedTask) {
+        updatePosition(queuedTask.sequence, -1);
+        for (String key : queuedTask.reservationKeys) {
+            TreeSet<QueuedTask> queuedTasks = reservationMap.get(key);
+            if (queuedTasks == null) {
+                continue;
+            }
+            queuedTasks.remove(queuedTask);
+            if (queuedTasks.isEmpty()) {
+                reservationMap.remove(key);
+            }
+        }
+    }
+
+    private void updatePosition(int sequence, int delta) {
+        for (int i = sequence + 1; i < positionTree.length; i += i & -i) {
+            positionTree[i] += delta;
+        }
+    }
+
+    /**
+     * Renumber the queued tasks from 0 in queue order, and grow the tree if the queue itself is large.
+     * The relative order is kept, so the reservation sets stay sorted.
+     */
+    private void compact() {
+        int capacity = positionTree.length - 1;
+        while (capacity < queuedTaskMap.size() * 2) {
+            capacity *= 2;
+        }
+        positionTree = new int[capacity + 1];
+        nextSequence = 0;
+        for (QueuedTask queuedTask : queuedTaskMap.values()) {
+            queuedTask.sequence = nextSequence++;
+            updatePosition(queuedTask.sequence, 1);
+        }
+    }
+
+    static class QueuedTask implements Comparable<QueuedTask> {
+        final TestTaskSpec testTaskSpec;
+        final long enqueueTime;
+        // identifiers this task will occupy once dispatched
+        final Set<String> reservationKeys = new HashSet<>();
+        int sequence;
+        boolean prefetchRequested = false;
+
+        QueuedTask(TestTaskSpec testTaskSpec, int sequence, long enqueueTime) {
+            this.testTaskSpec = testTaskSpec;
+            this.sequence = sequence;
+            this.enqueueTime = enqueueTime;
+            if (Task.RunnerType.APK_SCANNER.name().equals(testTaskSpec.runningType)) {
+                reservationKeys.add(ANALYSIS_RESERVATION_KEY);
+            } else if (testTaskSpec.deviceIdentifier != null) {
+                reservationKeys.addAll(Arrays.asList(testTaskSpec.deviceIdentifier.split(",")));
+            }
+        }
+
+        @Override
+        public int compareTo(@NotNull QueuedTask o) {
+            return Integer.compare(sequence, o.sequence);
+        }
+    }
+}
@@ -4,14 +4,18 @@
 package com.microsoft.hydralab.center.service;
 
 import com.alibaba.fastjson.JSONObject;
+import com.microsoft.hydralab.center.service.TestTaskReservationTable.QueuedTask;
+import com.microsoft.hydralab.center.util.MetricUtil;
 import com.microsoft.hydralab.common.entity.center.DeviceGroup;
 import com.microsoft.hydralab.common.entity.center.TestTaskQueuedInfo;
 import com.microsoft.hydralab.common.entity.common.AgentUser;
 import com.microsoft.hydralab.common.entity.common.DeviceInfo;
 import com.microsoft.hydralab.common.entity.common.Task;
 import com.microsoft.hydralab.common.entity.common.TestTaskSpec;
+import com.microsoft.hydralab.common.exception.handler.ThreadExceptionHandler;
 import com.microsoft.hydralab.common.util.Const;
 import com.microsoft.hydralab.common.util.HydraLabRuntimeException;
+import com.microsoft.hydralab.common.util.ThreadPoolUtil;
 import lombok.extern.slf4j.Slf4j;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -19,22 +23,35 @@ import org.springframework.http.HttpStatus;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Slf4j
 @Component
 public class TestTaskService {
-    private static volatile AtomicBoolean isRunning = new AtomicBoolean(false);
     private final Logger logger = LoggerFactory.getLogger(TestTaskService.class);
-    private final Queue<TestTaskSpec> taskQueue = new LinkedList<>();
     // cannot use multiple queues within a map to change this data structure, as DEVICE and TASK has no explicit mapping relation
+    private final TestTaskReservationTable taskQueue = new TestTaskReservationTable();
+    // identifiers whose state changed since the last dispatch round
+    private final Set<String> pendingDispatchIdentifiers = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean fullDispatchRequested = new AtomicBoolean(false);
+    private final AtomicBoolean dispatchScheduled = new AtomicBoolean(false);
+    private final AtomicLong firstPendingDispatchTime = new AtomicLong(0);
+    private final ExecutorService dispatchExecutor =
+            Executors.newSingleThreadExecutor(new ThreadPoolUtil.HydraThreadFactory(new ThreadExceptionHandler(), "TestTaskDispatcher"));
     @Resource
     DeviceAgentManagementService deviceAgentManagementService;
     @Resource
@@ -43,15 +60,37 @@ public class TestTaskService {
     DeviceGroupService deviceGroupService;
     @Resource
     TestDataService testDataService;
+    @Resource
+    MetricUtil metricUtil;
+
+    @PostConstruct
+    public void init() {
+        metricUtil.registerTestTaskQueueSize(this);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        dispatchExecutor.shutdownNow();
+    }
 
     public void addTask(TestTaskSpec task) {
+        QueuedTask queuedTask;
         synchronized (taskQueue) {
-            taskQueue.offer(task);
+            queuedTask = taskQueue.add(task);
         }
+        requestDispatch(queuedTask.reservationKeys);
     }
 
     public Boolean isQueueEmpty() {
-        return taskQueue.isEmpty();
+        synchronized (taskQueue) {
+            return taskQueue.isEmpty();
+        }
+    }
+
+    public int getQueueSize() {
+        synchronized (taskQueue) {
+            return taskQueue.size();
+        }
     }
 
     public Boolean isDeviceFree(String deviceIdentifier) {
@@ -63,88 +102,166 @@ public class TestTaskService {
         if (deviceIdentifier.contains(",")) {
             for (String tempIdentifier : deviceIdentifier.split(",")) {
                 relatedIdentifiers.add(tempIdentifier);
-                relatedIdentifiers.addAll(deviceAgentManagementService.queryGroupByDevice(deviceIdentifier));
+                relatedIdentifiers.addAll(deviceAgentManagementService.queryGroupByDevice(tempIdentifier));
             }
         } else if (deviceIdentifier.startsWith(Const.DeviceGroup.GROUP_NAME_PREFIX)) {
             relatedIdentifiers.addAll(deviceAgentManagementService.queryDeviceByGroup(deviceIdentifier));
         } else {
             relatedIdentifiers.addAll(deviceAgentManagementService.queryGroupByDevice(deviceIdentifier));
         }
+        QueuedTask reservation;
         synchronized (taskQueue) {
-            Queue<TestTaskSpec> taskQueueCopy = new LinkedList<>(taskQueue);
-            while (!taskQueueCopy.isEmpty()) {
-                TestTaskSpec temp = taskQueueCopy.poll();
-                if (relatedIdentifiers.contains(temp.deviceIdentifier)) {
-                    logger.warn("Device " + deviceIdentifier + " is not free, as precedent queued task " + temp.testTaskId + " will occupy this deviceIdentifier as " +
-                            temp.deviceIdentifier);
-                    return false;
-                }
-            }
+            reservation = taskQueue.findFirstReservation(relatedIdentifiers);
+        }
+        if (reservation != null) {
+            logger.warn("Device " + deviceIdentifier + " is not free, as precedent queued task " + reservation.testTaskSpec.testTaskId + " will occupy this deviceIdentifier as " +
+                    reservation.testTaskSpec.deviceIdentifier);
+            return false;
         }
         return true;
     }
 
+    /**
+     * Notify the dispatcher that the given device serials, group names or runner types may be able to take a queued task,
+     * e.g. a device turned ONLINE or an agent finished an analysis task.
+     * Only the queued tasks waiting on these identifiers are re-evaluated.
+     */
+    public void requestDispatch(Collection<String> identifiers) {
+        if (identifiers == null || identifiers.isEmpty()) {
+            return;
+        }
+        pendingDispatchIdentifiers.addAll(identifiers);
+        scheduleDispatch();
+    }
+
+    public void requestDispatch(String identifier) {
+        requestDispatch(Collections.singleton(identifier));
+    }
+
+    public void requestAnalysisDispatch() {
+        requestDispatch(TestTaskReservationTable.ANALYSIS_RESERVATION_KEY);
+    }
+
+    /**
+     * Fallback sweep over the whole queue, in case any status change event got lost.
+     */
     @Scheduled(cron = "0 */3 * * * *")
     public void runTask() {
-        logger.info("Start to run queued test task. the value of isRunning is: " + isRunning.get() + "the size of taskQueue is: " + taskQueue.size());
-        //only run one task at the same time
-        if (isRunning.get()) {
+        logger.info("Request to run all queued test tasks, the size of taskQueue is: " + getQueueSize());
+        fullDispatchRequested.set(true);
+        scheduleDispatch();
+    }
+
+    private void scheduleDispatch() {
+        firstPendingDispatchTime.compareAndSet(0, System.currentTimeMillis());
+        // coalesce bursts of events into a single dispatch round on the dispatcher thread
+        if (dispatchScheduled.compareAndSet(false, true)) {
+            dispatchExecutor.execute(this::dispatchPendingTasks);
+        }
+    }
+
+    private void dispatchPendingTasks() {
+        // reset before draining, so that events arriving during this round schedule another one
+        dispatchScheduled.set(false);
+        long requestTime = firstPendingDispatchTime.getAndSet(0);
+        boolean isFullDispatch = fullDispatchRequested.getAndSet(false);
+        Set<String> identifiers = new HashSet<>();
+        for (Iterator<String> iterator = pendingDispatchIdentifiers.iterator(); iterator.hasNext(); ) {
+            identifiers.add(iterator.next());
+            iterator.remove();
+        }
+        if (!isFullDispatch && identifiers.isEmpty()) {
             return;
         }
-        isRunning.set(true);
-        synchronized (taskQueue) {
-            Iterator<TestTaskSpec> queueIterator = taskQueue.iterator();
-            while (queueIterator.hasNext()) {
-                TestTaskSpec testTaskSpec = queueIterator.next();
-                Task task = Task.RunnerType.valueOf(testTaskSpec.runningType).transferToTask(testTaskSpec);
-                try {
-                    logger.info("Start trying to trigger queued test task: " + testTaskSpec.testTaskId + ", target deviceIdentifier: " + testTaskSpec.deviceIdentifier);
-                    JSONObject result = deviceAgentManagementService.runTestTaskBySpec(testTaskSpec);
-                    String runningDeviceIdentifier = result.getString(Const.Param.TEST_DEVICE_SN);
-                    if (runningDeviceIdentifier == null) {
-                        logger.warn("Trigger test task: " + testTaskSpec.testTaskId + " failed.");
-                    } else {
-                        logger.info("Trigger test task: " + testTaskSpec.testTaskId + " successfully on device: " + runningDeviceIdentifier);
-                        task.setDeviceCount(runningDeviceIdentifier.split(",").length);
-                        testDataService.saveTaskData(task);
-                        queueIterator.remove();
-                    }
-                } catch (Exception e) {
-                    logger.error(e.getMessage(), e);
-                    //the task will be saved in memory if taskSpec is error
-                    task.setStatus(Task.TaskStatus.EXCEPTION);
-                    task.setErrorMsg(e.getMessage());
-                    try{
-                        testDataService.saveTaskData(task);
-                        queueIterator.remove();
-                    }catch (Exception ex) {
-                        logger.error(ex.getMessage(), ex);
-                    }
+
+        // a device becoming available may also unblock tasks queued on the groups it belongs to
+        Set<String> relatedIdentifiers = new HashSet<>(identifiers);
+        if (!isFullDispatch) {
+            for (String identifier : identifiers) {
+                if (!identifier.startsWith(Const.DeviceGroup.GROUP_NAME_PREFIX) && !TestTaskReservationTable.ANALYSIS_RESERVATION_KEY.equals(identifier)) {
+                    relatedIdentifiers.addAll(deviceAgentManagementService.queryGroupByDevice(identifier));
                 }
             }
         }
-        isRunning.set(false);
+
+        Collection<QueuedTask> candidates;
+        synchronized (taskQueue) {
+            candidates = isFullDispatch ? taskQueue.getQueuedTasks() : taskQueue.getReservations(relatedIdentifiers);
+        }
+        if (!candidates.isEmpty()) {
+            logger.info("Start to dispatch {} queued test tasks, full dispatch: {}, changed identifiers: {}", candidates.size(), isFullDispatch, identifiers);
+        }
+        // dispatch without holding the queue lock, so device allocation and agent messages don't block enqueue and queue queries
+        for (QueuedTask candidate : candidates) {
+            if (isStillQueued(candidate)) {
+                dispatchQueuedTask(candidate);
+            }
+        }
+        if (requestTime > 0) {
+            metricUtil.recordTestTaskDispatchLatency(System.currentTimeMillis() - requestTime);
+        }
     }
 
-    public void cancelTask(String testTaskId) {
+    private boolean isStillQueued(QueuedTask queuedTask) {
+        synchronized (taskQueue) {
+            // the task may be cancelled or queued again since the candidates are taken
+            return taskQueue.get(queuedTask.testTaskSpec.testTaskId) == queuedTask;
+        }
+    }
+
+    private void dequeue(QueuedTask queuedTask) {
         synchronized (taskQueue) {
-            Queue<TestTaskSpec> taskQueueCopy = getTestQueueCopy();
-            TestTaskSpec tempTask = null;
-            while (!taskQueueCopy.isEmpty()) {
-                TestTaskSpec temp = taskQueueCopy.poll();
-                if (testTaskId.equals(temp.testTaskId)) {
-                    tempTask = temp;
-                    break;
+            if (taskQueue.get(queuedTask.testTaskSpec.testTaskId) == queuedTask) {
+                taskQueue.remove(queuedTask.testTaskSpec.testTaskId);
+            }
+        }
+    }
+
+    private void dispatchQueuedTask(QueuedTask queuedTask) {
+        TestTaskSpec testTaskSpec = queuedTask.testTaskSpec;
+        Task task = Task.RunnerType.valueOf(testTaskSpec.runningType).transferToTask(testTaskSpec);
+        try {
+            logger.info("Start trying to trigger queued test task: " + testTaskSpec.testTaskId + ", target deviceIdentifier: " + testTaskSpec.deviceIdentifier);
+            JSONObject result = deviceAgentManagementService.runTestTaskBySpec(testTaskSpec);
+            String runningDeviceIdentifier = result.getString(Const.Param.TEST_DEVICE_SN);
+            if (runningDeviceIdentifier == null) {
+                logger.warn("Trigger test task: " + testTaskSpec.testTaskId + " failed.");
+                if (!queuedTask.prefetchRequested) {
+                    // the task stays queued, let the agents download its attachments in the meantime
+                    queuedTask.prefetchRequested = true;
+                    deviceAgentManagementService.requestAttachmentPrefetch(testTaskSpec);
                 }
+            } else {
+                logger.info("Trigger test task: " + testTaskSpec.testTaskId + " successfully on device: " + runningDeviceIdentifier);
+                task.setDeviceCount(runningDeviceIdentifier.split(",").length);
+                testDataService.saveTaskData(task);
+                dequeue(queuedTask);
+                metricUtil.recordTestTaskQueueWaitTime(System.currentTimeMillis() - queuedTask.enqueueTime);
             }
-            if (tempTask != null) {
-                taskQueue.remove(tempTask);
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+            //the task will be saved in memory if taskSpec is error
+            task.setStatus(Task.TaskStatus.EXCEPTION);
+            task.setErrorMsg(e.getMessage());
+            try {
+                testDataService.saveTaskData(task);
+                dequeue(queuedTask);
+            } catch (Exception ex) {
+                logger.error(ex.getMessage(), ex);
             }
         }
     }
 
+    public void cancelTask(String testTaskId) {
+        synchronized (taskQueue) {
+            taskQueue.remove(testTaskId);
+        }
+    }
+
     public LinkedList<TestTaskSpec> getTestQueueCopy() {
-        return new LinkedList<>(taskQueue);
+        synchronized (taskQueue) {
+            return new LinkedList<>(taskQueue.getQueuedTaskSpecs());
+        }
     }
 
     public TestTaskQueuedInfo getTestQueuedInfo(String testTaskId) {
@@ -155,17 +272,13 @@ public class TestTaskService {
         queuedInfo[1] = 0;
         taskQueuedInfo.setQueuedInfo(queuedInfo);
 
-        Queue<TestTaskSpec> taskQueueCopy = getTestQueueCopy();
-        int index = 1;
-        while (!taskQueueCopy.isEmpty()) {
-            TestTaskSpec temp = taskQueueCopy.poll();
-            if (testTaskId.equals(temp.testTaskId)) {
-                queuedInfo[0] = index;
-                queuedInfo[1] = temp.retryTime;
-                taskQueuedInfo.setTestTaskSpec(temp);
-                break;
+        synchronized (taskQueue) {
+            QueuedTask queuedTask = taskQueue.get(testTaskId);
+            if (queuedTask != null) {
+                queuedInfo[0] = taskQueue.getPosition(testTaskId);
+                queuedInfo[1] = queuedTask.testTaskSpec.retryTime;
+                taskQueuedInfo.setTestTaskSpec(queuedTask.testTaskSpec);
             }
-            index++;
         }
         return taskQueuedInfo;
     }
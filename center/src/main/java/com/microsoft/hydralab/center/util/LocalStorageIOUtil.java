@@ -6,18 +6,39 @@ package com.microsoft.hydralab.center.util;
 import com.microsoft.hydralab.common.util.Const;
 import com.microsoft.hydralab.common.util.HydraLabRuntimeException;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRange;
 import org.springframework.http.HttpStatus;
 
-import java.io.BufferedInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 
 /**
  * @author Li Shen
@@ -26,35 +47,233 @@ import java.nio.file.Paths;
 
 @Slf4j
 public final class LocalStorageIOUtil {
+    private static final String SENDFILE_SUPPORT_ATTR = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final int FILE_MD5_CACHE_SIZE = 10000;
+    // save MD5 of stored file <absolutePath, fileMd5> in access order, checked against the length and modified time of the file before use
+    private static final Map<String, FileMd5> FILE_MD5_CACHE = Collections.synchronizedMap(new LinkedHashMap<String, FileMd5>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, FileMd5> eldest) {
+            return size() > FILE_MD5_CACHE_SIZE;
+        }
+    });
+
     private LocalStorageIOUtil() {
     }
 
     public static void copyUploadedStreamToFile(InputStream inputStream, String fileUri) {
-        Path publicFolder = Paths.get(Const.LocalStorageURL.CENTER_LOCAL_STORAGE_ROOT).normalize().toAbsolutePath();
-        Path filePath = publicFolder.resolve(fileUri).normalize().toAbsolutePath();
-        if (!filePath.startsWith(publicFolder + File.separator)) {
-            throw new HydraLabRuntimeException("Invalid file uri");
-        }
-        File file = new File(Const.LocalStorageURL.CENTER_LOCAL_STORAGE_ROOT + fileUri);
+        copyUploadedStreamToFile(inputStream, fileUri, null);
+    }
+
+    /**
+     * Write the stream to the file of the uri, computing the MD5 of the content on the way.
+     * The content goes to a temp file beside the target and is then moved over it, so a reader never sees a partial file.
+     *
+     * @param expectedMd5 the upload is rejected if the content doesn't match it, not checked if null
+     * @return MD5 of the content
+     */
+    public static String copyUploadedStreamToFile(InputStream inputStream, String fileUri, String expectedMd5) {
+        File file = getStorageFile(fileUri);
         File parentDirFile = new File(file.getParent());
         if (!parentDirFile.exists() && !parentDirFile.mkdirs()) {
             throw new HydraLabRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR.value(), "mkdirs failed!");
         }
 
-        try (FileOutputStream fileOutputStream = new FileOutputStream(file)) {
-            IOUtils.copy(inputStream, fileOutputStream);
+        File tempFile = new File(parentDirFile, file.getName() + "." + UUID.randomUUID() + ".uploading");
+        String md5;
+        try {
+            MessageDigest messageDigest = DigestUtils.getMd5Digest();
+            try (OutputStream fileOutputStream = new FileOutputStream(tempFile)) {
+                IOUtils.copyLarge(new DigestInputStream(inputStream, messageDigest), fileOutputStream, new byte[COPY_BUFFER_SIZE]);
+            }
+            md5 = Hex.encodeHexString(messageDigest.digest());
+            if (expectedMd5 != null && !expectedMd5.equalsIgnoreCase(md5)) {
+                throw new HydraLabRuntimeException(HttpStatus.BAD_REQUEST.value(), "MD5 of the uploaded content is " + md5 + ", expected " + expectedMd5);
+            }
+            try {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
         } catch (IOException e) {
             throw new HydraLabRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR.value(), "upload file failed!");
+        } finally {
+            FileUtils.deleteQuietly(tempFile);
+        }
+        FILE_MD5_CACHE.put(file.getAbsolutePath(), new FileMd5(file.length(), file.lastModified(), md5));
+        return md5;
+    }
+
+    /**
+     * Whether the file of the uri is already stored with the same content, so the upload of it can be skipped.
+     */
+    public static boolean isFileStored(String fileUri, String md5) {
+        File file = getStorageFile(fileUri);
+        if (!file.isFile()) {
+            return false;
+        }
+        long length = file.length();
+        long lastModified = file.lastModified();
+        FileMd5 fileMd5 = FILE_MD5_CACHE.get(file.getAbsolutePath());
+        if (fileMd5 == null || fileMd5.length != length || fileMd5.lastModified != lastModified) {
+            try (InputStream inputStream = new FileInputStream(file)) {
+                fileMd5 = new FileMd5(length, lastModified, DigestUtils.md5Hex(inputStream));
+            } catch (IOException e) {
+                throw new HydraLabRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR.value(), e.getMessage());
+            }
+            FILE_MD5_CACHE.put(file.getAbsolutePath(), fileMd5);
         }
+        return fileMd5.md5.equalsIgnoreCase(md5);
     }
 
-    public static int copyDownloadedStreamToResponse(File file, OutputStream os) {
-        int resLen;
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file))) {
-            resLen = IOUtils.copy(bis, os);
+    private static File getStorageFile(String fileUri) {
+        Path publicFolder = Paths.get(Const.LocalStorageURL.CENTER_LOCAL_STORAGE_ROOT).normalize().toAbsolutePath();
+        Path filePath = publicFolder.resolve(fileUri).normalize().toAbsolutePath();
+        if (!filePath.startsWith(publicFolder + File.separator)) {
+            throw new HydraLabRuntimeException("Invalid file uri");
+        }
+        return new File(Const.LocalStorageURL.CENTER_LOCAL_STORAGE_ROOT + fileUri);
+    }
+
+    /**
+     * Write the file to the response, or only the part asked by a single byte range in the Range header.
+     * The range is ignored if the If-Range validator doesn't match the current file, the whole file is sent instead.
+     * On Tomcat the body is sent with sendfile after the request is handled, otherwise it's copied with FileChannel.transferTo.
+     *
+     * @return length of the response body
+     */
+    public static long writeFileToResponse(HttpServletRequest request, HttpServletResponse response, File file) throws IOException {
+        long fileLength = file.length();
+        long lastModified = file.lastModified();
+        String eTag = getETag(file);
+
+        response.reset();
+        response.setContentType("application/octet-stream");
+        response.setCharacterEncoding("utf-8");
+        response.setHeader("Content-Disposition", "attachment;filename=" + file.getName());
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        response.setHeader(HttpHeaders.ETAG, eTag);
+        response.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+        if (matchesETag(request.getHeader(HttpHeaders.IF_NONE_MATCH), eTag)) {
+            response.setStatus(HttpStatus.NOT_MODIFIED.value());
+            return 0;
+        }
+
+        long start = 0;
+        long length = fileLength;
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        if (rangeHeader != null && isIfRangeMatched(request, eTag, lastModified)) {
+            List<HttpRange> ranges;
+            try {
+                ranges = HttpRange.parseRanges(rangeHeader);
+            } catch (IllegalArgumentException e) {
+                // a malformed Range header is ignored
+                log.warn("Ignore invalid range {}: {}", rangeHeader, e.getMessage());
+                ranges = Collections.emptyList();
+            }
+            // multiple ranges are rarely used by downloaders and players, send the whole file for them
+            if (ranges.size() == 1) {
+                HttpRange range = ranges.get(0);
+                start = range.getRangeStart(fileLength);
+                if (start >= fileLength) {
+                    response.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+                    response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + fileLength);
+                    return 0;
+                }
+                long end = range.getRangeEnd(fileLength);
+                length = end - start + 1;
+                response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + fileLength);
+            }
+        }
+        response.setContentLengthLong(length);
+        if (length == 0 || HttpMethod.HEAD.matches(request.getMethod())) {
+            return 0;
+        }
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT_ATTR))) {
+            request.setAttribute(SENDFILE_FILENAME_ATTR, file.getCanonicalPath());
+            request.setAttribute(SENDFILE_START_ATTR, start);
+            // exclusive
+            request.setAttribute(SENDFILE_END_ATTR, start + length);
+            return length;
+        }
+        return copyFileRangeToStream(file, start, length, response.getOutputStream());
+    }
+
+    /**
+     * Copy length bytes of the file from the start position, without the extra heap buffer of a BufferedInputStream.
+     */
+    public static long copyFileRangeToStream(File file, long start, long length, OutputStream os) {
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // not closed, the stream belongs to the caller
+            WritableByteChannel target = Channels.newChannel(os);
+            long position = start;
+            long end = start + length;
+            while (position < end) {
+                long transferred = fileChannel.transferTo(position, end - position, target);
+                if (transferred <= 0) {
+                    // the file was truncated meanwhile
+                    break;
+                }
+                position += transferred;
+            }
+            return position - start;
         } catch (IOException e) {
             throw new HydraLabRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR.value(), e.getMessage());
         }
-        return resLen;
+    }
+
+    /**
+     * Strong validator of the file content, changes when the file is rewritten.
+     */
+    public static String getETag(File file) {
+        return "\"" + Long.toHexString(file.length()) + "-" + Long.toHexString(file.lastModified()) + "\"";
+    }
+
+    private static boolean matchesETag(String ifNoneMatch, String eTag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if ("*".equals(candidate) || eTag.equals(candidate) || eTag.equals(candidate.replaceFirst("^W/", ""))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isIfRangeMatched(HttpServletRequest request, String eTag, long lastModified) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // If-Range takes a strong comparison, a weak ETag never matches
+            return ifRange.equals(eTag);
+        }
+        long ifRangeTime;
+        try {
+            ifRangeTime = request.getDateHeader(HttpHeaders.IF_RANGE);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        // HTTP date is in seconds
+        return ifRangeTime / 1000 == lastModified / 1000;
+    }
+
+    private static class FileMd5 {
+        private final long length;
+        private final long lastModified;
+        private final String md5;
+
+        FileMd5(long length, long lastModified, String md5) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.md5 = md5;
+        }
     }
 }
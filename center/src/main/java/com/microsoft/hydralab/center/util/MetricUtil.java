@@ -4,6 +4,7 @@
 package com.microsoft.hydralab.center.util;
 
 import com.microsoft.hydralab.center.service.DeviceAgentManagementService;
+import com.microsoft.hydralab.center.service.TestTaskService;
 import com.microsoft.hydralab.common.entity.common.AgentUser;
 import com.microsoft.hydralab.common.util.GlobalConstant;
 import io.micrometer.core.instrument.MeterRegistry;
@@ -13,6 +14,7 @@ import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
 import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
 
 @Service
 @Slf4j
@@ -38,6 +40,22 @@ public class MetricUtil {
         log.info("Metric of device online number has been registered.");
     }
 
+    public void registerTestTaskQueueSize(TestTaskService testTaskService) {
+        meterRegistry.gauge(GlobalConstant.PROMETHEUS_METRIC_TEST_TASK_QUEUE_SIZE,
+                Tags.empty(),
+                testTaskService,
+                TestTaskService::getQueueSize);
+        log.info("Metric of test task queue size has been registered.");
+    }
+
+    public void recordTestTaskQueueWaitTime(long waitTimeMillis) {
+        meterRegistry.timer(GlobalConstant.PROMETHEUS_METRIC_TEST_TASK_QUEUE_WAIT_TIME).record(waitTimeMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void recordTestTaskDispatchLatency(long latencyMillis) {
+        meterRegistry.timer(GlobalConstant.PROMETHEUS_METRIC_TEST_TASK_DISPATCH_LATENCY).record(latencyMillis, TimeUnit.MILLISECONDS);
+    }
+
     public void registerAgentAliveStatusMetric(AgentUser agentUser) {
         if (agentAliveStatusMap.containsKey(agentUser.getId())) {
             updateAgentAliveStatus(agentUser.getId(), GlobalConstant.AgentLiveStatus.ONLINE.getStatus());
@@ -6,13 +6,22 @@ package com.microsoft.hydralab.center.file.local;
 import com.microsoft.hydralab.center.test.BaseTest;
 import com.microsoft.hydralab.center.util.LocalStorageIOUtil;
 import com.microsoft.hydralab.common.util.Const;
+import com.microsoft.hydralab.common.util.HydraLabRuntimeException;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.util.DigestUtils;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 
 /**
  * @author Li Shen
@@ -40,11 +49,68 @@ public class LocalStorageIOTest extends BaseTest {
         File outputFile = new File("src/test/resources/outputStream.ipa");
         FileOutputStream fileOutputStream = new FileOutputStream(outputFile);
 
-        int inputLen = (int) downloadedFile.length();
-        int resLen = LocalStorageIOUtil.copyDownloadedStreamToResponse(downloadedFile, fileOutputStream);
+        long inputLen = downloadedFile.length();
+        long resLen = LocalStorageIOUtil.copyFileRangeToStream(downloadedFile, 0, inputLen, fileOutputStream);
         Assertions.assertEquals(inputLen, resLen, "Download stream failed!");
 
         fileOutputStream.close();
         outputFile.delete();
     }
+
+    @Test
+    public void downloadRange() throws IOException {
+        File downloadedFile = new File(Const.LocalStorageURL.CENTER_LOCAL_STORAGE_ROOT + "test/unit/range.txt");
+        downloadedFile.getParentFile().mkdirs();
+        Files.write(downloadedFile.toPath(), "0123456789".getBytes(StandardCharsets.UTF_8));
+
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api/storage/local/download/test/unit/range.txt");
+        request.addHeader(HttpHeaders.RANGE, "bytes=2-5");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        long resLen = LocalStorageIOUtil.writeFileToResponse(request, response, downloadedFile);
+        Assertions.assertEquals(4, resLen);
+        Assertions.assertEquals(HttpStatus.PARTIAL_CONTENT.value(), response.getStatus());
+        Assertions.assertEquals("bytes 2-5/10", response.getHeader(HttpHeaders.CONTENT_RANGE));
+        Assertions.assertEquals("2345", response.getContentAsString());
+        String eTag = response.getHeader(HttpHeaders.ETAG);
+
+        request = new MockHttpServletRequest("GET", "/api/storage/local/download/test/unit/range.txt");
+        request.addHeader(HttpHeaders.RANGE, "bytes=8-");
+        request.addHeader(HttpHeaders.IF_RANGE, "\"outdated\"");
+        response = new MockHttpServletResponse();
+        LocalStorageIOUtil.writeFileToResponse(request, response, downloadedFile);
+        Assertions.assertEquals(HttpStatus.OK.value(), response.getStatus(), "Range should be ignored when the file changed");
+        Assertions.assertEquals("0123456789", response.getContentAsString());
+
+        request = new MockHttpServletRequest("GET", "/api/storage/local/download/test/unit/range.txt");
+        request.addHeader(HttpHeaders.RANGE, "bytes=8-");
+        request.addHeader(HttpHeaders.IF_RANGE, eTag);
+        response = new MockHttpServletResponse();
+        LocalStorageIOUtil.writeFileToResponse(request, response, downloadedFile);
+        Assertions.assertEquals("89", response.getContentAsString());
+
+        request = new MockHttpServletRequest("GET", "/api/storage/local/download/test/unit/range.txt");
+        request.addHeader(HttpHeaders.RANGE, "bytes=10-");
+        response = new MockHttpServletResponse();
+        LocalStorageIOUtil.writeFileToResponse(request, response, downloadedFile);
+        Assertions.assertEquals(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value(), response.getStatus());
+
+        downloadedFile.delete();
+    }
+
+    @Test
+    public void uploadStreamWithMd5() {
+        byte[] content = "0123456789".getBytes(StandardCharsets.UTF_8);
+        String md5 = DigestUtils.md5DigestAsHex(content);
+        String fileUri = "test/unit/md5.txt";
+
+        Assertions.assertThrows(HydraLabRuntimeException.class,
+                () -> LocalStorageIOUtil.copyUploadedStreamToFile(new ByteArrayInputStream("corrupted".getBytes(StandardCharsets.UTF_8)), fileUri, md5));
+        Assertions.assertFalse(LocalStorageIOUtil.isFileStored(fileUri, md5), "Corrupted upload should not be stored");
+
+        Assertions.assertEquals(md5, LocalStorageIOUtil.copyUploadedStreamToFile(new ByteArrayInputStream(content), fileUri, md5));
+        Assertions.assertTrue(LocalStorageIOUtil.isFileStored(fileUri, md5));
+        Assertions.assertFalse(LocalStorageIOUtil.isFileStored(fileUri, DigestUtils.md5DigestAsHex("other".getBytes(StandardCharsets.UTF_8))));
+
+        new File(Const.LocalStorageURL.CENTER_LOCAL_STORAGE_ROOT + fileUri).delete();
+    }
 }
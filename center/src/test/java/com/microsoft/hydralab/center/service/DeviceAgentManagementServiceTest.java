@@ -1,15 +1,25 @@
 package com.microsoft.hydralab.center.service;
 
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
 import com.microsoft.hydralab.center.repository.AgentUserRepository;
 import com.microsoft.hydralab.center.test.BaseTest;
+import com.microsoft.hydralab.common.entity.agent.AgentFunctionAvailability;
+import com.microsoft.hydralab.common.entity.agent.EnvCapability;
+import com.microsoft.hydralab.common.entity.agent.EnvCapabilityRequirement;
 import com.microsoft.hydralab.common.entity.common.AgentUser;
+import com.microsoft.hydralab.common.entity.common.AnalysisTask;
 import com.microsoft.hydralab.common.entity.common.Message;
+import com.microsoft.hydralab.common.entity.common.Task;
+import com.microsoft.hydralab.common.entity.common.TestTaskSpec;
 import com.microsoft.hydralab.common.file.StorageServiceClientProxy;
 import com.microsoft.hydralab.common.file.impl.local.LocalStorageClientAdapter;
 import com.microsoft.hydralab.common.file.impl.local.LocalStorageProperty;
 import com.microsoft.hydralab.common.util.Const;
 import com.microsoft.hydralab.common.util.SerializeUtil;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
 import org.mockito.Mockito;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.context.ApplicationContext;
@@ -19,6 +29,9 @@ import javax.websocket.RemoteEndpoint;
 import javax.websocket.Session;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 
 import static org.mockito.BDDMockito.given;
@@ -62,4 +75,52 @@ public class DeviceAgentManagementServiceTest extends BaseTest {
         deviceAgentManagementService.onMessage(SerializeUtil.byteArrToMessage(byteMsg), session);
         session.close();
     }
+
+    @Test
+    public void runAnalysisTask_InProcessExecutor_DispatchedWithoutEnvCapability() throws IOException {
+        Session session = Mockito.mock(Session.class);
+        RemoteEndpoint.Basic basicRemote = Mockito.mock(RemoteEndpoint.Basic.class);
+        Mockito.when(session.getId()).thenReturn("analysisSession");
+        Mockito.when(session.getBasicRemote()).thenReturn(basicRemote);
+
+        String agentId = "analysisAgentId";
+        AgentUser agentUser = new AgentUser();
+        agentUser.setId(agentId);
+        agentUser.setName("analysisAgentName");
+        agentUser.setSecret("agentSecret");
+        agentUser.setTeamName("Microsoft");
+        agentUser.setHostname(InetAddress.getLocalHost().getHostName());
+        agentUser.setIp("127.0.0.1");
+        agentUser.setOs(System.getProperties().getProperty("os.name"));
+        agentUserRepository.saveAndFlush(agentUser);
+
+        // the agent has neither python nor apkleaks installed
+        List<EnvCapabilityRequirement> requirements = new ArrayList<>();
+        requirements.add(new EnvCapabilityRequirement(EnvCapability.CapabilityKeyword.python, 3, 8));
+        requirements.add(new EnvCapabilityRequirement(EnvCapability.CapabilityKeyword.apkleaks, 2, 2));
+        List<AgentFunctionAvailability> functionAvailabilities = new ArrayList<>();
+        functionAvailabilities.add(new AgentFunctionAvailability(Task.RunnerType.APK_SCANNER.name(), AgentFunctionAvailability.AgentFunctionType.ANALYSIS_RUNNER,
+                true, false, requirements));
+        agentUser.setFunctionAvailabilities(functionAvailabilities);
+
+        deviceAgentManagementService.onMessage(Message.ok(Const.Path.AUTH, agentUser), session);
+        deviceAgentManagementService.onMessage(Message.ok(Const.Path.DEVICE_LIST, new JSONArray()), session);
+
+        List<AnalysisTask.AnalysisConfig> analysisConfigs = new ArrayList<>();
+        for (AnalysisTask.AnalysisType analysisType : AnalysisTask.AnalysisType.values()) {
+            AnalysisTask.AnalysisConfig config = new AnalysisTask.AnalysisConfig();
+            config.setAnalysisType(analysisType.name());
+            config.setExecutor("apkzipscan");
+            analysisConfigs.add(config);
+        }
+        TestTaskSpec testTaskSpec = new TestTaskSpec();
+        testTaskSpec.runningType = Task.RunnerType.APK_SCANNER.name();
+        testTaskSpec.analysisConfigs = analysisConfigs;
+
+        JSONObject result = deviceAgentManagementService.runTestTaskBySpec(testTaskSpec);
+
+        Assertions.assertEquals(agentId, result.getString(Const.Param.TEST_DEVICE_SN));
+        Mockito.verify(basicRemote, Mockito.atLeastOnce()).sendBinary(ArgumentMatchers.any(ByteBuffer.class));
+        deviceAgentManagementService.onClose(session);
+    }
 }
@@ -0,0 +1,80 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.center.service;
+
+import com.microsoft.hydralab.common.entity.common.Task;
+import com.microsoft.hydralab.common.entity.common.TestTaskSpec;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class TestTaskReservationTableTest {
+
+    private static TestTaskSpec spec(String testTaskId, String deviceIdentifier) {
+        TestTaskSpec testTaskSpec = new TestTaskSpec();
+        testTaskSpec.testTaskId = testTaskId;
+        testTaskSpec.deviceIdentifier = deviceIdentifier;
+        testTaskSpec.runningType = Task.RunnerType.INSTRUMENTATION.name();
+        return testTaskSpec;
+    }
+
+    @Test
+    void reserveAndRelease() {
+        TestTaskReservationTable table = new TestTaskReservationTable();
+        table.add(spec("task1", "serialA"));
+        table.add(spec("task2", "G.group1"));
+        table.add(spec("task3", "serialB,serialC"));
+
+        Assertions.assertEquals("task1", table.findFirstReservation(Arrays.asList("serialA", "G.group1")).testTaskSpec.testTaskId);
+        Assertions.assertEquals("task3", table.findFirstReservation(Collections.singletonList("serialC")).testTaskSpec.testTaskId);
+        Assertions.assertNull(table.findFirstReservation(Collections.singletonList("serialD")));
+
+        table.remove("task1");
+        Assertions.assertEquals("task2", table.findFirstReservation(Arrays.asList("serialA", "G.group1")).testTaskSpec.testTaskId);
+        Assertions.assertEquals(2, table.size());
+    }
+
+    @Test
+    void queuePosition() {
+        TestTaskReservationTable table = new TestTaskReservationTable();
+        for (int i = 0; i < 1000; i++) {
+            table.add(spec("task" + i, "serial" + i));
+        }
+        Assertions.assertEquals(1, table.getPosition("task0"));
+        Assertions.assertEquals(500, table.getPosition("task499"));
+
+        for (int i = 0; i < 1000; i += 2) {
+            table.remove("task" + i);
+        }
+        Assertions.assertEquals(1, table.getPosition("task1"));
+        Assertions.assertEquals(250, table.getPosition("task499"));
+        Assertions.assertEquals(-1, table.getPosition("task0"));
+        Assertions.assertEquals("task1", table.getQueuedTaskSpecs().get(0).testTaskId);
+    }
+
+    @Test
+    void queueTaskAgain_MoveToEnd() {
+        TestTaskReservationTable table = new TestTaskReservationTable();
+        table.add(spec("task0", "serialA"));
+        table.add(spec("task1", "serialA"));
+        table.add(spec("task2", "serialB"));
+        table.add(spec("task0", "serialA"));
+
+        Assertions.assertEquals(3, table.size());
+        Assertions.assertEquals(3, table.getPosition("task0"));
+        Assertions.assertEquals("task1", table.findFirstReservation(Collections.singletonList("serialA")).testTaskSpec.testTaskId);
+
+        // renumbering the queue keeps the order of the task queued again
+        for (int i = 3; i < 600; i++) {
+            table.add(spec("task" + i, "serial" + i));
+        }
+        Assertions.assertEquals("task1", table.findFirstReservation(Collections.singletonList("serialA")).testTaskSpec.testTaskId);
+        Assertions.assertEquals(3, table.getPosition("task0"));
+        Assertions.assertEquals("task0", table.getQueuedTaskSpecs().get(2).testTaskId);
+        table.remove("task1");
+        Assertions.assertEquals("task0", table.findFirstReservation(Collections.singletonList("serialA")).testTaskSpec.testTaskId);
+    }
+}
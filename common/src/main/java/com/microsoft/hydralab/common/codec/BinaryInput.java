@@ -0,0 +1,99 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.hydralab.common.codec;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.function.IntFunction;
+
+/**
+ * Reader counterpart of {@link BinaryOutput}.
+ */
+class BinaryInput {
+    private final ByteBuffer buffer;
+
+    BinaryInput(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    int readByte() {
+        return buffer.get() & 0xff;
+    }
+
+    byte[] readBytes() {
+        byte[] bytes = new byte[readUnsignedVarInt()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    boolean readBoolean() {
+        return buffer.get() != 0;
+    }
+
+    Boolean readNullableBoolean() {
+        int value = readByte();
+        return value == 0 ? null : value == 2;
+    }
+
+    int readInt() {
+        long value = readUnsignedVarLong();
+        return (int) ((value >>> 1) ^ -(value & 1));
+    }
+
+    long readLong() {
+        long value = readUnsignedVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    int readUnsignedVarInt() {
+        return (int) readUnsignedVarLong();
+    }
+
+    private long readUnsignedVarLong() {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Malformed varint");
+    }
+
+    String readString() {
+        int length = readUnsignedVarInt();
+        if (length == 0) {
+            return null;
+        }
+        length--;
+        String value;
+        if (buffer.hasArray()) {
+            value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+
+    <T extends Collection<String>> T readStrings(IntFunction<T> collectionFactory) {
+        int size = readUnsignedVarInt();
+        if (size == 0) {
+            return null;
+        }
+        size--;
+        T values = collectionFactory.apply(size);
+        for (int i = 0; i < size; i++) {
+            values.add(readString());
+        }
+        return values;
+    }
+
+    boolean hasRemaining() {
+        return buffer.hasRemaining();
+    }
+}
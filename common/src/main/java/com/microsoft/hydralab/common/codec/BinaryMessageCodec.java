@@ -0,0 +1,384 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.hydralab.common.codec;
+
+import cn.hutool.core.util.ZipUtil;
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import com.alibaba.fastjson.serializer.SerializerFeature;
+import com.microsoft.hydralab.common.entity.agent.AgentFunctionAvailability;
+import com.microsoft.hydralab.common.entity.common.AgentMetadata;
+import com.microsoft.hydralab.common.entity.common.AgentUser;
+import com.microsoft.hydralab.common.entity.common.DeviceInfo;
+import com.microsoft.hydralab.common.entity.common.DeviceListDelta;
+import com.microsoft.hydralab.common.entity.common.Message;
+import com.microsoft.hydralab.common.file.AccessToken;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Compact binary format. The envelope of every message is written field by field, and the bodies sent periodically
+ * (heartbeat {@link AgentMetadata}, {@link DeviceInfo} list/update, {@link DeviceListDelta}, auth {@link AgentUser}) have a fixed schema.
+ * Other bodies, e.g. TestTaskSpec and Task, keep the fastjson representation inside the frame,
+ * as their object graphs are deep and polymorphic, and are only gzipped when they are large.
+ * <p>
+ * Frame: magic(2) | version(1) | flags(1) | envelope | bodyTag(1) | body
+ */
+public class BinaryMessageCodec implements MessageCodec {
+    static final int MAGIC_FIRST = 'H';
+    static final int MAGIC_SECOND = 'L';
+    private static final int FLAG_BODY_GZIP = 1;
+    private static final int GZIP_THRESHOLD = 16 * 1024;
+
+    private static final int BODY_NULL = 0;
+    private static final int BODY_JSON_OBJECT = 1;
+    private static final int BODY_JSON_ARRAY = 2;
+    private static final int BODY_DEVICE_INFO = 3;
+    private static final int BODY_DEVICE_INFO_LIST = 4;
+    private static final int BODY_AGENT_USER = 5;
+    private static final int BODY_AGENT_METADATA = 6;
+    private static final int BODY_CLASS_JSON = 7;
+    private static final int BODY_DEVICE_LIST_DELTA = 8;
+
+    private static final ThreadLocal<BinaryOutput> OUTPUT = ThreadLocal.withInitial(BinaryOutput::new);
+
+    @Override
+    public int getVersion() {
+        return VERSION_BINARY;
+    }
+
+    @Override
+    public boolean accept(byte[] data) {
+        return data.length >= 4 && data[0] == MAGIC_FIRST && data[1] == MAGIC_SECOND;
+    }
+
+    @Override
+    public byte[] encode(Message message) {
+        BinaryOutput output = OUTPUT.get();
+        output.reset();
+        output.writeByte(MAGIC_FIRST);
+        output.writeByte(MAGIC_SECOND);
+        output.writeByte(VERSION_BINARY);
+        byte[] classJsonBody = null;
+        Object body = message.getBody();
+        if (isClassJsonBody(body)) {
+            classJsonBody = JSON.toJSONString(body, SerializerFeature.WriteClassName).getBytes(StandardCharsets.UTF_8);
+        }
+        boolean gzipBody = classJsonBody != null && classJsonBody.length > GZIP_THRESHOLD;
+        output.writeByte(gzipBody ? FLAG_BODY_GZIP : 0);
+
+        output.writeString(message.getMethod());
+        output.writeString(message.getSessionId());
+        output.writeInt(message.getCode());
+        output.writeString(message.getMessage());
+        output.writeString(message.getAgentId());
+        output.writeString(message.getType());
+        output.writeString(message.getPath());
+        output.writeString(message.getParams() == null ? null : JSON.toJSONString(message.getParams()));
+        output.writeString(message.getBodyType());
+
+        if (classJsonBody != null) {
+            output.writeByte(BODY_CLASS_JSON);
+            output.writeBytes(gzipBody ? ZipUtil.gzip(classJsonBody) : classJsonBody);
+        } else {
+            writeBody(output, body);
+        }
+        return output.toByteArray();
+    }
+
+    @Override
+    public Message decode(byte[] data) {
+        BinaryInput input = new BinaryInput(ByteBuffer.wrap(data));
+        if (input.readByte() != MAGIC_FIRST || input.readByte() != MAGIC_SECOND) {
+            throw new IllegalArgumentException("Not a binary message frame");
+        }
+        int version = input.readByte();
+        if (version > VERSION_BINARY) {
+            throw new IllegalArgumentException("Unsupported message codec version: " + version);
+        }
+        int flags = input.readByte();
+
+        Message message = new Message();
+        message.setMethod(input.readString());
+        message.setSessionId(input.readString());
+        message.setCode(input.readInt());
+        message.setMessage(input.readString());
+        message.setAgentId(input.readString());
+        message.setType(input.readString());
+        message.setPath(input.readString());
+        String params = input.readString();
+        if (params != null) {
+            message.setParams(JSON.parseObject(params));
+        }
+        String bodyType = input.readString();
+
+        int bodyTag = input.readByte();
+        if (bodyTag == BODY_CLASS_JSON) {
+            byte[] bodyBytes = input.readBytes();
+            if ((flags & FLAG_BODY_GZIP) != 0) {
+                bodyBytes = ZipUtil.unGzip(bodyBytes);
+            }
+            try {
+                message.setBody(JSON.parseObject(new String(bodyBytes, StandardCharsets.UTF_8), Class.forName(bodyType)));
+            } catch (ClassNotFoundException e) {
+                throw new RuntimeException(e);
+            }
+        } else {
+            message.setBody(readBody(input, bodyTag));
+        }
+        // setBody derives the type from the decoded object, keep the one of the sender
+        message.setBodyType(bodyType);
+        return message;
+    }
+
+    private static boolean isClassJsonBody(Object body) {
+        if (body == null || body instanceof JSONObject || body instanceof List) {
+            return false;
+        }
+        if (body instanceof DeviceInfo || body instanceof AgentUser || body instanceof AgentMetadata || body instanceof DeviceListDelta) {
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean isDeviceInfoList(Object body) {
+        if (!(body instanceof List)) {
+            return false;
+        }
+        for (Object item : (List<?>) body) {
+            if (!(item instanceof DeviceInfo)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeBody(BinaryOutput output, Object body) {
+        if (body == null) {
+            output.writeByte(BODY_NULL);
+        } else if (body instanceof JSONObject) {
+            output.writeByte(BODY_JSON_OBJECT);
+            output.writeString(((JSONObject) body).toJSONString());
+        } else if (body instanceof List && !isDeviceInfoList(body)) {
+            output.writeByte(BODY_JSON_ARRAY);
+            output.writeString(JSON.toJSONString(body, SerializerFeature.WriteClassName));
+        } else if (body instanceof DeviceInfo) {
+            output.writeByte(BODY_DEVICE_INFO);
+            writeDeviceInfo(output, (DeviceInfo) body);
+        } else if (body instanceof AgentUser) {
+            output.writeByte(BODY_AGENT_USER);
+            writeAgentUser(output, (AgentUser) body);
+        } else if (body instanceof AgentMetadata) {
+            output.writeByte(BODY_AGENT_METADATA);
+            writeAgentMetadata(output, (AgentMetadata) body);
+        } else if (body instanceof DeviceListDelta) {
+            output.writeByte(BODY_DEVICE_LIST_DELTA);
+            writeDeviceListDelta(output, (DeviceListDelta) body);
+        } else {
+            List<?> devices = (List<?>) body;
+            output.writeByte(BODY_DEVICE_INFO_LIST);
+            output.writeUnsignedVarInt(devices.size());
+            for (Object device : devices) {
+                writeDeviceInfo(output, (DeviceInfo) device);
+            }
+        }
+    }
+
+    private static Object readBody(BinaryInput input, int bodyTag) {
+        switch (bodyTag) {
+            case BODY_NULL:
+                return null;
+            case BODY_JSON_OBJECT:
+                return JSON.parseObject(input.readString());
+            case BODY_JSON_ARRAY:
+                return JSON.parseArray(input.readString());
+            case BODY_DEVICE_INFO:
+                return readDeviceInfo(input);
+            case BODY_AGENT_USER:
+                return readAgentUser(input);
+            case BODY_AGENT_METADATA:
+                return readAgentMetadata(input);
+            case BODY_DEVICE_LIST_DELTA:
+                return readDeviceListDelta(input);
+            case BODY_DEVICE_INFO_LIST:
+                // receivers of the device list handle it as a JSONArray, as the legacy format did
+                int size = input.readUnsignedVarInt();
+                JSONArray devices = new JSONArray(size);
+                for (int i = 0; i < size; i++) {
+                    devices.add(readDeviceInfo(input));
+                }
+                return devices;
+            default:
+                throw new IllegalArgumentException("Unknown message body tag: " + bodyTag);
+        }
+    }
+
+    private static void writeDeviceInfo(BinaryOutput output, DeviceInfo device) {
+        output.writeString(device.getSerialNum());
+        output.writeString(device.getName());
+        output.writeString(device.getManufacturer());
+        output.writeString(device.getModel());
+        output.writeString(device.getOsVersion());
+        output.writeString(device.getBuildNumber());
+        output.writeString(device.getScreenSize());
+        output.writeInt(device.getScreenDensity());
+        output.writeString(device.getOsSDKInt());
+        output.writeNullableBoolean(device.getIsPrivate());
+        output.writeString(device.getId());
+        output.writeString(device.getStatus());
+        output.writeString(device.getImageRelPath());
+        output.writeString(device.getPcImageRelPath());
+        output.writeString(device.getScreenshotImageUrl());
+        output.writeString(device.getBrand());
+        output.writeString(device.getAbiList());
+        output.writeString(device.getRecordVideoPath());
+        output.writeString(device.getPcScreenshotImageUrl());
+        output.writeString(device.getDeviceId());
+        output.writeString(device.getRunningTaskId());
+        output.writeString(device.getRunningTestName());
+        output.writeString(device.getRunningTaskPackageName());
+        output.writeString(device.getAgentId());
+        output.writeStrings(device.getDeviceGroup());
+        output.writeBoolean(device.isSupportScreenRecording());
+        output.writeLong(device.getScreenshotUpdateTimeMilli());
+        output.writeString(device.getType());
+    }
+
+    private static DeviceInfo readDeviceInfo(BinaryInput input) {
+        DeviceInfo device = new DeviceInfo();
+        device.setSerialNum(input.readString());
+        device.setName(input.readString());
+        device.setManufacturer(input.readString());
+        device.setModel(input.readString());
+        device.setOsVersion(input.readString());
+        device.setBuildNumber(input.readString());
+        device.setScreenSize(input.readString());
+        device.setScreenDensity(input.readInt());
+        device.setOsSDKInt(input.readString());
+        device.setIsPrivate(input.readNullableBoolean());
+        device.setId(input.readString());
+        device.setStatus(input.readString());
+        device.setImageRelPath(input.readString());
+        device.setPcImageRelPath(input.readString());
+        device.setScreenshotImageUrl(input.readString());
+        device.setBrand(input.readString());
+        device.setAbiList(input.readString());
+        device.setRecordVideoPath(input.readString());
+        device.setPcScreenshotImageUrl(input.readString());
+        device.setDeviceId(input.readString());
+        device.setRunningTaskId(input.readString());
+        device.setRunningTestName(input.readString());
+        device.setRunningTaskPackageName(input.readString());
+        device.setAgentId(input.readString());
+        HashSet<String> deviceGroup = input.readStrings(HashSet::new);
+        device.setDeviceGroup(deviceGroup == null ? new HashSet<>() : deviceGroup);
+        device.setSupportScreenRecording(input.readBoolean());
+        device.setScreenshotUpdateTimeMilli(input.readLong());
+        device.setType(input.readString());
+        return device;
+    }
+
+    private static void writeDeviceListDelta(BinaryOutput output, DeviceListDelta delta) {
+        output.writeLong(delta.getSequence());
+        output.writeBoolean(delta.isSnapshot());
+        output.writeUnsignedVarInt(delta.getChangedDevices().size());
+        for (DeviceInfo device : delta.getChangedDevices()) {
+            writeDeviceInfo(output, device);
+        }
+        output.writeStrings(delta.getRemovedSerials());
+    }
+
+    private static DeviceListDelta readDeviceListDelta(BinaryInput input) {
+        DeviceListDelta delta = new DeviceListDelta();
+        delta.setSequence(input.readLong());
+        delta.setSnapshot(input.readBoolean());
+        int size = input.readUnsignedVarInt();
+        for (int i = 0; i < size; i++) {
+            delta.getChangedDevices().add(readDeviceInfo(input));
+        }
+        List<String> removedSerials = input.readStrings(ArrayList::new);
+        if (removedSerials != null) {
+            delta.setRemovedSerials(removedSerials);
+        }
+        return delta;
+    }
+
+    private static void writeAgentUser(BinaryOutput output, AgentUser agentUser) {
+        output.writeString(agentUser.getId());
+        output.writeString(agentUser.getName());
+        output.writeString(agentUser.getMailAddress());
+        output.writeString(agentUser.getSecret());
+        output.writeString(agentUser.getHostname());
+        output.writeString(agentUser.getIp());
+        output.writeString(agentUser.getOs());
+        output.writeString(agentUser.getVersionName());
+        output.writeString(agentUser.getVersionCode());
+        output.writeInt(agentUser.getStatus());
+        output.writeString(agentUser.getRole());
+        output.writeString(agentUser.getTeamId());
+        output.writeString(agentUser.getTeamName());
+        output.writeString(agentUser.getBatteryStrategy() == null ? null : agentUser.getBatteryStrategy().name());
+        // nested capability tree of each function, small and rarely changes
+        output.writeString(agentUser.getFunctionAvailabilities() == null ? null : JSON.toJSONString(agentUser.getFunctionAvailabilities()));
+    }
+
+    private static AgentUser readAgentUser(BinaryInput input) {
+        AgentUser agentUser = new AgentUser();
+        agentUser.setId(input.readString());
+        agentUser.setName(input.readString());
+        agentUser.setMailAddress(input.readString());
+        agentUser.setSecret(input.readString());
+        agentUser.setHostname(input.readString());
+        agentUser.setIp(input.readString());
+        agentUser.setOs(input.readString());
+        agentUser.setVersionName(input.readString());
+        agentUser.setVersionCode(input.readString());
+        agentUser.setStatus(input.readInt());
+        agentUser.setRole(input.readString());
+        agentUser.setTeamId(input.readString());
+        agentUser.setTeamName(input.readString());
+        String batteryStrategy = input.readString();
+        if (batteryStrategy != null) {
+            agentUser.setBatteryStrategy(AgentUser.BatteryStrategy.valueOf(batteryStrategy));
+        }
+        String functionAvailabilities = input.readString();
+        if (functionAvailabilities != null) {
+            agentUser.setFunctionAvailabilities(JSON.parseArray(functionAvailabilities, AgentFunctionAvailability.class));
+        }
+        return agentUser;
+    }
+
+    private static void writeAgentMetadata(BinaryOutput output, AgentMetadata agentMetadata) {
+        // the token type depends on the storage type of center
+        output.writeString(agentMetadata.getAccessToken() == null ? null : JSON.toJSONString(agentMetadata.getAccessToken(), SerializerFeature.WriteClassName));
+        output.writeString(agentMetadata.getStorageType());
+        output.writeBoolean(agentMetadata.getAgentUser() != null);
+        if (agentMetadata.getAgentUser() != null) {
+            writeAgentUser(output, agentMetadata.getAgentUser());
+        }
+        output.writeString(agentMetadata.getPushgatewayUsername());
+        output.writeString(agentMetadata.getPushgatewayPassword());
+        output.writeString(agentMetadata.getAppCenterSecret());
+    }
+
+    private static AgentMetadata readAgentMetadata(BinaryInput input) {
+        AgentMetadata agentMetadata = new AgentMetadata();
+        String accessToken = input.readString();
+        if (accessToken != null) {
+            agentMetadata.setAccessToken(JSON.parseObject(accessToken, AccessToken.class));
+        }
+        agentMetadata.setStorageType(input.readString());
+        if (input.readBoolean()) {
+            agentMetadata.setAgentUser(readAgentUser(input));
+        }
+        agentMetadata.setPushgatewayUsername(input.readString());
+        agentMetadata.setPushgatewayPassword(input.readString());
+        agentMetadata.setAppCenterSecret(input.readString());
+        return agentMetadata;
+    }
+}
@@ -0,0 +1,156 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.hydralab.common.codec;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+/**
+ * Growable writer over a heap {@link ByteBuffer}, meant to be reused by the same thread across messages.
+ * Integers are written as varints and strings as UTF-8 prefixed with (length + 1), 0 standing for null.
+ */
+class BinaryOutput {
+    private static final int INITIAL_CAPACITY = 16 * 1024;
+    // don't keep huge buffers alive once a large task result went through
+    private static final int MAX_RETAINED_CAPACITY = 1024 * 1024;
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+
+    void reset() {
+        if (buffer.capacity() > MAX_RETAINED_CAPACITY) {
+            buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+        }
+        buffer.clear();
+    }
+
+    int position() {
+        return buffer.position();
+    }
+
+    byte[] toByteArray() {
+        byte[] result = new byte[buffer.position()];
+        System.arraycopy(buffer.array(), 0, result, 0, result.length);
+        return result;
+    }
+
+    void writeByte(int value) {
+        ensureCapacity(1);
+        buffer.put((byte) value);
+    }
+
+    void writeBytes(byte[] bytes) {
+        writeUnsignedVarInt(bytes.length);
+        ensureCapacity(bytes.length);
+        buffer.put(bytes);
+    }
+
+    void writeBoolean(boolean value) {
+        writeByte(value ? 1 : 0);
+    }
+
+    void writeNullableBoolean(Boolean value) {
+        writeByte(value == null ? 0 : value ? 2 : 1);
+    }
+
+    void writeInt(int value) {
+        // zigzag, so that small negative values stay short
+        writeUnsignedVarLong(((long) value << 1) ^ (value >> 31));
+    }
+
+    void writeLong(long value) {
+        writeUnsignedVarLong((value << 1) ^ (value >> 63));
+    }
+
+    void writeUnsignedVarInt(int value) {
+        writeUnsignedVarLong(value & 0xffffffffL);
+    }
+
+    private void writeUnsignedVarLong(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7fL) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    void writeString(String value) {
+        if (value == null) {
+            writeUnsignedVarInt(0);
+            return;
+        }
+        int length = value.length();
+        int utf8Length = utf8Length(value);
+        writeUnsignedVarInt(utf8Length + 1);
+        ensureCapacity(utf8Length);
+        byte[] array = buffer.array();
+        int position = buffer.arrayOffset() + buffer.position();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                array[position++] = (byte) c;
+            } else if (c < 0x800) {
+                array[position++] = (byte) (0xc0 | (c >> 6));
+                array[position++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                array[position++] = (byte) (0xf0 | (codePoint >> 18));
+                array[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                array[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                array[position++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogate, same replacement as String.getBytes(UTF_8)
+                array[position++] = (byte) '?';
+            } else {
+                array[position++] = (byte) (0xe0 | (c >> 12));
+                array[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                array[position++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        buffer.position(position - buffer.arrayOffset());
+    }
+
+    void writeStrings(Collection<String> values) {
+        if (values == null) {
+            writeUnsignedVarInt(0);
+            return;
+        }
+        writeUnsignedVarInt(values.size() + 1);
+        for (String value : values) {
+            writeString(value);
+        }
+    }
+
+    private static int utf8Length(String value) {
+        int length = value.length();
+        int utf8Length = length;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x800) {
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    // 4 bytes for 2 chars
+                    utf8Length += 2;
+                    i++;
+                } else if (Character.isSurrogate(c)) {
+                    // written as '?'
+                    continue;
+                } else {
+                    utf8Length += 2;
+                }
+            } else if (c >= 0x80) {
+                utf8Length += 1;
+            }
+        }
+        return utf8Length;
+    }
+
+    private void ensureCapacity(int required) {
+        if (buffer.remaining() >= required) {
+            return;
+        }
+        int newCapacity = Math.max(buffer.capacity() * 2, buffer.position() + required);
+        ByteBuffer newBuffer = ByteBuffer.allocate(newCapacity);
+        buffer.flip();
+        newBuffer.put(buffer);
+        buffer = newBuffer;
+    }
+}
@@ -0,0 +1,48 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.hydralab.common.codec;
+
+import cn.hutool.core.util.ZipUtil;
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.alibaba.fastjson.serializer.SerializerFeature;
+import com.microsoft.hydralab.common.entity.common.Message;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The original format: gzipped fastjson with class names, kept for agents/centers that don't negotiate a codec.
+ */
+public class JsonGzipMessageCodec implements MessageCodec {
+    private static final int GZIP_MAGIC_FIRST = 0x1f;
+    private static final int GZIP_MAGIC_SECOND = 0x8b;
+
+    @Override
+    public int getVersion() {
+        return VERSION_JSON_GZIP;
+    }
+
+    @Override
+    public byte[] encode(Message message) {
+        return ZipUtil.gzip(JSON.toJSONString(message, SerializerFeature.WriteClassName), StandardCharsets.UTF_8.toString());
+    }
+
+    @Override
+    public Message decode(byte[] data) {
+        Message message = JSON.parseObject(new String(ZipUtil.unGzip(data), StandardCharsets.UTF_8), Message.class);
+        if (message.getBody() instanceof JSONObject && message.getBodyType() != null) {
+            JSONObject body = (JSONObject) message.getBody();
+            try {
+                message.setBody(body.toJavaObject(Class.forName(message.getBodyType())));
+            } catch (ClassNotFoundException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return message;
+    }
+
+    @Override
+    public boolean accept(byte[] data) {
+        return data.length >= 2 && (data[0] & 0xff) == GZIP_MAGIC_FIRST && (data[1] & 0xff) == GZIP_MAGIC_SECOND;
+    }
+}
@@ -0,0 +1,26 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.hydralab.common.codec;
+
+import com.microsoft.hydralab.common.entity.common.Message;
+
+/**
+ * Wire format of the {@link Message} exchanged between center and agent over WebSocket.
+ * Both sides advertise the highest version they support and send with the lower one,
+ * while decoding always detects the format from the frame header.
+ */
+public interface MessageCodec {
+    int VERSION_JSON_GZIP = 0;
+    int VERSION_BINARY = 1;
+
+    int getVersion();
+
+    byte[] encode(Message message);
+
+    Message decode(byte[] data);
+
+    /**
+     * @return whether the frame is written with this codec
+     */
+    boolean accept(byte[] data);
+}
@@ -15,6 +15,7 @@ import java.io.Serializable;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * @author zhoule
@@ -25,6 +26,10 @@ import java.util.Map;
 @Data
 @EqualsAndHashCode(callSuper = true)
 public class AnalysisTask extends Task implements Serializable {
+    /**
+     * Executors running inside the agent process, which need no env capability of the agent.
+     */
+    public static final Set<String> IN_PROCESS_EXECUTORS = Set.of("apkcanary", "apkzipscan");
 
     @Convert(converter = AnalysisConfig.Converter.class)
     @Column(columnDefinition = "text")
@@ -0,0 +1,21 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.hydralab.common.entity.common;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Device list change of an agent since its previous delta.
+ * A snapshot carries the whole device list and resets the sequence, the receiver should request a new snapshot on any sequence gap.
+ */
+@Data
+public class DeviceListDelta {
+    private long sequence;
+    private boolean snapshot;
+    // added or changed devices, all devices for a snapshot
+    private List<DeviceInfo> changedDevices = new ArrayList<>();
+    private List<String> removedSerials = new ArrayList<>();
+}
@@ -0,0 +1,139 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.common.entity.common;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Test classes of a task shared by its devices on the agent, each device takes the next class once it's done with the previous one,
+ * so a slow device runs fewer classes instead of holding up the whole task.
+ */
+public class TestClassQueue {
+    private final int shardCount;
+    private final int shardIndexOffset;
+    private final int agentShardCount;
+    private final int deviceCount;
+    private final long joinDeadlineMillis;
+    private final Deque<String> pendingClasses = new ArrayDeque<>();
+    private boolean loaded = false;
+    private boolean abandoned = false;
+    private int inFlightCount = 0;
+    private int joinedDeviceCount = 0;
+    private int runningDeviceCount = 0;
+
+    /**
+     * @param shardCount        count of the devices running the task, on all the agents
+     * @param shardIndexOffset  index of the first device of the agent
+     * @param agentShardCount   count of the devices assigned to the agent
+     * @param deviceCount       count of the devices of the agent running the task, which may be fewer than the assigned ones
+     * @param joinTimeoutMillis time for the devices to join the queue, a device failing before running the test never joins
+     */
+    public TestClassQueue(int shardCount, int shardIndexOffset, int agentShardCount, int deviceCount, long joinTimeoutMillis) {
+        this.shardCount = shardCount;
+        this.shardIndexOffset = shardIndexOffset;
+        this.agentShardCount = agentShardCount;
+        this.deviceCount = deviceCount;
+        this.joinDeadlineMillis = System.currentTimeMillis() + joinTimeoutMillis;
+    }
+
+    public synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Keep the share of the agent from the classes of the suite.
+     * Every agent lists the same classes from the same test package, so the shares don't overlap.
+     */
+    public synchronized void load(List<String> testClasses) {
+        List<String> sortedClasses = new ArrayList<>(testClasses);
+        Collections.sort(sortedClasses);
+        for (int i = 0; i < sortedClasses.size(); i++) {
+            int shardIndex = i % shardCount;
+            if (shardIndex >= shardIndexOffset && shardIndex < shardIndexOffset + agentShardCount) {
+                pendingClasses.add(sortedClasses.get(i));
+            }
+        }
+        loaded = true;
+    }
+
+    /**
+     * @return false if the classes left were already given up to requeue the task, so the device should not run them
+     */
+    public synchronized boolean join() {
+        if (abandoned) {
+            return false;
+        }
+        joinedDeviceCount++;
+        runningDeviceCount++;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Leave the queue once no class is left to run.
+     */
+    public synchronized void leave() {
+        runningDeviceCount--;
+    }
+
+    /**
+     * Leave the queue for the device went offline, after giving back the class it was running.
+     * If no other device is running, wait until the devices yet to join have joined or the join window has closed, as they still take the classes left.
+     *
+     * @return true if no device is left to run the classes left, for the caller to requeue the task, only one of the devices gets true
+     */
+    public synchronized boolean leaveOffline() throws InterruptedException {
+        runningDeviceCount--;
+        long waitMillis;
+        while (runningDeviceCount == 0 && joinedDeviceCount < deviceCount && (waitMillis = joinDeadlineMillis - System.currentTimeMillis()) > 0) {
+            wait(waitMillis);
+        }
+        if (runningDeviceCount > 0 || pendingClasses.isEmpty() || abandoned) {
+            return false;
+        }
+        abandoned = true;
+        return true;
+    }
+
+    /**
+     * Wait while the queue is empty but a class is still running on another device, as it may be given back.
+     *
+     * @param timeoutMillis longest time to wait for a class running on another device
+     * @return the next class to run, null if all the classes are done, or none was given back in time
+     */
+    public synchronized String poll(long timeoutMillis) throws InterruptedException {
+        long deadlineMillis = System.currentTimeMillis() + timeoutMillis;
+        long waitMillis;
+        while (pendingClasses.isEmpty() && inFlightCount > 0 && (waitMillis = deadlineMillis - System.currentTimeMillis()) > 0) {
+            wait(waitMillis);
+        }
+        String testClass = pendingClasses.poll();
+        if (testClass != null) {
+            inFlightCount++;
+        }
+        return testClass;
+    }
+
+    public synchronized void complete(String testClass) {
+        inFlightCount--;
+        notifyAll();
+    }
+
+    /**
+     * Put back the class which was not run, e.g. its device went offline, for another device to take it.
+     */
+    public synchronized void giveBack(String testClass) {
+        inFlightCount--;
+        pendingClasses.addFirst(testClass);
+        notifyAll();
+    }
+
+    public synchronized int getPendingCount() {
+        return pendingClasses.size();
+    }
+}
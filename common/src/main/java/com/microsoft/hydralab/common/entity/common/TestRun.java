@@ -90,6 +90,9 @@ public class TestRun implements Serializable, ITestRun {
     private transient TestRunDevice device;
     @Transient
     private TaskResult taskResult;
+    // count of the units already reported to center by TEST_UNIT_UPDATE
+    @Transient
+    private transient int streamedTestUnitCount;
 
     public TestRun() {
     }
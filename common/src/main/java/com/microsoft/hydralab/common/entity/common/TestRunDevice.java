@@ -26,6 +26,7 @@ public class TestRunDevice {
     private final AnimatedGifEncoder gifEncoder = new AnimatedGifEncoder();
     private int gifFrameCount = 0;
     private File gifFile;
+    private TestShard testShard;
 
     private WebDriver webDriver;
     private transient Logger logger;
@@ -0,0 +1,43 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.common.entity.common;
+
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * The part of a sharded test suite run by one device of the group.
+ */
+@Getter
+public class TestShard {
+    private final int shardCount;
+    private final int shardIndex;
+    // the classes balanced to this shard by their historical durations, null if the test runner shards the suite by itself
+    private final List<String> testClasses;
+    // the classes of the other shards, set only for the shard which also runs the classes without history
+    private final List<String> excludedTestClasses;
+    private final long expectedDurationMillis;
+
+    public TestShard(int shardCount, int shardIndex) {
+        this(shardCount, shardIndex, null, null, 0);
+    }
+
+    public TestShard(int shardCount, int shardIndex, List<String> testClasses, List<String> excludedTestClasses, long expectedDurationMillis) {
+        this.shardCount = shardCount;
+        this.shardIndex = shardIndex;
+        this.testClasses = testClasses;
+        this.excludedTestClasses = excludedTestClasses;
+        this.expectedDurationMillis = expectedDurationMillis;
+    }
+
+    @Override
+    public String toString() {
+        if (testClasses == null) {
+            return "shard " + shardIndex + "/" + shardCount;
+        }
+        return "shard " + shardIndex + "/" + shardCount + " with " + testClasses.size() + " classes"
+                + (excludedTestClasses == null ? "" : " and the classes without history") + ", expected " + expectedDurationMillis + "ms";
+    }
+}
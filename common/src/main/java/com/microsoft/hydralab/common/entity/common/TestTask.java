@@ -15,6 +15,7 @@ import java.io.File;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 @Data
 @Entity
@@ -63,6 +64,18 @@ public class TestTask extends Task implements Serializable {
     private String networkMonitorRule;
     @Column(nullable = true)
     private boolean enableTestOrchestrator = false;
+    @Transient
+    private boolean enableTestSharding;
+    @Transient
+    private boolean dynamicTestSharding;
+    @Transient
+    private int shardCount;
+    @Transient
+    private int shardIndexOffset;
+    @Transient
+    private transient Map<String, Long> testClassDurations;
+    @Transient
+    private transient TestClassQueue testClassQueue;
 
     public TestTask() {
         super();
@@ -89,6 +102,11 @@ public class TestTask extends Task implements Serializable {
             setTestPlan(testTaskSpec.testPlan);
         }
         setEnableTestOrchestrator(testTaskSpec.enableTestOrchestrator);
+        setEnableTestSharding(testTaskSpec.enableTestSharding);
+        setDynamicTestSharding(testTaskSpec.dynamicTestSharding);
+        setShardCount(testTaskSpec.shardCount);
+        setShardIndexOffset(testTaskSpec.shardIndexOffset);
+        setTestClassDurations(testTaskSpec.testClassDurations);
         setFrameworkType(testTaskSpec.frameworkType);
 
         if (StringUtils.isNotBlank(testTaskSpec.testRunnerName)) {
@@ -120,6 +138,11 @@ public class TestTask extends Task implements Serializable {
         testTaskSpec.enableNetworkMonitor = isEnableNetworkMonitor();
         testTaskSpec.networkMonitorRule = getNetworkMonitorRule();
         testTaskSpec.enableTestOrchestrator = isEnableTestOrchestrator();
+        testTaskSpec.enableTestSharding = isEnableTestSharding();
+        testTaskSpec.dynamicTestSharding = isDynamicTestSharding();
+        testTaskSpec.shardCount = getShardCount();
+        testTaskSpec.shardIndexOffset = getShardIndexOffset();
+        testTaskSpec.testClassDurations = getTestClassDurations();
 
         return testTaskSpec;
     }
@@ -57,6 +57,16 @@ public class TestTaskSpec {
     public boolean enableNetworkMonitor;
     public String networkMonitorRule;
     public boolean enableTestOrchestrator = false;
+    // split the suite across the devices of the group instead of running the whole suite on each of them
+    public boolean enableTestSharding = false;
+    // with enableTestSharding, the devices take the test classes one by one from a shared queue instead of a split planned upfront
+    public boolean dynamicTestSharding = false;
+    public int shardCount;
+    // index of the first shard for the devices on the agent, the group may span several agents
+    public int shardIndexOffset;
+    // historical duration in millis <testClass, duration>, to balance the shards
+    @ToString.Exclude
+    public Map<String, Long> testClassDurations;
 
     public void updateWithDefaultValues() {
         determineScopeOfTestCase();
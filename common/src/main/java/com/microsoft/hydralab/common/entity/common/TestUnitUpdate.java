@@ -0,0 +1,37 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.hydralab.common.entity.common;
+
+import lombok.Data;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * The test units ended since the last update of a test run, with the progress of the run.
+ */
+@Data
+public class TestUnitUpdate implements Serializable {
+    private String testTaskId;
+    private String testRunId;
+    private String deviceSerialNumber;
+    private String deviceName;
+    private int totalCount;
+    private int failCount;
+    private long testStartTimeMillis;
+    private List<AndroidTestUnit> testUnits;
+
+    public TestUnitUpdate() {
+    }
+
+    public TestUnitUpdate(TestRun testRun, List<AndroidTestUnit> testUnits) {
+        this.testTaskId = testRun.getTestTaskId();
+        this.testRunId = testRun.getId();
+        this.deviceSerialNumber = testRun.getDeviceSerialNumber();
+        this.deviceName = testRun.getDeviceName();
+        this.totalCount = testRun.getTotalCount();
+        this.failCount = testRun.getFailCount();
+        this.testStartTimeMillis = testRun.getTestStartTimeMillis();
+        this.testUnits = testUnits;
+    }
+}
@@ -11,21 +11,32 @@ import com.microsoft.hydralab.common.util.Const;
 import com.microsoft.hydralab.common.util.HydraLabRuntimeException;
 import com.microsoft.hydralab.common.util.RestTemplateConfig;
 import lombok.Data;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.core.io.FileSystemResource;
-import org.springframework.core.io.Resource;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.ClientHttpResponse;
 import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.ResourceAccessException;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.util.UriComponentsBuilder;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 /**
  * @author Li Shen
@@ -34,9 +45,14 @@ import java.io.IOException;
 
 @Data
 public class LocalStorageClient {
+    private static final Logger classLogger = LoggerFactory.getLogger(LocalStorageClient.class);
+    private static final String PART_FILE_SUFFIX = ".part";
+    private static final int MAX_DOWNLOAD_RESUME_ATTEMPTS = 3;
     RestTemplate restTemplate;
     private String endpoint;
     private String token;
+    // false once center answers the streaming upload is not found, it's an older version
+    private volatile boolean streamUploadSupported = true;
 
     public LocalStorageClient(LocalStorageToken localStorageToken) {
         this.endpoint = localStorageToken.getEndpoint();
@@ -53,6 +69,7 @@ public class LocalStorageClient {
 
     /**
      * Upload a file to the local storage. If the file already exists, overwrite it.
+     * The file is streamed to center, and not sent at all if center already stores the same content at the same path.
      * <p>
      * //     * @param file
      * //     * @param storageFileInfo
@@ -60,13 +77,27 @@ public class LocalStorageClient {
      * @return file download (rel?) path
      */
     public String upload(File file, StorageFileInfo storageFileInfo) {
+        String fileUri = storageFileInfo.getBlobContainer() + "/" + storageFileInfo.getBlobPath();
+        if (streamUploadSupported) {
+            try {
+                if (storageFileInfo.getMd5() != null && isFileStored(fileUri, storageFileInfo.getMd5())) {
+                    classLogger.info("File {} is already stored with the same content, skip uploading it", fileUri);
+                } else {
+                    streamUpload(file, fileUri, storageFileInfo.getMd5());
+                }
+                return this.endpoint + Const.LocalStorageURL.CENTER_LOCAL_STORAGE_DOWNLOAD + "/" + fileUri;
+            } catch (HttpClientErrorException.NotFound | HttpClientErrorException.MethodNotAllowed e) {
+                classLogger.info("Streaming upload is not supported by center, use multipart upload");
+                streamUploadSupported = false;
+            }
+        }
+
         RestTemplate restTemplateHttps = RestTemplateConfig.getRestTemplateInstance();
 
         HttpHeaders headers = new HttpHeaders();
         headers.add("Authorization", "Bearer " + token);
         headers.add("Content-Type", MediaType.MULTIPART_FORM_DATA.toString());
 
-        String fileUri = storageFileInfo.getBlobContainer() + "/" + storageFileInfo.getBlobPath();
         LinkedMultiValueMap<String, Object> body = new LinkedMultiValueMap<>();
         body.add("file", new FileSystemResource(file));
         body.add("fileUri", fileUri);
@@ -76,8 +107,47 @@ public class LocalStorageClient {
         return this.endpoint + Const.LocalStorageURL.CENTER_LOCAL_STORAGE_DOWNLOAD + "/" + responseObject.getBody().getString("content");
     }
 
+    private boolean isFileStored(String fileUri, String md5) {
+        RestTemplate restTemplateHttps = RestTemplateConfig.getRestTemplateInstance();
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("Authorization", "Bearer " + token);
+        URI uri = UriComponentsBuilder.fromHttpUrl(this.endpoint + Const.LocalStorageURL.CENTER_LOCAL_STORAGE_UPLOAD_CHECK)
+                .queryParam("fileUri", fileUri).queryParam("md5", md5).build().encode().toUri();
+
+        ResponseEntity<JSONObject> responseObject = restTemplateHttps.exchange(uri, HttpMethod.GET, new HttpEntity<>(headers), JSONObject.class);
+        JSONObject result = checkResult(responseObject, fileUri);
+        return result.getBooleanValue("content");
+    }
+
+    private void streamUpload(File file, String fileUri, String md5) {
+        RestTemplate restTemplateHttps = RestTemplateConfig.getStreamingRestTemplateInstance();
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("Authorization", "Bearer " + token);
+        headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+        UriComponentsBuilder uriBuilder = UriComponentsBuilder.fromHttpUrl(this.endpoint + Const.LocalStorageURL.CENTER_LOCAL_STORAGE_STREAM_UPLOAD)
+                .queryParam("fileUri", fileUri);
+        if (md5 != null) {
+            // center rejects the content if it's corrupted on the way
+            uriBuilder.queryParam("md5", md5);
+        }
+
+        ResponseEntity<JSONObject> responseObject = restTemplateHttps.exchange(uriBuilder.build().encode().toUri(), HttpMethod.PUT,
+                new HttpEntity<>(new FileSystemResource(file), headers), JSONObject.class);
+        checkResult(responseObject, fileUri);
+    }
+
+    private static JSONObject checkResult(ResponseEntity<JSONObject> responseObject, String fileUri) {
+        JSONObject result = responseObject.getBody();
+        if (result == null || result.getIntValue("code") != HttpStatus.OK.value()) {
+            throw new HydraLabRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR.value(),
+                    "Storage request for " + fileUri + " failed: " + (result == null ? null : result.getString("message")));
+        }
+        return result;
+    }
+
     /**
      * Download a file from the local storage. If the file already exists, overwrite it.
+     * An interrupted transfer is resumed from the received bytes with a Range request, as long as the file on center is not changed.
      * <p>
      * //     * @param file
      * //     * @storageFileInfo
@@ -91,22 +161,77 @@ public class LocalStorageClient {
         }
 
         RestTemplate restTemplateHttps = RestTemplateConfig.getRestTemplateInstance();
+        String fileUri = storageFileInfo.getBlobContainer() + "/" + storageFileInfo.getBlobPath();
+        File partFile = new File(parentDirFile, file.getName() + PART_FILE_SUFFIX);
+        // a part left by another download can't be validated, start over
+        FileUtils.deleteQuietly(partFile);
+        DownloadProgress progress = new DownloadProgress();
+        for (int attempt = 0; ; attempt++) {
+            long receivedLength = partFile.length();
+            try {
+                restTemplateHttps.execute(this.getDownloadUrl(), HttpMethod.POST,
+                        restTemplateHttps.httpEntityCallback(createDownloadEntity(fileUri, receivedLength, progress.eTag)),
+                        response -> receiveToPartFile(response, partFile, progress));
+                if (progress.totalLength < 0 || partFile.length() == progress.totalLength) {
+                    break;
+                }
+                classLogger.warn("Download of {} ended at {} of {} bytes", fileUri, partFile.length(), progress.totalLength);
+            } catch (ResourceAccessException e) {
+                classLogger.warn("Download of {} interrupted at {} bytes", fileUri, partFile.length(), e);
+            } catch (HttpStatusCodeException e) {
+                if (e.getStatusCode() != HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE) {
+                    FileUtils.deleteQuietly(partFile);
+                    throw e;
+                }
+                // the file on center is shorter than the received part, start over
+                FileUtils.deleteQuietly(partFile);
+                progress.eTag = null;
+            }
+            if (attempt >= MAX_DOWNLOAD_RESUME_ATTEMPTS) {
+                FileUtils.deleteQuietly(partFile);
+                throw new HydraLabRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR.value(), "Download " + fileUri + " failed after " + attempt + " resumes");
+            }
+        }
+        try {
+            Files.move(partFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new HydraLabRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR.value(), "File stream downloaded, but saved to local failed.", e);
+        }
+    }
 
+    private HttpEntity<LinkedMultiValueMap<String, Object>> createDownloadEntity(String fileUri, long receivedLength, String eTag) {
         HttpHeaders headers = new HttpHeaders();
         headers.add("Authorization", "Bearer " + token);
         headers.add("Content-Type", MediaType.MULTIPART_FORM_DATA.toString());
+        if (receivedLength > 0 && eTag != null) {
+            headers.add(HttpHeaders.RANGE, "bytes=" + receivedLength + "-");
+            // center sends the whole file instead if it changed since the part was received
+            headers.add(HttpHeaders.IF_RANGE, eTag);
+        }
 
-        String fileUri = storageFileInfo.getBlobContainer() + "/" + storageFileInfo.getBlobPath();
         LinkedMultiValueMap<String, Object> body = new LinkedMultiValueMap<>();
         body.add("fileUri", fileUri);
-        HttpEntity<LinkedMultiValueMap<String, Object>> entity = new HttpEntity<>(body, headers);
+        return new HttpEntity<>(body, headers);
+    }
 
-        ResponseEntity<Resource> response = restTemplateHttps.exchange(this.getDownloadUrl(), HttpMethod.POST, entity, Resource.class);
-        try {
-            IOUtils.copy(response.getBody().getInputStream(), new FileOutputStream(file));
-        } catch (IOException e) {
-            throw new HydraLabRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR.value(), "File stream downloaded, but saved to local failed.", e);
+    private static Void receiveToPartFile(ClientHttpResponse response, File partFile, DownloadProgress progress) throws IOException {
+        HttpHeaders headers = response.getHeaders();
+        // a center without range support answers with the whole file
+        boolean append = response.getStatusCode() == HttpStatus.PARTIAL_CONTENT;
+        progress.eTag = headers.getETag();
+        progress.totalLength = append ? getTotalLength(headers.getFirst(HttpHeaders.CONTENT_RANGE)) : headers.getContentLength();
+        try (OutputStream outputStream = new FileOutputStream(partFile, append)) {
+            IOUtils.copyLarge(response.getBody(), outputStream);
         }
+        return null;
+    }
+
+    private static long getTotalLength(String contentRange) {
+        // bytes <start>-<end>/<total>
+        if (contentRange == null || contentRange.endsWith("/*")) {
+            return -1;
+        }
+        return Long.parseLong(contentRange.substring(contentRange.lastIndexOf('/') + 1).trim());
     }
 
     public String getUploadUrl() {
@@ -117,4 +242,8 @@ public class LocalStorageClient {
         return this.endpoint + Const.LocalStorageURL.CENTER_LOCAL_STORAGE_DOWNLOAD;
     }
 
+    private static class DownloadProgress {
+        private String eTag;
+        private long totalLength = -1;
+    }
 }
@@ -7,4 +7,14 @@ public interface LogCollector {
     String start();
     void stopAndAnalyse();
     boolean isCrashFound();
+
+    /**
+     * Set before start, to be called as soon as a crash is found while collecting.
+     */
+    default void setCrashListener(CrashListener crashListener) {
+    }
+
+    interface CrashListener {
+        void onCrashFound(String crashType, String crashStack);
+    }
 }
@@ -5,36 +5,49 @@ package com.microsoft.hydralab.common.logger.impl;
 import com.microsoft.hydralab.common.entity.common.DeviceInfo;
 import com.microsoft.hydralab.common.entity.common.TestRun;
 import com.microsoft.hydralab.common.logger.LogCollector;
-import com.microsoft.hydralab.common.util.ADBOperateUtil;
 import com.microsoft.hydralab.common.util.LogUtils;
+import com.microsoft.hydralab.common.util.ThreadPoolUtil;
+import com.microsoft.hydralab.common.util.ThreadUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.nio.charset.StandardCharsets;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
 public class ADBLogcatCollector implements LogCollector {
+    private static final String LOG_FILE_MAX_SIZE = "32MB";
+    private static final int LOG_FILE_MAX_INDEX = 20;
+    private static final int SUBSCRIPTION_BUFFER_SIZE = 20000;
     private final DeviceInfo connectedDevice;
     private final TestRun testRun;
     private final String pkgName;
     private final Logger infoLogger;
-    ADBOperateUtil adbOperateUtil;
+    private final LogcatMultiplexer logcatMultiplexer;
     private boolean started;
     private String loggerFilePath;
+    private LogcatMultiplexer.Subscription subscription;
+    private Thread logcatThread;
+    private CrashListener crashListener;
+    private final StringBuilder crashLines = new StringBuilder();
 
-    public ADBLogcatCollector(ADBOperateUtil adbOperateUtil, DeviceInfo deviceInfo, String pkgName, TestRun testRun, Logger logger) {
-        this.adbOperateUtil = adbOperateUtil;
+    public ADBLogcatCollector(LogcatMultiplexer logcatMultiplexer, DeviceInfo deviceInfo, String pkgName, TestRun testRun, Logger logger) {
+        this.logcatMultiplexer = logcatMultiplexer;
         this.connectedDevice = deviceInfo;
         this.testRun = testRun;
         this.pkgName = pkgName;
         this.infoLogger = logger;
     }
 
+    @Override
+    public void setCrashListener(CrashListener crashListener) {
+        this.crashListener = crashListener;
+    }
+
+    /**
+     * Tail the shared logcat stream of the device to the rolling log file for the whole run,
+     * so the beginning is not lost when the ring buffer of the device overflows.
+     */
     @Override
     public String start() {
         if (started) {
@@ -42,72 +55,75 @@ public class ADBLogcatCollector implements LogCollector {
         }
         started = true;
         loggerFilePath = new File(testRun.getResultFolder(), "logcat.log").getAbsolutePath();
-        runCommand("logcat -G 48M");
-        runCommand("logcat -c");
+        LogcatMultiplexer.Subscription logcatSubscription = logcatMultiplexer.subscribe(LogcatMultiplexer.LogcatFilter.all(), SUBSCRIPTION_BUFFER_SIZE, 0);
+        subscription = logcatSubscription;
+        logcatThread = ThreadPoolUtil.newDeviceThread("LogcatCollector-" + connectedDevice.getSerialNum(), () -> collectLogcat(logcatSubscription));
+        logcatThread.start();
         return loggerFilePath;
     }
 
-    private void runCommand(String comm) {
-        Process process = null;
+    private void collectLogcat(LogcatMultiplexer.Subscription logcatSubscription) {
+        Logger logger = LogUtils.getLoggerWithSizeRollingFileAppender(
+                LOGGER_PREFIX + "logcat_" + connectedDevice.getSerialNum(),
+                loggerFilePath,
+                "%logger{0}>> %m%n", LOG_FILE_MAX_SIZE, LOG_FILE_MAX_INDEX);
+        LogcatCrashDetector crashDetector = new LogcatCrashDetector(pkgName);
         try {
-            process = adbOperateUtil.executeDeviceCommandOnPC(connectedDevice, comm, infoLogger);
-            process.waitFor(3, TimeUnit.SECONDS);
-
-        } catch (Exception e) {
-            e.printStackTrace();
+            while (!logcatSubscription.isDrained()) {
+                String line = logcatSubscription.poll(1, TimeUnit.SECONDS);
+                if (line == null) {
+                    continue;
+                }
+                onCrashFound(crashDetector.processLine(line));
+                logger.info(line);
+            }
+        } catch (InterruptedException e) {
+            infoLogger.warn("Logcat of {} is interrupted: {}", connectedDevice.getSerialNum(), e.getMessage());
         } finally {
-            if (process != null) {
-                process.destroy();
+            if (logcatSubscription.getDroppedCount() > 0) {
+                infoLogger.warn("{} lines dropped from logcat of {} as the file writing fell behind",
+                        logcatSubscription.getDroppedCount(), connectedDevice.getSerialNum());
             }
+            onCrashFound(crashDetector.flush());
+            LogUtils.releaseLogger(logger);
+        }
+    }
+
+    private void onCrashFound(LogcatCrashDetector.Crash crash) {
+        if (crash == null) {
+            return;
+        }
+        infoLogger.warn("{} found in logcat of {}", crash.type, connectedDevice.getSerialNum());
+        String crashStack;
+        synchronized (crashLines) {
+            crashLines.append(crash.stack);
+            crashStack = crashLines.toString();
+        }
+        if (testRun.getCrashStackId() == null) {
+            testRun.setCrashStackId(UUID.randomUUID().toString());
+        }
+        testRun.setCrashStack(crashStack);
+        if (crashListener != null) {
+            crashListener.onCrashFound(crash.type.name(), crash.stack);
         }
     }
 
     @Override
     public void stopAndAnalyse() {
         started = false;
-        Logger logger = LogUtils.getLoggerWithRollingFileAppender(
-                LOGGER_PREFIX + "logcat_" + connectedDevice.getSerialNum(),
-                loggerFilePath,
-                "%logger{0}>> %m%n");
-        Process process = null;
+        if (subscription == null) {
+            return;
+        }
+        // let the lines logged right before the stop reach the file
+        ThreadUtils.safeSleep(1000);
+        subscription.close();
         try {
-            // AlarmManager:S System:S
-            process = adbOperateUtil.executeDeviceCommandOnPC(connectedDevice, "logcat -d Finsky:S MirrorLink:S *:D", infoLogger);
-
-            try (BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
-                String line;
-                boolean collectCrash = false;
-                StringBuilder crashLines = new StringBuilder();
-                while ((line = bufferedReader.readLine()) != null) {
-                    if (collectCrash) {
-                        if (!line.contains(" E ") && !line.contains(" F ")) {
-                            collectCrash = false;
-                        } else {
-                            if (line.contains(pkgName)) {
-                                crashLines.append("<b>").append(line).append("</b>").append("\n");
-                            } else {
-                                crashLines.append(line).append("\n");
-                            }
-                        }
-                    }
-                    if (line.contains("beginning of crash") || line.contains("AndroidRuntime: FATAL EXCEPTION")) {
-                        collectCrash = true;
-                    }
-                    logger.info(line);
-                }
-                if (crashLines.length() > 0) {
-                    testRun.setCrashStack(crashLines.toString());
-                    testRun.setCrashStackId(UUID.randomUUID().toString());
-                }
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            if (process != null) {
-                process.destroy();
-            }
-            LogUtils.releaseLogger(logger);
+            logcatThread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        subscription = null;
+        logcatThread = null;
     }
 
     @Override
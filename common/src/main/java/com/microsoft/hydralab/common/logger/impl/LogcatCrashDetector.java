@@ -0,0 +1,101 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.hydralab.common.logger.impl;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the crashes in logcat lines of the threadtime format as they come, a crash ends with the first line below the error priority.
+ */
+public class LogcatCrashDetector {
+    private static final Pattern CRASH_PATTERN = Pattern.compile("(?<javaCrash>AndroidRuntime: FATAL EXCEPTION)|(?<anr>ANR in )|(?<nativeCrash>Fatal signal \\d+)");
+    // date time pid tid priority tag: message
+    private static final Pattern PRIORITY_PATTERN = Pattern.compile("^\\S+\\s+\\S+\\s+\\d+\\s+\\d+\\s+([VDIWEFA])\\s");
+    private final Matcher crashMatcher = CRASH_PATTERN.matcher("");
+    private final Matcher priorityMatcher = PRIORITY_PATTERN.matcher("");
+    private final String pkgName;
+    private CrashType ongoingCrashType;
+    private StringBuilder ongoingCrashLines;
+
+    public LogcatCrashDetector(String pkgName) {
+        this.pkgName = pkgName;
+    }
+
+    /**
+     * @return the crash ended by the line, null if no crash ends here
+     */
+    public Crash processLine(String line) {
+        if (ongoingCrashType != null) {
+            if (isErrorLine(line)) {
+                appendCrashLine(line);
+                return null;
+            }
+            Crash crash = flush();
+            startCrash(line);
+            return crash;
+        }
+        startCrash(line);
+        return null;
+    }
+
+    /**
+     * @return the ongoing crash, e.g. when the log ends, null if there is none
+     */
+    public Crash flush() {
+        if (ongoingCrashType == null) {
+            return null;
+        }
+        Crash crash = new Crash(ongoingCrashType, ongoingCrashLines.toString());
+        ongoingCrashType = null;
+        ongoingCrashLines = null;
+        return crash;
+    }
+
+    private void startCrash(String line) {
+        if (!crashMatcher.reset(line).find()) {
+            return;
+        }
+        if (crashMatcher.group("javaCrash") != null) {
+            ongoingCrashType = CrashType.JAVA_CRASH;
+        } else if (crashMatcher.group("anr") != null) {
+            ongoingCrashType = CrashType.ANR;
+        } else {
+            ongoingCrashType = CrashType.NATIVE_CRASH;
+        }
+        ongoingCrashLines = new StringBuilder();
+        appendCrashLine(line);
+    }
+
+    private void appendCrashLine(String line) {
+        if (pkgName != null && line.contains(pkgName)) {
+            ongoingCrashLines.append("<b>").append(line).append("</b>").append("\n");
+        } else {
+            ongoingCrashLines.append(line).append("\n");
+        }
+    }
+
+    private boolean isErrorLine(String line) {
+        if (!priorityMatcher.reset(line).find()) {
+            return false;
+        }
+        char priority = priorityMatcher.group(1).charAt(0);
+        return priority == 'E' || priority == 'F' || priority == 'A';
+    }
+
+    public enum CrashType {
+        JAVA_CRASH,
+        ANR,
+        NATIVE_CRASH
+    }
+
+    public static class Crash {
+        public final CrashType type;
+        public final String stack;
+
+        public Crash(CrashType type, String stack) {
+            this.type = type;
+            this.stack = stack;
+        }
+    }
+}
@@ -0,0 +1,319 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.hydralab.common.logger.impl;
+
+import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.MultiLineReceiver;
+import com.android.ddmlib.ShellCommandUnresponsiveException;
+import com.android.ddmlib.TimeoutException;
+import com.microsoft.hydralab.common.entity.common.DeviceInfo;
+import com.microsoft.hydralab.common.util.ADBOperateUtil;
+import com.microsoft.hydralab.common.util.ThreadPoolUtil;
+import com.microsoft.hydralab.common.util.ThreadUtils;
+import org.slf4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * One logcat stream of a device shared by all the log consumers on the agent, instead of an adb process and reader threads for each of them.
+ * The subscribers get the lines matching their filters, and the latest lines are kept so a subscriber can replay them.
+ * The stream runs while there is a subscriber, it starts from the latest line and goes on from the last line seen when it is restarted.
+ */
+public class LogcatMultiplexer {
+    private static final String LOGCAT_COMMAND = "logcat -v threadtime -T %s Finsky:S MirrorLink:S *:D";
+    private static final int RING_SIZE = 5000;
+    private static final long RESTART_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    private static final Pattern TIMESTAMP_PATTERN = Pattern.compile("^\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2}\\.\\d{3}");
+    // date time pid tid priority tag: message
+    private static final Pattern THREADTIME_PATTERN = Pattern.compile("^\\S+\\s+\\S+\\s+(\\d+)\\s+\\d+\\s+[VDIWEFA]\\s+(.*?)\\s*: ");
+    private static final Pattern START_PROC_PATTERN = Pattern.compile("Start proc (\\d+):([^/\\s]+)");
+    private final ADBOperateUtil adbOperateUtil;
+    private final DeviceInfo deviceInfo;
+    private final Logger logger;
+    private final Deque<String> ring = new ArrayDeque<>(RING_SIZE);
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final Matcher threadtimeMatcher = THREADTIME_PATTERN.matcher("");
+    private final Matcher startProcMatcher = START_PROC_PATTERN.matcher("");
+    private final Matcher timestampMatcher = TIMESTAMP_PATTERN.matcher("");
+    // the timestamp of the latest line and the count of the lines with it, logcat prints them again when restarted from the timestamp
+    private String lastTimestamp;
+    private int lastTimestampLineCount;
+    private int repeatedLineCount;
+    long restartIntervalMillis = RESTART_INTERVAL_MILLIS;
+    private volatile Thread streamThread;
+    private volatile boolean running;
+
+    public LogcatMultiplexer(ADBOperateUtil adbOperateUtil, DeviceInfo deviceInfo, Logger logger) {
+        this.adbOperateUtil = adbOperateUtil;
+        this.deviceInfo = deviceInfo;
+        this.logger = logger;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        streamThread = ThreadPoolUtil.newDeviceThread("LogcatMultiplexer-" + deviceInfo.getSerialNum(), this::stream);
+        streamThread.start();
+    }
+
+    /**
+     * Stop the stream e.g. when the device is offline, the subscriptions are kept for the stream to be started again.
+     */
+    public synchronized void stop() {
+        running = false;
+        streamThread = null;
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    public boolean hasSubscriptions() {
+        return !subscriptions.isEmpty();
+    }
+
+    /**
+     * Start the stream if it is the first subscription.
+     *
+     * @param bufferSize  lines buffered for the subscriber, the oldest ones are dropped if it falls behind so the stream is never blocked
+     * @param replayCount count of the latest lines before the subscription to replay, the ones matching the filter are delivered first
+     */
+    public Subscription subscribe(LogcatFilter filter, int bufferSize, int replayCount) {
+        if (filter.pkgName != null) {
+            int pid = adbOperateUtil.getPackagePid(deviceInfo, filter.pkgName, logger);
+            if (pid > 0) {
+                filter.packagePids.add(pid);
+            }
+        }
+        Subscription subscription = new Subscription(filter, bufferSize);
+        synchronized (this) {
+            synchronized (ring) {
+                int skipCount = Math.max(0, ring.size() - replayCount);
+                for (String line : ring) {
+                    if (skipCount > 0) {
+                        skipCount--;
+                        continue;
+                    }
+                    dispatch(line, subscription);
+                }
+                subscriptions.add(subscription);
+            }
+            start();
+        }
+        return subscription;
+    }
+
+    private synchronized void unsubscribe(Subscription subscription) {
+        subscriptions.remove(subscription);
+        if (!subscriptions.isEmpty()) {
+            return;
+        }
+        stop();
+        // the next subscriber starts from the latest line, not from the ones logged while there was no subscriber
+        synchronized (ring) {
+            ring.clear();
+            lastTimestamp = null;
+            lastTimestampLineCount = 0;
+        }
+    }
+
+    /**
+     * Start from the latest line instead of the whole buffer of the device, or from the last line seen when the stream is restarted,
+     * the lines of its timestamp which are printed again are skipped.
+     */
+    String buildLogcatCommand() {
+        synchronized (ring) {
+            if (lastTimestamp == null) {
+                return String.format(LOGCAT_COMMAND, "1");
+            }
+            repeatedLineCount = lastTimestampLineCount;
+            return String.format(LOGCAT_COMMAND, "'" + lastTimestamp + "'");
+        }
+    }
+
+    private void stream() {
+        LogcatReceiver receiver = new LogcatReceiver();
+        while (running && Thread.currentThread() == streamThread) {
+            try {
+                // no timeout as the stream lasts until it is cancelled
+                adbOperateUtil.executeShellCommandOnDevice(deviceInfo, buildLogcatCommand(), receiver, 0, 0);
+            } catch (TimeoutException | AdbCommandRejectedException | ShellCommandUnresponsiveException | IOException | IllegalArgumentException e) {
+                logger.warn("Logcat stream of {} is broken: {} {}", deviceInfo.getSerialNum(), e.getClass().getName(), e.getMessage());
+            }
+            if (running && Thread.currentThread() == streamThread) {
+                ThreadUtils.safeSleep(restartIntervalMillis);
+            }
+        }
+        logger.info("Logcat stream of {} is stopped", deviceInfo.getSerialNum());
+    }
+
+    private void onLine(String line) {
+        synchronized (ring) {
+            if (timestampMatcher.reset(line).find()) {
+                String timestamp = timestampMatcher.group();
+                if (!timestamp.equals(lastTimestamp)) {
+                    lastTimestamp = timestamp;
+                    lastTimestampLineCount = 0;
+                    repeatedLineCount = 0;
+                } else if (repeatedLineCount > 0) {
+                    repeatedLineCount--;
+                    return;
+                }
+                lastTimestampLineCount++;
+            }
+            if (ring.size() == RING_SIZE) {
+                ring.poll();
+            }
+            ring.add(line);
+            if (startProcMatcher.reset(line).find()) {
+                onProcessStarted(Integer.parseInt(startProcMatcher.group(1)), startProcMatcher.group(2));
+            }
+            for (Subscription subscription : subscriptions) {
+                dispatch(line, subscription);
+            }
+        }
+    }
+
+    private void onProcessStarted(int pid, String processName) {
+        for (Subscription subscription : subscriptions) {
+            String pkgName = subscription.filter.pkgName;
+            if (pkgName != null && (processName.equals(pkgName) || processName.startsWith(pkgName + ":"))) {
+                subscription.filter.packagePids.add(pid);
+            }
+        }
+    }
+
+    private void dispatch(String line, Subscription subscription) {
+        LogcatFilter filter = subscription.filter;
+        if (filter.tag == null && filter.pid <= 0 && filter.pkgName == null) {
+            subscription.offer(line);
+            return;
+        }
+        if (!threadtimeMatcher.reset(line).find()) {
+            return;
+        }
+        int pid = Integer.parseInt(threadtimeMatcher.group(1));
+        if (filter.tag != null && !filter.tag.equals(threadtimeMatcher.group(2))) {
+            return;
+        }
+        if (filter.pid > 0 && filter.pid != pid) {
+            return;
+        }
+        if (filter.pkgName != null && !filter.packagePids.contains(pid)) {
+            return;
+        }
+        subscription.offer(line);
+    }
+
+    private class LogcatReceiver extends MultiLineReceiver {
+        @Override
+        public void processNewLines(String[] lines) {
+            // the lines of a stream which is replaced by a restarted one are left to it
+            if (isCancelled()) {
+                return;
+            }
+            for (String line : lines) {
+                onLine(line);
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return !running || Thread.currentThread() != streamThread;
+        }
+    }
+
+    /**
+     * The lines of a tag, a process, or the processes of a package, no condition for all the lines.
+     */
+    public static final class LogcatFilter {
+        private final String tag;
+        private final int pid;
+        private final String pkgName;
+        private final Set<Integer> packagePids = ConcurrentHashMap.newKeySet();
+
+        private LogcatFilter(String tag, int pid, String pkgName) {
+            this.tag = tag;
+            this.pid = pid;
+            this.pkgName = pkgName;
+        }
+
+        public static LogcatFilter all() {
+            return new LogcatFilter(null, 0, null);
+        }
+
+        public static LogcatFilter ofTag(String tag) {
+            return new LogcatFilter(tag, 0, null);
+        }
+
+        public static LogcatFilter ofPid(int pid) {
+            return new LogcatFilter(null, pid, null);
+        }
+
+        public static LogcatFilter ofPackage(String pkgName) {
+            return new LogcatFilter(null, 0, pkgName);
+        }
+    }
+
+    public final class Subscription implements Closeable {
+        private final LogcatFilter filter;
+        private final BlockingQueue<String> lines;
+        private final AtomicLong droppedCount = new AtomicLong();
+        private volatile boolean closed;
+
+        private Subscription(LogcatFilter filter, int bufferSize) {
+            this.filter = filter;
+            this.lines = new ArrayBlockingQueue<>(bufferSize);
+        }
+
+        private void offer(String line) {
+            while (!lines.offer(line)) {
+                if (lines.poll() != null) {
+                    droppedCount.incrementAndGet();
+                }
+            }
+        }
+
+        /**
+         * @return the next line, null if there is none in the timeout
+         */
+        public String poll(long timeout, TimeUnit unit) throws InterruptedException {
+            return lines.poll(timeout, unit);
+        }
+
+        /**
+         * @return true if the subscription is closed and all its lines are taken
+         */
+        public boolean isDrained() {
+            return closed && lines.isEmpty();
+        }
+
+        public long getDroppedCount() {
+            return droppedCount.get();
+        }
+
+        /**
+         * Stop the stream if it is the last subscription.
+         */
+        @Override
+        public void close() {
+            closed = true;
+            unsubscribe(this);
+        }
+    }
+}
@@ -29,6 +29,7 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
@@ -53,11 +54,23 @@ public class AgentManagementService {
     protected EnvInfo envInfo;
     private List<AgentFunctionAvailability> functionAvailabilities = new ArrayList<>();
     private String testTempFilePath;
+    private volatile long deviceListViewTimeMillis;
 
     public List<AgentFunctionAvailability> getFunctionAvailabilities() {
         return functionAvailabilities;
     }
 
+    /**
+     * Called when center asks for the device list on behalf of a user opening or refreshing the device page.
+     */
+    public void markDeviceListViewed() {
+        deviceListViewTimeMillis = System.currentTimeMillis();
+    }
+
+    public boolean isDeviceListViewedRecently() {
+        return System.currentTimeMillis() - deviceListViewTimeMillis < TimeUnit.MINUTES.toMillis(1);
+    }
+
     public EnvInfo getEnvInfo() {
         return envInfo;
     }
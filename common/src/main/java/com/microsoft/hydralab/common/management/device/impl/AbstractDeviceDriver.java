@@ -18,6 +18,7 @@ import com.microsoft.hydralab.common.management.AppiumServerManager;
 import com.microsoft.hydralab.common.management.device.DeviceDriver;
 import com.microsoft.hydralab.common.network.NetworkMonitor;
 import com.microsoft.hydralab.common.screen.ScreenRecorder;
+import com.microsoft.hydralab.common.util.ImageUtil;
 import com.microsoft.hydralab.common.util.LogUtils;
 import com.microsoft.hydralab.common.util.ShellUtils;
 import org.jetbrains.annotations.NotNull;
@@ -26,9 +27,14 @@ import org.openqa.selenium.WebDriver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.util.Assert;
+import org.springframework.util.DigestUtils;
 import org.springframework.util.StringUtils;
 
+import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -37,9 +43,19 @@ import java.util.concurrent.TimeUnit;
 
 public abstract class AbstractDeviceDriver implements DeviceDriver {
     static final Logger classLogger = LoggerFactory.getLogger(AbstractDeviceDriver.class);
+    private static final long ACTIVE_SCREENSHOT_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    // idle interval grows up to wakeUpInterval * 2^MAX_SCREENSHOT_BACKOFF
+    private static final int MAX_SCREENSHOT_BACKOFF = 3;
+    // upload an unchanged screen now and then anyway, in case the stored one is gone
+    private static final long SCREENSHOT_REUPLOAD_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(30);
+    private static final int SCREENSHOT_SUBSAMPLING_STEP = 4;
+    private static final int SCREENSHOT_TILE_GRID_SIZE = 32;
+    private static final int SCREENSHOT_LUMINANCE_TOLERANCE = 3;
     protected AgentManagementService agentManagementService;
     protected AppiumServerManager appiumServerManager;
     protected ConcurrentMap<String, Boolean> rebootDeviceMap = new ConcurrentHashMap<>();
+    // save screenshot state <deviceSerial, screenshotState> to skip uploading the same screen and adapt the capture interval
+    protected ConcurrentMap<String, ScreenshotState> screenshotStateMap = new ConcurrentHashMap<>();
 
     public AbstractDeviceDriver(AgentManagementService agentManagementService,
                                 AppiumServerManager appiumServerManager) {
@@ -72,7 +88,19 @@ public abstract class AbstractDeviceDriver implements DeviceDriver {
         try {
             screenCapture(deviceInfo, screenShotImageFile.getAbsolutePath(), logger);
         } catch (Exception e) {
+            // the file on disk is the previous screen, neither compare nor upload it
             classLogger.error("Screen capture failed for device: {}", deviceInfo, e);
+            return screenShotImageFile;
+        }
+        if (!screenShotImageFile.exists()) {
+            classLogger.warn("Screen capture of device {} produced no file", deviceInfo.getName());
+            return screenShotImageFile;
+        }
+        ScreenshotState screenshotState = screenshotStateMap.computeIfAbsent(deviceInfo.getSerialNum(), serial -> new ScreenshotState());
+        if (!isScreenChanged(screenshotState, screenShotImageFile) && !StringUtils.isEmpty(deviceInfo.getScreenshotImageUrl())
+                && System.currentTimeMillis() - screenshotState.uploadTimeMillis < SCREENSHOT_REUPLOAD_INTERVAL_MILLIS) {
+            classLogger.debug("Screen of device {} is not changed, skip uploading the screenshot", deviceInfo.getName());
+            return screenShotImageFile;
         }
         StorageFileInfo fileInfo = new StorageFileInfo(screenShotImageFile,
                 "device/screenshots/" + screenShotImageFile.getName(), StorageFileInfo.FileType.SCREENSHOT, EntityType.SCREENSHOT);
@@ -81,6 +109,7 @@ public abstract class AbstractDeviceDriver implements DeviceDriver {
             classLogger.warn("Screenshot download url is empty for device {}", deviceInfo.getName());
         } else {
             deviceInfo.setScreenshotImageUrl(fileDownloadUrl);
+            screenshotState.markUploaded();
         }
         return screenShotImageFile;
     }
@@ -95,9 +124,10 @@ public abstract class AbstractDeviceDriver implements DeviceDriver {
         } else if (batteryStrategy.wakeUpInterval > 0) {
             synchronized (deviceInfo.getLock()) {
                 long now = System.currentTimeMillis();
-                if (now - deviceInfo.getScreenshotUpdateTimeMilli() <
-                        TimeUnit.SECONDS.toMillis(batteryStrategy.wakeUpInterval)) {
-                    classLogger.warn("skip screen shot for too short interval {}", deviceInfo.getName());
+                long interval = getScreenShotInterval(deviceInfo, batteryStrategy);
+                if (now - deviceInfo.getScreenshotUpdateTimeMilli() < interval) {
+                    classLogger.warn("skip screen shot for too short interval {}, current interval {}s", deviceInfo.getName(),
+                            TimeUnit.MILLISECONDS.toSeconds(interval));
                     return screenshotImageFile;
                 }
                 getScreenShot(deviceInfo, logger);
@@ -106,6 +136,57 @@ public abstract class AbstractDeviceDriver implements DeviceDriver {
         return screenshotImageFile;
     }
 
+    /**
+     * Capture more often while a test is running on the device or a user is looking at the device list,
+     * and back off while the screen of an idle device stays the same.
+     */
+    protected long getScreenShotInterval(@NotNull DeviceInfo deviceInfo, @NotNull AgentUser.BatteryStrategy batteryStrategy) {
+        long interval = TimeUnit.SECONDS.toMillis(batteryStrategy.wakeUpInterval);
+        if (deviceInfo.isTesting() || agentManagementService.isDeviceListViewedRecently()) {
+            return Math.min(interval, ACTIVE_SCREENSHOT_INTERVAL_MILLIS);
+        }
+        ScreenshotState screenshotState = screenshotStateMap.get(deviceInfo.getSerialNum());
+        int backoff = screenshotState == null ? 0 : Math.min(screenshotState.unchangedCount, MAX_SCREENSHOT_BACKOFF);
+        return interval << backoff;
+    }
+
+    /**
+     * The capture is compared with the last uploaded screen rather than the previous capture, so a slow drift is uploaded once it adds up.
+     * An idle screen is usually encoded to the same bytes, which is told by the file hash without decoding the image.
+     * Only a capture with different bytes is decoded, at a reduced resolution, to tell a real change from encoding noise.
+     */
+    private boolean isScreenChanged(ScreenshotState screenshotState, File screenShotImageFile) {
+        String fileHash = null;
+        try (InputStream inputStream = new FileInputStream(screenShotImageFile)) {
+            fileHash = DigestUtils.md5DigestAsHex(inputStream);
+        } catch (IOException e) {
+            classLogger.warn("Failed to hash screenshot {}", screenShotImageFile.getName(), e);
+        }
+        synchronized (screenshotState) {
+            screenshotState.capturedFileHash = fileHash;
+            if (fileHash != null && fileHash.equals(screenshotState.uploadedFileHash)) {
+                screenshotState.capturedTileLuminance = screenshotState.uploadedTileLuminance;
+                screenshotState.unchangedCount++;
+                return false;
+            }
+        }
+        int[] tileLuminance = null;
+        try {
+            BufferedImage image = ImageUtil.readSubsampledImage(screenShotImageFile, SCREENSHOT_SUBSAMPLING_STEP);
+            if (image != null) {
+                tileLuminance = ImageUtil.getTileLuminance(image, SCREENSHOT_TILE_GRID_SIZE);
+            }
+        } catch (IOException e) {
+            classLogger.warn("Failed to read screenshot {}", screenShotImageFile.getName(), e);
+        }
+        synchronized (screenshotState) {
+            boolean changed = !ImageUtil.isTileLuminanceSimilar(screenshotState.uploadedTileLuminance, tileLuminance, SCREENSHOT_LUMINANCE_TOLERANCE);
+            screenshotState.capturedTileLuminance = tileLuminance;
+            screenshotState.unchangedCount = changed ? 0 : screenshotState.unchangedCount + 1;
+            return changed;
+        }
+    }
+
     public abstract void wakeUpDevice(@NotNull DeviceInfo deviceInfo, @Nullable Logger logger);
 
     public abstract void unlockDevice(@NotNull DeviceInfo deviceInfo, @Nullable Logger logger);
@@ -221,4 +302,20 @@ public abstract class AbstractDeviceDriver implements DeviceDriver {
     }
 
     abstract public void rebootDevice(DeviceInfo deviceInfo, Logger logger);
-}
\ No newline at end of file
+
+    protected static class ScreenshotState {
+        // fingerprint of the latest capture, and of the last uploaded one
+        private String capturedFileHash;
+        private int[] capturedTileLuminance;
+        private String uploadedFileHash;
+        private int[] uploadedTileLuminance;
+        private volatile int unchangedCount;
+        private volatile long uploadTimeMillis;
+
+        private synchronized void markUploaded() {
+            uploadedFileHash = capturedFileHash;
+            uploadedTileLuminance = capturedTileLuminance;
+            uploadTimeMillis = System.currentTimeMillis();
+        }
+    }
+}
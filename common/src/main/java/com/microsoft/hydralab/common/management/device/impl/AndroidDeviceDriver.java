@@ -3,7 +3,6 @@
 
 package com.microsoft.hydralab.common.management.device.impl;
 
-import cn.hutool.core.img.ImgUtil;
 import cn.hutool.core.lang.Assert;
 import com.android.ddmlib.AndroidDebugBridge;
 import com.android.ddmlib.IDevice;
@@ -18,6 +17,7 @@ import com.microsoft.hydralab.common.entity.common.TestTask;
 import com.microsoft.hydralab.common.logger.MultiLineNoCancelLoggingReceiver;
 import com.microsoft.hydralab.common.logger.MultiLineNoCancelReceiver;
 import com.microsoft.hydralab.common.logger.impl.ADBLogcatCollector;
+import com.microsoft.hydralab.common.logger.impl.LogcatMultiplexer;
 import com.microsoft.hydralab.common.management.AgentManagementService;
 import com.microsoft.hydralab.common.management.AppiumServerManager;
 import com.microsoft.hydralab.common.management.device.DeviceType;
@@ -28,6 +28,7 @@ import com.microsoft.hydralab.common.screen.PhoneAppScreenRecorder;
 import com.microsoft.hydralab.common.screen.ScreenRecorder;
 import com.microsoft.hydralab.common.util.ADBOperateUtil;
 import com.microsoft.hydralab.common.util.HydraLabRuntimeException;
+import com.microsoft.hydralab.common.util.RawImageJpegEncoder;
 import com.microsoft.hydralab.common.util.ThreadUtils;
 import net.dongliu.apk.parser.ApkFile;
 import net.dongliu.apk.parser.bean.ApkMeta;
@@ -42,16 +43,19 @@ import org.jsoup.select.Elements;
 import org.openqa.selenium.WebDriver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.util.DigestUtils;
 
-import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 import static com.android.ddmlib.IDevice.CHANGE_BUILD_INFO;
@@ -74,6 +78,10 @@ public class AndroidDeviceDriver extends AbstractDeviceDriver {
     public static final String KEYCODE_HOME = "KEYCODE_HOME";
     static final Logger classLogger = LoggerFactory.getLogger(AndroidDeviceDriver.class);
     private final Map<String, DeviceInfo> adbDeviceInfoMap = new HashMap<>();
+    // the apks last installed by the agent <serialNum, <packageName, installedApk>>, to skip installing the same build again
+    private final Map<String, Map<String, InstalledApk>> installedApkMap = new ConcurrentHashMap<>();
+    // the logcat stream of each device shared by the log collectors <serialNum, logcatMultiplexer>
+    private final Map<String, LogcatMultiplexer> logcatMultiplexerMap = new ConcurrentHashMap<>();
     private static final int MAJOR_ADB_VERSION = 1;
     private static final int MINOR_ADB_VERSION = -1;
     ADBOperateUtil adbOperateUtil;
@@ -91,6 +99,7 @@ public class AndroidDeviceDriver extends AbstractDeviceDriver {
                         return;
                     }
                     if (DeviceState.ONLINE.equals(device.getState())) {
+                        resumeLogcatMultiplexer(device.getSerialNumber());
                         agentManagementService.getDeviceStatusListenerManager().onDeviceConnected(deviceInfo);
                     } else {
                         agentManagementService.getDeviceStatusListenerManager().onDeviceInactive(deviceInfo);
@@ -107,6 +116,8 @@ public class AndroidDeviceDriver extends AbstractDeviceDriver {
                         return;
                     }
 
+                    installedApkMap.remove(device.getSerialNumber());
+                    pauseLogcatMultiplexer(device.getSerialNumber());
                     agentManagementService.getDeviceStatusListenerManager().onDeviceInactive(deviceInfo);
                     appiumServerManager.quitAndroidDriver(deviceInfo, classLogger);
                 }
@@ -134,8 +145,11 @@ public class AndroidDeviceDriver extends AbstractDeviceDriver {
                     }
 
                     if (DeviceState.ONLINE.equals(device.getState())) {
+                        resumeLogcatMultiplexer(device.getSerialNumber());
                         agentManagementService.getDeviceStatusListenerManager().onDeviceConnected(deviceInfo);
                     } else {
+                        installedApkMap.remove(device.getSerialNumber());
+                        pauseLogcatMultiplexer(device.getSerialNumber());
                         agentManagementService.getDeviceStatusListenerManager().onDeviceInactive(deviceInfo);
                     }
                 }
@@ -318,7 +332,7 @@ public class AndroidDeviceDriver extends AbstractDeviceDriver {
     public boolean installApp(DeviceInfo deviceInfo, String packagePath, String extraArgs, @Nullable Logger logger) {
         File apk = new File(packagePath);
         Assert.isTrue(apk.exists(), "apk not exist!!");
-        return adbOperateUtil.installApp(deviceInfo, apk.getAbsolutePath(), true, "-t -d -g" + (extraArgs.isBlank() ? "" : " " + extraArgs), logger);
+        return installAppIfChanged(deviceInfo, apk, "-t -d -g" + (extraArgs.isBlank() ? "" : " " + extraArgs), logger);
     }
 
     @Override
@@ -333,16 +347,76 @@ public class AndroidDeviceDriver extends AbstractDeviceDriver {
     public boolean installApp(DeviceInfo deviceInfo, String packagePath, @Nullable Logger logger) {
         File apk = new File(packagePath);
         Assert.isTrue(apk.exists(), "apk not exist!!");
-        return adbOperateUtil.installApp(deviceInfo, apk.getAbsolutePath(), true, "-t -d -g", logger);
+        return installAppIfChanged(deviceInfo, apk, "-t -d -g", logger);
+    }
+
+    /**
+     * Skip the install if the agent installed the same apk with the same args last time and the package on the device is still that one.
+     * Uninstalling or clearing the package by the agent forgets it, so the next install is never skipped.
+     */
+    private boolean installAppIfChanged(DeviceInfo deviceInfo, File apk, String installArgs, @Nullable Logger logger) {
+        Logger myLogger = logger == null ? classLogger : logger;
+        Map<String, InstalledApk> installedApks = installedApkMap.computeIfAbsent(deviceInfo.getSerialNum(), k -> new ConcurrentHashMap<>());
+        InstalledApk apkToInstall = InstalledApk.parse(apk, installArgs, myLogger);
+        if (apkToInstall != null) {
+            InstalledApk installedApk = installedApks.remove(apkToInstall.packageName);
+            if (apkToInstall.isSameBuild(installedApk)
+                    && installedApk.lastUpdateTime.equals(getPackageLastUpdateTime(deviceInfo, apkToInstall.packageName, apkToInstall.versionCode, myLogger))) {
+                myLogger.info("Skip installing {}, the same build of {} is installed on {}", apk.getName(), apkToInstall.packageName, deviceInfo.getSerialNum());
+                installedApks.put(apkToInstall.packageName, installedApk);
+                return true;
+            }
+        }
+        boolean installed = adbOperateUtil.installApp(deviceInfo, apk.getAbsolutePath(), true, installArgs, logger);
+        if (installed && apkToInstall != null) {
+            apkToInstall.lastUpdateTime = getPackageLastUpdateTime(deviceInfo, apkToInstall.packageName, apkToInstall.versionCode, myLogger);
+            if (apkToInstall.lastUpdateTime != null) {
+                installedApks.put(apkToInstall.packageName, apkToInstall);
+            }
+        }
+        return installed;
+    }
+
+    /**
+     * @return the last update time of the package by dumpsys, null if the package with the version code is not installed
+     */
+    private String getPackageLastUpdateTime(DeviceInfo deviceInfo, String packageName, long versionCode, Logger logger) {
+        String[] versionCodeAndUpdateTime = new String[2];
+        adbOperateUtil.execOnDevice(deviceInfo, "dumpsys package " + packageName, new MultiLineNoCancelReceiver() {
+            @Override
+            public void processNewLines(@NotNull String[] lines) {
+                for (String line : lines) {
+                    String trimmedLine = line.trim();
+                    if (versionCodeAndUpdateTime[0] == null && trimmedLine.startsWith("versionCode=")) {
+                        versionCodeAndUpdateTime[0] = StringUtils.substringBefore(trimmedLine.substring("versionCode=".length()), " ");
+                    } else if (versionCodeAndUpdateTime[1] == null && trimmedLine.startsWith("lastUpdateTime=")) {
+                        versionCodeAndUpdateTime[1] = trimmedLine.substring("lastUpdateTime=".length());
+                    }
+                }
+            }
+        }, logger);
+        if (!String.valueOf(versionCode).equals(versionCodeAndUpdateTime[0])) {
+            return null;
+        }
+        return versionCodeAndUpdateTime[1];
     }
 
     @Override
     public boolean uninstallApp(DeviceInfo deviceInfo, String packageName, Logger logger) {
+        Map<String, InstalledApk> installedApks = installedApkMap.get(deviceInfo.getSerialNum());
+        if (installedApks != null) {
+            installedApks.remove(packageName);
+        }
         return adbOperateUtil.uninstallApp(deviceInfo, packageName, logger);
     }
 
     @Override
     public void resetPackage(DeviceInfo deviceInfo, String packageName, Logger logger) {
+        // the package is installed again after its data is cleared, as it was before the same build was skipped
+        Map<String, InstalledApk> installedApks = installedApkMap.get(deviceInfo.getSerialNum());
+        if (installedApks != null) {
+            installedApks.remove(packageName);
+        }
         try {
             adbOperateUtil.execOnDevice(deviceInfo, String.format("pm clear %s", packageName),
                     new MultiLineNoCancelLoggingReceiver(logger), logger);
@@ -392,7 +466,29 @@ public class AndroidDeviceDriver extends AbstractDeviceDriver {
     @Override
     public ADBLogcatCollector getLogCollector(DeviceInfo deviceInfo, String pkgName, TestRun testRun,
                                               Logger logger) {
-        return new ADBLogcatCollector(this.adbOperateUtil, deviceInfo, pkgName, testRun, logger);
+        return new ADBLogcatCollector(getLogcatMultiplexer(deviceInfo), deviceInfo, pkgName, testRun, logger);
+    }
+
+    private LogcatMultiplexer getLogcatMultiplexer(DeviceInfo deviceInfo) {
+        return logcatMultiplexerMap.computeIfAbsent(deviceInfo.getSerialNum(),
+                k -> new LogcatMultiplexer(adbOperateUtil, deviceInfo, classLogger));
+    }
+
+    /**
+     * The subscriptions of the collectors are kept while the device is offline, e.g. rebooting, and get the lines again once it's back.
+     */
+    private void pauseLogcatMultiplexer(String serialNum) {
+        LogcatMultiplexer logcatMultiplexer = logcatMultiplexerMap.get(serialNum);
+        if (logcatMultiplexer != null) {
+            logcatMultiplexer.stop();
+        }
+    }
+
+    private void resumeLogcatMultiplexer(String serialNum) {
+        LogcatMultiplexer logcatMultiplexer = logcatMultiplexerMap.get(serialNum);
+        if (logcatMultiplexer != null && logcatMultiplexer.hasSubscriptions()) {
+            logcatMultiplexer.start();
+        }
     }
 
     @Override
@@ -473,23 +569,7 @@ public class AndroidDeviceDriver extends AbstractDeviceDriver {
         if (image == null) {
             return;
         }
-        BufferedImage screenshot = toBufferedImage(image);
-        ImgUtil.scale(screenshot, new File(outputFile), 0.7f);
-    }
-
-    private BufferedImage toBufferedImage(RawImage rawImage) {
-        BufferedImage image = new BufferedImage(rawImage.width, rawImage.height, BufferedImage.TYPE_INT_ARGB);
-        int index = 0;
-        int indexInc = rawImage.bpp >> 3;
-        for (int y = 0; y < rawImage.height; y++) {
-            for (int x = 0; x < rawImage.width; x++) {
-                int value = rawImage.getARGB(index) | 0xff000000;
-                index += indexInc;
-                image.setRGB(x, y, value);
-            }
-        }
-
-        return image;
+        RawImageJpegEncoder.writeScaledJpeg(image, 0.7f, new File(outputFile));
     }
 
     private boolean sendKeyEvent(DeviceInfo deviceInfo, String event, Logger logger) {
@@ -750,6 +830,7 @@ public class AndroidDeviceDriver extends AbstractDeviceDriver {
     @Override
     public void rebootDevice(DeviceInfo deviceInfo, Logger logger) {
         logger.info("Rebooting device {}", deviceInfo.getSerialNum());
+        installedApkMap.remove(deviceInfo.getSerialNum());
         adbOperateUtil.execOnDevice(deviceInfo, "reboot", new MultiLineNoCancelLoggingReceiver(logger), logger);
     }
 
@@ -762,4 +843,37 @@ public class AndroidDeviceDriver extends AbstractDeviceDriver {
             logger.error(e.getMessage(), e);
         }
     }
+
+    private static final class InstalledApk {
+        private final String packageName;
+        private final long versionCode;
+        private final String md5;
+        private final String installArgs;
+        private String lastUpdateTime;
+
+        private InstalledApk(String packageName, long versionCode, String md5, String installArgs) {
+            this.packageName = packageName;
+            this.versionCode = versionCode;
+            this.md5 = md5;
+            this.installArgs = installArgs;
+        }
+
+        @Nullable
+        private static InstalledApk parse(File apk, String installArgs, Logger logger) {
+            try (ApkFile apkFile = new ApkFile(apk); InputStream inputStream = new FileInputStream(apk)) {
+                ApkMeta meta = apkFile.getApkMeta();
+                if (meta.getVersionCode() == null) {
+                    return null;
+                }
+                return new InstalledApk(meta.getPackageName(), meta.getVersionCode(), DigestUtils.md5DigestAsHex(inputStream), installArgs);
+            } catch (IOException e) {
+                logger.warn("Parsing the apk file failed, file path: " + apk.getAbsolutePath(), e);
+                return null;
+            }
+        }
+
+        private boolean isSameBuild(@Nullable InstalledApk installedApk) {
+            return installedApk != null && versionCode == installedApk.versionCode && md5.equals(installedApk.md5) && installArgs.equals(installedApk.installArgs);
+        }
+    }
 }
\ No newline at end of file
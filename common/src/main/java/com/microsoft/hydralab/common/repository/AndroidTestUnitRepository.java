@@ -14,5 +14,7 @@ import java.util.List;
 public interface AndroidTestUnitRepository extends JpaRepository<AndroidTestUnit, String> {
     List<AndroidTestUnit> findByDeviceTestResultId(String id);
 
+    List<AndroidTestUnit> findByTestTaskId(String testTaskId);
+
     Page<AndroidTestUnit> findBySuccess(boolean success, Pageable pageable);
 }
@@ -8,8 +8,11 @@ import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
 import org.springframework.stereotype.Repository;
 
 import java.util.List;
+import java.util.Optional;
 
 @Repository
 public interface TaskRepository extends JpaRepository<Task, String>, JpaSpecificationExecutor<Task> {
     List<Task> findAllByTeamId(String teamId);
+
+    Optional<Task> findFirstByPkgNameAndTaskAliasAndStatusOrderByStartDateDesc(String pkgName, String taskAlias, String status);
 }
@@ -3,38 +3,50 @@
 
 package com.microsoft.hydralab.common.screen;
 
-import cn.hutool.core.thread.ThreadUtil;
 import com.microsoft.hydralab.common.entity.common.DeviceInfo;
 import com.microsoft.hydralab.common.management.device.DeviceDriver;
 import com.microsoft.hydralab.common.util.ADBOperateUtil;
 import com.microsoft.hydralab.common.util.CommandOutputReceiver;
 import com.microsoft.hydralab.common.util.DateUtil;
+import com.microsoft.hydralab.common.util.ThreadPoolUtil;
 import com.microsoft.hydralab.common.util.ThreadUtils;
-import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ADBScreenRecorder implements ScreenRecorder {
-    public final Object lock = new Object();
+    private static final int SEGMENT_SECONDS = 180;
+    // the screenrecord process is destroyed on finish, the recording thread then queues the last segment
+    private static final long RECORDING_STOP_TIMEOUT_SECONDS = 10;
+    // one try of pulling a segment is bounded by the 60s wait of the adb pull
+    private static final long SEGMENT_PULL_TIMEOUT_SECONDS = 70;
+    private static final long SEGMENT_CONCAT_TIMEOUT_SECONDS = 5;
     private final DeviceInfo deviceInfo;
     private final Logger logger;
     private final File baseFolder;
 
-    private File mergedVideo;
     private final DeviceDriver deviceDriver;
     public int preSleepSeconds = 0;
     ADBOperateUtil adbOperateUtil;
     private Process recordingProcess;
     private Thread recordingThread;
-    private boolean shouldStop = true;
-    private boolean shouldInterrupt = false;
+    private volatile boolean shouldStop = true;
+    private volatile boolean shouldInterrupt = false;
+    // the finished segments are pulled one by one while the next one is being recorded, and concatenated once the recording stops
+    private CompletableFuture<Void> segmentPipeline;
+    private CompletableFuture<File> recordingResult;
+    private final List<File> pulledSegments = new CopyOnWriteArrayList<>();
+    private final AtomicInteger pendingSegmentCount = new AtomicInteger();
 
     public ADBScreenRecorder(DeviceDriver deviceDriver, ADBOperateUtil adbOperateUtil, DeviceInfo deviceInfo, Logger logger, File baseFolder) {
         this.deviceDriver = deviceDriver;
@@ -63,82 +75,123 @@ public class ADBScreenRecorder implements ScreenRecorder {
             return;
         }
         shouldStop = false;
-        recordingThread = new Thread(() -> {
+        pulledSegments.clear();
+        pendingSegmentCount.set(0);
+        segmentPipeline = CompletableFuture.completedFuture(null);
+        CompletableFuture<File> result = new CompletableFuture<>();
+        recordingResult = result;
+        recordingThread = ThreadPoolUtil.newDeviceThread("ScreenRecorder-" + deviceInfo.getSerialNum(), () -> {
             try {
                 if (preSleepSeconds > 0) {
                     ThreadUtils.safeSleep(preSleepSeconds * 1000L);
                 }
-                int timeSpan = 180;
-                if (maxTimeInSecond < timeSpan) {
-                    timeSpan = maxTimeInSecond;
-                }
+                int timeSpan = Math.min(SEGMENT_SECONDS, maxTimeInSecond);
                 int totalTime = 0;
-                List<File> list = new ArrayList<>();
                 while (totalTime < maxTimeInSecond && !shouldStop) {
                     String pathOnDevice = String.format("/sdcard/scr_rec_%d_%d.mp4", totalTime, totalTime + timeSpan);
-                    String recordCommand = String.format("shell screenrecord --bit-rate 3200000 --time-limit %d %s", timeSpan, pathOnDevice);
-                    deviceInfo.addCurrentCommand(recordCommand);
-                    // Blocking command
-                    recordingProcess = adbOperateUtil.executeDeviceCommandOnPC(deviceInfo, recordCommand, logger);
-                    logger.info("ADBDeviceScreenRecorder>> command: " + recordCommand);
-                    CommandOutputReceiver err = new CommandOutputReceiver(recordingProcess.getErrorStream(), logger);
-                    CommandOutputReceiver out = new CommandOutputReceiver(recordingProcess.getInputStream(), logger);
-                    err.start();
-                    out.start();
-                    deviceInfo.addCurrentProcess(recordingProcess);
-
-                    try {
-                        logger.info("waiting for recording");
-                        shouldInterrupt = true;
-                        recordingProcess.waitFor(3, TimeUnit.MINUTES);
-                    } catch (InterruptedException e) {
-                        logger.warn("InterruptedException from recordingProcess.waitFor {} {}", e.getClass().getName(), e.getMessage());
-                    }
-
-                    if (recordingProcess.isAlive()) {
-                        recordingProcess.destroy();
-                    }
-                    deviceInfo.finishCommand();
-                    // make sure the recording procedure is stopped completely
-                    ThreadUtil.safeSleep(2000);
-
+                    recordSegment(pathOnDevice, timeSpan);
                     final String outFileName = DateUtil.fileNameDateDashFormat.format(new Date()) + "_" + totalTime + "_" + (totalTime + timeSpan) + ".mp4";
-                    String pathOnAgent = new File(baseFolder, outFileName).getAbsolutePath();
-                    adbOperateUtil.pullFileToDir(deviceInfo, pathOnAgent, pathOnDevice, logger);
-                    list.add(new File(pathOnAgent));
-                    deviceDriver.removeFileInDevice(deviceInfo, pathOnDevice, logger);
+                    File segment = new File(baseFolder, outFileName);
+                    pendingSegmentCount.incrementAndGet();
+                    segmentPipeline = segmentPipeline.thenRunAsync(() -> {
+                        try {
+                            pullSegment(pathOnDevice, segment);
+                        } finally {
+                            pendingSegmentCount.decrementAndGet();
+                        }
+                    }, ThreadPoolUtil.FILE_LOAD_EXECUTOR);
 
                     totalTime += timeSpan;
                     logger.info("ADBDeviceScreenRecorder>> Time recorded {}", totalTime);
                 }
-
                 shouldInterrupt = false;
-                logger.info("video list size: " + list.size());
-                mergedVideo = FFmpegConcatUtil.concatVideos(list, baseFolder, logger);
-                ThreadUtil.safeSleep(2000);
-                if (mergedVideo != null && mergedVideo.exists()) {
-                    logger.info("deleting merged old videos " + list);
-                    list.forEach(File::delete);
-                }
-
-            } catch (IOException | InterruptedException e) {
+            } catch (IOException e) {
                 logger.warn("Exception from recordingThread {} {}", e.getClass().getName(), e.getMessage());
             } finally {
-                if (recordingProcess != null) {
-                    if (recordingProcess.isAlive()) {
-                        recordingProcess.destroy();
-                    }
-                }
-                try {
-                    lock.notifyAll();
-                } catch (Exception e) {
-                    logger.warn("Exception from notifyAll {} {}", e.getClass().getName(), e.getMessage());
+                if (recordingProcess != null && recordingProcess.isAlive()) {
+                    recordingProcess.destroy();
                 }
+                segmentPipeline.whenComplete((v, e) -> result.complete(concatSegments()));
             }
         });
         recordingThread.start();
     }
 
+    private void recordSegment(String pathOnDevice, int timeSpan) throws IOException {
+        String recordCommand = String.format("shell screenrecord --bit-rate 3200000 --time-limit %d %s", timeSpan, pathOnDevice);
+        deviceInfo.addCurrentCommand(recordCommand);
+        // Blocking command
+        recordingProcess = adbOperateUtil.executeDeviceCommandOnPC(deviceInfo, recordCommand, logger);
+        logger.info("ADBDeviceScreenRecorder>> command: " + recordCommand);
+        CommandOutputReceiver err = new CommandOutputReceiver(recordingProcess.getErrorStream(), logger);
+        CommandOutputReceiver out = new CommandOutputReceiver(recordingProcess.getInputStream(), logger);
+        err.start();
+        out.start();
+        deviceInfo.addCurrentProcess(recordingProcess);
+
+        try {
+            logger.info("waiting for recording");
+            shouldInterrupt = true;
+            recordingProcess.waitFor(timeSpan + 60, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            logger.warn("InterruptedException from recordingProcess.waitFor {} {}", e.getClass().getName(), e.getMessage());
+        }
+
+        if (recordingProcess.isAlive()) {
+            recordingProcess.destroy();
+        }
+        deviceInfo.finishCommand();
+    }
+
+    /**
+     * Runs in order on the segment pipeline, so the pulled segments are kept in the order they were recorded.
+     */
+    private void pullSegment(String pathOnDevice, File segment) {
+        // make sure the recording procedure is stopped completely
+        ThreadUtils.safeSleep(2000);
+        try {
+            adbOperateUtil.pullFileToDir(deviceInfo, segment.getAbsolutePath(), pathOnDevice, logger);
+        } catch (IOException | InterruptedException e) {
+            logger.warn("Exception from pulling {} {} {}", pathOnDevice, e.getClass().getName(), e.getMessage());
+            return;
+        } finally {
+            deviceDriver.removeFileInDevice(deviceInfo, pathOnDevice, logger);
+        }
+        if (!segment.exists()) {
+            logger.warn("Segment {} is not pulled", pathOnDevice);
+            return;
+        }
+        pulledSegments.add(segment);
+    }
+
+    /**
+     * Concat all the segments by stream copy in one pass, instead of copying the merged part again for each new segment.
+     */
+    private File concatSegments() {
+        List<File> segments = new ArrayList<>(pulledSegments);
+        if (segments.isEmpty()) {
+            logger.error("No video file exists.");
+            return null;
+        }
+        File video = FFmpegConcatUtil.concatVideos(segments, baseFolder, logger);
+        if (segments.size() > 1 && video != null && video.exists()) {
+            logger.info("deleting concatenated videos {}", segments);
+            for (File segment : segments) {
+                segment.delete();
+            }
+        }
+        return video;
+    }
+
+    /**
+     * Long enough for the segments left to pull and the concat of all of them, which grows with the length of the recording.
+     */
+    private long getFinishTimeoutSeconds() {
+        int pendingCount = pendingSegmentCount.get();
+        return RECORDING_STOP_TIMEOUT_SECONDS + pendingCount * SEGMENT_PULL_TIMEOUT_SECONDS
+                + (pulledSegments.size() + pendingCount) * SEGMENT_CONCAT_TIMEOUT_SECONDS;
+    }
+
     @Override
     public String finishRecording() {
         if (shouldStop) {
@@ -155,16 +208,22 @@ public class ADBScreenRecorder implements ScreenRecorder {
         }
         logger.info("start to wait for recording finish");
         long time = System.currentTimeMillis();
+        File video;
         try {
-            synchronized (lock) {
-                lock.wait(TimeUnit.SECONDS.toMillis(30));
+            if (recordingThread != null) {
+                recordingThread.join(TimeUnit.SECONDS.toMillis(RECORDING_STOP_TIMEOUT_SECONDS));
             }
-        } catch (Exception e) {
+            video = recordingResult.get(getFinishTimeoutSeconds(), TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while waiting for recording finish");
+            return null;
+        } catch (ExecutionException | TimeoutException e) {
             logger.warn("Exception from finishRecording {} {}", e.getClass().getName(), e.getMessage());
             return null;
         }
         logger.info("Complete waiting: {}", (System.currentTimeMillis() - time) / 1000f);
-        return mergedVideo.getAbsolutePath();
+        return video == null ? null : video.getAbsolutePath();
     }
 
 }
@@ -13,10 +13,14 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 
 public class FFmpegConcatUtil {
     static final String fileName = Const.ScreenRecoderConfig.DEFAULT_FILE_NAME;
+    /**
+     * Concat the videos by stream copy, an existing output file is overwritten.
+     */
     public static File concatVideos(List<File> videos, File outputDir, Logger logger) {
         if (videos.isEmpty()) {
             logger.error("No video file exists.");
@@ -25,8 +29,9 @@ public class FFmpegConcatUtil {
         if (videos.size() == 1) {
             logger.info("Single video file exists, directly return.");
             File file = videos.get(0);
-            Assert.isTrue(file.renameTo(new File(file.getParentFile(), fileName)), "rename fail");
-            return file;
+            File renamedFile = new File(file.getParentFile(), fileName);
+            Assert.isTrue(file.renameTo(renamedFile), "rename fail");
+            return renamedFile;
         }
         File file = new File(outputDir, "list.txt");
         StringBuilder stringBuilder = new StringBuilder();
@@ -36,7 +41,7 @@ public class FFmpegConcatUtil {
         FileUtil.writeString(stringBuilder.toString(), file, StandardCharsets.UTF_8);
         Process process = null;
         try {
-            process = Runtime.getRuntime().exec(new String[]{"ffmpeg", "-f", "concat", "-safe", "0", "-i", "list.txt", "-c", "copy", fileName}, null, outputDir);
+            process = Runtime.getRuntime().exec(new String[]{"ffmpeg", "-f", "concat", "-safe", "0", "-i", file.getName(), "-c", "copy", "-y", fileName}, null, outputDir);
             try (InputStream inputStream = process.getInputStream()) {
                 logger.info(IOUtils.toString(inputStream, StandardCharsets.UTF_8));
             }
@@ -54,6 +59,7 @@ public class FFmpegConcatUtil {
             if (process != null) {
                 process.destroy();
             }
+            file.delete();
         }
         return null;
     }
@@ -77,26 +83,62 @@ public class FFmpegConcatUtil {
         }
     }
 
+    /**
+     * Merge the videos side by side in a single ffmpeg pass, the last video on the left and the others scaled to its height.
+     *
+     * @return the merged video, null if ffmpeg failed, in which case the videos are kept
+     */
     public static File mergeVideosSideBySide(List<String> videoPaths, File outputDir, Logger logger) {
         if (videoPaths.isEmpty()) {
             return null;
         }
         if (videoPaths.size() == 1) {
             File file = new File(videoPaths.get(0));
-            Assert.isTrue(file.renameTo(new File(file.getParentFile(), fileName)), "rename fail");
-            return file;
+            File renamedFile = new File(file.getParentFile(), fileName);
+            Assert.isTrue(file.renameTo(renamedFile), "rename fail");
+            return renamedFile;
         }
-        int mergeTimes = videoPaths.size() - 1;
-        for (int i = 0; i < mergeTimes; i++) {
-            String tempPath = new File(outputDir, String.format("temp%d.mp4", i)).getAbsolutePath();
-            String leftVideoPath = videoPaths.get(i);
-            String rightVideoPath = videoPaths.get(i + 1);
-            mergeVideosSideBySide(leftVideoPath, rightVideoPath, tempPath, logger);
-            videoPaths.set(i + 1, tempPath);
-            if (i == mergeTimes - 1) {
-                FileUtil.rename(new File(tempPath), fileName, true);
+        List<String> command = new ArrayList<>();
+        command.add("ffmpeg");
+        for (int i = videoPaths.size() - 1; i >= 0; i--) {
+            command.add("-i");
+            command.add(videoPaths.get(i));
+        }
+        // scale each video to the height of the first input, passing the reference along the chain
+        StringBuilder filter = new StringBuilder();
+        StringBuilder stackInputs = new StringBuilder();
+        String reference = "[0:v]";
+        for (int i = 1; i < videoPaths.size(); i++) {
+            filter.append(String.format("[%d:v]%sscale2ref=trunc((oh*mdar)/2)*2:ih[v%d][ref%d];", i, reference, i, i));
+            stackInputs.append(String.format("[v%d]", i));
+            reference = String.format("[ref%d]", i);
+        }
+        filter.append(reference).append(stackInputs).append("hstack=inputs=").append(videoPaths.size());
+        File mergedVideo = new File(outputDir, fileName);
+        command.addAll(List.of("-filter_complex", filter.toString(), "-c:v", "libx264", "-crf", "23", "-vsync", "2", "-preset", "veryfast",
+                "-y", mergedVideo.getAbsolutePath()));
+        try {
+            Process process = new ProcessBuilder(command).start();
+            CommandOutputReceiver err = new CommandOutputReceiver(process.getErrorStream(), logger);
+            CommandOutputReceiver out = new CommandOutputReceiver(process.getInputStream(), logger);
+            err.start();
+            out.start();
+            if (process.waitFor() != 0) {
+                logger.error("Failed to merge the videos {}, exit code {}", videoPaths, process.exitValue());
+                mergedVideo.delete();
+                return null;
+            }
+            for (String videoPath : videoPaths) {
+                new File(videoPath).delete();
             }
+            return mergedVideo;
+        } catch (IOException e) {
+            logger.error("Failed to merge the videos {}", videoPaths, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.error("Interrupted while merging the videos {}", videoPaths, e);
         }
-        return new File(outputDir, fileName);
+        mergedVideo.delete();
+        return null;
     }
 }
@@ -9,6 +9,7 @@ import com.microsoft.hydralab.common.util.ADBOperateUtil;
 import com.microsoft.hydralab.common.util.Const;
 import com.microsoft.hydralab.common.util.FlowUtil;
 import com.microsoft.hydralab.common.util.HydraLabRuntimeException;
+import com.microsoft.hydralab.common.util.ThreadPoolUtil;
 import com.microsoft.hydralab.common.util.ThreadUtils;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
@@ -84,7 +85,7 @@ public class PhoneAppScreenRecorder implements ScreenRecorder {
         // am startservice --es fileName test.mp4 com.microsoft.hydralab.android.client/.ScreenRecorderService
         startRecordService();
 
-        keepAliveThread = new Thread(() -> {
+        keepAliveThread = ThreadPoolUtil.newDeviceThread("ScreenRecorderKeepAlive-" + deviceInfo.getSerialNum(), () -> {
             try {
                 if (preSleepSeconds > 0) {
                     int totalTime = 0;
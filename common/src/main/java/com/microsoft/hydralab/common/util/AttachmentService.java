@@ -74,14 +74,44 @@ public class AttachmentService {
         storageFileInfo.setCreateTime(new Date());
         storageFileInfo.setUpdateTime(new Date());
         storageFileInfo.setBlobContainer(entityType.storageContainer);
+        reuseStoredBlobPath(storageFileInfo);
         storageFileInfo.setBlobUrl(saveFileInStorage(file, storageFileInfo, logger));
         storageFileInfoRepository.save(storageFileInfo);
         return storageFileInfo;
     }
 
+    /**
+     * Point to the blob of a stored file with the same content and file name, so that a storage able to tell it already has the content skips the upload.
+     * The blob is only reused under the requested file name, as it is the name the file is downloaded with.
+     * As the upload may be skipped, the file takes the update time of the blob it shares, so it's uploaded again before the storage expires the blob.
+     */
+    private void reuseStoredBlobPath(StorageFileInfo storageFileInfo) {
+        if (storageFileInfo.getMd5() == null || storageFileInfo.getBlobPath() == null) {
+            return;
+        }
+        String blobFileName = getBlobFileName(storageFileInfo.getBlobPath());
+        StorageFileInfo latestFileInfo = null;
+        for (StorageFileInfo storedFileInfo : storageFileInfoRepository.queryStorageFileInfoByMd5(storageFileInfo.getMd5())) {
+            if (storedFileInfo.getBlobPath() != null && storedFileInfo.getUpdateTime() != null && storedFileInfo.getFileLen() == storageFileInfo.getFileLen()
+                    && storageFileInfo.getBlobContainer().equals(storedFileInfo.getBlobContainer())
+                    && blobFileName.equals(getBlobFileName(storedFileInfo.getBlobPath()))
+                    && (latestFileInfo == null || storedFileInfo.getUpdateTime().after(latestFileInfo.getUpdateTime()))) {
+                latestFileInfo = storedFileInfo;
+            }
+        }
+        if (latestFileInfo == null || isFileExpired(latestFileInfo)) {
+            return;
+        }
+        storageFileInfo.setBlobPath(latestFileInfo.getBlobPath());
+        storageFileInfo.setUpdateTime(latestFileInfo.getUpdateTime());
+    }
+
+    private static String getBlobFileName(String blobPath) {
+        return blobPath.substring(blobPath.lastIndexOf('/') + 1);
+    }
+
     public StorageFileInfo updateFileInStorageAndDB(StorageFileInfo oldFileInfo, File file, EntityType entityType, Logger logger) {
-        int days = (int) ((new Date().getTime() - oldFileInfo.getUpdateTime().getTime()) / 1000 / 60 / 60 / 24);
-        if (storageServiceClientProxy.fileExpiryEnabled() && days >= storageServiceClientProxy.getStorageFileExpiryDay()) {
+        if (isFileExpired(oldFileInfo)) {
             oldFileInfo.setUpdateTime(new Date());
             oldFileInfo.setBlobContainer(entityType.storageContainer);
             oldFileInfo.setBlobUrl(saveFileInStorage(file, oldFileInfo, logger));
@@ -90,6 +120,11 @@ public class AttachmentService {
         return oldFileInfo;
     }
 
+    private boolean isFileExpired(StorageFileInfo fileInfo) {
+        int days = (int) ((new Date().getTime() - fileInfo.getUpdateTime().getTime()) / 1000 / 60 / 60 / 24);
+        return storageServiceClientProxy.fileExpiryEnabled() && days >= storageServiceClientProxy.getStorageFileExpiryDay();
+    }
+
     public TestJsonInfo addTestJsonFile(TestJsonInfo testJsonInfo, File file, EntityType entityType, Logger logger) {
         StorageFileInfo storageFileInfo = new StorageFileInfo(file, testJsonInfo.getBlobPath(), StorageFileInfo.FileType.T2C_JSON_FILE, entityType);
         testJsonInfo.setBlobUrl(saveFileInStorage(file, storageFileInfo, logger));
@@ -11,6 +11,7 @@ public interface Const {
         String AGENT_INIT = "/agentInit";
         String HEARTBEAT = "/heartbeat";
         String DEVICE_LIST = "/api/device/list";
+        String DEVICE_LIST_DELTA = "/api/device/list/delta";
         String DEVICE_UPDATE = "/api/device/update";
         String DEVICE_STATUS = "/api/device/status";
         String ACCESS_INFO = "/api/device/access";
@@ -18,6 +19,9 @@ public interface Const {
         String TEST_TASK_UPDATE = "/api/test/task/update";
         String TEST_TASK_CANCEL = "/api/test/task/cancel";
         String TEST_TASK_RETRY = "/api/test/task/retry";
+        String TEST_TASK_PREFETCH = "/api/test/task/prefetch";
+        String TEST_UNIT_UPDATE = "/api/test/unit/update";
+        String TEST_TASK_DEVICE_RELEASE = "/api/test/task/device/release";
         String AGENT_UPDATE = "/api/agent/update";
         String AGENT_RESTART = "/api/agent/restart";
         String DEFAULT_PHOTO = "static/dist/images/default_user.png";
@@ -40,6 +44,7 @@ public interface Const {
         String TASK_ID_PARAM = "testTaskId";
         String SERIAL_PARAM = "serialNum";
         String STATUS_PARAM = "status";
+        String RUNNER_TYPE_PARAM = "runnerType";
         String SCOPE_PARAM = "isPrivate";
         String RESTART_FILE_MAC = "restartAgent.sh";
         String RESTART_FILE_WIN = "restartAgent.bat";
@@ -55,6 +60,11 @@ public interface Const {
         String GROUP = "groups";
         String AGENT = "agents";
         String TEST_TASK_ID = "testTaskId";
+        String CODEC_VERSION = "codecVersion";
+        String DEVICE_LIST_DELTA = "deviceListDelta";
+        String DEVICE_LIST_VIEWED = "deviceListViewed";
+        String TEST_UNIT_UPDATE = "testUnitUpdate";
+        String TEST_TASK_DEVICE_RELEASE = "testTaskDeviceRelease";
     }
 
     interface SmartTestConfig {
@@ -193,6 +203,9 @@ public interface Const {
 
     final class LocalStorageURL {
         public static final String CENTER_LOCAL_STORAGE_UPLOAD = "/api/storage/local/upload";
+        // kept under the upload path, so they are handled like it by the interceptor
+        public static final String CENTER_LOCAL_STORAGE_STREAM_UPLOAD = CENTER_LOCAL_STORAGE_UPLOAD + "/stream";
+        public static final String CENTER_LOCAL_STORAGE_UPLOAD_CHECK = CENTER_LOCAL_STORAGE_UPLOAD + "/check";
         public static final String CENTER_LOCAL_STORAGE_DOWNLOAD = "/api/storage/local/download";
         public static final String CENTER_LOCAL_STORAGE_ROOT = "storage/local/";
     }
@@ -60,4 +60,28 @@ public class FlowUtil {
         }
         return false;
     }
+
+    /**
+     * Sleep twice as long after each failed try, e.g. 2s, 4s, 8s for an initial sleep of 2s.
+     */
+    public static <T> T retryWithBackoffWhenException(int count, long initialSleepMillis, Callable<T> callable) throws Exception {
+        Exception toThrow = null;
+        long sleepMillis = initialSleepMillis;
+        while (count > 0) {
+            try {
+                return callable.call();
+            } catch (Exception e) {
+                toThrow = e;
+            }
+            count--;
+            if (count > 0) {
+                ThreadUtils.safeSleep(sleepMillis);
+                sleepMillis *= 2;
+            }
+        }
+        if (toThrow != null) {
+            throw toThrow;
+        }
+        return null;
+    }
 }
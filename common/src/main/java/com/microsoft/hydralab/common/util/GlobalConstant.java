@@ -32,4 +32,9 @@ public interface GlobalConstant {
     String PROMETHEUS_METRIC_WEBSOCKET_DISCONNECT_SIGNAL = "agent_ws_disconnect_signal";
     String PROMETHEUS_METRIC_ONLINE_AGENT_NUM = "agent_online_agent_num";
     String PROMETHEUS_METRIC_ONLINE_DEVICE_NUM = "agent_online_device_num";
+    String PROMETHEUS_METRIC_ATTACHMENT_CACHE_HIT_RATIO = "agent_attachment_cache_hit_ratio";
+    String PROMETHEUS_METRIC_ATTACHMENT_CACHE_SAVED_BYTES = "agent_attachment_cache_saved_bytes";
+    String PROMETHEUS_METRIC_TEST_TASK_QUEUE_SIZE = "center_test_task_queue_size";
+    String PROMETHEUS_METRIC_TEST_TASK_QUEUE_WAIT_TIME = "center_test_task_queue_wait_time";
+    String PROMETHEUS_METRIC_TEST_TASK_DISPATCH_LATENCY = "center_test_task_dispatch_latency";
 }
@@ -6,12 +6,16 @@ import org.jetbrains.annotations.NotNull;
 import org.springframework.util.Assert;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import java.awt.geom.AffineTransform;
 import java.awt.image.AffineTransformOp;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 public class ImageUtil {
@@ -34,6 +38,71 @@ public class ImageUtil {
         return foundWriter;
     }
 
+    /**
+     * Read only every step-th pixel in both directions, much less memory and CPU than reading the whole image for a rough look.
+     */
+    public static BufferedImage readSubsampledImage(File file, int step) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Average luminance of each tile of a gridSize x gridSize grid over the image.
+     * Two images with close tile luminance look the same, see {@link #isTileLuminanceSimilar(int[], int[], int)}.
+     */
+    public static int[] getTileLuminance(BufferedImage image, int gridSize) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int tileColumns = Math.min(gridSize, width);
+        int tileRows = Math.min(gridSize, height);
+        long[] sums = new long[tileColumns * tileRows];
+        int[] counts = new int[sums.length];
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            int tileOffset = (int) ((long) y * tileRows / height) * tileColumns;
+            for (int x = 0; x < width; x++) {
+                int rgb = row[x];
+                int tile = tileOffset + (int) ((long) x * tileColumns / width);
+                sums[tile] += (((rgb >>> 16) & 0xff) * 299 + ((rgb >>> 8) & 0xff) * 587 + (rgb & 0xff) * 114) / 1000;
+                counts[tile]++;
+            }
+        }
+        int[] luminance = new int[sums.length];
+        for (int i = 0; i < sums.length; i++) {
+            luminance[i] = (int) (sums[i] / counts[i]);
+        }
+        return luminance;
+    }
+
+    public static boolean isTileLuminanceSimilar(int[] luminance, int[] otherLuminance, int tolerance) {
+        if (luminance == null || otherLuminance == null || luminance.length != otherLuminance.length) {
+            return false;
+        }
+        for (int i = 0; i < luminance.length; i++) {
+            if (Math.abs(luminance[i] - otherLuminance[i]) > tolerance) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public static File joinImages(File outputFileDir, String outputFileName, @NotNull List<File> files) {
         Assert.notEmpty(files, "files should not be empty");
         if (files.size() == 1) {
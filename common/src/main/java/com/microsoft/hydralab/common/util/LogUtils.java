@@ -6,8 +6,11 @@ import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.rolling.FixedWindowRollingPolicy;
 import ch.qos.logback.core.rolling.RollingFileAppender;
+import ch.qos.logback.core.rolling.SizeBasedTriggeringPolicy;
 import ch.qos.logback.core.rolling.TimeBasedRollingPolicy;
+import ch.qos.logback.core.util.FileSize;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -92,6 +95,55 @@ public class LogUtils {
         return logger;
     }
 
+    /**
+     * The file is rolled to gzip files of filePath.1.gz, filePath.2.gz and so on once it reaches maxFileSize, the latest maxIndex ones are kept.
+     *
+     * @param maxFileSize e.g. 32MB
+     * @param maxIndex    at most 20
+     */
+    public static Logger getLoggerWithSizeRollingFileAppender(String loggerName, String filePath, String logPattern, String maxFileSize, int maxIndex) {
+        Logger logger = LoggerFactory.getLogger(loggerName);
+        if (!(logger instanceof ch.qos.logback.classic.Logger)) {
+            throw new RuntimeException("not logback loggers");
+        }
+        ch.qos.logback.classic.Logger logbackLogger = (ch.qos.logback.classic.Logger) logger;
+        String name = "rolling.file.appender";
+        Appender<ILoggingEvent> appender = logbackLogger.getAppender(name);
+        if (appender == null) {
+            PatternLayoutEncoder ple = new PatternLayoutEncoder();
+            ple.setPattern(logPattern);
+            ple.setContext(logbackLogger.getLoggerContext());
+            ple.start();
+
+            RollingFileAppender<ILoggingEvent> newAppender = new RollingFileAppender<>();
+
+            FixedWindowRollingPolicy newRolePolicy = new FixedWindowRollingPolicy();
+            newRolePolicy.setFileNamePattern(filePath + ".%i.gz");
+            newRolePolicy.setMinIndex(1);
+            newRolePolicy.setMaxIndex(maxIndex);
+            newRolePolicy.setContext(logbackLogger.getLoggerContext());
+            newRolePolicy.setParent(newAppender);
+            newRolePolicy.start();
+
+            SizeBasedTriggeringPolicy<ILoggingEvent> triggeringPolicy = new SizeBasedTriggeringPolicy<>();
+            triggeringPolicy.setMaxFileSize(FileSize.valueOf(maxFileSize));
+            triggeringPolicy.setContext(logbackLogger.getLoggerContext());
+            triggeringPolicy.start();
+
+            newAppender.setEncoder(ple);
+            newAppender.setContext(logbackLogger.getLoggerContext());
+            newAppender.setFile(filePath);
+            newAppender.setAppend(true);
+            newAppender.setRollingPolicy(newRolePolicy);
+            newAppender.setTriggeringPolicy(triggeringPolicy);
+            newAppender.setName(name);
+            newAppender.start();
+
+            logbackLogger.addAppender(newAppender);
+        }
+        return logger;
+    }
+
     public static void releaseLogger(Logger logger) {
         if (logger instanceof ch.qos.logback.classic.Logger) {
             ((ch.qos.logback.classic.Logger) logger).detachAndStopAllAppenders();
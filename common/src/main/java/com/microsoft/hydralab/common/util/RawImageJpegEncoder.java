@@ -0,0 +1,195 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.hydralab.common.util;
+
+import com.android.ddmlib.RawImage;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+/**
+ * Converts the raw framebuffer of an Android device to a downscaled JPEG file in a single pass.
+ * The pixels are decoded row by row and box averaged straight into the backing array of the output image,
+ * the output image, the row buffers and the JPEG writer are kept per thread and reused for the next screenshot of the same size.
+ */
+public final class RawImageJpegEncoder {
+    private static final ThreadLocal<EncoderContext> CONTEXT = ThreadLocal.withInitial(EncoderContext::new);
+
+    private RawImageJpegEncoder() {
+    }
+
+    public static void writeScaledJpeg(RawImage rawImage, float ratio, File outputFile) throws IOException {
+        EncoderContext context = CONTEXT.get();
+        try {
+            BufferedImage image = toScaledImage(rawImage, ratio, context);
+            context.encode(image);
+            try (OutputStream outputStream = new FileOutputStream(outputFile)) {
+                context.buffer.writeTo(outputStream);
+            }
+        } catch (IOException e) {
+            // don't keep a writer in unknown state for the next screenshot
+            context.dispose();
+            CONTEXT.remove();
+            throw e;
+        }
+    }
+
+    /**
+     * The returned image is owned by the calling thread and overwritten by its next conversion.
+     */
+    static BufferedImage toScaledImage(RawImage rawImage, float ratio) {
+        return toScaledImage(rawImage, ratio, CONTEXT.get());
+    }
+
+    private static BufferedImage toScaledImage(RawImage rawImage, float ratio, EncoderContext context) {
+        if (!(ratio > 0 && ratio <= 1)) {
+            throw new IllegalArgumentException("Scale ratio should be in (0, 1], but it's " + ratio);
+        }
+        int width = rawImage.width;
+        int height = rawImage.height;
+        // same size as the previous ImgUtil.scale
+        int outWidth = Math.max(1, (int) (width * ratio));
+        int outHeight = Math.max(1, (int) (height * ratio));
+        context.prepare(width, outWidth, outHeight);
+
+        int[] outPixels = ((DataBufferInt) context.image.getRaster().getDataBuffer()).getData();
+        int[] row = context.row;
+        int[] columnMap = context.columnMap;
+        int[] columnCount = context.columnCount;
+        int[] sums = context.sums;
+        int rowStride = width * (rawImage.bpp >> 3);
+        int rowsInBin = 0;
+        for (int y = 0; y < height; y++) {
+            decodeRow(rawImage, y * rowStride, width, row);
+            for (int x = 0; x < width; x++) {
+                int rgb = row[x];
+                int sumIndex = columnMap[x] * 3;
+                sums[sumIndex] += (rgb >>> 16) & 0xff;
+                sums[sumIndex + 1] += (rgb >>> 8) & 0xff;
+                sums[sumIndex + 2] += rgb & 0xff;
+            }
+            rowsInBin++;
+            int outY = binOf(y, height, outHeight);
+            if (y + 1 < height && binOf(y + 1, height, outHeight) == outY) {
+                continue;
+            }
+            // the last source row of this output row, write the averages out
+            int outOffset = outY * outWidth;
+            for (int outX = 0; outX < outWidth; outX++) {
+                int sumIndex = outX * 3;
+                int count = columnCount[outX] * rowsInBin;
+                int half = count >> 1;
+                outPixels[outOffset + outX] = (sums[sumIndex] + half) / count << 16
+                        | (sums[sumIndex + 1] + half) / count << 8
+                        | (sums[sumIndex + 2] + half) / count;
+                sums[sumIndex] = 0;
+                sums[sumIndex + 1] = 0;
+                sums[sumIndex + 2] = 0;
+            }
+            rowsInBin = 0;
+        }
+        return context.image;
+    }
+
+    /**
+     * Decode a row to opaque RGB, with the same channel extraction as {@link RawImage#getARGB(int)}.
+     */
+    private static void decodeRow(RawImage rawImage, int offset, int width, int[] row) {
+        byte[] data = rawImage.data;
+        if (rawImage.bpp == 32 && isByteAligned(rawImage)) {
+            // the common RGBA_8888 / BGRA_8888 layouts, every channel is a whole byte
+            int r = offset + (rawImage.red_offset >> 3);
+            int g = offset + (rawImage.green_offset >> 3);
+            int b = offset + (rawImage.blue_offset >> 3);
+            for (int x = 0; x < width; x++, r += 4, g += 4, b += 4) {
+                row[x] = (data[r] & 0xff) << 16 | (data[g] & 0xff) << 8 | data[b] & 0xff;
+            }
+        } else if (rawImage.bpp == 16) {
+            // RGB_565
+            for (int x = 0, index = offset; x < width; x++, index += 2) {
+                int value = data[index] & 0xff | (data[index + 1] & 0xff) << 8;
+                row[x] = ((value >>> 11) & 0x1f) << 19 | ((value >>> 5) & 0x3f) << 10 | (value & 0x1f) << 3;
+            }
+        } else {
+            int indexInc = rawImage.bpp >> 3;
+            for (int x = 0, index = offset; x < width; x++, index += indexInc) {
+                row[x] = rawImage.getARGB(index) & 0xffffff;
+            }
+        }
+    }
+
+    private static boolean isByteAligned(RawImage rawImage) {
+        return rawImage.red_length == 8 && rawImage.green_length == 8 && rawImage.blue_length == 8
+                && (rawImage.red_offset & 7) == 0 && (rawImage.green_offset & 7) == 0 && (rawImage.blue_offset & 7) == 0;
+    }
+
+    private static int binOf(int index, int size, int binCount) {
+        return (int) ((long) index * binCount / size);
+    }
+
+    private static final class EncoderContext {
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256 * 1024);
+        private ImageWriter writer;
+        private ImageWriteParam writeParam;
+        private BufferedImage image;
+        private int sourceWidth;
+        private int[] row;
+        private int[] columnMap;
+        private int[] columnCount;
+        private int[] sums;
+
+        private void prepare(int width, int outWidth, int outHeight) {
+            if (image == null || image.getWidth() != outWidth || image.getHeight() != outHeight) {
+                image = new BufferedImage(outWidth, outHeight, BufferedImage.TYPE_INT_RGB);
+                sums = new int[outWidth * 3];
+                sourceWidth = -1;
+            }
+            if (sourceWidth != width) {
+                sourceWidth = width;
+                row = new int[width];
+                columnMap = new int[width];
+                columnCount = new int[outWidth];
+                for (int x = 0; x < width; x++) {
+                    columnMap[x] = binOf(x, width, outWidth);
+                    columnCount[columnMap[x]]++;
+                }
+            }
+        }
+
+        private void encode(BufferedImage image) throws IOException {
+            if (writer == null) {
+                Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpg");
+                if (!writers.hasNext()) {
+                    throw new IOException("No JPEG writer found");
+                }
+                writer = writers.next();
+                writeParam = writer.getDefaultWriteParam();
+            }
+            buffer.reset();
+            try (ImageOutputStream imageOutputStream = new MemoryCacheImageOutputStream(buffer)) {
+                writer.setOutput(imageOutputStream);
+                writer.write(null, new IIOImage(image, null, null), writeParam);
+            } finally {
+                writer.reset();
+            }
+        }
+
+        private void dispose() {
+            if (writer != null) {
+                writer.dispose();
+            }
+        }
+    }
+}
@@ -34,6 +34,20 @@ public class RestTemplateConfig {
         return factory;
     }
 
+    /**
+     * The request body is streamed to the connection instead of being buffered in memory, for large uploads.
+     */
+    public static RestTemplate getStreamingRestTemplateInstance() {
+        HttpComponentsClientHttpRequestFactory factory;
+        try {
+            factory = generateHttpRequestFactory();
+        } catch (NoSuchAlgorithmException | KeyManagementException | KeyStoreException e) {
+            throw new HydraLabRuntimeException(HttpStatus.HTTP_INTERNAL_ERROR, "Failed to create SSLContext for RestTemplate.");
+        }
+        factory.setBufferRequestBody(false);
+        return new RestTemplate(factory);
+    }
+
     public static RestTemplate getRestTemplateInstance(){
         RestTemplate restTemplateHttps;
         try {
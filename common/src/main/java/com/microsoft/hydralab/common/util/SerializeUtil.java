@@ -2,34 +2,70 @@
 // Licensed under the MIT License.
 package com.microsoft.hydralab.common.util;
 
-import cn.hutool.core.util.ZipUtil;
-import com.alibaba.fastjson.JSON;
-import com.alibaba.fastjson.JSONObject;
 import com.alibaba.fastjson.parser.ParserConfig;
-import com.alibaba.fastjson.serializer.SerializerFeature;
+import com.microsoft.hydralab.common.codec.BinaryMessageCodec;
+import com.microsoft.hydralab.common.codec.JsonGzipMessageCodec;
+import com.microsoft.hydralab.common.codec.MessageCodec;
 import com.microsoft.hydralab.common.entity.common.Message;
 
-import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
 
 public class SerializeUtil {
+    private static final MessageCodec JSON_GZIP_CODEC = new JsonGzipMessageCodec();
+    private static final MessageCodec BINARY_CODEC = new BinaryMessageCodec();
+    public static final int LATEST_CODEC_VERSION = MessageCodec.VERSION_BINARY;
+
     static {
         // add auto type support for following entities
         ParserConfig.getGlobalInstance().addAccept("com.microsoft.hydralab.common.entity.common.");
     }
+
     public static byte[] messageToByteArr(Message message) {
-        return ZipUtil.gzip(JSON.toJSONString(message, SerializerFeature.WriteClassName), StandardCharsets.UTF_8.toString());
+        return JSON_GZIP_CODEC.encode(message);
+    }
+
+    public static byte[] messageToByteArr(Message message, int codecVersion) {
+        return getCodec(codecVersion).encode(message);
     }
 
+    /**
+     * The format is detected from the frame header, so messages of any negotiated version can be decoded.
+     */
     public static Message byteArrToMessage(byte[] array) {
-        Message message = JSON.parseObject(new String(ZipUtil.unGzip(array), StandardCharsets.UTF_8), Message.class);
-        if (message.getBody() instanceof JSONObject && message.getBodyType() != null) {
-            JSONObject body = (JSONObject) message.getBody();
-            try {
-                message.setBody(body.toJavaObject(Class.forName(message.getBodyType())));
-            } catch (ClassNotFoundException e) {
-                throw new RuntimeException(e);
-            }
+        if (BINARY_CODEC.accept(array)) {
+            return BINARY_CODEC.decode(array);
+        }
+        return JSON_GZIP_CODEC.decode(array);
+    }
+
+    public static MessageCodec getCodec(int codecVersion) {
+        return codecVersion >= MessageCodec.VERSION_BINARY ? BINARY_CODEC : JSON_GZIP_CODEC;
+    }
+
+    /**
+     * Attach the highest codec version this side can decode, the peer will reply with the lower of both.
+     */
+    public static void advertiseCodecVersion(Message message, int codecVersion) {
+        Map<String, Object> params = message.getParams();
+        if (params == null) {
+            params = new HashMap<>();
+            message.setParams(params);
+        }
+        params.put(Const.Param.CODEC_VERSION, codecVersion);
+    }
+
+    /**
+     * @return the codec version advertised by the peer, or -1 if the peer didn't advertise any
+     */
+    public static int getAdvertisedCodecVersion(Message message) {
+        if (message.getParams() == null) {
+            return -1;
+        }
+        Object codecVersion = message.getParams().get(Const.Param.CODEC_VERSION);
+        if (!(codecVersion instanceof Number)) {
+            return -1;
         }
-        return message;
+        return ((Number) codecVersion).intValue();
     }
 }
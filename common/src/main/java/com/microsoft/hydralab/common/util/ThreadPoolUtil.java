@@ -4,36 +4,154 @@
 package com.microsoft.hydralab.common.util;
 
 import com.microsoft.hydralab.common.exception.handler.ThreadExceptionHandler;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
 import org.jetbrains.annotations.NotNull;
-import org.springframework.stereotype.Service;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import javax.annotation.PostConstruct;
-import javax.annotation.Resource;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-
+/**
+ * The executors of the process, each one bounded and registered by its name so their metrics are exported once a MeterRegistry is bound.
+ */
 public class ThreadPoolUtil {
+    static final Logger LOGGER = LoggerFactory.getLogger(ThreadPoolUtil.class);
+    private static final Map<String, ThreadPoolExecutor> EXECUTOR_REGISTRY = new ConcurrentHashMap<>();
+    private static final Map<Executor, Map<String, AtomicInteger>> DEVICE_TASK_COUNTS = new ConcurrentHashMap<>();
+    private static final AtomicInteger DEVICE_THREAD_COUNT = new AtomicInteger();
 
     public static final ScheduledExecutorService TIMER_EXECUTOR =
-            Executors.newScheduledThreadPool(20, new HydraThreadFactory(new ThreadExceptionHandler(), "CommonTimer"));
+            newScheduledThreadPool(20, "CommonTimer");
     public static final ScheduledExecutorService PERFORMANCE_TEST_TIMER_EXECUTOR =
-            Executors.newScheduledThreadPool(5 /* corePoolSize */, new HydraThreadFactory(new ThreadExceptionHandler(), "PerformanceTestTimer"));
+            newScheduledThreadPool(5 /* corePoolSize */, "PerformanceTestTimer");
+    // a screenshot is taken again in the next round, so the ones over the limit are dropped
     public static final Executor SCREENSHOT_EXECUTOR =
-            newThreadPoolExecutor(20, 60L, "ScreenshotExecutor");
+            newThreadPoolExecutor(20, 40, 200, 60L, "ScreenshotExecutor", new ThreadPoolExecutor.DiscardPolicy());
+    // a test run waits on a nested task of the same pool, so tasks are never queued behind the running ones
     public static final Executor TEST_EXECUTOR =
-            newThreadPoolExecutor(30, 60L, "TestExecutor");
+            newThreadPoolExecutor(30, 512, 0, 60L, "TestExecutor", new ThreadPoolExecutor.AbortPolicy());
+    public static final Executor FILE_LOAD_EXECUTOR =
+            newThreadPoolExecutor(5, 64, 0, 60L, "FileLoadExecutor", new ThreadPoolExecutor.CallerRunsPolicy());
+    // runs an operation on each device of a combo at the same time, bounded as a stuck device holds its thread until the timeout
+    public static final ExecutorService COMBO_DEVICE_EXECUTOR =
+            newBoundedThreadPoolExecutor(16, 60L, "ComboDeviceExecutor");
+    // uploads the result files of the devices, bounded so a task on many devices doesn't saturate the uplink of the agent
+    public static final ExecutorService RESULT_UPLOAD_EXECUTOR =
+            newBoundedThreadPoolExecutor(4, 60L, "ResultUploadExecutor");
+    // downloads the new agent package and restarts the agent, never dropped or queued behind the other jobs
+    public static final ExecutorService AGENT_UPDATE_EXECUTOR =
+            newBoundedThreadPoolExecutor(1, 60L, "AgentUpdateExecutor");
+
+    /**
+     * @param queueCapacity 0 to hand the tasks directly to the threads, up to maxPoolSize
+     */
+    public static ExecutorService newThreadPoolExecutor(int corePoolSize, int maxPoolSize, int queueCapacity, long keepAliveTimeSeconds,
+                                                       String threadNamePrefix, RejectedExecutionHandler rejectedExecutionHandler) {
+        BlockingQueue<Runnable> workQueue = queueCapacity > 0 ? new LinkedBlockingQueue<>(queueCapacity) : new SynchronousQueue<>();
+        ThreadPoolExecutor executor = new MonitoredThreadPoolExecutor(corePoolSize, maxPoolSize, keepAliveTimeSeconds, workQueue,
+                new HydraThreadFactory(new ThreadExceptionHandler(), threadNamePrefix), new CountingRejectedExecutionHandler(threadNamePrefix, rejectedExecutionHandler));
+        executor.allowCoreThreadTimeOut(corePoolSize < maxPoolSize);
+        EXECUTOR_REGISTRY.put(threadNamePrefix, executor);
+        return executor;
+    }
+
+    /**
+     * A fixed pool of poolSize threads, the tasks over it wait in the queue and run in the caller once the queue is full.
+     */
+    public static ExecutorService newBoundedThreadPoolExecutor(int poolSize, long keepAliveTimeSeconds, String threadNamePrefix) {
+        ExecutorService executor = newThreadPoolExecutor(poolSize, poolSize, 10000, keepAliveTimeSeconds, threadNamePrefix,
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        ((ThreadPoolExecutor) executor).allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    public static ScheduledExecutorService newScheduledThreadPool(int corePoolSize, String threadNamePrefix) {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(corePoolSize, new HydraThreadFactory(new ThreadExceptionHandler(), threadNamePrefix));
+        EXECUTOR_REGISTRY.put(threadNamePrefix, executor);
+        return executor;
+    }
+
+    /**
+     * Run the task unless the device already has maxTasksPerDevice tasks running or waiting in the executor,
+     * so an unresponsive device holds at most that many threads.
+     *
+     * @return false if the task is skipped
+     */
+    public static boolean executeForDevice(Executor executor, String serialNum, int maxTasksPerDevice, Runnable task) {
+        AtomicInteger taskCount = DEVICE_TASK_COUNTS.computeIfAbsent(executor, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(serialNum, k -> new AtomicInteger());
+        if (taskCount.incrementAndGet() > maxTasksPerDevice) {
+            taskCount.decrementAndGet();
+            LOGGER.warn("Device {} already has {} tasks in the executor, the task is skipped", serialNum, maxTasksPerDevice);
+            return false;
+        }
+        DeviceTask deviceTask = new DeviceTask(task, taskCount);
+        try {
+            executor.execute(deviceTask);
+        } catch (RejectedExecutionException e) {
+            deviceTask.release();
+            throw e;
+        }
+        return true;
+    }
 
-    public static Executor newThreadPoolExecutor(int corePoolSize, long keepAliveTimeSeconds, String threadNamePrefix) {
-        return new ThreadPoolExecutor(corePoolSize, Integer.MAX_VALUE, keepAliveTimeSeconds,
-                TimeUnit.SECONDS, new SynchronousQueue<>(),
-                new HydraThreadFactory(new ThreadExceptionHandler(), threadNamePrefix));
+    /**
+     * A thread for the long blocking loop of a device, e.g. a recorder or a log stream, which would hold a pool thread for the whole test run.
+     */
+    public static Thread newDeviceThread(String threadName, Runnable run) {
+        Thread thread = new Thread(() -> {
+            DEVICE_THREAD_COUNT.incrementAndGet();
+            try {
+                run.run();
+            } finally {
+                DEVICE_THREAD_COUNT.decrementAndGet();
+            }
+        }, threadName);
+        thread.setDaemon(true);
+        thread.setUncaughtExceptionHandler(new ThreadExceptionHandler());
+        return thread;
+    }
+
+    /**
+     * Export the pool size, active, queued and completed task counts, rejected tasks and task latency of each executor.
+     */
+    public static void bindMetrics(MeterRegistry meterRegistry) {
+        EXECUTOR_REGISTRY.forEach((name, executor) -> {
+            Tags tags = Tags.of("name", name);
+            new ExecutorServiceMetrics(executor, name, Tags.empty()).bindTo(meterRegistry);
+            if (executor.getRejectedExecutionHandler() instanceof CountingRejectedExecutionHandler) {
+                FunctionCounter.builder("executor.rejected", (CountingRejectedExecutionHandler) executor.getRejectedExecutionHandler(),
+                                CountingRejectedExecutionHandler::getRejectedCount)
+                        .tags(tags).description("The number of tasks rejected by the executor").register(meterRegistry);
+            }
+            if (executor instanceof MonitoredThreadPoolExecutor) {
+                ((MonitoredThreadPoolExecutor) executor).taskTimer = Timer.builder("executor.task.duration")
+                        .tags(tags).description("The time the tasks of the executor take").register(meterRegistry);
+            }
+        });
+        Gauge.builder("device.thread.count", DEVICE_THREAD_COUNT, AtomicInteger::get)
+                .description("The number of running device loop threads").register(meterRegistry);
     }
 
     public static class HydraThreadFactory implements ThreadFactory {
@@ -54,4 +172,83 @@ public class ThreadPoolUtil {
             return thread;
         }
     }
+
+    private static final class MonitoredThreadPoolExecutor extends ThreadPoolExecutor {
+        private final ThreadLocal<Long> taskStartTime = new ThreadLocal<>();
+        private volatile Timer taskTimer;
+
+        MonitoredThreadPoolExecutor(int corePoolSize, int maxPoolSize, long keepAliveTimeSeconds, BlockingQueue<Runnable> workQueue,
+                                    ThreadFactory threadFactory, RejectedExecutionHandler rejectedExecutionHandler) {
+            super(corePoolSize, maxPoolSize, keepAliveTimeSeconds, TimeUnit.SECONDS, workQueue, threadFactory, rejectedExecutionHandler);
+        }
+
+        @Override
+        protected void beforeExecute(Thread thread, Runnable run) {
+            super.beforeExecute(thread, run);
+            taskStartTime.set(System.nanoTime());
+        }
+
+        @Override
+        protected void afterExecute(Runnable run, Throwable throwable) {
+            super.afterExecute(run, throwable);
+            Long startTime = taskStartTime.get();
+            taskStartTime.remove();
+            Timer timer = taskTimer;
+            if (timer != null && startTime != null) {
+                timer.record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    private static final class CountingRejectedExecutionHandler implements RejectedExecutionHandler {
+        private final String executorName;
+        private final RejectedExecutionHandler policy;
+        private final AtomicLong rejectedCount = new AtomicLong();
+
+        CountingRejectedExecutionHandler(String executorName, RejectedExecutionHandler policy) {
+            this.executorName = executorName;
+            this.policy = policy;
+        }
+
+        long getRejectedCount() {
+            return rejectedCount.get();
+        }
+
+        @Override
+        public void rejectedExecution(Runnable run, ThreadPoolExecutor executor) {
+            long count = rejectedCount.incrementAndGet();
+            LOGGER.warn("{} is full with {} active threads and {} queued tasks, {} tasks rejected so far, handled by {}", executorName,
+                    executor.getActiveCount(), executor.getQueue().size(), count, policy.getClass().getSimpleName());
+            if (run instanceof DeviceTask && policy instanceof ThreadPoolExecutor.DiscardPolicy) {
+                ((DeviceTask) run).release();
+            }
+            policy.rejectedExecution(run, executor);
+        }
+    }
+
+    private static final class DeviceTask implements Runnable {
+        private final Runnable task;
+        private final AtomicInteger taskCount;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        DeviceTask(Runnable task, AtomicInteger taskCount) {
+            this.task = task;
+            this.taskCount = taskCount;
+        }
+
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                taskCount.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                task.run();
+            } finally {
+                release();
+            }
+        }
+    }
 }
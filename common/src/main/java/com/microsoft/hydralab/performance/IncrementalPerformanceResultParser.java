@@ -0,0 +1,37 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.hydralab.performance;
+
+import org.slf4j.Logger;
+
+/**
+ * A result parser which folds each inspection result into a running aggregate as soon as it is captured,
+ * so only the summary is left to build when the test run tears down.
+ *
+ * @param <A> the running aggregate of one performance test result, only used by one thread at a time
+ */
+public interface IncrementalPerformanceResultParser<A> extends PerformanceResultParser {
+    A createAggregate(PerformanceTestResult performanceTestResult);
+
+    /**
+     * Parse the raw result file into the parsed data of the inspection result, and add it to the aggregate.
+     */
+    void accumulate(A aggregate, PerformanceInspectionResult inspectionResult, Logger logger);
+
+    /**
+     * Set the result summary and metric statistics from the aggregate, which may still be accumulated afterwards.
+     */
+    PerformanceTestResult summarize(A aggregate, PerformanceTestResult performanceTestResult, Logger logger);
+
+    @Override
+    default PerformanceTestResult parse(PerformanceTestResult performanceTestResult, Logger logger) {
+        if (performanceTestResult == null) {
+            return null;
+        }
+        A aggregate = createAggregate(performanceTestResult);
+        for (PerformanceInspectionResult inspectionResult : performanceTestResult.performanceInspectionResults) {
+            accumulate(aggregate, inspectionResult, logger);
+        }
+        return summarize(aggregate, performanceTestResult, logger);
+    }
+}
@@ -1,5 +1,7 @@
 package com.microsoft.hydralab.performance;
 
+import com.microsoft.hydralab.agent.runner.ITestRun;
+
 /**
  * The listener that is called during a performance test run
  */
@@ -25,6 +27,14 @@ public interface PerformanceTestListener {
      */
     void testFailure(String description);
 
+    /**
+     * Called when a crash is found in the device log, from the log collecting thread so the test run is given.
+     *
+     * @param testRun     the test run the crash happened in
+     * @param description describes the crash
+     */
+    void testCrashed(ITestRun testRun, String description);
+
     /**
      * Called before any tests have been run.
      */
@@ -104,6 +104,8 @@ public class PerformanceTestManagementService implements IPerformanceInspectionS
     private final Map<String, List<ScheduledFuture<?>>> inspectPerformanceTimerMap = new ConcurrentHashMap<>();
     private final Map<String, List<InspectionStrategy>> testLifeCycleStrategyMap = new ConcurrentHashMap<>();
     private final Map<String, Map<String, PerformanceTestResult>> testRunPerfResultMap = new ConcurrentHashMap<>();
+    // running aggregates of the incremental parsers by test run id and inspection key
+    private final Map<String, Map<String, Object>> testRunPerfAggregateMap = new ConcurrentHashMap<>();
     private final TestNotifier testNotifier = new TestNotifier();
 
     public void initialize() {
@@ -159,10 +161,45 @@ public class PerformanceTestManagementService implements IPerformanceInspectionS
         PerformanceTestResult performanceTestResult = performanceTestResultMap.get(performanceInspection.inspectionKey);
         Assert.notNull(performanceTestResult, "performanceTestResult should not be null ");
         performanceTestResult.performanceInspectionResults.add(result);
+        accumulateInspectionResult(testRun, performanceInspection.inspectionKey, performanceTestResult, result);
 
         return result;
     }
 
+    @SuppressWarnings("unchecked")
+    private void accumulateInspectionResult(ITestRun testRun, String inspectionKey, PerformanceTestResult performanceTestResult, PerformanceInspectionResult result) {
+        PerformanceResultParser parser = getParserByType(performanceTestResult.parserType);
+        if (!(parser instanceof IncrementalPerformanceResultParser)) {
+            return;
+        }
+        IncrementalPerformanceResultParser<Object> incrementalParser = (IncrementalPerformanceResultParser<Object>) parser;
+        Object aggregate = testRunPerfAggregateMap.computeIfAbsent(testRun.getId(), k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(inspectionKey, k -> incrementalParser.createAggregate(performanceTestResult));
+        // the scheduled and the lifecycle inspections of a test run may be captured at the same time
+        synchronized (aggregate) {
+            try {
+                incrementalParser.accumulate(aggregate, result, getLogger(testRun));
+            } catch (Exception e) {
+                // keep the scheduled inspection running
+                getLogger(testRun).error("Failed to parse the performance inspection result of " + inspectionKey, e);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private PerformanceTestResult parse(ITestRun testRun, String inspectionKey, PerformanceTestResult performanceTestResult) {
+        PerformanceResultParser parser = getParserByType(performanceTestResult.parserType);
+        Assert.notNull(parser, "Found no matched result parser: " + performanceTestResult.parserType);
+        Map<String, Object> aggregateMap = testRunPerfAggregateMap.get(testRun.getId());
+        Object aggregate = aggregateMap == null ? null : aggregateMap.get(inspectionKey);
+        if (aggregate == null || !(parser instanceof IncrementalPerformanceResultParser)) {
+            return parser.parse(performanceTestResult, getLogger(testRun));
+        }
+        synchronized (aggregate) {
+            return ((IncrementalPerformanceResultParser<Object>) parser).summarize(aggregate, performanceTestResult, getLogger(testRun));
+        }
+    }
+
     /**
      * @return the test run object from TestRunThreadContext
      */
@@ -219,9 +256,7 @@ public class PerformanceTestManagementService implements IPerformanceInspectionS
         Assert.notNull(testResultMap, "Found no matched test result for test run");
         PerformanceTestResult performanceTestResult = testResultMap.get(performanceInspection.inspectionKey);
         Assert.notNull(performanceTestResult, "Found no matched performanceTestResult for performanceInspectionKey: " + performanceInspection.inspectionKey);
-        PerformanceResultParser parser = getParserByType(performanceTestResult.parserType);
-        Assert.notNull(parser, "Found no matched result parser: " + performanceTestResult.parserType);
-        return parser.parse(performanceTestResult, getLogger(getTestRun()));
+        return parse(getTestRun(), performanceInspection.inspectionKey, performanceTestResult);
     }
 
     @Override
@@ -249,6 +284,11 @@ public class PerformanceTestManagementService implements IPerformanceInspectionS
         inspectWithLifeCycle(InspectionStrategy.WhenType.TEST_FAILURE, description);
     }
 
+    @Override
+    public void testCrashed(ITestRun testRun, String description) {
+        inspectWithLifeCycle(InspectionStrategy.WhenType.TEST_FAILURE, description, testRun);
+    }
+
     public void testTearDown(TestRunDevice testRunDevice, TestTask testTask, TestRun testRun, String registryServer) {
         List<ScheduledFuture<?>> timerList = inspectPerformanceTimerMap.get(testRun.getId());
         if (timerList != null) {
@@ -263,13 +303,18 @@ public class PerformanceTestManagementService implements IPerformanceInspectionS
         inspectPerformanceTimerMap.remove(testRun.getId());
         testLifeCycleStrategyMap.remove(testRun.getId());
         testRunPerfResultMap.remove(testRun.getId());
+        testRunPerfAggregateMap.remove(testRun.getId());
 
         //TODO Android battery: adb shell dumpsys battery reset using Device info
         getLogger(testRun).info("Performance inspection finished");
     }
 
     private void inspectWithLifeCycle(InspectionStrategy.WhenType whenType, String description) {
-        List<InspectionStrategy> strategyList = testLifeCycleStrategyMap.get(getTestRun().getId());
+        inspectWithLifeCycle(whenType, description, getTestRun());
+    }
+
+    private void inspectWithLifeCycle(InspectionStrategy.WhenType whenType, String description, ITestRun testRun) {
+        List<InspectionStrategy> strategyList = testLifeCycleStrategyMap.get(testRun.getId());
         if (strategyList == null) return;
 
         for (InspectionStrategy inspectionStrategy : strategyList) {
@@ -281,7 +326,7 @@ public class PerformanceTestManagementService implements IPerformanceInspectionS
                 PerformanceInspection lifeCycleInspection = new PerformanceInspection(
                         whenType.name() + "-" + description, inspection.inspectorType, inspection.appId,
                         inspection.deviceIdentifier, whenType == InspectionStrategy.WhenType.TEST_RUN_STARTED);
-                inspect(lifeCycleInspection);
+                inspect(lifeCycleInspection, testRun);
             }
         }
     }
@@ -301,11 +346,10 @@ public class PerformanceTestManagementService implements IPerformanceInspectionS
         Map<String, PerformanceTestResult> testResultMap = testRunPerfResultMap.get(testRun.getId());
         if (testResultMap == null) return null;
 
+        // the incremental parsers only have to summarize what has been accumulated during the run
         List<PerformanceTestResult> resultList = new ArrayList<>();
-        for (PerformanceTestResult performanceTestResult : testResultMap.values()) {
-            PerformanceResultParser parser = getParserByType(performanceTestResult.parserType);
-            Assert.notNull(parser, "Found no matched result parser: " + performanceTestResult.parserType);
-            resultList.add(parser.parse(performanceTestResult, getLogger(testRun)));
+        for (Map.Entry<String, PerformanceTestResult> entry : testResultMap.entrySet()) {
+            resultList.add(parse(testRun, entry.getKey(), entry.getValue()));
         }
         return resultList;
     }
@@ -27,6 +27,14 @@ public abstract class Extractor {
         this.minNativeSize = minNativeSize;
     }
 
+    /**
+     * @return how many of the instances with the largest retained size the extractor takes, ranked from 0,
+     * or -1 to take every instance unranked
+     */
+    public int getRankingLimit() {
+        return -1;
+    }
+
     public String getName() {
         return this.getClass().getSimpleName();
     }
@@ -66,54 +74,59 @@ public abstract class Extractor {
         bitmapInfo.uniqueId = instance.getUniqueId();
     }
 
-    protected void findRelatedInstances(Instance instance, Instance visited, List<Instance> founds, String[] names) {
-        if (instance == null) {
-            return;
-        }
-        ClassObj classObj = instance.getClassObj();
-        if (classObj == null) {
-            if (!(instance instanceof ClassObj)) {
+    protected void findRelatedInstances(Instance start, Instance startVisited, List<Instance> founds, String[] names) {
+        Instance visited = startVisited;
+        Instance instance = start;
+        for (int depth = 0; instance != null && depth <= HeapProfProcessor.MAX_GC_ROOT_PATH_DEPTH; depth++) {
+            ClassObj classObj = instance.getClassObj();
+            if (classObj == null) {
+                if (!(instance instanceof ClassObj)) {
+                    return;
+                }
+                classObj = (ClassObj) instance;
+            }
+            if (classObj.getClassName().contains(".launcher")) {
+                findLauncherReference(instance, visited, founds, names);
                 return;
             }
-            classObj = (ClassObj) instance;
+            visited = instance;
+            instance = instance.getNextInstanceToGcRoot();
         }
-        String className = classObj.getClassName();
-        if (className.contains(".launcher")) {
-            founds.add(instance);
-            if (instance instanceof ClassInstance) {
-                ClassInstance classInstance = (ClassInstance) instance;
-                List<ClassInstance.FieldValue> values = classInstance.getValues();
-                for (ClassInstance.FieldValue value : values) {
-                    if (Objects.equals(value.getField().getType(), Type.OBJECT)) {
-                        if (Objects.equals(value.getValue(), visited)) {
-                            if (visited != null) {
-                                founds.add(visited);
-                                names[0] = value.getField().getName();
-                            }
+    }
+
+    private static void findLauncherReference(Instance instance, Instance visited, List<Instance> founds, String[] names) {
+        founds.add(instance);
+        if (instance instanceof ClassInstance) {
+            ClassInstance classInstance = (ClassInstance) instance;
+            List<ClassInstance.FieldValue> values = classInstance.getValues();
+            for (ClassInstance.FieldValue value : values) {
+                if (Objects.equals(value.getField().getType(), Type.OBJECT)) {
+                    if (Objects.equals(value.getValue(), visited)) {
+                        if (visited != null) {
+                            founds.add(visited);
+                            names[0] = value.getField().getName();
                         }
                     }
                 }
-                // static case
-            } else if (instance instanceof ClassObj) {
-                if (instance.getNextInstanceToGcRoot() == null) {
-                    founds.add(instance);
-                    Map<Field, Object> staticFieldValues = ((ClassObj) instance).getStaticFieldValues();
-                    for (Map.Entry<Field, Object> fieldObjectEntry : staticFieldValues.entrySet()) {
-                        Field key = fieldObjectEntry.getKey();
-                        if (Objects.equals(key.getType(), Type.OBJECT)) {
-                            if (Objects.equals(staticFieldValues.get(key), visited)) {
-                                if (visited != null) {
-                                    founds.add(visited);
-                                    names[0] = key.getName();
-                                }
+            }
+            // static case
+        } else if (instance instanceof ClassObj) {
+            if (instance.getNextInstanceToGcRoot() == null) {
+                founds.add(instance);
+                Map<Field, Object> staticFieldValues = ((ClassObj) instance).getStaticFieldValues();
+                for (Map.Entry<Field, Object> fieldObjectEntry : staticFieldValues.entrySet()) {
+                    Field key = fieldObjectEntry.getKey();
+                    if (Objects.equals(key.getType(), Type.OBJECT)) {
+                        if (Objects.equals(staticFieldValues.get(key), visited)) {
+                            if (visited != null) {
+                                founds.add(visited);
+                                names[0] = key.getName();
                             }
                         }
                     }
                 }
             }
-            return;
         }
-        findRelatedInstances(instance.getNextInstanceToGcRoot(), instance, founds, names);
     }
 
     public ObjectInfo extractBitmapInfo(int retainedSizeRanking, Instance instance) {
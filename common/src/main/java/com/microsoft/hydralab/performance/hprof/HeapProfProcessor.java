@@ -15,18 +15,21 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.PriorityQueue;
 import java.util.Set;
 
 import static com.microsoft.hydralab.common.util.FileUtil.getSizeStringWithTagIfLarge;
 
 public class HeapProfProcessor {
     public static final int MAX_FIELD_CHAIN_DEPTH = 10;
+    // the path to GC root is the shortest one found by perflib, the limit only guards against a broken chain
+    public static final int MAX_GC_ROOT_PATH_DEPTH = 1000;
     //The max length that channel can display
     public static final int HTML_MAX_LENGTH = 18000;
 
@@ -62,34 +65,28 @@ public class HeapProfProcessor {
             return;
         }
 
-        DataBuffer buffer = new MemoryMappedFileBuffer(heapDumpFile);
-
-        Snapshot snapshot = Snapshot.createSnapshot(buffer);
-        logger.info("start createSnapshot: " + heapDumpFile.getName());
-
-        deduplicateGcRoots(snapshot);
-        logger.info("deduplicateGcRoots: " + heapDumpFile.getName());
-
-        snapshot.computeDominators();
-        logger.info("compute dominators finished: " + heapDumpFile.getName());
+        Snapshot snapshot = loadSnapshot();
 
         List<Instance> dominatorList = snapshot.getReachableInstances();
         if (dominatorList.isEmpty()) {
             logger.warn("no gReachable Instances: in file: {}", heapDumpFile.getName());
             return;
         }
-        dominatorList.sort((instance1, instance2) -> -Long.compare(instance1.getTotalRetainedSize(), instance2.getTotalRetainedSize()));
-        logger.info("sortByRetainedSize finish start listing dominatorList: {}, in file: {}", dominatorList.size(), heapDumpFile.getName());
-
-        Iterator<Instance> instanceIterator = dominatorList.iterator();
 
-        int index = 0;
-        while (instanceIterator.hasNext()) {
-            Instance instance = instanceIterator.next();
-            if (instance.getClassObj() == null) {
-                continue;
+        for (Instance instance : dominatorList) {
+            if (instance.getClassObj() != null) {
+                processUnrankedInstance(instance);
             }
-            processInstance(index++, instance);
+        }
+        // only the extractors of the top instances need the ranking
+        int rankingLimit = 0;
+        for (Extractor extractor : extractorMap.values()) {
+            rankingLimit = Math.max(rankingLimit, extractor.getRankingLimit());
+        }
+        List<Instance> rankedInstances = rankByRetainedSize(dominatorList, rankingLimit);
+        logger.info("top {} of {} instances ranked by retained size in file: {}", rankedInstances.size(), dominatorList.size(), heapDumpFile.getName());
+        for (int index = 0; index < rankedInstances.size(); index++) {
+            processRankedInstance(index, rankedInstances.get(index));
         }
 
         // sort all extracted object info by retained size
@@ -98,6 +95,60 @@ public class HeapProfProcessor {
         }
     }
 
+    /**
+     * perflib keeps an object for every record of the dump in the heap, and the dominators add their own tables on top,
+     * so a dump larger than the heap left is rejected instead of running the agent out of memory.
+     */
+    private Snapshot loadSnapshot() throws IOException {
+        Runtime runtime = Runtime.getRuntime();
+        long availableMemory = runtime.maxMemory() - runtime.totalMemory() + runtime.freeMemory();
+        if (heapDumpFile.length() > availableMemory) {
+            throw new IOException(String.format("Heap dump %s of %d bytes is larger than the %d bytes of heap available to parse it",
+                    heapDumpFile.getName(), heapDumpFile.length(), availableMemory));
+        }
+
+        try {
+            DataBuffer buffer = new MemoryMappedFileBuffer(heapDumpFile);
+
+            Snapshot snapshot = Snapshot.createSnapshot(buffer);
+            logger.info("start createSnapshot: " + heapDumpFile.getName());
+
+            deduplicateGcRoots(snapshot);
+            logger.info("deduplicateGcRoots: " + heapDumpFile.getName());
+
+            snapshot.computeDominators();
+            logger.info("compute dominators finished: " + heapDumpFile.getName());
+            return snapshot;
+        } catch (OutOfMemoryError e) {
+            // the partial snapshot is unreachable once thrown, which gives its heap back to the agent
+            throw new IOException("Out of memory when parsing heap dump " + heapDumpFile.getName(), e);
+        }
+    }
+
+    /**
+     * Keep the largest instances in a bounded min-heap instead of sorting all of them.
+     *
+     * @return at most rankingLimit instances with a class, by retained size in descending order
+     */
+    static List<Instance> rankByRetainedSize(Iterable<Instance> instances, int rankingLimit) {
+        if (rankingLimit <= 0) {
+            return new ArrayList<>();
+        }
+        PriorityQueue<Instance> topInstances = new PriorityQueue<>(rankingLimit + 1, Comparator.comparingLong(Instance::getTotalRetainedSize));
+        for (Instance instance : instances) {
+            if (instance.getClassObj() == null) {
+                continue;
+            }
+            topInstances.offer(instance);
+            if (topInstances.size() > rankingLimit) {
+                topInstances.poll();
+            }
+        }
+        List<Instance> rankedInstances = new ArrayList<>(topInstances);
+        rankedInstances.sort(Comparator.comparingLong(Instance::getTotalRetainedSize).reversed());
+        return rankedInstances;
+    }
+
     /**
      * Pruning duplicates reduces memory pressure from hprof bloat added in Marshmallow.
      */
@@ -123,62 +174,78 @@ public class HeapProfProcessor {
         });
     }
 
-    private void processInstance(int index, Instance instance) {
-        for (Map.Entry<String, Extractor> entry : extractorMap.entrySet()) {
-            entry.getValue().onExtractInfo(index, instance);
+    private void processUnrankedInstance(Instance instance) {
+        for (Extractor extractor : extractorMap.values()) {
+            if (extractor.getRankingLimit() < 0) {
+                extractor.onExtractInfo(-1, instance);
+            }
         }
     }
 
-    private static void findRelatedInstances(Instance instance, List<Instance> founds, Instance visited, List<String> fieldNames) {
-        if (instance == null) {
-            return;
+    private void processRankedInstance(int index, Instance instance) {
+        for (Extractor extractor : extractorMap.values()) {
+            if (index < extractor.getRankingLimit()) {
+                extractor.onExtractInfo(index, instance);
+            }
         }
-        if (visited != null) {
-            if (instance instanceof ClassInstance) {
-                ClassInstance classInstance = (ClassInstance) instance;
-                List<ClassInstance.FieldValue> values = classInstance.getValues();
-                for (ClassInstance.FieldValue value : values) {
-                    if (Objects.equals(value.getField().getType(), Type.OBJECT)) {
-                        if (Objects.equals(value.getValue(), visited)) {
-                            founds.add(instance);
-                            fieldNames.add(value.getField().getName());
-                            break;
-                        }
-                    }
-                }
-            } else if (instance instanceof ClassObj) {
-                Map<Field, Object> staticFieldValues = ((ClassObj) instance).getStaticFieldValues();
-                for (Map.Entry<Field, Object> fieldObjectEntry : staticFieldValues.entrySet()) {
-                    Field key = fieldObjectEntry.getKey();
-                    if (Objects.equals(key.getType(), Type.OBJECT)) {
-                        if (Objects.equals(staticFieldValues.get(key), visited)) {
-                            founds.add(instance);
-                            fieldNames.add(key.getName());
-                            break;
-                        }
+    }
+
+    private static void findRelatedInstances(Instance start, List<Instance> founds, List<String> fieldNames) {
+        Instance visited = null;
+        Instance instance = start;
+        for (int depth = 0; instance != null && depth <= MAX_GC_ROOT_PATH_DEPTH; depth++) {
+            if (visited != null) {
+                findReferenceField(instance, visited, founds, fieldNames);
+            }
+            visited = instance;
+            instance = instance.getNextInstanceToGcRoot();
+        }
+    }
+
+    private static void findReferenceField(Instance instance, Instance visited, List<Instance> founds, List<String> fieldNames) {
+        if (instance instanceof ClassInstance) {
+            ClassInstance classInstance = (ClassInstance) instance;
+            List<ClassInstance.FieldValue> values = classInstance.getValues();
+            for (ClassInstance.FieldValue value : values) {
+                if (Objects.equals(value.getField().getType(), Type.OBJECT)) {
+                    if (Objects.equals(value.getValue(), visited)) {
+                        founds.add(instance);
+                        fieldNames.add(value.getField().getName());
+                        break;
                     }
                 }
-            } else if (instance instanceof ArrayInstance) {
-                final ArrayInstance arrayInstance = (ArrayInstance) instance;
-                int i = 0;
-                for (Object object : arrayInstance.getValues()) {
-                    if (Objects.equals(object, visited)) {
+            }
+        } else if (instance instanceof ClassObj) {
+            Map<Field, Object> staticFieldValues = ((ClassObj) instance).getStaticFieldValues();
+            for (Map.Entry<Field, Object> fieldObjectEntry : staticFieldValues.entrySet()) {
+                Field key = fieldObjectEntry.getKey();
+                if (Objects.equals(key.getType(), Type.OBJECT)) {
+                    if (Objects.equals(staticFieldValues.get(key), visited)) {
                         founds.add(instance);
-                        fieldNames.add(i + "");
+                        fieldNames.add(key.getName());
                         break;
                     }
-                    i++;
                 }
             }
+        } else if (instance instanceof ArrayInstance) {
+            final ArrayInstance arrayInstance = (ArrayInstance) instance;
+            int i = 0;
+            for (Object object : arrayInstance.getValues()) {
+                if (Objects.equals(object, visited)) {
+                    founds.add(instance);
+                    fieldNames.add(i + "");
+                    break;
+                }
+                i++;
+            }
         }
-        findRelatedInstances(instance.getNextInstanceToGcRoot(), founds, instance, fieldNames);
     }
 
     private static List<FieldChain> getPathToGCRoot(Instance instance) {
         List<FieldChain> gcRoots = new ArrayList<>();
         List<Instance> founds = new ArrayList<>();
         List<String> fieldNames = new ArrayList<>();
-        findRelatedInstances(instance, founds, null, fieldNames);
+        findRelatedInstances(instance, founds, fieldNames);
         for (int i = founds.size() - 1; i >= 0; i--) {
             Instance foundInstance = founds.get(i);
             String fieldName = fieldNames.get(i);
@@ -228,7 +295,7 @@ public class HeapProfProcessor {
             builder.append(instance.getClassObj().getClassName()).append(" ");
         }
 
-        List<FieldChain> fieldChains = generateDominatedFieldChain(instance, 0, new HashSet<Long>());
+        List<FieldChain> fieldChains = generateDominatedFieldChain(instance);
         if (!fieldChains.isEmpty()) {
             builder.append(lineEnding);
 
@@ -248,15 +315,22 @@ public class HeapProfProcessor {
         return builder.toString();
     }
 
-    private static List<FieldChain> generateDominatedFieldChain(Instance instance, int indent, Set<Long> chainInstanceSet) {
+    private static List<FieldChain> generateDominatedFieldChain(Instance start) {
         final List<FieldChain> fieldChains = new ArrayList<>();
-        if (indent > MAX_FIELD_CHAIN_DEPTH) {
-            // Limit recursion depth
-            return fieldChains;
+        Set<Long> chainInstanceSet = new HashSet<>();
+        Instance instance = start;
+        for (int depth = 0; instance != null && depth <= MAX_FIELD_CHAIN_DEPTH; depth++) {
+            instance = appendLargestFieldChain(instance, fieldChains, chainInstanceSet);
         }
+        return fieldChains;
+    }
 
+    /**
+     * @return the instance with the largest retained size referenced by the instance, which the chain continues with
+     */
+    private static Instance appendLargestFieldChain(Instance instance, List<FieldChain> fieldChains, Set<Long> chainInstanceSet) {
+        Instance maxRetainedSize = null;
         if (instance instanceof ArrayInstance) {
-            Instance maxRetainedSize = null;
             int maxIndex = -1;
             final ArrayInstance arrayInstance = (ArrayInstance) instance;
             int i = 0;
@@ -290,12 +364,10 @@ public class HeapProfProcessor {
                 logger.debug(message);
                 fieldChains.add(new FieldChain(message, instance));
                 chainInstanceSet.add(maxRetainedSize.getId());
-                fieldChains.addAll(generateDominatedFieldChain(maxRetainedSize, indent + 1, chainInstanceSet));
             }
         } else if (instance instanceof ClassInstance) {
             ClassInstance classInstance = (ClassInstance) instance;
             List<ClassInstance.FieldValue> fieldValues = classInstance.getValues();
-            Instance maxRetainedSize = null;
             ClassInstance.FieldValue maxFieldValue = null;
             for (ClassInstance.FieldValue fieldValue : fieldValues) {
                 Object value = fieldValue.getValue();
@@ -329,13 +401,12 @@ public class HeapProfProcessor {
                 logger.debug(message);
                 fieldChains.add(new FieldChain(message, instance));
                 chainInstanceSet.add(maxRetainedSize.getId());
-                fieldChains.addAll(generateDominatedFieldChain(maxRetainedSize, indent + 1, chainInstanceSet));
             }
         } else {
             logger.debug("ignore unknown instance type " + instance.getClass().getName());
         }
 
-        return fieldChains;
+        return maxRetainedSize;
     }
 
     private static class FieldChain {
@@ -34,6 +34,12 @@ public class TopObjectInfoExtractor extends Extractor {
         return null;
     }
 
+    @Override
+    public int getRankingLimit() {
+        // rankings 0 to count are taken
+        return count + 1;
+    }
+
     @Override
     public String getType() {
         return "top" + count;
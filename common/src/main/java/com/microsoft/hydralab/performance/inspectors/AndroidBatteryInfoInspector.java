@@ -2,6 +2,7 @@
 // Licensed under the MIT License.
 package com.microsoft.hydralab.performance.inspectors;
 
+import com.microsoft.hydralab.common.util.FileUtil;
 import com.microsoft.hydralab.common.util.ShellUtils;
 import com.microsoft.hydralab.common.util.TimeUtils;
 import com.microsoft.hydralab.performance.PerformanceInspection;
@@ -26,8 +27,13 @@ public class AndroidBatteryInfoInspector implements PerformanceInspector {
         File rawResultFile = new File(rawResultFolder,
                 String.format(RAW_RESULT_FILE_NAME_FORMAT, TimeUtils.getTimestampForFilename()));
 
-        ShellUtils.execLocalCommandWithRedirect(String.format("adb -s %s shell dumpsys batterystats %s",
-                performanceInspection.deviceIdentifier, performanceInspection.appId), rawResultFile, true, logger);
+        String output = AndroidShellCommandBatcher.execute(performanceInspection.deviceIdentifier, "dumpsys batterystats " + performanceInspection.appId, logger);
+        if (output != null) {
+            FileUtil.writeStringToFile(output, rawResultFile);
+        } else {
+            ShellUtils.execLocalCommandWithRedirect(String.format("adb -s %s shell dumpsys batterystats %s",
+                    performanceInspection.deviceIdentifier, performanceInspection.appId), rawResultFile, true, logger);
+        }
         return new PerformanceInspectionResult(rawResultFile, performanceInspection);
     }
 
@@ -8,16 +8,30 @@ import com.microsoft.hydralab.common.util.TimeUtils;
 import com.microsoft.hydralab.performance.PerformanceInspection;
 import com.microsoft.hydralab.performance.PerformanceInspectionResult;
 import com.microsoft.hydralab.performance.PerformanceInspector;
+import com.microsoft.hydralab.performance.parsers.AndroidMemoryInfoResultParser;
 import org.slf4j.Logger;
 import org.springframework.util.Assert;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.StringReader;
 
 public class AndroidMemoryInfoInspector implements PerformanceInspector  {
     private static final String RAW_RESULT_FILE_NAME_FORMAT = "%s.txt";
 
     @Override
     public PerformanceInspectionResult inspect(PerformanceInspection performanceInspection, Logger logger) {
+        String output = AndroidShellCommandBatcher.execute(performanceInspection.deviceIdentifier, "dumpsys meminfo " + performanceInspection.appId, logger);
+        if (output != null) {
+            // parsed here so no raw result file is needed, the parser picks up the memory values from the parsed data
+            PerformanceInspectionResult result = new PerformanceInspectionResult(null, performanceInspection);
+            try {
+                result.parsedData = AndroidMemoryInfoResultParser.parseMemInfo(new BufferedReader(new StringReader(output)));
+            } catch (Exception e) {
+                logger.error("Failed to parse the memory info of " + performanceInspection.appId, e);
+            }
+            return result;
+        }
 
         File rawResultFolder = new File(performanceInspection.resultFolder, performanceInspection.appId);
         Assert.isTrue(rawResultFolder.exists() || rawResultFolder.mkdir(), "rawResultFolder.mkdirs() failed in" + rawResultFolder.getAbsolutePath());
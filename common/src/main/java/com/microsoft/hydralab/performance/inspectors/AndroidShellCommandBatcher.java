@@ -0,0 +1,125 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.performance.inspectors;
+
+import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.AndroidDebugBridge;
+import com.android.ddmlib.CollectingOutputReceiver;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.ShellCommandUnresponsiveException;
+import com.android.ddmlib.TimeoutException;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the shell commands of the inspectors over the ddmlib connection of the agent instead of an adb process per command.
+ * The commands requested for a device while another batch of it is running are sent together in the next round trip,
+ * and the output of each is told apart by a marker echoed after it.
+ */
+final class AndroidShellCommandBatcher {
+    static final String OUTPUT_END_MARKER = "__HYDRA_LAB_COMMAND_OUTPUT_END__";
+    private static final int MAX_BATCH_TIMEOUT_SECONDS = 120;
+    private static final int MAX_OUTPUT_RESPONSE_SECONDS = 30;
+    private static final Map<String, Queue<PendingCommand>> DEVICE_COMMAND_QUEUE_MAP = new ConcurrentHashMap<>();
+
+    private AndroidShellCommandBatcher() {
+    }
+
+    /**
+     * @return the output of the command, null if the device is not connected through ddmlib or the command failed
+     */
+    static String execute(String serialNum, String command, Logger logger) {
+        IDevice device = getOnlineDevice(serialNum);
+        if (device == null) {
+            return null;
+        }
+        return execute(device, command, logger);
+    }
+
+    static String execute(IDevice device, String command, Logger logger) {
+        PendingCommand pendingCommand = new PendingCommand(command);
+        Queue<PendingCommand> commandQueue = DEVICE_COMMAND_QUEUE_MAP.computeIfAbsent(device.getSerialNumber(), k -> new ConcurrentLinkedQueue<>());
+        commandQueue.add(pendingCommand);
+        synchronized (commandQueue) {
+            // a batch run while waiting for the lock may have taken the command already
+            if (!pendingCommand.done) {
+                List<PendingCommand> batch = new ArrayList<>();
+                PendingCommand next;
+                while ((next = commandQueue.poll()) != null) {
+                    batch.add(next);
+                }
+                executeBatch(device, batch, logger);
+            }
+        }
+        return pendingCommand.output;
+    }
+
+    private static IDevice getOnlineDevice(String serialNum) {
+        AndroidDebugBridge bridge = AndroidDebugBridge.getBridge();
+        if (bridge == null || !bridge.hasInitialDeviceList()) {
+            return null;
+        }
+        for (IDevice device : bridge.getDevices()) {
+            if (device.isOnline() && device.getSerialNumber().equals(serialNum)) {
+                return device;
+            }
+        }
+        return null;
+    }
+
+    private static void executeBatch(IDevice device, List<PendingCommand> batch, Logger logger) {
+        StringBuilder batchCommand = new StringBuilder();
+        for (PendingCommand pendingCommand : batch) {
+            if (batchCommand.length() > 0) {
+                batchCommand.append("; ");
+            }
+            batchCommand.append(pendingCommand.command).append("; echo ").append(OUTPUT_END_MARKER);
+        }
+        CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+        try {
+            device.executeShellCommand(batchCommand.toString(), receiver, MAX_BATCH_TIMEOUT_SECONDS, MAX_OUTPUT_RESPONSE_SECONDS, TimeUnit.SECONDS);
+            splitOutput(receiver.getOutput(), batch);
+        } catch (TimeoutException | AdbCommandRejectedException | ShellCommandUnresponsiveException | IOException e) {
+            logger.warn("Failed to execute {} commands on {} through ddmlib: {}", batch.size(), device.getSerialNumber(), e.getMessage());
+        } finally {
+            for (PendingCommand pendingCommand : batch) {
+                pendingCommand.done = true;
+            }
+        }
+    }
+
+    private static void splitOutput(String output, List<PendingCommand> batch) {
+        int start = 0;
+        for (PendingCommand pendingCommand : batch) {
+            int end = output.indexOf(OUTPUT_END_MARKER, start);
+            if (end < 0) {
+                // the output was cut off, the rest of the commands failed
+                return;
+            }
+            pendingCommand.output = output.substring(start, end);
+            start = end + OUTPUT_END_MARKER.length();
+            while (start < output.length() && (output.charAt(start) == '\r' || output.charAt(start) == '\n')) {
+                start++;
+            }
+        }
+    }
+
+    private static final class PendingCommand {
+        private final String command;
+        private String output;
+        private boolean done;
+
+        private PendingCommand(String command) {
+            this.command = command;
+        }
+    }
+}
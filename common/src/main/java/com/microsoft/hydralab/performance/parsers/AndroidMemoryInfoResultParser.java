@@ -4,8 +4,9 @@
 package com.microsoft.hydralab.performance.parsers;
 
 import com.google.common.base.Strings;
+import com.microsoft.hydralab.performance.IncrementalPerformanceResultParser;
+import com.microsoft.hydralab.performance.MetricStatistics;
 import com.microsoft.hydralab.performance.PerformanceInspectionResult;
-import com.microsoft.hydralab.performance.PerformanceResultParser;
 import com.microsoft.hydralab.performance.PerformanceTestResult;
 import com.microsoft.hydralab.performance.entity.AndroidMemoryInfo;
 import org.apache.commons.lang3.math.NumberUtils;
@@ -17,10 +18,10 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
-public class AndroidMemoryInfoResultParser implements PerformanceResultParser {
+public class AndroidMemoryInfoResultParser implements IncrementalPerformanceResultParser<AndroidMemoryInfoResultParser.MemoryInfoAggregate> {
     private static final int MEM_INFO_LENGTH = 19;
     private static final String SUMMARY_DESCRIPTION = "Android memory info summary";
     private static final Map<String, Integer> MEMORY_FILE_TO_DB_INDEX_MAP = new HashMap<>() {
@@ -35,28 +36,57 @@ public class AndroidMemoryInfoResultParser implements PerformanceResultParser {
             put("Unknown", 7);
         }
     };
+    private static final Map<String, Integer> STATISTICS_METRIC_INDEX_MAP = new LinkedHashMap<>() {
+        {
+            put("totalPss", 16);
+            put("totalRss", 17);
+            put("javaHeapPss", 0);
+            put("nativeHeapPss", 2);
+            put("graphicsPss", 8);
+        }
+    };
 
     @Override
-    public PerformanceTestResult parse(PerformanceTestResult performanceTestResult, Logger logger) {
-        if (performanceTestResult == null || performanceTestResult.performanceInspectionResults == null
-                || performanceTestResult.performanceInspectionResults.isEmpty()) {
-            return null;
+    public MemoryInfoAggregate createAggregate(PerformanceTestResult performanceTestResult) {
+        return new MemoryInfoAggregate();
+    }
+
+    @Override
+    public void accumulate(MemoryInfoAggregate aggregate, PerformanceInspectionResult inspectionResult, Logger logger) {
+        if (aggregate.firstResult == null) {
+            aggregate.firstResult = inspectionResult;
         }
-        List<PerformanceInspectionResult> inspectionResults = performanceTestResult.performanceInspectionResults;
-        double[] averageMemoryInfo = new double[MEM_INFO_LENGTH];
-        Arrays.fill(averageMemoryInfo, 0.0);
-        int validDataSize = 0;
-        for (PerformanceInspectionResult inspectionResult : inspectionResults) {
-            File logFile = inspectionResult.rawResultFile;
-            long[] memInfos = parseRawResultFile(logFile, logger);
-            inspectionResult.parsedData = buildMemoryInfo(inspectionResult.inspection.appId, inspectionResult.inspection.description, inspectionResult.timestamp, memInfos);
-            if (isValidMem(memInfos)) {
-                updateAverageMem(averageMemoryInfo, memInfos, validDataSize);
-                validDataSize++;
+        long[] memInfos;
+        if (inspectionResult.rawResultFile == null) {
+            // parsed by the inspector from the dumpsys output, or built by a previous parse of the result
+            if (inspectionResult.parsedData instanceof AndroidMemoryInfo) {
+                memInfos = toMemInfos((AndroidMemoryInfo) inspectionResult.parsedData);
+            } else {
+                memInfos = inspectionResult.parsedData instanceof long[] ? (long[]) inspectionResult.parsedData : null;
             }
+        } else {
+            memInfos = parseRawResultFile(inspectionResult.rawResultFile, logger);
         }
+        inspectionResult.parsedData = buildMemoryInfo(inspectionResult.inspection.appId, inspectionResult.inspection.description, inspectionResult.timestamp, memInfos);
+        if (isValidMem(memInfos)) {
+            updateAverageMem(aggregate.averageMemoryInfo, memInfos, aggregate.validDataSize);
+            aggregate.validDataSize++;
+            for (Map.Entry<String, Integer> entry : STATISTICS_METRIC_INDEX_MAP.entrySet()) {
+                long value = memInfos[entry.getValue()];
+                if (value != -1) {
+                    aggregate.statistics.computeIfAbsent(entry.getKey(), k -> new MetricStatistics()).add(inspectionResult.timestamp, value);
+                }
+            }
+        }
+    }
 
-        performanceTestResult.setResultSummary(buildAverageMemoryInfo(averageMemoryInfo, inspectionResults.get(0), SUMMARY_DESCRIPTION));
+    @Override
+    public PerformanceTestResult summarize(MemoryInfoAggregate aggregate, PerformanceTestResult performanceTestResult, Logger logger) {
+        if (performanceTestResult == null || aggregate.firstResult == null) {
+            return null;
+        }
+        performanceTestResult.setResultSummary(buildAverageMemoryInfo(aggregate.averageMemoryInfo, aggregate.firstResult, SUMMARY_DESCRIPTION));
+        performanceTestResult.metricStatistics.putAll(aggregate.statistics);
 
         return performanceTestResult;
     }
@@ -125,67 +155,105 @@ public class AndroidMemoryInfoResultParser implements PerformanceResultParser {
         return androidMemoryInfo;
     }
 
+    private long[] toMemInfos(AndroidMemoryInfo androidMemoryInfo) {
+        return new long[]{
+                androidMemoryInfo.getJavaHeapPss(),
+                androidMemoryInfo.getJavaHeapRss(),
+                androidMemoryInfo.getNativeHeapPss(),
+                androidMemoryInfo.getNativeHeapRss(),
+                androidMemoryInfo.getCodePss(),
+                androidMemoryInfo.getCodeRss(),
+                androidMemoryInfo.getStackPss(),
+                androidMemoryInfo.getStackRss(),
+                androidMemoryInfo.getGraphicsPss(),
+                androidMemoryInfo.getGraphicsRss(),
+                androidMemoryInfo.getPrivateOtherPss(),
+                androidMemoryInfo.getPrivateOtherRss(),
+                androidMemoryInfo.getSystemPss(),
+                androidMemoryInfo.getSystemRss(),
+                androidMemoryInfo.getUnknownPss(),
+                androidMemoryInfo.getUnknownRss(),
+                androidMemoryInfo.getTotalPss(),
+                androidMemoryInfo.getTotalRss(),
+                androidMemoryInfo.getTotalSwapPss()
+        };
+    }
+
     private long[] parseRawResultFile(File rawFile, Logger logger) {
+        try (BufferedReader bufferedReader = new BufferedReader(new FileReader(rawFile))) {
+            return parseMemInfo(bufferedReader);
+        } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the memory values of the dumpsys meminfo output of an app, in the order of the {@link AndroidMemoryInfo} fields, -1 for the ones not found
+     */
+    public static long[] parseMemInfo(BufferedReader bufferedReader) throws IOException {
         String line;
         long[] memoryValueArr = new long[MEM_INFO_LENGTH];
         Arrays.fill(memoryValueArr, -1);
-        try (BufferedReader bufferedReader = new BufferedReader(new FileReader(rawFile))) {
-            while ((line = bufferedReader.readLine()) != null) {
-                if (line.trim().startsWith("App Summary")) {
-                    // PSS title line, used to anchor target index offset
-                    line = bufferedReader.readLine();
-                    int pssEndOffset = line.indexOf(")");
-                    int rssEndOffset = line.lastIndexOf(")");
+        while ((line = bufferedReader.readLine()) != null) {
+            if (line.trim().startsWith("App Summary")) {
+                // PSS title line, used to anchor target index offset
+                line = bufferedReader.readLine();
+                int pssEndOffset = line.indexOf(")");
+                int rssEndOffset = line.lastIndexOf(")");
 
-                    // move to data line
-                    bufferedReader.readLine();
-                    line = bufferedReader.readLine();
-                    while (line != null) {
-                        String lineStr = line.trim();
+                // move to data line
+                bufferedReader.readLine();
+                line = bufferedReader.readLine();
+                while (line != null) {
+                    String lineStr = line.trim();
 
-                        if (lineStr.startsWith("TOTAL ")) {
-                            if (line.contains("TOTAL PSS:")) {
-                                String pssValue = line.split("TOTAL PSS:")[1].split(" +")[1];
-                                memoryValueArr[16] = NumberUtils.toLong(pssValue, -1);
-                            }
-                            if (line.contains("TOTAL RSS:")) {
-                                String rssValue = line.split("TOTAL RSS:")[1].split(" +")[1];
-                                memoryValueArr[17] = NumberUtils.toLong(rssValue, -1);
-                            }
-                            if (line.contains("TOTAL SWAP PSS:")) {
-                                memoryValueArr[18] = NumberUtils.toLong(line.split("TOTAL SWAP PSS:")[1].split(" +")[1], -1);
-                            }
-                            break;
-                        } else if (!Strings.isNullOrEmpty(lineStr)) {
-                            String[] keyValue = lineStr.split(":");
-                            String key = keyValue[0];
-                            String values = keyValue[1];
-
-                            // int in map to calculate offset in memoryValueArr array (typeIndex * 2 +0/+1 (implies PSS/RSS correspondingly))
-                            int typeIndex = MEMORY_FILE_TO_DB_INDEX_MAP.get(key);
-
-                            // for current memory type, PSS data exists
-                            if (line.charAt(pssEndOffset) != ' ') {
-                                memoryValueArr[typeIndex * 2] = NumberUtils.toLong(values.split(" +")[1]);
-
-                                // for current memory type, RSS data exists
-                                if (line.length() > rssEndOffset && line.charAt(rssEndOffset) != ' ') {
-                                    memoryValueArr[typeIndex * 2 + 1] = NumberUtils.toLong(values.split(" +")[2]);
-                                }
-                            } else if (line.length() > rssEndOffset && line.charAt(rssEndOffset) != ' ') {
-                                // for current memory type PSS data doesn't exist and RSS data exists
-                                memoryValueArr[typeIndex * 2 + 1] = NumberUtils.toLong(values.split(" +")[1]);
-                            }
+                    if (lineStr.startsWith("TOTAL ")) {
+                        if (line.contains("TOTAL PSS:")) {
+                            String pssValue = line.split("TOTAL PSS:")[1].split(" +")[1];
+                            memoryValueArr[16] = NumberUtils.toLong(pssValue, -1);
+                        }
+                        if (line.contains("TOTAL RSS:")) {
+                            String rssValue = line.split("TOTAL RSS:")[1].split(" +")[1];
+                            memoryValueArr[17] = NumberUtils.toLong(rssValue, -1);
                         }
+                        if (line.contains("TOTAL SWAP PSS:")) {
+                            memoryValueArr[18] = NumberUtils.toLong(line.split("TOTAL SWAP PSS:")[1].split(" +")[1], -1);
+                        }
+                        break;
+                    } else if (!Strings.isNullOrEmpty(lineStr)) {
+                        String[] keyValue = lineStr.split(":");
+                        String key = keyValue[0];
+                        String values = keyValue[1];
+
+                        // int in map to calculate offset in memoryValueArr array (typeIndex * 2 +0/+1 (implies PSS/RSS correspondingly))
+                        int typeIndex = MEMORY_FILE_TO_DB_INDEX_MAP.get(key);
 
-                        line = bufferedReader.readLine();
+                        // for current memory type, PSS data exists
+                        if (line.charAt(pssEndOffset) != ' ') {
+                            memoryValueArr[typeIndex * 2] = NumberUtils.toLong(values.split(" +")[1]);
+
+                            // for current memory type, RSS data exists
+                            if (line.length() > rssEndOffset && line.charAt(rssEndOffset) != ' ') {
+                                memoryValueArr[typeIndex * 2 + 1] = NumberUtils.toLong(values.split(" +")[2]);
+                            }
+                        } else if (line.length() > rssEndOffset && line.charAt(rssEndOffset) != ' ') {
+                            // for current memory type PSS data doesn't exist and RSS data exists
+                            memoryValueArr[typeIndex * 2 + 1] = NumberUtils.toLong(values.split(" +")[1]);
+                        }
                     }
+
+                    line = bufferedReader.readLine();
                 }
             }
-        } catch (IOException e) {
-            logger.error(e.getMessage(), e);
-            return null;
         }
         return memoryValueArr;
     }
+
+    public static class MemoryInfoAggregate {
+        private final double[] averageMemoryInfo = new double[MEM_INFO_LENGTH];
+        private final Map<String, MetricStatistics> statistics = new LinkedHashMap<>();
+        private int validDataSize;
+        private PerformanceInspectionResult firstResult;
+    }
 }
@@ -2,8 +2,9 @@
 // Licensed under the MIT License.
 package com.microsoft.hydralab.performance.parsers;
 
+import com.microsoft.hydralab.performance.IncrementalPerformanceResultParser;
+import com.microsoft.hydralab.performance.MetricStatistics;
 import com.microsoft.hydralab.performance.PerformanceInspectionResult;
-import com.microsoft.hydralab.performance.PerformanceResultParser;
 import com.microsoft.hydralab.performance.PerformanceTestResult;
 import com.microsoft.hydralab.performance.entity.WindowsMemoryParsedData;
 import org.slf4j.Logger;
@@ -15,12 +16,13 @@ import java.io.IOException;
 import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-public class WindowsMemoryResultParser implements PerformanceResultParser {
+public class WindowsMemoryResultParser implements IncrementalPerformanceResultParser<WindowsMemoryResultParser.MemoryAggregate> {
 
     private static final Pattern pattern = Pattern.compile("^Id=(.*?) .*?ProcessName=(.*?) " +
             ".*?NonpagedSystemMemorySize64=(.*?) .*?PagedMemorySize64=(.*?) .*?PagedSystemMemorySize64=(.*?) " +
@@ -29,59 +31,69 @@ public class WindowsMemoryResultParser implements PerformanceResultParser {
             ".*?ProductVersion=(.*?)$");
 
     @Override
-    public PerformanceTestResult parse(PerformanceTestResult performanceTestResult, Logger logger) {
-        WindowsMemoryParsedData averagedData = new WindowsMemoryParsedData();
-        performanceTestResult.setResultSummary(averagedData);
-
-        Map<Long, Integer> metricsCountPerProcess = new ConcurrentHashMap<>();
-        Map<Long, BigInteger[]> metricsSumPerProcess = new ConcurrentHashMap<>();
+    public MemoryAggregate createAggregate(PerformanceTestResult performanceTestResult) {
+        return new MemoryAggregate();
+    }
 
-        for (PerformanceInspectionResult inspectionResult : performanceTestResult.performanceInspectionResults) {
-            if (inspectionResult == null) {
-                continue;
-            }
+    @Override
+    public void accumulate(MemoryAggregate aggregate, PerformanceInspectionResult inspectionResult, Logger logger) {
+        if (inspectionResult == null) {
+            return;
+        }
 
-            try (BufferedReader reader = new BufferedReader(new FileReader(inspectionResult.rawResultFile,
-                    StandardCharsets.UTF_16))) {
-                WindowsMemoryParsedData parsedData = new WindowsMemoryParsedData();
-                inspectionResult.parsedData = parsedData;
-                String line;
+        try (BufferedReader reader = new BufferedReader(new FileReader(inspectionResult.rawResultFile,
+                StandardCharsets.UTF_16))) {
+            WindowsMemoryParsedData parsedData = new WindowsMemoryParsedData();
+            inspectionResult.parsedData = parsedData;
+            String line;
 
-                while ((line = reader.readLine()) != null)
+            while ((line = reader.readLine()) != null)
+            {
+                Matcher matcher = pattern.matcher(line);
+                while (matcher.find())
                 {
-                    Matcher matcher = pattern.matcher(line);
-                    while (matcher.find())
-                    {
-                        Long processId = Long.parseLong(matcher.group(1));
-                        String processName = matcher.group(2);
-                        WindowsMemoryParsedData.WindowsMemoryMetrics windowsMemoryMetrics =
-                                getWindowsMemoryMetrics(matcher);
-
-                        parsedData.getProcessIdProcessNameMap().put(processId, processName);
-                        parsedData.getProcessIdWindowsMemoryMetricsMap().put(processId, windowsMemoryMetrics);
-
-                        if (!metricsSumPerProcess.containsKey(processId)) {
-                            BigInteger[] sumOfTheData = new BigInteger[8];
-                            Arrays.fill(sumOfTheData, BigInteger.ZERO);
-                            metricsSumPerProcess.put(processId, sumOfTheData);
-                        }
-                        accumulateToTheSum(windowsMemoryMetrics, metricsSumPerProcess.get(processId));
-                        int count = metricsCountPerProcess.getOrDefault(processId, 0);
-                        metricsCountPerProcess.put(processId, count + 1);
-
-                        averagedData.getProcessIdProcessNameMap().putIfAbsent(processId, processName);
+                    Long processId = Long.parseLong(matcher.group(1));
+                    String processName = matcher.group(2);
+                    WindowsMemoryParsedData.WindowsMemoryMetrics windowsMemoryMetrics =
+                            getWindowsMemoryMetrics(matcher);
+
+                    parsedData.getProcessIdProcessNameMap().put(processId, processName);
+                    parsedData.getProcessIdWindowsMemoryMetricsMap().put(processId, windowsMemoryMetrics);
+
+                    if (!aggregate.metricsSumPerProcess.containsKey(processId)) {
+                        BigInteger[] sumOfTheData = new BigInteger[8];
+                        Arrays.fill(sumOfTheData, BigInteger.ZERO);
+                        aggregate.metricsSumPerProcess.put(processId, sumOfTheData);
                     }
+                    accumulateToTheSum(windowsMemoryMetrics, aggregate.metricsSumPerProcess.get(processId));
+                    int count = aggregate.metricsCountPerProcess.getOrDefault(processId, 0);
+                    aggregate.metricsCountPerProcess.put(processId, count + 1);
+                    aggregate.processIdProcessNameMap.putIfAbsent(processId, processName);
+
+                    String metricPrefix = processName + "(" + processId + ").";
+                    aggregate.statistics.computeIfAbsent(metricPrefix + "privateMemorySize64", k -> new MetricStatistics())
+                            .add(inspectionResult.timestamp, windowsMemoryMetrics.getPrivateMemorySize64());
+                    aggregate.statistics.computeIfAbsent(metricPrefix + "workingSet64", k -> new MetricStatistics())
+                            .add(inspectionResult.timestamp, windowsMemoryMetrics.getWorkingSet64());
                 }
-
-            } catch (FileNotFoundException e) {
-                logger.error("Failed to find the file.", e);
-            } catch (IOException e) {
-                logger.error("Failed to read data from the file.", e);
             }
+
+        } catch (FileNotFoundException e) {
+            logger.error("Failed to find the file.", e);
+        } catch (IOException e) {
+            logger.error("Failed to read data from the file.", e);
         }
+    }
 
-        calculateTheAverage(metricsCountPerProcess, metricsSumPerProcess,
+    @Override
+    public PerformanceTestResult summarize(MemoryAggregate aggregate, PerformanceTestResult performanceTestResult, Logger logger) {
+        WindowsMemoryParsedData averagedData = new WindowsMemoryParsedData();
+        performanceTestResult.setResultSummary(averagedData);
+        averagedData.getProcessIdProcessNameMap().putAll(aggregate.processIdProcessNameMap);
+
+        calculateTheAverage(aggregate.metricsCountPerProcess, aggregate.metricsSumPerProcess,
                 averagedData.getProcessIdWindowsMemoryMetricsMap());
+        performanceTestResult.metricStatistics.putAll(aggregate.statistics);
 
         return performanceTestResult;
     }
@@ -137,10 +149,11 @@ public class WindowsMemoryResultParser implements PerformanceResultParser {
                 throw new ArithmeticException("The divisor cannot be less than or equal to zero.");
             }
 
+            // the sums are still accumulated after a summary
+            BigInteger[] averagedMetrics = new BigInteger[summedMetrics.length];
             for (int i = 0; i < summedMetrics.length; ++i) {
-                summedMetrics[i] = summedMetrics[i].divide(BigInteger.valueOf(count));
+                averagedMetrics[i] = summedMetrics[i].divide(BigInteger.valueOf(count));
             }
-            BigInteger[] averagedMetrics = summedMetrics;
 
             WindowsMemoryParsedData.WindowsMemoryMetrics windowsMemoryMetrics =
                     new WindowsMemoryParsedData.WindowsMemoryMetrics();
@@ -157,4 +170,10 @@ public class WindowsMemoryResultParser implements PerformanceResultParser {
         });
     }
 
+    public static class MemoryAggregate {
+        private final Map<Long, Integer> metricsCountPerProcess = new ConcurrentHashMap<>();
+        private final Map<Long, BigInteger[]> metricsSumPerProcess = new ConcurrentHashMap<>();
+        private final Map<Long, String> processIdProcessNameMap = new ConcurrentHashMap<>();
+        private final Map<String, MetricStatistics> statistics = new LinkedHashMap<>();
+    }
 }
@@ -0,0 +1,122 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.hydralab.common.codec;
+
+import com.microsoft.hydralab.common.entity.common.AgentMetadata;
+import com.microsoft.hydralab.common.entity.common.AgentUser;
+import com.microsoft.hydralab.common.entity.common.DeviceInfo;
+import com.microsoft.hydralab.common.entity.common.Message;
+import com.microsoft.hydralab.common.util.Const;
+import com.microsoft.hydralab.common.util.SerializeUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare the legacy gzipped fastjson codec with the binary codec on heartbeat and device list payloads.
+ * Not a unit test, run the main method from the test classpath.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageCodecBenchmark {
+    @Param({"JSON_GZIP", "BINARY"})
+    public String codec;
+    @Param({"10", "40"})
+    public int deviceCount;
+
+    private int codecVersion;
+    private Message deviceListMessage;
+    private Message heartbeatMessage;
+    private byte[] encodedDeviceListMessage;
+    private byte[] encodedHeartbeatMessage;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(MessageCodecBenchmark.class.getSimpleName()).build()).run();
+    }
+
+    @Setup
+    public void setup() {
+        codecVersion = "BINARY".equals(codec) ? MessageCodec.VERSION_BINARY : MessageCodec.VERSION_JSON_GZIP;
+
+        List<DeviceInfo> deviceInfos = new ArrayList<>();
+        for (int i = 0; i < deviceCount; i++) {
+            DeviceInfo deviceInfo = new DeviceInfo();
+            deviceInfo.setSerialNum("R58M" + (1000000 + i));
+            deviceInfo.setName("SM-G9730-" + i);
+            deviceInfo.setManufacturer("samsung");
+            deviceInfo.setModel("SM-G9730");
+            deviceInfo.setBrand("samsung");
+            deviceInfo.setOsVersion("12");
+            deviceInfo.setOsSDKInt("31");
+            deviceInfo.setScreenSize("1440x3040");
+            deviceInfo.setScreenDensity(560);
+            deviceInfo.setAbiList("arm64-v8a,armeabi-v7a,armeabi");
+            deviceInfo.setStatus(i % 3 == 0 ? DeviceInfo.TESTING : DeviceInfo.ONLINE);
+            deviceInfo.setType("ANDROID");
+            deviceInfo.setImageRelPath("device/screenshots/" + deviceInfo.getSerialNum() + ".jpg");
+            deviceInfo.setScreenshotImageUrl("https://hydralab.blob.core.windows.net/device/screenshots/" + deviceInfo.getSerialNum() + ".jpg");
+            deviceInfo.setScreenshotUpdateTimeMilli(System.currentTimeMillis());
+            deviceInfo.setAgentId("9d3b2f0e-0f7e-4a5c-8b1d-9b5a3b8f1e2c");
+            deviceInfo.getDeviceGroup().add("G.regression");
+            deviceInfos.add(deviceInfo);
+        }
+        deviceListMessage = new Message();
+        deviceListMessage.setPath(Const.Path.DEVICE_LIST);
+        deviceListMessage.setBody(deviceInfos);
+
+        AgentUser agentUser = new AgentUser();
+        agentUser.setName("agent-benchmark");
+        agentUser.setHostname("LAB-HOST-01");
+        agentUser.setTeamName("Default");
+        agentUser.setVersionName("0.9.5");
+        agentUser.setBatteryStrategy(AgentUser.BatteryStrategy.Normal);
+        AgentMetadata agentMetadata = new AgentMetadata();
+        agentMetadata.setAgentUser(agentUser);
+        agentMetadata.setStorageType(Const.StorageType.LOCAL);
+        agentMetadata.setPushgatewayUsername("pushgateway");
+        agentMetadata.setPushgatewayPassword("password");
+        heartbeatMessage = Message.ok(Const.Path.HEARTBEAT, agentMetadata);
+
+        encodedDeviceListMessage = SerializeUtil.messageToByteArr(deviceListMessage, codecVersion);
+        encodedHeartbeatMessage = SerializeUtil.messageToByteArr(heartbeatMessage, codecVersion);
+    }
+
+    @Benchmark
+    public byte[] encodeDeviceList() {
+        return SerializeUtil.messageToByteArr(deviceListMessage, codecVersion);
+    }
+
+    @Benchmark
+    public Message decodeDeviceList() {
+        return SerializeUtil.byteArrToMessage(encodedDeviceListMessage);
+    }
+
+    @Benchmark
+    public byte[] encodeHeartbeat() {
+        return SerializeUtil.messageToByteArr(heartbeatMessage, codecVersion);
+    }
+
+    @Benchmark
+    public Message decodeHeartbeat() {
+        return SerializeUtil.byteArrToMessage(encodedHeartbeatMessage);
+    }
+}
@@ -0,0 +1,131 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.common.entity.common;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TestClassQueueTest {
+    private static final long JOIN_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    private static List<String> testClasses(int count) {
+        List<String> testClasses = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            testClasses.add("com.microsoft.test.Class" + i);
+        }
+        return testClasses;
+    }
+
+    @Test
+    public void agentSharesNotOverlapped() throws InterruptedException {
+        // 5 devices, 2 on the first agent and 3 on the second
+        TestClassQueue firstAgentQueue = new TestClassQueue(5, 0, 2, 2, JOIN_TIMEOUT_MILLIS);
+        TestClassQueue secondAgentQueue = new TestClassQueue(5, 2, 3, 3, JOIN_TIMEOUT_MILLIS);
+        firstAgentQueue.load(testClasses(23));
+        secondAgentQueue.load(testClasses(23));
+
+        Set<String> takenClasses = new HashSet<>();
+        for (TestClassQueue queue : List.of(firstAgentQueue, secondAgentQueue)) {
+            String testClass;
+            while ((testClass = queue.poll(TimeUnit.SECONDS.toMillis(5))) != null) {
+                Assertions.assertTrue(takenClasses.add(testClass), testClass + " is taken twice");
+                queue.complete(testClass);
+            }
+        }
+        Assertions.assertEquals(new HashSet<>(testClasses(23)), takenClasses);
+    }
+
+    @Test
+    public void classOfOfflineDeviceTakenByOthers() throws InterruptedException {
+        TestClassQueue queue = new TestClassQueue(2, 0, 2, 2, JOIN_TIMEOUT_MILLIS);
+        queue.load(testClasses(1));
+        queue.join();
+        queue.join();
+        String inFlightClass = queue.poll(TimeUnit.SECONDS.toMillis(5));
+
+        AtomicReference<String> takenByOther = new AtomicReference<>();
+        CountDownLatch taken = new CountDownLatch(1);
+        Thread otherDevice = new Thread(() -> {
+            try {
+                // waits as the only class is still running on the first device
+                takenByOther.set(queue.poll(TimeUnit.SECONDS.toMillis(5)));
+                taken.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        otherDevice.start();
+        Assertions.assertFalse(taken.await(200, TimeUnit.MILLISECONDS));
+
+        queue.giveBack(inFlightClass);
+        Assertions.assertFalse(queue.leaveOffline());
+        Assertions.assertTrue(taken.await(5, TimeUnit.SECONDS));
+        Assertions.assertEquals(inFlightClass, takenByOther.get());
+        queue.complete(inFlightClass);
+        Assertions.assertNull(queue.poll(TimeUnit.SECONDS.toMillis(5)));
+    }
+
+    @Test
+    public void deviceOfflineBeforeOthersJoin_ClassesTakenByLaterDevice() throws InterruptedException {
+        TestClassQueue queue = new TestClassQueue(2, 0, 2, 2, JOIN_TIMEOUT_MILLIS);
+        queue.load(testClasses(2));
+        Assertions.assertTrue(queue.join());
+        String inFlightClass = queue.poll(0);
+        queue.giveBack(inFlightClass);
+
+        AtomicReference<Boolean> requeued = new AtomicReference<>();
+        CountDownLatch left = new CountDownLatch(1);
+        Thread offlineDevice = new Thread(() -> {
+            try {
+                requeued.set(queue.leaveOffline());
+                left.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        offlineDevice.start();
+        // waits for the other device to join
+        Assertions.assertFalse(left.await(200, TimeUnit.MILLISECONDS));
+
+        Assertions.assertTrue(queue.join());
+        Assertions.assertTrue(left.await(5, TimeUnit.SECONDS));
+        Assertions.assertFalse(requeued.get(), "The device joining later runs the classes left");
+        Assertions.assertEquals(2, queue.getPendingCount());
+    }
+
+    @Test
+    public void joinWindowClosed_RequeuedOnce() throws InterruptedException {
+        TestClassQueue queue = new TestClassQueue(3, 0, 3, 3, 200);
+        queue.load(testClasses(3));
+        Assertions.assertTrue(queue.join());
+        Assertions.assertTrue(queue.join());
+        String firstClass = queue.poll(0);
+        String secondClass = queue.poll(0);
+
+        queue.giveBack(firstClass);
+        Assertions.assertFalse(queue.leaveOffline(), "Another device is still running");
+        queue.giveBack(secondClass);
+        Assertions.assertTrue(queue.leaveOffline(), "The third device never joined in time");
+        Assertions.assertFalse(queue.join(), "The classes left are requeued with the task");
+    }
+
+    @Test
+    public void classRunningOnOtherDevice_PollTimedOut() throws InterruptedException {
+        TestClassQueue queue = new TestClassQueue(2, 0, 2, 2, JOIN_TIMEOUT_MILLIS);
+        queue.load(testClasses(1));
+        Assertions.assertNotNull(queue.poll(0));
+
+        long startTimeMillis = System.currentTimeMillis();
+        Assertions.assertNull(queue.poll(200));
+        Assertions.assertTrue(System.currentTimeMillis() - startTimeMillis >= 200);
+    }
+}
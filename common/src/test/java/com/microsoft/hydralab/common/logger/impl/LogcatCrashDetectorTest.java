@@ -0,0 +1,60 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.hydralab.common.logger.impl;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class LogcatCrashDetectorTest {
+
+    private static List<LogcatCrashDetector.Crash> processLines(LogcatCrashDetector detector, String... lines) {
+        List<LogcatCrashDetector.Crash> crashes = new ArrayList<>();
+        for (String line : lines) {
+            LogcatCrashDetector.Crash crash = detector.processLine(line);
+            if (crash != null) {
+                crashes.add(crash);
+            }
+        }
+        LogcatCrashDetector.Crash crash = detector.flush();
+        if (crash != null) {
+            crashes.add(crash);
+        }
+        return crashes;
+    }
+
+    @Test
+    public void detectJavaCrashAndAnr() {
+        LogcatCrashDetector detector = new LogcatCrashDetector("com.microsoft.test");
+        List<LogcatCrashDetector.Crash> crashes = processLines(detector,
+                "05-10 10:00:00.000  1000  1000 I ActivityManager: Start proc com.microsoft.test",
+                "--------- beginning of crash",
+                "05-10 10:00:01.000  2000  2000 E AndroidRuntime: FATAL EXCEPTION: main",
+                "05-10 10:00:01.000  2000  2000 E AndroidRuntime: Process: com.microsoft.test, PID: 2000",
+                "05-10 10:00:01.000  2000  2000 E AndroidRuntime: java.lang.NullPointerException",
+                "05-10 10:00:02.000  1000  1000 W ActivityManager: Force finishing activity",
+                "05-10 10:00:03.000  1000  1010 E ActivityManager: ANR in com.microsoft.test",
+                "05-10 10:00:03.000  1000  1010 E ActivityManager: Reason: Input dispatching timed out");
+
+        Assertions.assertEquals(2, crashes.size());
+        Assertions.assertEquals(LogcatCrashDetector.CrashType.JAVA_CRASH, crashes.get(0).type);
+        Assertions.assertEquals(3, crashes.get(0).stack.split("\n").length);
+        Assertions.assertTrue(crashes.get(0).stack.contains("<b>05-10 10:00:01.000  2000  2000 E AndroidRuntime: Process: com.microsoft.test, PID: 2000</b>"));
+        Assertions.assertEquals(LogcatCrashDetector.CrashType.ANR, crashes.get(1).type);
+        Assertions.assertEquals(2, crashes.get(1).stack.split("\n").length);
+    }
+
+    @Test
+    public void detectNativeCrash() {
+        LogcatCrashDetector detector = new LogcatCrashDetector("com.microsoft.test");
+        List<LogcatCrashDetector.Crash> crashes = processLines(detector,
+                "05-10 10:00:00.000  2000  2000 F libc    : Fatal signal 11 (SIGSEGV), code 1, fault addr 0x0 in tid 2000 (microsoft.test)",
+                "05-10 10:00:00.100  3000  3000 I crash_dump64: obtaining output fd from tombstoned",
+                "05-10 10:00:00.200  1000  1000 E ActivityManager: not a crash");
+
+        Assertions.assertEquals(1, crashes.size());
+        Assertions.assertEquals(LogcatCrashDetector.CrashType.NATIVE_CRASH, crashes.get(0).type);
+    }
+}
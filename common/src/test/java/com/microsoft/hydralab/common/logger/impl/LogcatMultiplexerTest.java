@@ -0,0 +1,161 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.hydralab.common.logger.impl;
+
+import com.android.ddmlib.MultiLineReceiver;
+import com.microsoft.hydralab.common.entity.common.DeviceInfo;
+import com.microsoft.hydralab.common.util.ADBOperateUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+public class LogcatMultiplexerTest {
+    // fed to the stream to break it, as when the adb connection is lost
+    private static final String[] BROKEN = new String[0];
+    private final Logger logger = LoggerFactory.getLogger(LogcatMultiplexerTest.class);
+    // the output of the logcat streams on the device, one batch of lines at a time
+    private final BlockingQueue<String[]> streamOutputs = new LinkedBlockingQueue<>();
+    private final List<String> logcatCommands = new CopyOnWriteArrayList<>();
+    private LogcatMultiplexer logcatMultiplexer;
+
+    private static String line(String time, int pid, String tag, String message) {
+        return String.format("10-18 %s  %d  %d I %s: %s", time, pid, pid, tag, message);
+    }
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        ADBOperateUtil adbOperateUtil = Mockito.mock(ADBOperateUtil.class);
+        Mockito.when(adbOperateUtil.getPackagePid(ArgumentMatchers.any(), ArgumentMatchers.eq("com.microsoft.test"), ArgumentMatchers.any())).thenReturn(2000);
+        Mockito.doAnswer(invocation -> {
+            logcatCommands.add(invocation.getArgument(1));
+            MultiLineReceiver receiver = invocation.getArgument(2);
+            while (!receiver.isCancelled()) {
+                String[] lines = streamOutputs.poll(10, TimeUnit.MILLISECONDS);
+                if (lines == BROKEN) {
+                    throw new IOException("Connection reset");
+                }
+                if (lines != null) {
+                    receiver.processNewLines(lines);
+                }
+            }
+            return null;
+        }).when(adbOperateUtil).executeShellCommandOnDevice(ArgumentMatchers.any(), ArgumentMatchers.anyString(), ArgumentMatchers.any(),
+                ArgumentMatchers.anyInt(), ArgumentMatchers.anyInt());
+
+        DeviceInfo deviceInfo = new DeviceInfo();
+        deviceInfo.setSerialNum("serial");
+        logcatMultiplexer = new LogcatMultiplexer(adbOperateUtil, deviceInfo, logger);
+        logcatMultiplexer.restartIntervalMillis = 10;
+    }
+
+    @AfterEach
+    public void tearDown() {
+        logcatMultiplexer.stop();
+    }
+
+    @Test
+    public void subscribe_GetLinesOfFilter() throws InterruptedException {
+        LogcatMultiplexer.Subscription all = logcatMultiplexer.subscribe(LogcatMultiplexer.LogcatFilter.all(), 100, 0);
+        LogcatMultiplexer.Subscription ofTag = logcatMultiplexer.subscribe(LogcatMultiplexer.LogcatFilter.ofTag("ActivityManager"), 100, 0);
+        LogcatMultiplexer.Subscription ofPid = logcatMultiplexer.subscribe(LogcatMultiplexer.LogcatFilter.ofPid(3000), 100, 0);
+        LogcatMultiplexer.Subscription ofPackage = logcatMultiplexer.subscribe(LogcatMultiplexer.LogcatFilter.ofPackage("com.microsoft.test"), 100, 0);
+        streamOutputs.add(new String[]{
+                line("10:00:00.000", 1000, "ActivityManager", "Start proc 2100:com.microsoft.test:remote/u0a100"),
+                line("10:00:00.001", 2000, "TestApp", "main process"),
+                line("10:00:00.002", 2100, "TestApp", "remote process"),
+                line("10:00:00.003", 3000, "Other", "other process"),
+                "--------- beginning of crash"
+        });
+
+        Assertions.assertEquals(5, pollLines(all, 5).size());
+        Assertions.assertEquals(List.of(line("10:00:00.000", 1000, "ActivityManager", "Start proc 2100:com.microsoft.test:remote/u0a100")), pollLines(ofTag, 1));
+        Assertions.assertEquals(List.of(line("10:00:00.003", 3000, "Other", "other process")), pollLines(ofPid, 1));
+        Assertions.assertEquals(List.of(line("10:00:00.001", 2000, "TestApp", "main process"), line("10:00:00.002", 2100, "TestApp", "remote process")),
+                pollLines(ofPackage, 2));
+        Assertions.assertTrue(logcatCommands.get(0).contains(" -T 1 "), "The stream should start from the latest line");
+    }
+
+    @Test
+    public void subscriberFallsBehind_DropOldestLines() throws InterruptedException {
+        LogcatMultiplexer.Subscription subscription = logcatMultiplexer.subscribe(LogcatMultiplexer.LogcatFilter.all(), 3, 0);
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            lines.add(line("10:00:00.00" + i, 1000, "Tag", "line " + i));
+        }
+        streamOutputs.add(lines.toArray(new String[0]));
+
+        waitFor(() -> subscription.getDroppedCount() == 2);
+        Assertions.assertEquals(lines.subList(2, 5), pollLines(subscription, 3));
+    }
+
+    @Test
+    public void streamBroken_RestartFromLastLineAndReplay() throws InterruptedException {
+        LogcatMultiplexer.Subscription subscription = logcatMultiplexer.subscribe(LogcatMultiplexer.LogcatFilter.all(), 100, 0);
+        String line1 = line("10:00:00.000", 1000, "Tag", "line 1");
+        String line2 = line("10:00:00.001", 1000, "Tag", "line 2");
+        String line3 = line("10:00:00.001", 1000, "Tag", "line 3");
+        String line4 = line("10:00:00.002", 1000, "Tag", "line 4");
+        streamOutputs.add(new String[]{line1, line2, line3});
+        streamOutputs.add(BROKEN);
+        waitFor(() -> logcatCommands.size() == 2);
+        // logcat prints the lines of the timestamp to restart from again
+        streamOutputs.add(new String[]{line2, line3, line4});
+
+        Assertions.assertEquals(List.of(line1, line2, line3, line4), pollLines(subscription, 4));
+        Assertions.assertTrue(logcatCommands.get(1).contains(" -T '10-18 10:00:00.001' "), "The stream should restart from the last line seen");
+
+        LogcatMultiplexer.Subscription replaySubscription = logcatMultiplexer.subscribe(LogcatMultiplexer.LogcatFilter.all(), 100, 2);
+        Assertions.assertEquals(List.of(line3, line4), pollLines(replaySubscription, 2));
+    }
+
+    @Test
+    public void lastSubscriptionClosed_StopStream() throws InterruptedException {
+        LogcatMultiplexer.Subscription subscription = logcatMultiplexer.subscribe(LogcatMultiplexer.LogcatFilter.all(), 100, 0);
+        LogcatMultiplexer.Subscription otherSubscription = logcatMultiplexer.subscribe(LogcatMultiplexer.LogcatFilter.ofTag("Tag"), 100, 0);
+        streamOutputs.add(new String[]{line("10:00:00.000", 1000, "Tag", "line 1")});
+        pollLines(subscription, 1);
+
+        subscription.close();
+        Assertions.assertTrue(logcatMultiplexer.isRunning());
+        otherSubscription.close();
+        Assertions.assertFalse(logcatMultiplexer.isRunning());
+
+        // a later subscriber starts from the latest line again
+        logcatMultiplexer.subscribe(LogcatMultiplexer.LogcatFilter.all(), 100, 0);
+        waitFor(() -> logcatCommands.size() == 2);
+        Assertions.assertTrue(logcatCommands.get(1).contains(" -T 1 "));
+    }
+
+    private static List<String> pollLines(LogcatMultiplexer.Subscription subscription, int count) throws InterruptedException {
+        List<String> lines = new ArrayList<>();
+        while (lines.size() < count) {
+            String line = subscription.poll(5, TimeUnit.SECONDS);
+            Assertions.assertNotNull(line, "Only " + lines.size() + " of " + count + " lines are received");
+            lines.add(line);
+        }
+        Assertions.assertNull(subscription.poll(100, TimeUnit.MILLISECONDS), "More lines than expected are received");
+        return lines;
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (!condition.getAsBoolean()) {
+            Assertions.assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting for the condition");
+            Thread.sleep(10);
+        }
+    }
+}
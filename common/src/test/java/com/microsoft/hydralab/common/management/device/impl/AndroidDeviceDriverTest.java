@@ -0,0 +1,113 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.common.management.device.impl;
+
+import com.android.ddmlib.MultiLineReceiver;
+import com.microsoft.hydralab.common.entity.common.DeviceInfo;
+import com.microsoft.hydralab.common.management.AgentManagementService;
+import com.microsoft.hydralab.common.management.AppiumServerManager;
+import com.microsoft.hydralab.common.test.BaseTest;
+import com.microsoft.hydralab.common.util.ADBOperateUtil;
+import net.dongliu.apk.parser.ApkFile;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class AndroidDeviceDriverTest extends BaseTest {
+    private final File apk = new File("src/test/resources/record_release.apk");
+    private final DeviceInfo deviceInfo = new DeviceInfo();
+    // the lastUpdateTime dumped for the package on the device, null if it's not installed
+    private final AtomicReference<String> packageUpdateTime = new AtomicReference<>();
+    private ADBOperateUtil adbOperateUtil;
+    private AndroidDeviceDriver deviceDriver;
+    private String packageName;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        deviceInfo.setSerialNum("serial");
+        long versionCode;
+        try (ApkFile apkFile = new ApkFile(apk)) {
+            packageName = apkFile.getApkMeta().getPackageName();
+            versionCode = apkFile.getApkMeta().getVersionCode();
+        }
+
+        AtomicInteger installCount = new AtomicInteger();
+        adbOperateUtil = Mockito.mock(ADBOperateUtil.class);
+        Mockito.when(adbOperateUtil.installApp(ArgumentMatchers.any(), ArgumentMatchers.anyString(), ArgumentMatchers.anyBoolean(),
+                ArgumentMatchers.anyString(), ArgumentMatchers.any())).thenAnswer(invocation -> {
+            packageUpdateTime.set("2026-10-18 10:00:0" + installCount.incrementAndGet());
+            return true;
+        });
+        Mockito.when(adbOperateUtil.uninstallApp(ArgumentMatchers.any(), ArgumentMatchers.anyString(), ArgumentMatchers.any())).thenAnswer(invocation -> {
+            packageUpdateTime.set(null);
+            return true;
+        });
+        Mockito.doAnswer(invocation -> {
+            String command = invocation.getArgument(1);
+            if (command.startsWith("dumpsys package") && packageUpdateTime.get() != null) {
+                MultiLineReceiver receiver = invocation.getArgument(2);
+                receiver.processNewLines(new String[]{
+                        "    versionCode=" + versionCode + " minSdk=21 targetSdk=33",
+                        "    lastUpdateTime=" + packageUpdateTime.get()
+                });
+            }
+            return null;
+        }).when(adbOperateUtil).execOnDevice(ArgumentMatchers.any(), ArgumentMatchers.anyString(), ArgumentMatchers.any(), ArgumentMatchers.any());
+
+        deviceDriver = new AndroidDeviceDriver(Mockito.mock(AgentManagementService.class), Mockito.mock(AppiumServerManager.class), adbOperateUtil);
+    }
+
+    @Test
+    public void installSameApk_SkipInstall() {
+        Assertions.assertTrue(deviceDriver.installApp(deviceInfo, apk.getAbsolutePath(), logger));
+        Assertions.assertTrue(deviceDriver.installApp(deviceInfo, apk.getAbsolutePath(), logger));
+
+        verifyInstallCount(1);
+    }
+
+    @Test
+    public void installChangedApk_Reinstall(@TempDir Path tempDir) throws IOException {
+        Path changedApk = Files.copy(apk.toPath(), tempDir.resolve(apk.getName()));
+        Files.write(changedApk, "changed".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        deviceDriver.installApp(deviceInfo, apk.getAbsolutePath(), logger);
+        deviceDriver.installApp(deviceInfo, changedApk.toString(), logger);
+        verifyInstallCount(2);
+
+        // the package is replaced on the device outside the agent
+        packageUpdateTime.set("2026-10-18 11:00:00");
+        deviceDriver.installApp(deviceInfo, changedApk.toString(), logger);
+        verifyInstallCount(3);
+    }
+
+    @Test
+    public void uninstallOrClearData_ForceReinstall() {
+        deviceDriver.installApp(deviceInfo, apk.getAbsolutePath(), logger);
+
+        deviceDriver.uninstallApp(deviceInfo, packageName, logger);
+        deviceDriver.installApp(deviceInfo, apk.getAbsolutePath(), logger);
+        verifyInstallCount(2);
+
+        deviceDriver.resetPackage(deviceInfo, packageName, logger);
+        deviceDriver.installApp(deviceInfo, apk.getAbsolutePath(), logger);
+        verifyInstallCount(3);
+    }
+
+    private void verifyInstallCount(int count) {
+        Mockito.verify(adbOperateUtil, Mockito.times(count)).installApp(ArgumentMatchers.any(), ArgumentMatchers.anyString(), ArgumentMatchers.anyBoolean(),
+                ArgumentMatchers.anyString(), ArgumentMatchers.any());
+    }
+}
@@ -0,0 +1,61 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.hydralab.common.util;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+class ImageUtilTest {
+    // the parameters the device drivers use to tell a screen change
+    private static final int SUBSAMPLING_STEP = 4;
+    private static final int TILE_GRID_SIZE = 32;
+    @TempDir
+    File tempDir;
+
+    private static BufferedImage homeScreen(String clock) {
+        // a phone screen with the status bar clock at its usual size
+        BufferedImage image = new BufferedImage(1080, 2400, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(new Color(0x20, 0x40, 0x80));
+        graphics.fillRect(0, 0, image.getWidth(), image.getHeight());
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(200, 1000, 680, 400);
+        graphics.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 40));
+        graphics.drawString(clock, 40, 60);
+        graphics.dispose();
+        return image;
+    }
+
+    private int[] saveAndGetTileLuminance(BufferedImage image, String fileName) throws IOException {
+        File file = new File(tempDir, fileName);
+        ImageIO.write(image, "jpg", file);
+        return ImageUtil.getTileLuminance(ImageUtil.readSubsampledImage(file, SUBSAMPLING_STEP), TILE_GRID_SIZE);
+    }
+
+    @Test
+    void sameScreenIsSimilar() throws IOException {
+        int[] luminance = saveAndGetTileLuminance(homeScreen("10:30"), "first.jpg");
+        int[] otherLuminance = saveAndGetTileLuminance(homeScreen("10:30"), "second.jpg");
+
+        Assertions.assertEquals(TILE_GRID_SIZE * TILE_GRID_SIZE, luminance.length);
+        Assertions.assertTrue(ImageUtil.isTileLuminanceSimilar(luminance, otherLuminance, 3));
+    }
+
+    @Test
+    void changedScreenIsNotSimilar() throws IOException {
+        int[] luminance = saveAndGetTileLuminance(homeScreen("10:30"), "first.jpg");
+        int[] otherLuminance = saveAndGetTileLuminance(homeScreen("10:31"), "second.jpg");
+
+        Assertions.assertFalse(ImageUtil.isTileLuminanceSimilar(luminance, otherLuminance, 3), "Clock change should be detected");
+        Assertions.assertFalse(ImageUtil.isTileLuminanceSimilar(null, otherLuminance, 3), "Missing previous screen is a change");
+    }
+}
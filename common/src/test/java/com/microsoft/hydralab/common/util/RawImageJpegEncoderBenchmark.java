@@ -0,0 +1,95 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.hydralab.common.util;
+
+import cn.hutool.core.img.ImgUtil;
+import com.android.ddmlib.RawImage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare the previous per pixel getARGB/setRGB conversion followed by ImgUtil.scale with the single pass encoder on a screenshot.
+ * Not a unit test, run the main method from the test classpath, with -prof gc to see the allocation rate as well.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class RawImageJpegEncoderBenchmark {
+    @Param({"1080x2340", "1440x3040"})
+    public String screenSize;
+
+    private RawImage rawImage;
+    private File outputFile;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(RawImageJpegEncoderBenchmark.class.getSimpleName()).build()).run();
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        String[] size = screenSize.split("x");
+        int width = Integer.parseInt(size[0]);
+        int height = Integer.parseInt(size[1]);
+        // gradients with some noise, closer to a real screen than a solid color for the JPEG encoder
+        Random random = new Random(0);
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int noise = random.nextInt(16);
+                pixels[y * width + x] = ((x * 255 / width + noise) & 0xff) << 16 | ((y * 255 / height + noise) & 0xff) << 8 | (x ^ y) & 0xff;
+            }
+        }
+        rawImage = RawImageJpegEncoderTest.rgba8888(width, height, pixels);
+        outputFile = Files.createTempFile("screenshot", ".jpg").toFile();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(outputFile.toPath());
+    }
+
+    @Benchmark
+    public long legacyToBufferedImageAndScale() {
+        BufferedImage image = new BufferedImage(rawImage.width, rawImage.height, BufferedImage.TYPE_INT_ARGB);
+        int index = 0;
+        int indexInc = rawImage.bpp >> 3;
+        for (int y = 0; y < rawImage.height; y++) {
+            for (int x = 0; x < rawImage.width; x++) {
+                int value = rawImage.getARGB(index) | 0xff000000;
+                index += indexInc;
+                image.setRGB(x, y, value);
+            }
+        }
+        ImgUtil.scale(image, outputFile, 0.7f);
+        return outputFile.length();
+    }
+
+    @Benchmark
+    public long rawImageJpegEncoder() throws IOException {
+        RawImageJpegEncoder.writeScaledJpeg(rawImage, 0.7f, outputFile);
+        return outputFile.length();
+    }
+}
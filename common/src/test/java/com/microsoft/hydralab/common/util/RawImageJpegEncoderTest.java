@@ -0,0 +1,95 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.hydralab.common.util;
+
+import com.android.ddmlib.RawImage;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+class RawImageJpegEncoderTest {
+    @TempDir
+    File tempDir;
+
+    static RawImage rgba8888(int width, int height, int[] rgbPixels) {
+        RawImage rawImage = new RawImage();
+        rawImage.bpp = 32;
+        rawImage.width = width;
+        rawImage.height = height;
+        rawImage.size = width * height * 4;
+        rawImage.red_offset = 0;
+        rawImage.red_length = 8;
+        rawImage.green_offset = 8;
+        rawImage.green_length = 8;
+        rawImage.blue_offset = 16;
+        rawImage.blue_length = 8;
+        rawImage.alpha_offset = 24;
+        rawImage.alpha_length = 8;
+        rawImage.data = new byte[rawImage.size];
+        for (int i = 0; i < rgbPixels.length; i++) {
+            rawImage.data[i * 4] = (byte) (rgbPixels[i] >>> 16);
+            rawImage.data[i * 4 + 1] = (byte) (rgbPixels[i] >>> 8);
+            rawImage.data[i * 4 + 2] = (byte) rgbPixels[i];
+            rawImage.data[i * 4 + 3] = (byte) 0x80;
+        }
+        return rawImage;
+    }
+
+    @Test
+    void averagePixelsWhenScaling() {
+        RawImage rawImage = rgba8888(4, 2, new int[]{
+                0x000000, 0xfefefe, 0x102030, 0x102030,
+                0xfefefe, 0x000000, 0x102030, 0x506070
+        });
+
+        BufferedImage image = RawImageJpegEncoder.toScaledImage(rawImage, 0.5f);
+
+        Assertions.assertEquals(2, image.getWidth());
+        Assertions.assertEquals(1, image.getHeight());
+        Assertions.assertEquals(0xff7f7f7f, image.getRGB(0, 0));
+        Assertions.assertEquals(0xff203040, image.getRGB(1, 0));
+    }
+
+    @Test
+    void decodeSameAsRawImage() {
+        RawImage rawImage = new RawImage();
+        rawImage.bpp = 16;
+        rawImage.width = 3;
+        rawImage.height = 2;
+        rawImage.size = 12;
+        rawImage.data = new byte[]{(byte) 0x00, (byte) 0xf8, (byte) 0xe0, (byte) 0x07, (byte) 0x1f, (byte) 0x00,
+                (byte) 0xff, (byte) 0xff, (byte) 0x34, (byte) 0x12, (byte) 0x00, (byte) 0x00};
+
+        BufferedImage image = RawImageJpegEncoder.toScaledImage(rawImage, 1f);
+
+        for (int y = 0; y < rawImage.height; y++) {
+            for (int x = 0; x < rawImage.width; x++) {
+                int expected = rawImage.getARGB((y * rawImage.width + x) * 2) | 0xff000000;
+                Assertions.assertEquals(expected, image.getRGB(x, y), "Pixel (" + x + ", " + y + ") should match RawImage.getARGB");
+            }
+        }
+    }
+
+    @Test
+    void writeScaledJpeg() throws IOException {
+        int[] pixels = new int[100 * 60];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (i % 100) * 2 << 16 | (i / 100) * 4 << 8 | 0x80;
+        }
+        File outputFile = new File(tempDir, "screenshot.jpg");
+
+        RawImageJpegEncoder.writeScaledJpeg(rgba8888(100, 60, pixels), 0.7f, outputFile);
+        // the per thread buffers are reused for the next screenshot
+        RawImageJpegEncoder.writeScaledJpeg(rgba8888(100, 60, pixels), 0.7f, outputFile);
+
+        BufferedImage image = ImageIO.read(outputFile);
+        Assertions.assertNotNull(image, "Output should be a readable JPEG");
+        Assertions.assertEquals(70, image.getWidth());
+        Assertions.assertEquals(42, image.getHeight());
+    }
+}
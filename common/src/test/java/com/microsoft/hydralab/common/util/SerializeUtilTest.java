@@ -2,6 +2,11 @@ package com.microsoft.hydralab.common.util;
 
 import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
+import com.microsoft.hydralab.common.codec.MessageCodec;
+import com.microsoft.hydralab.common.entity.common.AgentMetadata;
+import com.microsoft.hydralab.common.entity.common.AgentUser;
+import com.microsoft.hydralab.common.entity.common.DeviceInfo;
+import com.microsoft.hydralab.common.entity.common.DeviceListDelta;
 import com.microsoft.hydralab.common.entity.common.Message;
 import com.microsoft.hydralab.common.entity.common.Task;
 import com.microsoft.hydralab.common.entity.common.TestRun;
@@ -9,6 +14,10 @@ import com.microsoft.hydralab.common.test.BaseTest;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
 
 
@@ -75,4 +84,98 @@ public class SerializeUtilTest extends BaseTest {
         Assertions.assertTrue(2 == ((Task) msg2.getBody()).getDeviceCount(), "Serialize error!");
 
     }
-}
\ No newline at end of file
+
+    @Test
+    void testBinaryDeviceListSerialize() {
+        List<DeviceInfo> deviceInfos = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            DeviceInfo deviceInfo = new DeviceInfo();
+            deviceInfo.setSerialNum("serial" + i);
+            deviceInfo.setName("设备" + i);
+            deviceInfo.setStatus(DeviceInfo.ONLINE);
+            deviceInfo.setScreenDensity(480);
+            deviceInfo.setScreenshotUpdateTimeMilli(System.currentTimeMillis());
+            deviceInfo.getDeviceGroup().add("G.group");
+            deviceInfos.add(deviceInfo);
+        }
+        Message msg = new Message();
+        msg.setPath(Const.Path.DEVICE_LIST);
+        msg.setBody(deviceInfos);
+        SerializeUtil.advertiseCodecVersion(msg, MessageCodec.VERSION_BINARY);
+
+        byte[] binary = SerializeUtil.messageToByteArr(msg, MessageCodec.VERSION_BINARY);
+        byte[] legacy = SerializeUtil.messageToByteArr(msg);
+        logger.info("Binary size: " + binary.length + ", legacy size: " + legacy.length);
+
+        Message msg2 = SerializeUtil.byteArrToMessage(binary);
+        Assertions.assertEquals(Const.Path.DEVICE_LIST, msg2.getPath(), "Serialize error!");
+        Assertions.assertEquals(MessageCodec.VERSION_BINARY, SerializeUtil.getAdvertisedCodecVersion(msg2), "Serialize error!");
+        List<DeviceInfo> deviceInfos2 = ((JSONArray) msg2.getBody()).toJavaList(DeviceInfo.class);
+        Assertions.assertEquals(3, deviceInfos2.size(), "Serialize error!");
+        Assertions.assertEquals("设备1", deviceInfos2.get(1).getName(), "Serialize error!");
+        Assertions.assertEquals(480, deviceInfos2.get(1).getScreenDensity(), "Serialize error!");
+        Assertions.assertTrue(deviceInfos2.get(2).getDeviceGroup().contains("G.group"), "Serialize error!");
+        Assertions.assertEquals(deviceInfos.get(0).getScreenshotUpdateTimeMilli(), deviceInfos2.get(0).getScreenshotUpdateTimeMilli(), "Serialize error!");
+    }
+
+    @Test
+    void testBinaryDeviceListDeltaSerialize() {
+        DeviceInfo deviceInfo = new DeviceInfo();
+        deviceInfo.setSerialNum("serial0");
+        deviceInfo.setStatus(DeviceInfo.ONLINE);
+        DeviceListDelta delta = new DeviceListDelta();
+        delta.setSequence(5);
+        delta.getChangedDevices().add(deviceInfo);
+        delta.getRemovedSerials().add("serial1");
+        Message msg = new Message();
+        msg.setPath(Const.Path.DEVICE_LIST_DELTA);
+        msg.setBody(delta);
+
+        byte[] binary = SerializeUtil.messageToByteArr(msg, MessageCodec.VERSION_BINARY);
+        Assertions.assertFalse(new String(binary, StandardCharsets.ISO_8859_1).contains("DeviceListDelta"), "Delta should use its binary schema");
+        Message msg2 = SerializeUtil.byteArrToMessage(binary);
+        Assertions.assertTrue(msg2.getBody() instanceof DeviceListDelta, "Serialize error!");
+        DeviceListDelta delta2 = (DeviceListDelta) msg2.getBody();
+        Assertions.assertEquals(5, delta2.getSequence(), "Serialize error!");
+        Assertions.assertFalse(delta2.isSnapshot(), "Serialize error!");
+        Assertions.assertEquals("serial0", delta2.getChangedDevices().get(0).getSerialNum(), "Serialize error!");
+        Assertions.assertEquals(DeviceInfo.ONLINE, delta2.getChangedDevices().get(0).getStatus(), "Serialize error!");
+        Assertions.assertEquals(Collections.singletonList("serial1"), delta2.getRemovedSerials(), "Serialize error!");
+    }
+
+    @Test
+    void testBinaryAgentMetadataSerialize() {
+        AgentUser agentUser = new AgentUser();
+        agentUser.setName("agentName");
+        agentUser.setTeamName("teamName");
+        agentUser.setBatteryStrategy(AgentUser.BatteryStrategy.Normal);
+        AgentMetadata agentMetadata = new AgentMetadata();
+        agentMetadata.setAgentUser(agentUser);
+        agentMetadata.setStorageType(Const.StorageType.LOCAL);
+        Message msg = Message.ok(Const.Path.HEARTBEAT, agentMetadata);
+
+        Message msg2 = SerializeUtil.byteArrToMessage(SerializeUtil.messageToByteArr(msg, MessageCodec.VERSION_BINARY));
+        Assertions.assertTrue(msg2.getBody() instanceof AgentMetadata, "Serialize error!");
+        AgentMetadata agentMetadata2 = (AgentMetadata) msg2.getBody();
+        Assertions.assertEquals(Const.StorageType.LOCAL, agentMetadata2.getStorageType(), "Serialize error!");
+        Assertions.assertEquals(agentUser.getId(), agentMetadata2.getAgentUser().getId(), "Serialize error!");
+        Assertions.assertEquals(AgentUser.BatteryStrategy.Normal, agentMetadata2.getAgentUser().getBatteryStrategy(), "Serialize error!");
+        Assertions.assertEquals(msg.getSessionId(), msg2.getSessionId(), "Serialize error!");
+    }
+
+    @Test
+    void testBinaryTaskSerialize() {
+        Task task = new Task();
+        TestRun testRun = new TestRun();
+        testRun.setTestTaskId("testTaskId");
+        task.setErrorMsg("testErrorMsg");
+        task.getTaskRunList().add(testRun);
+        Message msg = new Message();
+        msg.setBody(task);
+
+        Message msg2 = SerializeUtil.byteArrToMessage(SerializeUtil.messageToByteArr(msg, MessageCodec.VERSION_BINARY));
+        Assertions.assertTrue(msg2.getBody() instanceof Task, "Serialize error!");
+        Assertions.assertEquals("testTaskId", ((Task) msg2.getBody()).getTaskRunList().get(0).getTestTaskId(), "Serialize error!");
+        Assertions.assertEquals("testErrorMsg", ((Task) msg2.getBody()).getErrorMsg(), "Serialize error!");
+    }
+}
@@ -0,0 +1,105 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.performance.hprof;
+
+import com.squareup.haha.perflib.ClassInstance;
+import com.squareup.haha.perflib.ClassObj;
+import com.squareup.haha.perflib.Field;
+import com.squareup.haha.perflib.Instance;
+import com.squareup.haha.perflib.Type;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class HeapProfProcessorTest {
+    private static final String FIELD_CHAIN_PREFIX = "&#8627;";
+
+    private static ClassObj mockClassObj(String className) {
+        ClassObj classObj = Mockito.mock(ClassObj.class);
+        Mockito.when(classObj.getClassName()).thenReturn(className);
+        return classObj;
+    }
+
+    private static ClassInstance mockInstance(long id, long retainedSize, ClassObj classObj) {
+        ClassInstance instance = Mockito.mock(ClassInstance.class);
+        Mockito.when(instance.getId()).thenReturn(id);
+        Mockito.when(instance.getTotalRetainedSize()).thenReturn(retainedSize);
+        Mockito.when(instance.getClassObj()).thenReturn(classObj);
+        Mockito.when(instance.getValues()).thenReturn(new ArrayList<>());
+        return instance;
+    }
+
+    private static int countOccurrences(String text, String part) {
+        int count = 0;
+        for (int index = text.indexOf(part); index >= 0; index = text.indexOf(part, index + part.length())) {
+            count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void rankByRetainedSize_KeepTopInstancesInDescendingOrder() {
+        ClassObj classObj = mockClassObj("com.example.Holder");
+        List<Instance> instances = new ArrayList<>();
+        for (long retainedSize = 1; retainedSize <= 100; retainedSize++) {
+            instances.add(mockInstance(retainedSize, retainedSize, classObj));
+        }
+        // an instance without class is never ranked, whatever its size
+        instances.add(mockInstance(1000, 1000, null));
+        Collections.shuffle(instances);
+
+        List<Instance> rankedInstances = HeapProfProcessor.rankByRetainedSize(instances, 3);
+
+        Assertions.assertEquals(3, rankedInstances.size());
+        Assertions.assertEquals(100, rankedInstances.get(0).getTotalRetainedSize());
+        Assertions.assertEquals(99, rankedInstances.get(1).getTotalRetainedSize());
+        Assertions.assertEquals(98, rankedInstances.get(2).getTotalRetainedSize());
+    }
+
+    @Test
+    public void rankByRetainedSize_NoRankingLimit_ReturnEmpty() {
+        List<Instance> instances = Collections.singletonList(mockInstance(1, 1, mockClassObj("com.example.Holder")));
+
+        Assertions.assertTrue(HeapProfProcessor.rankByRetainedSize(instances, 0).isEmpty());
+        Assertions.assertTrue(HeapProfProcessor.rankByRetainedSize(instances, -1).isEmpty());
+    }
+
+    @Test
+    public void generateFieldChainString_LongFieldChain_StopAtMaxDepth() {
+        ClassObj classObj = mockClassObj("com.example.Node");
+        Field nextField = new Field(Type.OBJECT, "next");
+        int chainLength = HeapProfProcessor.MAX_FIELD_CHAIN_DEPTH * 100;
+        ClassInstance next = null;
+        for (int i = chainLength; i > 0; i--) {
+            ClassInstance node = mockInstance(i, i, classObj);
+            if (next != null) {
+                Mockito.when(node.getValues()).thenReturn(Collections.singletonList(new ClassInstance.FieldValue(nextField, next)));
+            }
+            next = node;
+        }
+
+        String fieldChain = HeapProfProcessor.generateFieldChainString(next, "\n");
+
+        Assertions.assertEquals(HeapProfProcessor.MAX_FIELD_CHAIN_DEPTH + 1, countOccurrences(fieldChain, FIELD_CHAIN_PREFIX));
+    }
+
+    @Test
+    public void findRelatedInstances_CyclicPathToGcRoot_StopAtMaxDepth() {
+        ClassObj classObj = mockClassObj("com.example.Node");
+        Instance first = mockInstance(1, 1, classObj);
+        Instance second = mockInstance(2, 1, classObj);
+        Mockito.when(first.getNextInstanceToGcRoot()).thenReturn(second);
+        Mockito.when(second.getNextInstanceToGcRoot()).thenReturn(first);
+        List<Instance> founds = new ArrayList<>();
+
+        new TopObjectInfoExtractor(1).findRelatedInstances(first, null, founds, new String[1]);
+
+        Assertions.assertTrue(founds.isEmpty());
+        Mockito.verify(first, Mockito.times(HeapProfProcessor.MAX_GC_ROOT_PATH_DEPTH / 2 + 1)).getNextInstanceToGcRoot();
+    }
+}
@@ -0,0 +1,141 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.performance.inspectors;
+
+import com.android.ddmlib.CollectingOutputReceiver;
+import com.android.ddmlib.IDevice;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+public class AndroidShellCommandBatcherTest {
+    private static final String MARKER_COMMAND = "; echo " + AndroidShellCommandBatcher.OUTPUT_END_MARKER;
+    private final Logger logger = LoggerFactory.getLogger(AndroidShellCommandBatcherTest.class);
+    private final List<String> batchCommands = new CopyOnWriteArrayList<>();
+
+    private static String outputOf(String command) {
+        return "out:" + command + "\n";
+    }
+
+    // the queue of each device is static, so every test uses its own serial number
+    private IDevice mockDevice(String serialNum, Function<String, String> outputOfBatch) throws Exception {
+        IDevice device = Mockito.mock(IDevice.class);
+        Mockito.when(device.getSerialNumber()).thenReturn(serialNum);
+        Mockito.doAnswer(invocation -> {
+            String batchCommand = invocation.getArgument(0);
+            batchCommands.add(batchCommand);
+            CollectingOutputReceiver receiver = invocation.getArgument(1);
+            byte[] output = outputOfBatch.apply(batchCommand).getBytes(StandardCharsets.UTF_8);
+            receiver.addOutput(output, 0, output.length);
+            receiver.flush();
+            return null;
+        }).when(device).executeShellCommand(ArgumentMatchers.anyString(), ArgumentMatchers.any(), ArgumentMatchers.anyLong(), ArgumentMatchers.anyLong(),
+                ArgumentMatchers.any());
+        return device;
+    }
+
+    private static String echoAll(String batchCommand) {
+        StringBuilder output = new StringBuilder();
+        for (String command : batchCommand.split(MARKER_COMMAND + "(; )?")) {
+            output.append(outputOf(command)).append(AndroidShellCommandBatcher.OUTPUT_END_MARKER).append('\n');
+        }
+        return output.toString();
+    }
+
+    @Test
+    public void commandsRequestedDuringBatch_SentInNextBatch() throws Exception {
+        CountDownLatch firstBatchStarted = new CountDownLatch(1);
+        CountDownLatch firstBatchReleased = new CountDownLatch(1);
+        IDevice device = mockDevice("batch-serial", batchCommand -> {
+            if (firstBatchStarted.getCount() > 0) {
+                firstBatchStarted.countDown();
+                try {
+                    firstBatchReleased.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return echoAll(batchCommand);
+        });
+
+        CompletableFuture<String> first = CompletableFuture.supplyAsync(() -> AndroidShellCommandBatcher.execute(device, "dumpsys battery", logger));
+        Assertions.assertTrue(firstBatchStarted.await(5, TimeUnit.SECONDS));
+        CompletableFuture<String> memInfo = executeWhileBlocked(device, "dumpsys meminfo");
+        CompletableFuture<String> gfxInfo = executeWhileBlocked(device, "dumpsys gfxinfo");
+        firstBatchReleased.countDown();
+
+        Assertions.assertEquals(outputOf("dumpsys battery"), first.get(5, TimeUnit.SECONDS));
+        Assertions.assertEquals(outputOf("dumpsys meminfo"), memInfo.get(5, TimeUnit.SECONDS));
+        Assertions.assertEquals(outputOf("dumpsys gfxinfo"), gfxInfo.get(5, TimeUnit.SECONDS));
+        Assertions.assertEquals(2, batchCommands.size());
+        Assertions.assertTrue(batchCommands.get(1).contains("dumpsys meminfo") && batchCommands.get(1).contains("dumpsys gfxinfo"),
+                "The commands requested during the first batch should be sent together");
+    }
+
+    @Test
+    public void outputCutOff_RestOfCommandsFailed() throws Exception {
+        CountDownLatch firstBatchStarted = new CountDownLatch(1);
+        CountDownLatch firstBatchReleased = new CountDownLatch(1);
+        IDevice device = mockDevice("cut-off-serial", batchCommand -> {
+            if (firstBatchStarted.getCount() > 0) {
+                firstBatchStarted.countDown();
+                try {
+                    firstBatchReleased.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return echoAll(batchCommand);
+            }
+            // the connection is lost after the output of the first command of the batch
+            String firstCommand = batchCommand.substring(0, batchCommand.indexOf(MARKER_COMMAND));
+            return outputOf(firstCommand) + AndroidShellCommandBatcher.OUTPUT_END_MARKER + "\npartial output";
+        });
+
+        CompletableFuture<String> first = CompletableFuture.supplyAsync(() -> AndroidShellCommandBatcher.execute(device, "dumpsys battery", logger));
+        Assertions.assertTrue(firstBatchStarted.await(5, TimeUnit.SECONDS));
+        CompletableFuture<String> memInfo = executeWhileBlocked(device, "dumpsys meminfo");
+        CompletableFuture<String> gfxInfo = executeWhileBlocked(device, "dumpsys gfxinfo");
+        firstBatchReleased.countDown();
+
+        Assertions.assertEquals(outputOf("dumpsys battery"), first.get(5, TimeUnit.SECONDS));
+        String memInfoOutput = memInfo.get(5, TimeUnit.SECONDS);
+        String gfxInfoOutput = gfxInfo.get(5, TimeUnit.SECONDS);
+        Assertions.assertEquals(2, batchCommands.size());
+        // the commands are sent in the order they were queued, which is up to the scheduler
+        boolean memInfoFirst = batchCommands.get(1).startsWith("dumpsys meminfo");
+        Assertions.assertEquals(outputOf(memInfoFirst ? "dumpsys meminfo" : "dumpsys gfxinfo"), memInfoFirst ? memInfoOutput : gfxInfoOutput);
+        Assertions.assertNull(memInfoFirst ? gfxInfoOutput : memInfoOutput, "The command without its output end marker should fail");
+    }
+
+    @Test
+    public void deviceNotOnBridge_ReturnNull() {
+        Assertions.assertNull(AndroidShellCommandBatcher.execute("not-on-bridge-serial", "dumpsys battery", logger));
+    }
+
+    /**
+     * Execute the command in a new thread, and wait until it's queued behind the running batch of the device.
+     */
+    private CompletableFuture<String> executeWhileBlocked(IDevice device, String command) throws InterruptedException {
+        CompletableFuture<String> output = new CompletableFuture<>();
+        Thread thread = new Thread(() -> output.complete(AndroidShellCommandBatcher.execute(device, command, logger)));
+        thread.start();
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (thread.getState() != Thread.State.BLOCKED) {
+            Assertions.assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting for the command to be queued");
+            Thread.sleep(10);
+        }
+        return output;
+    }
+}
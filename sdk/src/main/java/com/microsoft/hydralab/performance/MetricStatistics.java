@@ -0,0 +1,131 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.performance;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Running statistics of one metric, updated as each value is inspected so no raw value needs to be kept.
+ * The series keeps at most {@link #MAX_SERIES_SIZE} evenly spaced samples: once it's full, every other sample is dropped
+ * and only every second value is sampled from then on. The percentiles are computed from the series, so they are approximate
+ * after it has been downsampled.
+ */
+public class MetricStatistics {
+    public static final int MAX_SERIES_SIZE = 512;
+    private final List<Sample> series = new ArrayList<>();
+    private long count;
+    private double min = Double.NaN;
+    private double max = Double.NaN;
+    private double sum;
+    private long sampleInterval = 1;
+
+    public synchronized void add(long timestamp, double value) {
+        if (count == 0 || value < min) {
+            min = value;
+        }
+        if (count == 0 || value > max) {
+            max = value;
+        }
+        sum += value;
+        if (count % sampleInterval == 0) {
+            if (series.size() == MAX_SERIES_SIZE) {
+                downsample();
+            }
+            // the value may fall between the samples of the doubled interval
+            if (count % sampleInterval == 0) {
+                series.add(new Sample(timestamp, value));
+            }
+        }
+        count++;
+    }
+
+    private void downsample() {
+        int size = 0;
+        for (int i = 0; i < series.size(); i += 2) {
+            series.set(size++, series.get(i));
+        }
+        series.subList(size, series.size()).clear();
+        sampleInterval *= 2;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized double getMin() {
+        return min;
+    }
+
+    public synchronized double getMax() {
+        return max;
+    }
+
+    public synchronized double getAverage() {
+        return count == 0 ? Double.NaN : sum / count;
+    }
+
+    public double getP50() {
+        return getPercentile(50);
+    }
+
+    public double getP90() {
+        return getPercentile(90);
+    }
+
+    public double getP99() {
+        return getPercentile(99);
+    }
+
+    /**
+     * @param percentile from 0 to 100
+     * @return the nearest-rank percentile of the sampled values, NaN if there is none
+     */
+    public synchronized double getPercentile(double percentile) {
+        if (series.isEmpty()) {
+            return Double.NaN;
+        }
+        double[] values = new double[series.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = series.get(i).getValue();
+        }
+        Arrays.sort(values);
+        int rank = (int) Math.ceil(percentile / 100 * values.length);
+        return values[Math.min(values.length - 1, Math.max(0, rank - 1))];
+    }
+
+    public synchronized List<Sample> getSeries() {
+        return Collections.unmodifiableList(new ArrayList<>(series));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MetricStatistics{" +
+                "count=" + count +
+                ", min=" + min +
+                ", max=" + max +
+                ", average=" + getAverage() +
+                '}';
+    }
+
+    public static class Sample {
+        private final long timestamp;
+        private final double value;
+
+        public Sample(long timestamp, double value) {
+            this.timestamp = timestamp;
+            this.value = value;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public double getValue() {
+            return value;
+        }
+    }
+}
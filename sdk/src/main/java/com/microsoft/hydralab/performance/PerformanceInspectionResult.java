@@ -40,7 +40,7 @@ public class PerformanceInspectionResult {
                 "timestamp=" + timestamp +
                 ", testCaseName='" + testCaseName + '\'' +
                 ", inspection=" + inspection +
-                ", rawResultFile=" + rawResultFile.getAbsolutePath() +
+                ", rawResultFile=" + (rawResultFile == null ? null : rawResultFile.getAbsolutePath()) +
                 ", parsedData=" + parsedData +
                 '}';
     }
@@ -4,6 +4,8 @@
 package com.microsoft.hydralab.performance;
 
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 public class PerformanceTestResult {
@@ -18,6 +20,11 @@ public class PerformanceTestResult {
     public PerformanceResultParser.PerformanceResultParserType parserType;
     @SuppressWarnings("visibilitymodifier")
     private IBaselineMetrics resultSummary;
+    /**
+     * Statistics of the metrics by name, kept by the parsers which aggregate the inspection results as they are captured
+     */
+    @SuppressWarnings("visibilitymodifier")
+    public Map<String, MetricStatistics> metricStatistics = new ConcurrentHashMap<>();
 
     //TODO: overwrite equals, toString, and hashcode methods
 
@@ -37,6 +44,7 @@ public class PerformanceTestResult {
                 ", performanceInspectionResults=" + performanceInspectionResults +
                 ", inspectorType=" + inspectorType +
                 ", parserType=" + parserType +
+                ", metricStatistics=" + metricStatistics +
                 '}';
     }
 }
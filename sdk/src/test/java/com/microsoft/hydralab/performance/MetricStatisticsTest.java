@@ -0,0 +1,47 @@
+package com.microsoft.hydralab.performance;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class MetricStatisticsTest {
+    @Test
+    public void addValues_ReturnStatistics() {
+        MetricStatistics statistics = new MetricStatistics();
+        for (int i = 1; i <= 100; i++) {
+            statistics.add(i, i);
+        }
+        Assertions.assertEquals(100, statistics.getCount());
+        Assertions.assertEquals(1, statistics.getMin());
+        Assertions.assertEquals(100, statistics.getMax());
+        Assertions.assertEquals(50.5, statistics.getAverage());
+        Assertions.assertEquals(50, statistics.getP50());
+        Assertions.assertEquals(90, statistics.getP90());
+        Assertions.assertEquals(100, statistics.getSeries().size());
+    }
+
+    @Test
+    public void addMoreThanMaxSeriesSize_DownsampleSeries() {
+        MetricStatistics statistics = new MetricStatistics();
+        int count = MetricStatistics.MAX_SERIES_SIZE * 4;
+        for (int i = 0; i < count; i++) {
+            statistics.add(i, i);
+        }
+        Assertions.assertEquals(count, statistics.getCount());
+        Assertions.assertEquals(count - 1, statistics.getMax());
+        Assertions.assertEquals((count - 1) / 2.0, statistics.getAverage());
+        Assertions.assertTrue(statistics.getSeries().size() <= MetricStatistics.MAX_SERIES_SIZE);
+        long interval = statistics.getSeries().get(1).getTimestamp() - statistics.getSeries().get(0).getTimestamp();
+        for (int i = 1; i < statistics.getSeries().size(); i++) {
+            Assertions.assertEquals(interval, statistics.getSeries().get(i).getTimestamp() - statistics.getSeries().get(i - 1).getTimestamp());
+        }
+        Assertions.assertEquals(count / 2.0, statistics.getP50(), count / 100.0);
+    }
+
+    @Test
+    public void noValue_ReturnNaN() {
+        MetricStatistics statistics = new MetricStatistics();
+        Assertions.assertEquals(0, statistics.getCount());
+        Assertions.assertTrue(Double.isNaN(statistics.getAverage()));
+        Assertions.assertTrue(Double.isNaN(statistics.getP99()));
+    }
+}
@@ -42,16 +42,26 @@ public final class T2CAppiumUtils {
     }
 
     public static WebElement findElement(BaseDriverController driver, BaseElementInfo element, Logger logger) {
+        if (element == null) {
+            return null;
+        }
+        return findElement(driver, element, driver.getPageSource(), logger);
+    }
+
+    /**
+     * @param pageSource the page source taken for the action, the locators of the element are checked against it first
+     */
+    public static WebElement findElement(BaseDriverController driver, BaseElementInfo element, String pageSource, Logger logger) {
         WebElement elementFound = null;
         if (element == null) {
             return null;
         }
         ElementFinder<BaseElementInfo> finder = ElementFinderFactory.createElementFinder(driver);
-        elementFound = finder.findElement(element);
+        elementFound = finder.findElement(element, pageSource);
         if (elementFound != null) {
             return elementFound;
         }
-        logger.warn("Page source: " + driver.getPageSource());
+        logger.warn("Page source: " + pageSource);
         throw new IllegalArgumentException("Element can not be found in current UI. Element info is " + element.getElementInfo());
     }
 
@@ -63,11 +73,12 @@ public final class T2CAppiumUtils {
             e.printStackTrace();
             int index = actionInfo.getId();
             String description = actionInfo.getDescription();
-            logger.error("doAction at " + index + ", description: " + description + ", page source: " + prettyPrintByTransformer(driver.getPageSource(), 2, false)
+            String pageSource = prettyPrintByTransformer(driver.getPageSource(), 2, false);
+            logger.error("doAction at " + index + ", description: " + description + ", page source: " + pageSource
                     + "\n, with exception: " + e.getMessage());
             if (!isOption) {
                 throw new IllegalStateException("Failed at " + index + ", description: " + description + ", " + e.getMessage()
-                        + ", page source: \n" + prettyPrintByTransformer(driver.getPageSource(), 2, false), e);
+                        + ", page source: \n" + pageSource, e);
             }
         }
     }
@@ -97,14 +108,16 @@ public final class T2CAppiumUtils {
     public static void chooseActionType(BaseDriverController driver, ActionInfo actionInfo, Logger logger) {
         String actionType = actionInfo.getActionType();
         BaseElementInfo element = actionInfo.getTestElement();
-        WebElement webElement = findElement(driver, element, logger);
+        // taken once for the action, both to find its elements and to log
+        String pageSource = driver.getPageSource();
+        WebElement webElement = findElement(driver, element, pageSource, logger);
         Map<String, Object> arguments = actionInfo.getArguments();
         // Safe wait if no element required before this action to ensure the UI is ready
         if (webElement == null && !isSelfTesting) {
             safeSleep(3000);
         }
         logger.info("chooseActionType, action id: " + actionInfo.getId() + ", description: " + actionInfo.getDescription() + " on element: "  + webElement);
-        logger.info("chooseActionType, page source: \n" + prettyPrintByTransformer(driver.getPageSource(), 2, false));
+        logger.info("chooseActionType, page source: \n" + prettyPrintByTransformer(pageSource, 2, false));
         switch (actionType) {
             case "click":
                 driver.click(webElement);
@@ -227,7 +240,7 @@ public final class T2CAppiumUtils {
                     } else {
                         throw new IllegalArgumentException("Fail to parse the 'toElement' in the json. action index: " + actionInfo.getId());
                     }
-                    WebElement toElement = findElement(driver, toElementInfo, logger);
+                    WebElement toElement = findElement(driver, toElementInfo, pageSource, logger);
                     driver.dragAndDrop(webElement, toElement);
                 } else {
                     throw new IllegalArgumentException(
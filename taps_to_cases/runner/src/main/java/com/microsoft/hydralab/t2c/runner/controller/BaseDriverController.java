@@ -8,6 +8,7 @@ import com.microsoft.hydralab.t2c.runner.elements.WindowsElementInfo;
 import io.appium.java_client.AppiumBy;
 import io.appium.java_client.android.nativekey.AndroidKey;
 import org.jetbrains.annotations.Nullable;
+import org.openqa.selenium.By;
 import org.openqa.selenium.Dimension;
 import org.openqa.selenium.Point;
 import org.openqa.selenium.WebDriver;
@@ -18,6 +19,7 @@ import org.openqa.selenium.support.ui.WebDriverWait;
 import org.slf4j.Logger;
 
 import java.time.Duration;
+import java.util.List;
 
 public abstract class BaseDriverController {
     protected WebDriver webDriver;
@@ -200,6 +202,42 @@ public abstract class BaseDriverController {
         return elementFound;
     }
 
+    /**
+     * Look up the element once without waiting, e.g. when it's already in the page source.
+     */
+    @Nullable
+    public WebElement findElementNow(By locator) {
+        try {
+            List<WebElement> elements = webDriver.findElements(locator);
+            return elements.isEmpty() ? null : elements.get(0);
+        } catch (Exception e) {
+            logger.info("Can not find element by " + locator + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Poll all the locators in one wait, so a missing element costs a single timeout instead of one for each locator.
+     */
+    @Nullable
+    public WebElement findElementByAny(List<By> locators) {
+        WebElement elementFound = null;
+        try {
+            elementFound = new WebDriverWait(webDriver, Duration.ofSeconds(10))
+                    .until(driver -> {
+                        for (By locator : locators) {
+                            List<WebElement> elements = driver.findElements(locator);
+                            if (!elements.isEmpty()) {
+                                return elements.get(0);
+                            }
+                        }
+                        return null;
+                    });
+        } catch (Exception e) {
+            logger.info("Can not find element by any of: " + locators);
+        }
+        return elementFound;
+    }
 
     /**
      * In windows, id refers to {@link WindowsElementInfo#getName()}
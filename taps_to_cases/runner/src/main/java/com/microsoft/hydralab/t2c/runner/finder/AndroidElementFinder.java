@@ -3,8 +3,15 @@ package com.microsoft.hydralab.t2c.runner.finder;
 import com.google.common.base.Strings;
 import com.microsoft.hydralab.t2c.runner.controller.BaseDriverController;
 import com.microsoft.hydralab.t2c.runner.elements.AndroidElementInfo;
+import io.appium.java_client.AppiumBy;
+import org.jetbrains.annotations.Nullable;
+import org.openqa.selenium.By;
 import org.openqa.selenium.WebElement;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 public class AndroidElementFinder implements ElementFinder<AndroidElementInfo> {
 
     private final BaseDriverController driverController;
@@ -15,36 +22,54 @@ public class AndroidElementFinder implements ElementFinder<AndroidElementInfo> {
 
     @Override
     public WebElement findElement(AndroidElementInfo elementInfo) {
-        WebElement elementFound;
+        return findElement(elementInfo, driverController.getPageSource());
+    }
 
-        if (!Strings.isNullOrEmpty(elementInfo.getXpath())) {
-            elementFound = driverController.findElementByXPath(elementInfo.getXpath());
-            if (elementFound != null) {
-                return elementFound;
+    /**
+     * The locators are checked in order against the snapshot, the first one matching is looked up on the driver without waiting.
+     * Only if none of them matches, or the UI changed since the snapshot, all of them are polled on the driver together.
+     */
+    @Override
+    public WebElement findElement(AndroidElementInfo elementInfo, @Nullable String pageSource) {
+        Map<String, By> locators = getLocators(elementInfo);
+        if (locators.isEmpty()) {
+            return null;
+        }
+        PageSnapshot snapshot = PageSnapshot.parse(pageSource);
+        if (snapshot != null) {
+            for (Map.Entry<String, By> locator : locators.entrySet()) {
+                if (!snapshot.contains(locator.getKey())) {
+                    continue;
+                }
+                WebElement elementFound = driverController.findElementNow(locator.getValue());
+                if (elementFound != null) {
+                    return elementFound;
+                }
             }
         }
+        return driverController.findElementByAny(new ArrayList<>(locators.values()));
+    }
 
+    /**
+     * @return the locators of the element in priority order, each keyed by its xpath in the page source
+     */
+    private static Map<String, By> getLocators(AndroidElementInfo elementInfo) {
+        Map<String, By> locators = new LinkedHashMap<>();
+        if (!Strings.isNullOrEmpty(elementInfo.getXpath())) {
+            locators.put(elementInfo.getXpath(), AppiumBy.xpath(elementInfo.getXpath()));
+        }
         if (!Strings.isNullOrEmpty(elementInfo.getContentDesc())) {
-            elementFound = driverController.findElementByAccessibilityId(elementInfo.getContentDesc());
-            if (elementFound != null) {
-                return elementFound;
-            }
+            locators.put("//*[@content-desc=" + PageSnapshot.toXPathLiteral(elementInfo.getContentDesc()) + "]",
+                    new AppiumBy.ByAccessibilityId(elementInfo.getContentDesc()));
         }
-
         if (!Strings.isNullOrEmpty(elementInfo.getResourceId())) {
-            elementFound = driverController.findElementById(elementInfo.getResourceId());
-            if (elementFound != null) {
-                return elementFound;
-            }
+            locators.put("//*[@resource-id=" + PageSnapshot.toXPathLiteral(elementInfo.getResourceId()) + "]",
+                    AppiumBy.id(elementInfo.getResourceId()));
         }
-
         if (!Strings.isNullOrEmpty(elementInfo.getText())) {
-            elementFound = driverController.findElementByText(elementInfo.getText());
-            if (elementFound != null) {
-                return elementFound;
-            }
+            String textXPath = "//*[@text=" + PageSnapshot.toXPathLiteral(elementInfo.getText()) + "]";
+            locators.put(textXPath, AppiumBy.xpath(textXPath));
         }
-
-        return null;
+        return locators;
     }
 }
@@ -1,10 +1,19 @@
 package com.microsoft.hydralab.t2c.runner.finder;
 
 import com.microsoft.hydralab.t2c.runner.elements.BaseElementInfo;
+import org.jetbrains.annotations.Nullable;
 import org.openqa.selenium.WebElement;
 
 public interface ElementFinder<T extends BaseElementInfo> {
 
     WebElement findElement(T elementInfo);
 
+    /**
+     * Find the element with the page source already taken for the action, override it to check the locators against
+     * a {@link PageSnapshot} of it before waiting on the driver.
+     */
+    default WebElement findElement(T elementInfo, @Nullable String pageSource) {
+        return findElement(elementInfo);
+    }
+
 }
@@ -0,0 +1,74 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.t2c.runner.finder;
+
+import org.jetbrains.annotations.Nullable;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import java.io.StringReader;
+
+/**
+ * The page source of the current UI parsed once, so all the locators of an element are checked in memory
+ * instead of each of them waiting on the driver.
+ */
+public final class PageSnapshot {
+    private final Document document;
+    private final XPath xPath = XPathFactory.newInstance().newXPath();
+
+    private PageSnapshot(Document document) {
+        this.document = document;
+    }
+
+    /**
+     * @return null if the page source is not XML, e.g. the driver failed to get it
+     */
+    @Nullable
+    public static PageSnapshot parse(@Nullable String pageSource) {
+        if (pageSource == null || pageSource.isEmpty()) {
+            return null;
+        }
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            DocumentBuilder builder = factory.newDocumentBuilder();
+            // a page source which is not XML is expected from some drivers, keep the parser from printing it
+            builder.setErrorHandler(new DefaultHandler());
+            return new PageSnapshot(builder.parse(new InputSource(new StringReader(pageSource))));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if any node of the page matches the xpath, false also for an xpath which can't be evaluated
+     */
+    public boolean contains(String xpath) {
+        try {
+            return (Boolean) xPath.evaluate("boolean(" + xpath + ")", document, XPathConstants.BOOLEAN);
+        } catch (XPathExpressionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return an xpath string literal of the value, which may contain both quote characters
+     */
+    public static String toXPathLiteral(String value) {
+        if (!value.contains("'")) {
+            return "'" + value + "'";
+        }
+        if (!value.contains("\"")) {
+            return "\"" + value + "\"";
+        }
+        return "concat('" + value.replace("'", "', \"'\", '") + "')";
+    }
+}
@@ -0,0 +1,32 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.t2c.runner.finder;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class PageSnapshotTest {
+    private static final String PAGE_SOURCE = "<?xml version='1.0' encoding='UTF-8' standalone='yes' ?><hierarchy index=\"0\" rotation=\"0\">"
+            + "<android.widget.FrameLayout index=\"0\" package=\"com.microsoft.test\" resource-id=\"\">"
+            + "<android.widget.TextView index=\"0\" text=\"Don't &quot;stop&quot;\" content-desc=\"title\" resource-id=\"com.microsoft.test:id/title\"/>"
+            + "</android.widget.FrameLayout></hierarchy>";
+
+    @Test
+    public void locatorsCheckedInSnapshot() {
+        PageSnapshot snapshot = PageSnapshot.parse(PAGE_SOURCE);
+        Assertions.assertNotNull(snapshot);
+        Assertions.assertTrue(snapshot.contains("/hierarchy/android.widget.FrameLayout/android.widget.TextView[1]"));
+        Assertions.assertTrue(snapshot.contains("//*[@content-desc=" + PageSnapshot.toXPathLiteral("title") + "]"));
+        Assertions.assertTrue(snapshot.contains("//*[@resource-id='com.microsoft.test:id/title']"));
+        Assertions.assertTrue(snapshot.contains("//*[@text=" + PageSnapshot.toXPathLiteral("Don't \"stop\"") + "]"));
+        Assertions.assertFalse(snapshot.contains("//android.widget.Button"));
+        Assertions.assertFalse(snapshot.contains("//*[@text='unclosed]"));
+    }
+
+    @Test
+    public void invalidPageSourceNotParsed() {
+        Assertions.assertNull(PageSnapshot.parse(null));
+        Assertions.assertNull(PageSnapshot.parse("Windows page: \n<foo>"));
+    }
+}